@@ -28,6 +28,7 @@ import com.android.tradefed.command.remote.IRemoteClient;
 import com.android.tradefed.command.remote.RemoteClient;
 import com.android.tradefed.command.remote.RemoteException;
 import com.android.tradefed.command.remote.RemoteManager;
+import com.android.tradefed.config.ConfigurationDescriptor;
 import com.android.tradefed.config.ConfigurationException;
 import com.android.tradefed.config.ConfigurationFactory;
 import com.android.tradefed.config.GlobalConfiguration;
@@ -43,6 +44,7 @@ import com.android.tradefed.device.DeviceUnresponsiveException;
 import com.android.tradefed.device.FreeDeviceState;
 import com.android.tradefed.device.IDeviceManager;
 import com.android.tradefed.device.IDeviceMonitor;
+import com.android.tradefed.device.IDeviceSelection;
 import com.android.tradefed.device.IManagedTestDevice;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.ITestDevice.RecoveryMode;
@@ -61,6 +63,7 @@ import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.ResultForwarder;
 import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.ProcessEngine;
 import com.android.tradefed.util.QuotationAwareTokenizer;
 import com.android.tradefed.util.RunUtil;
 import com.android.tradefed.util.TableFormatter;
@@ -71,6 +74,7 @@ import com.android.tradefed.util.hostmetric.IHostMonitor.HostMetricType;
 import com.android.tradefed.util.keystore.IKeyStoreClient;
 import com.android.tradefed.util.keystore.IKeyStoreFactory;
 import com.android.tradefed.util.keystore.KeyStoreException;
+import com.android.tradefed.util.net.HttpUploadQueue;
 
 import com.google.common.annotations.VisibleForTesting;
 
@@ -140,6 +144,9 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     /** Maximum time to wait for adb to initialize and get the physical devices discovered */
     private static final long ADB_INIT_TIME_MS = 500;
 
+    /** Maximum time to wait for the background result uploads before exiting */
+    private static final long UPLOAD_WAIT_MS = 5 * 60 * 1000;
+
     /** used to assign unique ids to each CommandTracker created */
     private int mCurrentCommandId = 0;
 
@@ -170,6 +177,11 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     )
     private long mPollTime = 30 * 1000; // 30 seconds
 
+    @Option(name = "lazy-command-configs", description =
+            "only keep the args and device requirements of the commands waiting for a device, and "
+            + "create their configuration when they are matched with devices.")
+    private boolean mLazyCommandConfigs = false;
+
     @Option(name = "shutdown-on-cmdfile-error", description =
             "terminate TF session if a configuration exception on command file occurs")
     private boolean mShutdownOnCmdfileError = false;
@@ -208,6 +220,9 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         /** the total amount of time this command was executing. Used to prioritize */
         private long mTotalExecTime = 0;
 
+        /** the requirements of the command, when its queued instances are created lazily */
+        private CommandRequirements mRequirements = null;
+
         CommandTracker(int id, String[] args, String commandFilePath) {
             mId = id;
             mArgs = args;
@@ -242,6 +257,65 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         String getCommandFilePath() {
             return mCommandFilePath;
         }
+
+        synchronized void setRequirements(CommandRequirements requirements) {
+            mRequirements = requirements;
+        }
+
+        /**
+         * Return the requirements extracted from the configuration of the command, or null if its
+         * instances are not created lazily.
+         */
+        synchronized CommandRequirements getRequirements() {
+            return mRequirements;
+        }
+    }
+
+    /**
+     * The device requirements and scheduling options of a command, extracted once from its
+     * {@link IConfiguration}, so that queued instances of the command do not need to hold a full
+     * configuration.
+     */
+    static class CommandRequirements {
+        private final Map<String, IDeviceSelection> mDeviceRequirements;
+        private final boolean mLoopMode;
+        private final long mLoopTime;
+        private final ConfigurationDescriptor mConfigDescriptor;
+
+        CommandRequirements(IConfiguration config) {
+            mDeviceRequirements = getDeviceRequirements(config);
+            mLoopMode = config.getCommandOptions().isLoopMode();
+            mLoopTime = config.getCommandOptions().getLoopTime();
+            mConfigDescriptor = config.getConfigurationDescription();
+        }
+
+        /**
+         * Get the device requirements of a configuration, by device name.
+         */
+        static Map<String, IDeviceSelection> getDeviceRequirements(IConfiguration config) {
+            Map<String, IDeviceSelection> requirements = new LinkedHashMap<>();
+            for (IDeviceConfiguration deviceConfig : config.getDeviceConfig()) {
+                requirements.put(deviceConfig.getDeviceName(),
+                        deviceConfig.getDeviceRequirements());
+            }
+            return requirements;
+        }
+
+        Map<String, IDeviceSelection> getDeviceRequirements() {
+            return mDeviceRequirements;
+        }
+
+        boolean isLoopMode() {
+            return mLoopMode;
+        }
+
+        long getLoopTime() {
+            return mLoopTime;
+        }
+
+        ConfigurationDescriptor getConfigurationDescriptor() {
+            return mConfigDescriptor;
+        }
     }
 
     /**
@@ -249,7 +323,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
      */
     private class ExecutableCommand {
         private final CommandTracker mCmdTracker;
-        private final IConfiguration mConfig;
+        private IConfiguration mConfig;
         private final boolean mRescheduled;
         private final long mCreationTime;
         private Long mSleepTime;
@@ -263,12 +337,47 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         }
 
         /**
-         * Gets the {@link IConfiguration} for this command instance
+         * Gets the {@link IConfiguration} for this command instance.
+         * <p/>
+         * Returns null for a lazily created command, until it is matched with devices and
+         * {@link #createConfiguration()} is called.
          */
         public IConfiguration getConfiguration() {
             return mConfig;
         }
 
+        /**
+         * Creates the {@link IConfiguration} of a lazily created command. Does nothing if the
+         * command already has its configuration.
+         */
+        void createConfiguration() throws ConfigurationException {
+            if (mConfig == null) {
+                CLog.d("creating configuration for command id %d", mCmdTracker.getId());
+                mConfig = getConfigFactory().createConfigurationFromArgs(mCmdTracker.getArgs(),
+                        null, getKeyStoreClient());
+            }
+        }
+
+        /**
+         * Gets the device requirements of the command, by device name.
+         */
+        Map<String, IDeviceSelection> getDeviceRequirements() {
+            if (mConfig == null) {
+                return mCmdTracker.getRequirements().getDeviceRequirements();
+            }
+            return CommandRequirements.getDeviceRequirements(mConfig);
+        }
+
+        /**
+         * Gets the {@link ConfigurationDescriptor} of the command.
+         */
+        ConfigurationDescriptor getConfigurationDescriptor() {
+            if (mConfig == null) {
+                return mCmdTracker.getRequirements().getConfigurationDescriptor();
+            }
+            return mConfig.getConfigurationDescription();
+        }
+
         /**
          * Gets the associated {@link CommandTracker}.
          */
@@ -303,6 +412,9 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         }
 
         public boolean isLoopMode() {
+            if (mConfig == null) {
+                return mCmdTracker.getRequirements().isLoopMode();
+            }
             return mConfig.getCommandOptions().isLoopMode();
         }
 
@@ -950,6 +1062,11 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             manager.terminateDeviceMonitor();
             CLog.i("Waiting for invocation threads to complete");
             waitForAllInvocationThreads();
+            // let the results posted in the background by the invocations be uploaded
+            if (!HttpUploadQueue.awaitDefault(UPLOAD_WAIT_MS)) {
+                CLog.w("Some results could not be uploaded in %d ms", UPLOAD_WAIT_MS);
+            }
+            ProcessEngine.getDefault().logLatencies();
             closeRemoteClient();
             if (mRemoteManager != null) {
                 mRemoteManager.cancelAndWait();
@@ -993,10 +1110,10 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             Iterator<ExecutableCommand> cmdIter = mReadyCommands.iterator();
             while (cmdIter.hasNext()) {
                 ExecutableCommand cmd = cmdIter.next();
-                IConfiguration config = cmd.getConfiguration();
                 IInvocationContext context = new InvocationContext();
-                context.setConfigurationDescriptor(config.getConfigurationDescription());
-                Map<String, ITestDevice> devices = allocateDevices(config, manager);
+                context.setConfigurationDescriptor(cmd.getConfigurationDescriptor());
+                Map<String, ITestDevice> devices = allocateDevices(cmd.getDeviceRequirements(),
+                        manager);
                 if (!devices.isEmpty()) {
                     cmdIter.remove();
                     mExecutingCommands.add(cmd);
@@ -1026,6 +1143,20 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         for (Map.Entry<ExecutableCommand, IInvocationContext> cmdDeviceEntry : scheduledCommandMap
                 .entrySet()) {
             ExecutableCommand cmd = cmdDeviceEntry.getKey();
+            try {
+                cmd.createConfiguration();
+            } catch (ConfigurationException e) {
+                CLog.e("Failed to create the configuration of command id %d, dropping it",
+                        cmd.getCommandTracker().getId());
+                CLog.e(e);
+                for (ITestDevice device : cmdDeviceEntry.getValue().getDevices()) {
+                    manager.freeDevice(device, FreeDeviceState.AVAILABLE);
+                }
+                synchronized (this) {
+                    mExecutingCommands.remove(cmd);
+                }
+                continue;
+            }
             startInvocation(cmdDeviceEntry.getValue(), cmd,
                     new FreeDeviceHandler(getDeviceManager()));
             if (cmd.isLoopMode()) {
@@ -1131,7 +1262,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             } else {
                 CommandTracker cmdTracker = createCommandTracker(args, cmdFilePath);
                 cmdTracker.incrementExecTime(totalExecTime);
-                ExecutableCommand cmdInstance = createExecutableCommand(cmdTracker, config, false);
+                ExecutableCommand cmdInstance = createQueuedCommand(cmdTracker, config);
                 addExecCommandToQueue(cmdInstance, 0);
             }
             return true;
@@ -1151,7 +1282,8 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             CLog.logAndDisplay(LogLevel.INFO,
                     "cmd file %s is already running and being watched for changes. Reloading",
                     cmdFilePath);
-            removeCommandsFromFile(cmdFile);
+            reloadCommandFile(cmdFile, extraArgs);
+            return;
         }
         internalAddCommandFile(cmdFile, extraArgs);
     }
@@ -1161,6 +1293,75 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
      */
     private void internalAddCommandFile(File cmdFile, List<String> extraArgs)
             throws ConfigurationException {
+        for (String[] arrayCommand : parseCommandFile(cmdFile, extraArgs)) {
+            addCommandFromFile(arrayCommand, cmdFile);
+        }
+    }
+
+    /**
+     * Reloads a command file, only updating the commands which changed.
+     * <p/>
+     * The commands of the file, after macro and include expansion, are diffed against the
+     * commands from the file which are waiting for a device or sleeping. Unchanged commands keep
+     * their {@link CommandTracker}, and so their accumulated execution time, queue position and
+     * sleep state. Commands no longer in the file are removed, and new or modified commands are
+     * added. Commands currently executing are not affected.
+     */
+    private void reloadCommandFile(File cmdFile, List<String> extraArgs)
+            throws ConfigurationException {
+        List<String[]> commands = parseCommandFile(cmdFile, extraArgs);
+        String path = cmdFile.getAbsolutePath();
+        List<String[]> addedCommands = new ArrayList<>();
+        synchronized (this) {
+            // the queued trackers of the file, by args. Commands may be duplicated in the file
+            Map<List<String>, LinkedList<CommandTracker>> queuedTrackers = new HashMap<>();
+            Set<CommandTracker> seen = new HashSet<>();
+            List<ExecutableCommand> queued = new ArrayList<>(mReadyCommands);
+            queued.addAll(mSleepingCommands);
+            for (ExecutableCommand cmd : queued) {
+                CommandTracker tracker = cmd.getCommandTracker();
+                if (path.equals(tracker.getCommandFilePath()) && seen.add(tracker)) {
+                    List<String> key = Arrays.asList(tracker.getArgs());
+                    LinkedList<CommandTracker> trackers = queuedTrackers.get(key);
+                    if (trackers == null) {
+                        trackers = new LinkedList<>();
+                        queuedTrackers.put(key, trackers);
+                    }
+                    trackers.add(tracker);
+                }
+            }
+            int unchanged = 0;
+            for (String[] command : commands) {
+                LinkedList<CommandTracker> trackers = queuedTrackers.get(Arrays.asList(command));
+                if (trackers != null && !trackers.isEmpty()) {
+                    trackers.removeFirst();
+                    unchanged++;
+                } else {
+                    addedCommands.add(command);
+                }
+            }
+            Set<CommandTracker> removedTrackers = new HashSet<>();
+            for (LinkedList<CommandTracker> trackers : queuedTrackers.values()) {
+                removedTrackers.addAll(trackers);
+            }
+            removeCommands(removedTrackers);
+            CLog.logAndDisplay(LogLevel.INFO,
+                    "Reloaded cmdfile %s: %d commands unchanged, %d removed, %d added", path,
+                    unchanged, removedTrackers.size(), addedCommands.size());
+        }
+        for (String[] command : addedCommands) {
+            addCommandFromFile(command, cmdFile);
+        }
+    }
+
+    /**
+     * Parses a command file, and registers it with the {@link CommandFileWatcher} if reloading is
+     * enabled.
+     *
+     * @return the commands of the file, with the extra args appended.
+     */
+    private List<String[]> parseCommandFile(File cmdFile, List<String> extraArgs)
+            throws ConfigurationException {
         try {
             CommandFileParser parser = createCommandFileParser();
 
@@ -1170,24 +1371,30 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                 // since the dependent file list might have changed
                 getCommandFileWatcher().addCmdFile(cmdFile, extraArgs, parser.getIncludedFiles());
             }
+            List<String[]> arrayCommands = new ArrayList<>(commands.size());
             for (CommandLine command : commands) {
                 command.addAll(extraArgs);
-                String[] arrayCommand = command.asArray();
-                final String prettyCmdLine = QuotationAwareTokenizer.combineTokens(arrayCommand);
-                CLog.d("Adding command %s", prettyCmdLine);
-
-                try {
-                    internalAddCommand(arrayCommand, 0, cmdFile.getAbsolutePath());
-                } catch (ConfigurationException e) {
-                    throw new ConfigurationException(String.format(
-                            "Failed to add command '%s': %s", prettyCmdLine, e.getMessage()), e);
-                }
+                arrayCommands.add(command.asArray());
             }
+            return arrayCommands;
         } catch (IOException e) {
             throw new ConfigurationException("Failed to read file " + cmdFile.getAbsolutePath(), e);
         }
     }
 
+    private void addCommandFromFile(String[] arrayCommand, File cmdFile)
+            throws ConfigurationException {
+        final String prettyCmdLine = QuotationAwareTokenizer.combineTokens(arrayCommand);
+        CLog.d("Adding command %s", prettyCmdLine);
+
+        try {
+            internalAddCommand(arrayCommand, 0, cmdFile.getAbsolutePath());
+        } catch (ConfigurationException e) {
+            throw new ConfigurationException(String.format(
+                    "Failed to add command '%s': %s", prettyCmdLine, e.getMessage()), e);
+        }
+    }
+
     /**
      * Factory method for creating a {@link CommandFileParser}.
      *
@@ -1220,7 +1427,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                 CLog.logAndDisplay(LogLevel.INFO, "Scheduling '%s' on '%s'",
                         cmdTracker.getArgs()[0], device);
                 config.getDeviceRequirements().setSerial(device);
-                ExecutableCommand execCmd = createExecutableCommand(cmdTracker, config, false);
+                ExecutableCommand execCmd = createQueuedCommand(cmdTracker, config);
                 addExecCommandToQueue(execCmd, 0);
             }
         }
@@ -1247,12 +1454,34 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         return cmd;
     }
 
+    /**
+     * Creates the first {@link ExecutableCommand} of a command to queue. If
+     * {@code lazy-command-configs} is set, only the {@link CommandRequirements} of the validated
+     * config are kept, and the configuration is created again when the command is matched with
+     * devices.
+     */
+    private ExecutableCommand createQueuedCommand(CommandTracker cmdTracker,
+            IConfiguration config) {
+        if (!mLazyCommandConfigs) {
+            return createExecutableCommand(cmdTracker, config, false);
+        }
+        cmdTracker.setRequirements(new CommandRequirements(config));
+        return createExecutableCommand(cmdTracker, null, false);
+    }
+
     /**
      * Creates a new {@link ExecutableCommand}, and adds it to queue
      *
      * @param commandTracker
      */
     private void addNewExecCommandToQueue(CommandTracker commandTracker) {
+        CommandRequirements requirements = commandTracker.getRequirements();
+        if (requirements != null) {
+            // lazy command, no need to create its configuration until it is matched with devices
+            ExecutableCommand execCmd = createExecutableCommand(commandTracker, null, false);
+            addExecCommandToQueue(execCmd, requirements.getLoopTime());
+            return;
+        }
         try {
             IConfiguration config = getConfigFactory().createConfigurationFromArgs(
                     commandTracker.getArgs(), null, getKeyStoreClient());
@@ -1344,14 +1573,26 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
      * @return allocated devices
      */
     Map<String, ITestDevice> allocateDevices(IConfiguration config, IDeviceManager manager) {
+        return allocateDevices(CommandRequirements.getDeviceRequirements(config), manager);
+    }
+
+    /**
+     * Allocates a device for each of the device requirements, or none if they cannot all be
+     * allocated.
+     *
+     * @param deviceRequirements the {@link IDeviceSelection} of each device, by device name.
+     */
+    private Map<String, ITestDevice> allocateDevices(
+            Map<String, IDeviceSelection> deviceRequirements, IDeviceManager manager) {
         Map<String, ITestDevice> devices = new LinkedHashMap<String, ITestDevice>();
         ITestDevice device = null;
         synchronized(this) {
-            if (!config.getDeviceConfig().isEmpty()) {
-                for (IDeviceConfiguration deviceConfig : config.getDeviceConfig()) {
-                    device = manager.allocateDevice(deviceConfig.getDeviceRequirements());
+            if (!deviceRequirements.isEmpty()) {
+                for (Map.Entry<String, IDeviceSelection> requirement :
+                        deviceRequirements.entrySet()) {
+                    device = manager.allocateDevice(requirement.getValue());
                     if (device != null) {
-                        devices.put(deviceConfig.getDeviceName(), device);
+                        devices.put(requirement.getKey(), device);
                     } else {
                         // If one of the several device cannot be allocated, we de-allocate
                         // all the previous one.
@@ -1537,25 +1778,21 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     }
 
     /**
-     * Remove commands originally added via the given command file
-     * @param cmdFile
+     * Remove the ready and sleeping commands of the given {@link CommandTracker}s
      */
-    private synchronized void removeCommandsFromFile(File cmdFile) {
+    private synchronized void removeCommands(Set<CommandTracker> trackers) {
+        if (trackers.isEmpty()) {
+            return;
+        }
         Iterator<ExecutableCommand> cmdIter = mReadyCommands.iterator();
         while (cmdIter.hasNext()) {
-            ExecutableCommand cmd = cmdIter.next();
-            String path = cmd.getCommandFilePath();
-            if (path != null &&
-                    path.equals(cmdFile.getAbsolutePath())) {
+            if (trackers.contains(cmdIter.next().getCommandTracker())) {
                 cmdIter.remove();
             }
         }
         cmdIter = mSleepingCommands.iterator();
         while (cmdIter.hasNext()) {
-            ExecutableCommand cmd = cmdIter.next();
-            String path = cmd.getCommandFilePath();
-            if (path != null &&
-                    path.equals(cmdFile.getAbsolutePath())) {
+            if (trackers.contains(cmdIter.next().getCommandTracker())) {
                 cmdIter.remove();
             }
         }
@@ -1820,12 +2057,18 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                 }
 
                 try {
+                    IConfiguration config = cmd.cmd.getConfiguration();
+                    if (config == null) {
+                        // lazy command, create a configuration just for the dump
+                        config = getConfigFactory().createConfigurationFromArgs(args, null,
+                                getKeyStoreClient());
+                    }
                     File xmlFile = FileUtil.createTempFile(xmlPrefix, ".xml");
                     PrintWriter writer = new PrintWriter(xmlFile);
-                    cmd.cmd.getConfiguration().dumpXml(writer);
+                    config.dumpXml(writer);
                     printWriter.println(String.format("Saved command dump to %s",
                             xmlFile.getAbsolutePath()));
-                } catch (IOException e) {
+                } catch (IOException | ConfigurationException e) {
                     // Log exception and continue
                     CLog.e("Could not dump config xml");
                     CLog.e(e);
@@ -2065,11 +2308,10 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     public void notifyFileChanged(File cmdFile, List<String> extraArgs) {
         CLog.logAndDisplay(LogLevel.INFO, "Detected update for cmdfile '%s'. Reloading",
                 cmdFile.getAbsolutePath());
-        removeCommandsFromFile(cmdFile);
         try {
-            // just add the file again, including re-registering for command file watcher
+            // reload the file, including re-registering for command file watcher
             // don't want to remove the registration here in case file fails to load
-            internalAddCommandFile(cmdFile, extraArgs);
+            reloadCommandFile(cmdFile, extraArgs);
         } catch (ConfigurationException e) {
             CLog.wtf(String.format("Failed to automatically reload cmdfile %s",
                     cmdFile.getAbsolutePath()), e);
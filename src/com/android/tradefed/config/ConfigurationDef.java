@@ -17,6 +17,7 @@
 package com.android.tradefed.config;
 
 import java.io.File;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -30,7 +31,9 @@ import java.util.regex.Pattern;
 /**
  * Holds a record of a configuration, its associated objects and their options.
  */
-public class ConfigurationDef {
+public class ConfigurationDef implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     /**
      * a map of object type names to config object class name(s). Use LinkedHashMap to keep objects
@@ -47,7 +50,9 @@ public class ConfigurationDef {
     /** The set of files (and modification times) that were used to load this config */
     private final Map<File, Long> mSourceFiles = new HashMap<>();
 
-    public static class OptionDef {
+    public static class OptionDef implements Serializable {
+        private static final long serialVersionUID = 1L;
+
         final String name;
         final String key;
         final String value;
@@ -69,7 +74,9 @@ public class ConfigurationDef {
      * Object to hold info for a className and the appearance number it has (e.g. if a config has
      * the same object twice, the first one will have the first appearance number).
      */
-    public static class ConfigObjectDef {
+    public static class ConfigObjectDef implements Serializable {
+        private static final long serialVersionUID = 1L;
+
         final String mClassName;
         final Integer mAppearanceNum;
 
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.config;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An on-disk cache of parsed {@link ConfigurationDef}, shared by the TF processes of a user.
+ * <p/>
+ * An entry is stored under a key computed from everything that determines how the configuration
+ * files are resolved: the resolved config name, the template map and the lookup context (working
+ * directory and test cases directories). It holds the content hash of every file the definition
+ * was parsed from, i.e. the config and all its includes and templates, and is only used if all
+ * these files still have the same content.
+ * <p/>
+ * Entries are written to a temporary file which is atomically renamed, so concurrent processes
+ * only ever see complete entries. An entry that cannot be read is treated as a miss.
+ * <p/>
+ * The cache directory must be owned by the current user and not writable by anyone else, as the
+ * entries are trusted once their sources match; it is not used otherwise. Entries are only
+ * deserialized into the classes a {@link ConfigurationDef} is made of.
+ */
+public class ConfigurationDefCache {
+
+    private static final String DEFAULT_CACHE_DIR_NAME = "tf-config-def-cache";
+    /** Bump when the format of {@link ConfigurationDef} or of the entries changes */
+    private static final int FORMAT_VERSION = 1;
+    private static final String ENTRY_SUFFIX = ".ser";
+    /** The classes an entry is made of, no other class is deserialized. */
+    private static final Set<String> ENTRY_CLASSES = new HashSet<>(Arrays.asList(
+            Entry.class.getName(),
+            ConfigurationDef.class.getName(),
+            ConfigurationDef.OptionDef.class.getName(),
+            ConfigurationDef.ConfigObjectDef.class.getName(),
+            ArrayList.class.getName(),
+            HashMap.class.getName(),
+            HashSet.class.getName(),
+            LinkedHashMap.class.getName(),
+            Boolean.class.getName(),
+            Integer.class.getName(),
+            Long.class.getName(),
+            Number.class.getName(),
+            File.class.getName()));
+
+    // use the "singleton inner class" pattern
+    // http://en.wikipedia.org/wiki/Singleton_pattern#The_solution_of_Bill_Pugh
+    private static class SingletonHolder {
+        public static final ConfigurationDefCache INSTANCE = new ConfigurationDefCache(
+                new File(System.getProperty("java.io.tmpdir"), String.format("%s-%s",
+                        DEFAULT_CACHE_DIR_NAME, System.getProperty("user.name"))));
+    }
+
+    /**
+     * Reads the content of the configuration sources, to validate the entries.
+     */
+    public static interface ISourceReader {
+        /**
+         * Read the content of a configuration source.
+         *
+         * @param name the name of a bundled configuration or the path of a configuration file.
+         * @return the content of the source.
+         * @throws ConfigurationException if the source cannot be read.
+         */
+        byte[] readSource(String name) throws ConfigurationException;
+    }
+
+    /** A cached {@link ConfigurationDef} along with the content hashes of its sources. */
+    public static class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int mFormatVersion;
+        private final ConfigurationDef mDef;
+        private final Map<String, String> mSourceHashes;
+        private final Set<String> mUnusedTemplates;
+
+        /**
+         * Creates an {@link Entry}.
+         *
+         * @param def the parsed {@link ConfigurationDef}.
+         * @param sourceHashes the map of source name to content hash, as computed by
+         *            {@link ConfigurationDefCache#hash(byte[])}.
+         * @param unusedTemplates the keys of the template map that were not used by the config.
+         */
+        public Entry(ConfigurationDef def, Map<String, String> sourceHashes,
+                Set<String> unusedTemplates) {
+            mFormatVersion = FORMAT_VERSION;
+            mDef = def;
+            mSourceHashes = new LinkedHashMap<>(sourceHashes);
+            mUnusedTemplates = new HashSet<>(unusedTemplates);
+        }
+
+        /** Get the cached {@link ConfigurationDef}. */
+        public ConfigurationDef getConfigurationDef() {
+            return mDef;
+        }
+
+        /** Get the keys of the template map that were not used by the config. */
+        public Set<String> getUnusedTemplates() {
+            return mUnusedTemplates;
+        }
+
+        /**
+         * Returns true if all the sources still have the content the definition was parsed from.
+         */
+        boolean isValid(ISourceReader reader) {
+            if (mFormatVersion != FORMAT_VERSION) {
+                return false;
+            }
+            for (Map.Entry<String, String> source : mSourceHashes.entrySet()) {
+                try {
+                    if (!source.getValue().equals(hash(reader.readSource(source.getKey())))) {
+                        CLog.d("Config source %s changed", source.getKey());
+                        return false;
+                    }
+                } catch (ConfigurationException e) {
+                    CLog.d("Config source %s cannot be read: %s", source.getKey(),
+                            e.getMessage());
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final Set<PosixFilePermission> OWNER_ONLY =
+            PosixFilePermissions.fromString("rwx------");
+
+    private final File mCacheDir;
+
+    /**
+     * Creates a {@link ConfigurationDefCache}.
+     *
+     * @param cacheDir the directory where the entries are stored.
+     */
+    public ConfigurationDefCache(File cacheDir) {
+        mCacheDir = cacheDir;
+    }
+
+    /**
+     * Returns the default {@link ConfigurationDefCache}, in a directory of the temp directory
+     * owned by the current user.
+     */
+    public static ConfigurationDefCache getDefault() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    /**
+     * Get a valid entry.
+     *
+     * @param key the key of the entry, as computed by {@link #computeKey}.
+     * @param reader the {@link ISourceReader} used to validate the entry.
+     * @return the {@link Entry}, or null if there is no valid entry for the key.
+     */
+    public Entry get(String key, ISourceReader reader) {
+        File entryFile = getEntryFile(key);
+        if (!entryFile.isFile() || !checkCacheDir()) {
+            return null;
+        }
+        Entry entry;
+        try (ObjectInputStream in = new EntryInputStream(
+                new BufferedInputStream(new FileInputStream(entryFile)))) {
+            entry = (Entry) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            CLog.d("Failed to read cached config %s: %s", entryFile, e.toString());
+            return null;
+        }
+        if (!entry.isValid(reader)) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Store an entry, replacing any existing entry for the key.
+     *
+     * @param key the key of the entry, as computed by {@link #computeKey}.
+     * @param entry the {@link Entry} to store.
+     */
+    public void put(String key, Entry entry) {
+        File tmpFile = null;
+        try {
+            if (!mCacheDir.isDirectory()) {
+                try {
+                    Files.createDirectories(mCacheDir.toPath(),
+                            PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+                } catch (FileAlreadyExistsException e) {
+                    // created concurrently, checked below
+                }
+            }
+            if (!checkCacheDir()) {
+                return;
+            }
+            tmpFile = FileUtil.createTempFile(key, ".tmp", mCacheDir);
+            try (ObjectOutputStream out = new ObjectOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeObject(entry);
+            }
+            Files.move(tmpFile.toPath(), getEntryFile(key).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            CLog.w("Failed to cache config in %s: %s", mCacheDir, e.toString());
+        } finally {
+            FileUtil.deleteFile(tmpFile);
+        }
+    }
+
+    /**
+     * Returns true if the cache directory is owned by the current user and not writable by anyone
+     * else, so that its entries can be trusted.
+     */
+    private boolean checkCacheDir() {
+        Path dir = mCacheDir.toPath();
+        try {
+            String owner = Files.getOwner(dir, LinkOption.NOFOLLOW_LINKS).getName();
+            Set<PosixFilePermission> perms =
+                    Files.getPosixFilePermissions(dir, LinkOption.NOFOLLOW_LINKS);
+            if (owner.equals(System.getProperty("user.name"))
+                    && !perms.contains(PosixFilePermission.GROUP_WRITE)
+                    && !perms.contains(PosixFilePermission.OTHERS_WRITE)) {
+                return true;
+            }
+            CLog.w("Not using config cache %s: owned by %s with permissions %s", mCacheDir, owner,
+                    PosixFilePermissions.toString(perms));
+        } catch (IOException | UnsupportedOperationException e) {
+            CLog.w("Not using config cache %s: %s", mCacheDir, e.toString());
+        }
+        return false;
+    }
+
+    /** An {@link ObjectInputStream} that only resolves the classes an {@link Entry} is made of. */
+    private static class EntryInputStream extends ObjectInputStream {
+        EntryInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc)
+                throws IOException, ClassNotFoundException {
+            if (!ENTRY_CLASSES.contains(desc.getName())) {
+                throw new InvalidClassException(desc.getName(), "not allowed in a cached config");
+            }
+            return super.resolveClass(desc);
+        }
+    }
+
+    private File getEntryFile(String key) {
+        return new File(mCacheDir, key + ENTRY_SUFFIX);
+    }
+
+    /**
+     * Computes the key of a configuration.
+     *
+     * @param isGlobal true for a global configuration.
+     * @param configName the resolved name of the configuration.
+     * @param templateMap the template map used to load it. Can be null.
+     * @param context the lookup context of the included configurations.
+     */
+    public static String computeKey(boolean isGlobal, String configName,
+            Map<String, String> templateMap, String context) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(FORMAT_VERSION).append('\n');
+        builder.append(isGlobal).append('\n');
+        builder.append(configName).append('\n');
+        builder.append(context).append('\n');
+        if (templateMap != null) {
+            // sort the templates so the key does not depend on the map ordering
+            for (Map.Entry<String, String> template : new TreeMap<>(templateMap).entrySet()) {
+                builder.append(template.getKey()).append('=').append(template.getValue());
+                builder.append('\n');
+            }
+        }
+        return hash(builder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Computes the SHA-256 hash of some content, as an hexadecimal string.
+     */
+    public static String hash(byte[] content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is required on all java platforms
+            throw new RuntimeException(e);
+        }
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest(content)) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+}
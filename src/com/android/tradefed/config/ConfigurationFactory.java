@@ -31,6 +31,7 @@ import com.android.tradefed.util.keystore.IKeyStoreClient;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -42,7 +43,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -63,6 +66,7 @@ public class ConfigurationFactory implements IConfigurationFactory {
     private static final String CONFIG_ERROR_PATTERN = "(Could not find option with name )(.*)";
 
     private Map<ConfigId, ConfigurationDef> mConfigDefMap;
+    private ConfigurationDefCache mDefCache;
 
     /**
      * A simple struct-like class that stores a configuration's name alongside
@@ -145,6 +149,13 @@ public class ConfigurationFactory implements IConfigurationFactory {
             CLog.d("Searching the '%s' config path", mPrefix);
         }
 
+        /**
+         * Get the classpath prefix of the accepted entries.
+         */
+        public String getPrefix() {
+            return mPrefix;
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -231,10 +242,12 @@ public class ConfigurationFactory implements IConfigurationFactory {
      * Implementation of {@link IConfigDefLoader} that tracks the included configurations from one
      * root config, and throws an exception on circular includes.
      */
-    class ConfigLoader implements IConfigDefLoader {
+    class ConfigLoader implements IConfigDefLoader, ConfigurationDefCache.ISourceReader {
 
         private final boolean mIsGlobalConfig;
         private DirectedGraph<String> mConfigGraph = new DirectedGraph<String>();
+        /** Map of the loaded sources to their content hash, when caching definitions */
+        private final Map<String, String> mSourceHashes = new LinkedHashMap<String, String>();
 
 
         public ConfigLoader(boolean isGlobalConfig) {
@@ -266,8 +279,7 @@ public class ConfigurationFactory implements IConfigurationFactory {
             ConfigurationDef def = mConfigDefMap.get(configId);
 
             if (def == null || def.isStale()) {
-                def = new ConfigurationDef(configName);
-                loadConfiguration(configName, def, templateMap);
+                def = loadConfigurationDef(configName, templateMap);
                 mConfigDefMap.put(configId, def);
             } else {
                 if (templateMap != null) {
@@ -281,6 +293,58 @@ public class ConfigurationFactory implements IConfigurationFactory {
             return def;
         }
 
+        /**
+         * Loads a root configuration, from the {@link ConfigurationDefCache} if it holds a valid
+         * definition.
+         */
+        private ConfigurationDef loadConfigurationDef(String configName,
+                Map<String, String> templateMap) throws ConfigurationException {
+            ConfigurationDefCache defCache = mDefCache;
+            if (defCache == null) {
+                ConfigurationDef def = new ConfigurationDef(configName);
+                loadConfiguration(configName, def, templateMap);
+                return def;
+            }
+            String key = ConfigurationDefCache.computeKey(mIsGlobalConfig, configName,
+                    templateMap, getConfigLookupContext());
+            ConfigurationDefCache.Entry entry = defCache.get(key, this);
+            if (entry != null) {
+                CLog.d("Using cached definition of configuration '%s'", configName);
+                if (templateMap != null) {
+                    // leave the templates the config does not use, like a parse would
+                    templateMap.keySet().retainAll(entry.getUnusedTemplates());
+                }
+                return entry.getConfigurationDef();
+            }
+            ConfigurationDef def = new ConfigurationDef(configName);
+            loadConfiguration(configName, def, templateMap);
+            Set<String> unusedTemplates = new HashSet<String>();
+            if (templateMap != null) {
+                unusedTemplates.addAll(templateMap.keySet());
+            }
+            defCache.put(key, new ConfigurationDefCache.Entry(def, mSourceHashes,
+                    unusedTemplates));
+            return def;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public byte[] readSource(String name) throws ConfigurationException {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            InputStream configStream = getConfigStream(name);
+            try {
+                StreamUtil.copyStreams(configStream, content);
+            } catch (IOException e) {
+                throw new ConfigurationException(String.format(
+                        "Failed to read configuration '%s': %s", name, e.getMessage()));
+            } finally {
+                StreamUtil.close(configStream);
+            }
+            return content.toByteArray();
+        }
+
         /**
          * Returns true if it is a config file found inside the classpath.
          */
@@ -379,9 +443,17 @@ public class ConfigurationFactory implements IConfigurationFactory {
         void loadConfiguration(String name, ConfigurationDef def, Map<String, String> templateMap)
                 throws ConfigurationException {
             Log.d(LOG_TAG, String.format("Loading configuration '%s'", name));
-            BufferedInputStream bufStream = getConfigStream(name);
+            InputStream configStream;
+            if (mDefCache != null) {
+                // keep the content hash of every source to validate the cached definition
+                byte[] content = readSource(name);
+                mSourceHashes.put(name, ConfigurationDefCache.hash(content));
+                configStream = new ByteArrayInputStream(content);
+            } else {
+                configStream = getConfigStream(name);
+            }
             ConfigurationXmlParser parser = new ConfigurationXmlParser(this);
-            parser.parse(def, name, bufStream, templateMap);
+            parser.parse(def, name, configStream, templateMap);
 
             // Track local config source files
             if (!isBundledConfig(name)) {
@@ -402,6 +474,26 @@ public class ConfigurationFactory implements IConfigurationFactory {
         mConfigDefMap = new Hashtable<ConfigId, ConfigurationDef>();
     }
 
+    /**
+     * Sets the {@link ConfigurationDefCache} shared with other processes, or null to always parse
+     * the configurations, the default.
+     */
+    void setConfigurationDefCache(ConfigurationDefCache defCache) {
+        mDefCache = defCache;
+    }
+
+    /**
+     * Get the context the included configurations are looked up in: the working directory and the
+     * test cases directories.
+     */
+    private String getConfigLookupContext() {
+        StringBuilder context = new StringBuilder(System.getProperty("user.dir"));
+        for (File testCasesDir : getExternalTestCasesDirs()) {
+            context.append(File.pathSeparator).append(testCasesDir.getAbsolutePath());
+        }
+        return context.toString();
+    }
+
     /**
      * Get the singleton {@link IConfigurationFactory} instance.
      */
@@ -613,7 +705,8 @@ public class ConfigurationFactory implements IConfigurationFactory {
      */
     private Set<String> getConfigSetFromClasspath(String subPath) {
         ClassPathScanner cpScanner = new ClassPathScanner();
-        return cpScanner.getClassPathEntries(new ConfigClasspathFilter(subPath));
+        ConfigClasspathFilter filter = new ConfigClasspathFilter(subPath);
+        return cpScanner.getClassPathEntries(filter.getPrefix(), filter);
     }
 
     /**
@@ -17,7 +17,7 @@
 package com.android.tradefed.config;
 
 import com.android.tradefed.log.LogUtil.CLog;
-import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.FileTreeIndex;
 import com.android.tradefed.util.MultiMap;
 
 import org.kxml2.io.KXmlSerializer;
@@ -136,6 +136,9 @@ public class ConfigurationUtil {
 
     /**
      * Helper to get the test config files from given directories.
+     * <p/>
+     * The directories are looked up through {@link FileTreeIndex#getDefault()}, so repeated
+     * queries only list again the directories that changed.
      *
      * @param subPath where to look for configuration. Can be null.
      * @param dirs a list of {@link File} of extra directories to search for test configs
@@ -150,12 +153,7 @@ public class ConfigurationUtil {
                 CLog.d("%s doesn't exist or is not a directory.", dir.getAbsolutePath());
                 continue;
             }
-            try {
-                configNames.addAll(FileUtil.findFiles(dir, ".*.config"));
-                configNames.addAll(FileUtil.findFiles(dir, ".*.xml"));
-            } catch (IOException e) {
-                CLog.w("Failed to get test config files from directory %s", dir.getAbsolutePath());
-            }
+            configNames.addAll(FileTreeIndex.getDefault().findFiles(dir, ".config", ".xml"));
         }
         return configNames;
     }
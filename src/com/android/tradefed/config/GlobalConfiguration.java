@@ -144,6 +144,12 @@ public class GlobalConfiguration implements IGlobalConfiguration {
 
             // Validate that madatory options have been set
             sInstance.validateOptions();
+            IHostOptions hostOptions = sInstance.getHostOptions();
+            if (hostOptions != null && hostOptions.isConfigDefCacheEnabled()
+                    && configFactory instanceof ConfigurationFactory) {
+                ((ConfigurationFactory) configFactory).setConfigurationDefCache(
+                        ConfigurationDefCache.getDefault());
+            }
             return nonGlobalArgs;
         }
     }
@@ -16,7 +16,12 @@
 
 package com.android.tradefed.device;
 
+import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.MultiLineReceiver;
+import com.android.tradefed.device.timeseries.CpuFreqSampler;
+import com.android.tradefed.device.timeseries.DeviceTimeSeriesCollector;
+import com.android.tradefed.device.timeseries.DeviceTimeSeriesCollector.Recording;
+import com.android.tradefed.device.timeseries.ProcStatSampler;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.SimpleStats;
 
@@ -43,6 +48,14 @@ import java.util.Map;
  * </p><p>
  * The {@code cpustats} command was added in the Jellybean release, so this collector should only be
  * used for new tests.
+ * </p><p>
+ * By default every sample is kept, see {@link #getCpuStats()}. For long runs, call
+ * {@link #useSampler(int)} before starting the collector to only keep the last samples in a
+ * {@link CpuStatsSampler}.
+ * </p><p>
+ * Alternatively, {@link #useTimeSeries(DeviceTimeSeriesCollector)} samples {@code /proc/stat} and
+ * the cpu frequencies on the threads of a shared {@link DeviceTimeSeriesCollector}, instead of
+ * keeping a thread and a {@code cpustats} command running for each device.
  * </p>
  * @see TopHelper
  */
@@ -319,6 +332,10 @@ public class CpuStatsCollector extends Thread {
     }
 
     private CpuStatsReceiver mReceiver = new CpuStatsReceiver();
+    private CpuStatsSampler mSampler = null;
+    private DeviceTimeSeriesCollector mTimeSeriesCollector = null;
+    private List<Recording> mRecordings = new ArrayList<Recording>(2);
+    private boolean mIsCancelled = false;
 
     /**
      * Create a {@link CpuStatsCollector}.
@@ -341,20 +358,82 @@ public class CpuStatsCollector extends Thread {
         mDelay = delay;
     }
 
+    /**
+     * Parse the output into a {@link CpuStatsSampler} with a fixed capacity instead of keeping
+     * every sample. Must be called before the collector is started, and before
+     * {@link #logToFile(File)}. {@link #getCpuStats()} then returns an empty map, use
+     * {@link #getSampler()} instead.
+     *
+     * @param capacity the number of samples of each label to keep.
+     */
+    public synchronized void useSampler(int capacity) {
+        mSampler = new CpuStatsSampler(capacity);
+    }
+
+    /**
+     * Get the {@link CpuStatsSampler} parsing the output.
+     *
+     * @return the {@link CpuStatsSampler}, or {@code null} if {@link #useSampler(int)} was not
+     * called.
+     */
+    public synchronized CpuStatsSampler getSampler() {
+        return mSampler;
+    }
+
+    /**
+     * Sample the device with a {@link ProcStatSampler} and a {@link CpuFreqSampler} recorded by a
+     * {@link DeviceTimeSeriesCollector}, one sample every delay, instead of running
+     * {@code cpustats}. Must be called before the collector is started, and is exclusive with
+     * {@link #useSampler(int)}. Starting the collector then only starts the recordings, so the
+     * thread ends right away. {@link #getCpuStats()} returns an empty map and
+     * {@link #logToFile(File)} has no effect, use {@link #getRecordings()} instead.
+     *
+     * @param collector the {@link DeviceTimeSeriesCollector} to record with, e.g.
+     *        {@link DeviceTimeSeriesCollector#getDefault()}.
+     */
+    public synchronized void useTimeSeries(DeviceTimeSeriesCollector collector) {
+        mTimeSeriesCollector = collector;
+    }
+
+    /**
+     * Get the recordings of the cpu usage and of the cpu frequencies.
+     *
+     * @return the {@link Recording}s, empty until the collector is started, or if
+     * {@link #useTimeSeries(DeviceTimeSeriesCollector)} was not called.
+     */
+    public synchronized List<Recording> getRecordings() {
+        return new ArrayList<Recording>(mRecordings);
+    }
+
     /**
      * Specify a file to log output to.
      *
      * @param logFile the file to log output to.
      */
-    public void logToFile(File logFile) {
-        mReceiver.logToFile(logFile);
+    public synchronized void logToFile(File logFile) {
+        if (mTimeSeriesCollector != null) {
+            CLog.w("Output of the time series recordings is not logged to %s", logFile);
+        } else if (mSampler != null) {
+            mSampler.logToFile(logFile);
+        } else {
+            mReceiver.logToFile(logFile);
+        }
     }
 
     /**
-     * Cancels the {@code cpustats} command.
+     * Cancels the {@code cpustats} command, or stops the recordings.
      */
     public synchronized void cancel() {
-        mReceiver.cancel();
+        if (mTimeSeriesCollector != null) {
+            mIsCancelled = true;
+            for (Recording recording : mRecordings) {
+                recording.stop();
+            }
+        } else if (mSampler != null) {
+            mSampler.cancel();
+        } else {
+            mReceiver.cancel();
+        }
     }
 
     /**
@@ -363,6 +442,12 @@ public class CpuStatsCollector extends Thread {
      * @return if the {@code cpustats} command is canceled.
      */
     public synchronized boolean isCancelled() {
+        if (mTimeSeriesCollector != null) {
+            return mIsCancelled;
+        }
+        if (mSampler != null) {
+            return mSampler.isCancelled();
+        }
         return mReceiver.isCancelled();
     }
 
@@ -371,8 +456,22 @@ public class CpuStatsCollector extends Thread {
      */
     @Override
     public void run() {
+        IShellOutputReceiver receiver;
+        synchronized (this) {
+            if (mTimeSeriesCollector != null) {
+                if (!mIsCancelled) {
+                    long intervalMs = mDelay * 1000;
+                    mRecordings.add(mTimeSeriesCollector.startRecording(mTestDevice,
+                            new ProcStatSampler(), intervalMs));
+                    mRecordings.add(mTimeSeriesCollector.startRecording(mTestDevice,
+                            new CpuFreqSampler(), intervalMs));
+                }
+                return;
+            }
+            receiver = mSampler != null ? mSampler : mReceiver;
+        }
         try {
-            mTestDevice.executeShellCommand(String.format(CPU_STATS_CMD, mDelay), mReceiver);
+            mTestDevice.executeShellCommand(String.format(CPU_STATS_CMD, mDelay), receiver);
         } catch (DeviceNotAvailableException e) {
             CLog.e("Device %s not available:", mTestDevice.getSerialNumber());
             CLog.e(e);
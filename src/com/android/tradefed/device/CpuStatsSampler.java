@@ -0,0 +1,523 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.device.CpuStatsCollector.CpuStats;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Receiver which parses the output of {@code cpustats} into fixed size buffers, for long runs.
+ * <p>
+ * Unlike {@link CpuStatsCollector.CpuStatsReceiver}, which keeps a {@link CpuStats} object for
+ * every sample, this receiver parses the raw output bytes directly into per label (e.g. "Total",
+ * "cpu0") ring buffers of primitive values holding the last {@code capacity} samples, and keeps
+ * running sums over that window and over the whole run. Memory use is therefore fixed, and no
+ * objects are allocated per sample once every label has been seen.
+ * </p><p>
+ * The means that the static helpers of {@link CpuStatsCollector} compute from lists of
+ * {@link CpuStats} are available from a {@link Snapshot}.
+ * </p>
+ */
+public class CpuStatsSampler implements IShellOutputReceiver {
+
+    /** The metrics computed for each sample, matching the {@link CpuStatsCollector} helpers. */
+    public enum Metric {
+        /** The total usage as a percentage, see {@link CpuStatsCollector#getTotalPercentageMean}. */
+        TOTAL_PERCENTAGE(false),
+        /** The user and nice usage as a percentage. */
+        USER_PERCENTAGE(false),
+        /** The system usage as a percentage. */
+        SYSTEM_PERCENTAGE(false),
+        /** The iow usage as a percentage. */
+        IOW_PERCENTAGE(false),
+        /** The irq and sirq usage as a percentage. */
+        IRQ_PERCENTAGE(false),
+        /** The estimated MHz, see {@link CpuStats#getEstimatedMhz()}. */
+        ESTIMATED_MHZ(true),
+        /** The used MHz as a percentage, see {@link CpuStats#getUsedMhzPercentage()}. */
+        USED_MHZ_PERCENTAGE(true);
+
+        private final boolean mNeedsFrequencies;
+
+        Metric(boolean needsFrequencies) {
+            mNeedsFrequencies = needsFrequencies;
+        }
+    }
+
+    private static final Metric[] METRICS = Metric.values();
+    private static final int METRIC_COUNT = METRICS.length;
+    private static final int TIME_FIELDS = 7;
+    private static final int MAX_LABEL_LENGTH = 32;
+    private static final int DEFAULT_CAPACITY = 600;
+
+    /** Fixed size buffers and running sums for the samples of one label. */
+    private static class Series {
+        final byte[] mLabel;
+        final String mName;
+        /** The values of the last samples, indexed by metric then by position in the ring. */
+        final double[][] mValues;
+        /** Whether the sample at each position in the ring has frequency metrics. */
+        final boolean[] mHasFrequencies;
+        final double[] mWindowSums = new double[METRIC_COUNT];
+        final double[] mRunSums = new double[METRIC_COUNT];
+        int mNext = 0;
+        int mWindowCount = 0;
+        int mWindowFreqCount = 0;
+        long mRunCount = 0;
+        long mRunFreqCount = 0;
+
+        Series(byte[] label, int length, int capacity) {
+            mLabel = new byte[length];
+            System.arraycopy(label, 0, mLabel, 0, length);
+            mName = new String(mLabel, StandardCharsets.US_ASCII);
+            mValues = new double[METRIC_COUNT][capacity];
+            mHasFrequencies = new boolean[capacity];
+        }
+
+        boolean matches(byte[] label, int length) {
+            if (length != mLabel.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (label[i] != mLabel[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Add a sample, where sample holds the value of each metric. */
+        void add(double[] sample, boolean hasFrequencies) {
+            int capacity = mHasFrequencies.length;
+            if (mWindowCount == capacity) {
+                // Evict the oldest sample from the window
+                for (int m = 0; m < METRIC_COUNT; m++) {
+                    if (isCounted(m, mHasFrequencies[mNext])) {
+                        mWindowSums[m] -= mValues[m][mNext];
+                    }
+                }
+                if (mHasFrequencies[mNext]) {
+                    mWindowFreqCount--;
+                }
+            } else {
+                mWindowCount++;
+            }
+            for (int m = 0; m < METRIC_COUNT; m++) {
+                mValues[m][mNext] = sample[m];
+                if (isCounted(m, hasFrequencies)) {
+                    mWindowSums[m] += sample[m];
+                    mRunSums[m] += sample[m];
+                }
+            }
+            mHasFrequencies[mNext] = hasFrequencies;
+            mRunCount++;
+            if (hasFrequencies) {
+                mWindowFreqCount++;
+                mRunFreqCount++;
+            }
+            mNext++;
+            if (mNext == capacity) {
+                mNext = 0;
+                // Recompute the window sums once per lap so rounding errors do not accumulate
+                for (int m = 0; m < METRIC_COUNT; m++) {
+                    double sum = 0.0;
+                    for (int i = 0; i < capacity; i++) {
+                        if (isCounted(m, mHasFrequencies[i])) {
+                            sum += mValues[m][i];
+                        }
+                    }
+                    mWindowSums[m] = sum;
+                }
+            }
+        }
+
+        private static boolean isCounted(int metric, boolean hasFrequencies) {
+            return hasFrequencies || !METRICS[metric].mNeedsFrequencies;
+        }
+    }
+
+    /**
+     * An immutable view of the statistics of one label at the time it was taken.
+     */
+    public static class Snapshot {
+        private final String mLabel;
+        private final Double[] mWindowMeans = new Double[METRIC_COUNT];
+        private final Double[] mRunMeans = new Double[METRIC_COUNT];
+        private final double[][] mWindow;
+        private final int mWindowCount;
+        private final long mRunCount;
+
+        private Snapshot(Series series) {
+            mLabel = series.mName;
+            mWindowCount = series.mWindowCount;
+            mRunCount = series.mRunCount;
+            mWindow = new double[METRIC_COUNT][];
+            int capacity = series.mHasFrequencies.length;
+            int start = (series.mNext - series.mWindowCount + capacity) % capacity;
+            for (int m = 0; m < METRIC_COUNT; m++) {
+                boolean needsFreq = METRICS[m].mNeedsFrequencies;
+                mWindowMeans[m] = mean(series.mWindowSums[m],
+                        needsFreq ? series.mWindowFreqCount : series.mWindowCount);
+                mRunMeans[m] = mean(series.mRunSums[m],
+                        needsFreq ? series.mRunFreqCount : series.mRunCount);
+                // Copy the window in chronological order, skipping samples without the metric
+                double[] values = new double[needsFreq ? series.mWindowFreqCount
+                        : series.mWindowCount];
+                int count = 0;
+                for (int i = 0; i < series.mWindowCount; i++) {
+                    int index = (start + i) % capacity;
+                    if (!needsFreq || series.mHasFrequencies[index]) {
+                        values[count++] = series.mValues[m][index];
+                    }
+                }
+                mWindow[m] = values;
+            }
+        }
+
+        private static Double mean(double sum, long count) {
+            return count == 0 ? null : sum / count;
+        }
+
+        /** Get the label of the statistics, e.g. "Total" or "cpu0". */
+        public String getLabel() {
+            return mLabel;
+        }
+
+        /** Get the number of samples in the window. */
+        public int getWindowCount() {
+            return mWindowCount;
+        }
+
+        /** Get the number of samples since the start of the run. */
+        public long getRunCount() {
+            return mRunCount;
+        }
+
+        /**
+         * Get the mean of a metric over the samples in the window, or {@code null} if no sample
+         * has the metric.
+         */
+        public Double getWindowMean(Metric metric) {
+            return mWindowMeans[metric.ordinal()];
+        }
+
+        /**
+         * Get the mean of a metric over all the samples since the start of the run, or
+         * {@code null} if no sample has the metric.
+         */
+        public Double getRunMean(Metric metric) {
+            return mRunMeans[metric.ordinal()];
+        }
+
+        /**
+         * Get the values of a metric for the samples in the window, oldest first. Samples without
+         * frequencies are skipped for the frequency metrics.
+         */
+        public double[] getWindowValues(Metric metric) {
+            return mWindow[metric.ordinal()].clone();
+        }
+    }
+
+    private final int mCapacity;
+    private final List<Series> mSeries = new ArrayList<>(4);
+
+    // Parser state, only accessed from the thread feeding the output
+    private final byte[] mLabel = new byte[MAX_LABEL_LENGTH];
+    private int mLabelLength = 0;
+    private final long[] mTimes = new long[TIME_FIELDS];
+    private int mField = 0;
+    private long mValue = 0;
+    private boolean mHasDigit = false;
+    private boolean mInvalid = false;
+    private boolean mEmptyLine = true;
+    private long mFreq = 0;
+    private double mSumFreqTime = 0.0;
+    private long mSumFreqDuration = 0;
+    private long mMaxFreq = 0;
+    private final double[] mSample = new double[METRIC_COUNT];
+    private long mInvalidLines = 0;
+
+    private boolean mIsCancelled = false;
+    private OutputStream mLogStream = null;
+
+    /**
+     * Creates a {@link CpuStatsSampler} keeping the last 600 samples of each label.
+     */
+    public CpuStatsSampler() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a {@link CpuStatsSampler}.
+     *
+     * @param capacity the number of samples of each label to keep in the window.
+     */
+    public CpuStatsSampler(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mCapacity = capacity;
+    }
+
+    /**
+     * Specify a file to log the output to.
+     * <p>
+     * This can be called at any time in the receivers life cycle, but only new output will be
+     * logged to the file.
+     * </p>
+     */
+    public synchronized void logToFile(File logFile) {
+        StreamUtil.close(mLogStream);
+        try {
+            mLogStream = new BufferedOutputStream(new FileOutputStream(logFile));
+        } catch (IOException e) {
+            CLog.e("IOException when creating a file stream:");
+            CLog.e(e);
+            mLogStream = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void addOutput(byte[] data, int offset, int length) {
+        if (mIsCancelled) {
+            return;
+        }
+        if (mLogStream != null) {
+            try {
+                mLogStream.write(data, offset, length);
+            } catch (IOException e) {
+                CLog.e("Error writing to file");
+                CLog.e(e);
+            }
+        }
+        for (int i = offset; i < offset + length; i++) {
+            parse(data[i]);
+        }
+    }
+
+    /**
+     * Parse one byte of a line of the form
+     * {@code label,user,nice,sys,idle,iow,irq,sirq[,freq,time]*}.
+     */
+    private void parse(byte b) {
+        if (b == '\n') {
+            endLine();
+            return;
+        }
+        if (b == '\r' || b == ' ' || b == '\t') {
+            return;
+        }
+        mEmptyLine = false;
+        if (mInvalid) {
+            return;
+        }
+        if (b == ',') {
+            endField();
+        } else if (mField == 0) {
+            if (mLabelLength == MAX_LABEL_LENGTH) {
+                mInvalid = true;
+            } else {
+                mLabel[mLabelLength++] = b;
+            }
+        } else if (b >= '0' && b <= '9') {
+            mValue = mValue * 10 + (b - '0');
+            mHasDigit = true;
+            if (mValue > Integer.MAX_VALUE) {
+                mInvalid = true;
+            }
+        } else {
+            mInvalid = true;
+        }
+    }
+
+    private void endField() {
+        if (mField == 0) {
+            if (mLabelLength == 0) {
+                mInvalid = true;
+            }
+        } else if (!mHasDigit) {
+            mInvalid = true;
+        } else if (mField <= TIME_FIELDS) {
+            mTimes[mField - 1] = mValue;
+        } else if ((mField - TIME_FIELDS) % 2 == 1) {
+            mFreq = mValue;
+        } else {
+            mSumFreqTime += mFreq * mValue / 1000.0;
+            mSumFreqDuration += mValue;
+            mMaxFreq = Math.max(mMaxFreq, mFreq);
+        }
+        mField++;
+        mValue = 0;
+        mHasDigit = false;
+    }
+
+    private void endLine() {
+        if (!mEmptyLine && !mInvalid) {
+            endField();
+        }
+        if (!mEmptyLine) {
+            // A line needs all the time fields, and complete frequency pairs
+            if (mInvalid || mField < TIME_FIELDS + 1 || (mField - TIME_FIELDS - 1) % 2 != 0) {
+                mInvalidLines++;
+                if (mInvalidLines == 1) {
+                    CLog.w("Unexpected cpustats output, ignoring invalid lines");
+                }
+            } else {
+                addSample();
+            }
+        }
+        mLabelLength = 0;
+        mField = 0;
+        mValue = 0;
+        mHasDigit = false;
+        mInvalid = false;
+        mEmptyLine = true;
+        mFreq = 0;
+        mSumFreqTime = 0.0;
+        mSumFreqDuration = 0;
+        mMaxFreq = 0;
+    }
+
+    private void addSample() {
+        long total = 0;
+        for (long time : mTimes) {
+            total += time;
+        }
+        // Same computations as CpuStats, see the CpuStatsCollector helpers
+        double usage = (double) (total - mTimes[3]) / total;
+        mSample[Metric.TOTAL_PERCENTAGE.ordinal()] = 100 * usage;
+        mSample[Metric.USER_PERCENTAGE.ordinal()] = 100.0 * (mTimes[0] + mTimes[1]) / total;
+        mSample[Metric.SYSTEM_PERCENTAGE.ordinal()] = 100.0 * mTimes[2] / total;
+        mSample[Metric.IOW_PERCENTAGE.ordinal()] = 100.0 * mTimes[4] / total;
+        mSample[Metric.IRQ_PERCENTAGE.ordinal()] = 100.0 * (mTimes[5] + mTimes[6]) / total;
+        boolean hasFrequencies = mField > TIME_FIELDS + 1;
+        if (hasFrequencies) {
+            double averageMhz = mSumFreqTime / mSumFreqDuration;
+            mSample[Metric.ESTIMATED_MHZ.ordinal()] = usage * averageMhz;
+            mSample[Metric.USED_MHZ_PERCENTAGE.ordinal()] = 100.0 * averageMhz
+                    / (mMaxFreq / 1000.0);
+        } else {
+            mSample[Metric.ESTIMATED_MHZ.ordinal()] = 0.0;
+            mSample[Metric.USED_MHZ_PERCENTAGE.ordinal()] = 0.0;
+        }
+        getSeries().add(mSample, hasFrequencies);
+    }
+
+    private Series getSeries() {
+        for (int i = 0; i < mSeries.size(); i++) {
+            Series series = mSeries.get(i);
+            if (series.matches(mLabel, mLabelLength)) {
+                return series;
+            }
+        }
+        Series series = new Series(mLabel, mLabelLength, mCapacity);
+        mSeries.add(series);
+        return series;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush() {
+        synchronized (this) {
+            if (mLogStream != null) {
+                try {
+                    mLogStream.flush();
+                } catch (IOException e) {
+                    CLog.e("Error flushing file");
+                    CLog.e(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels the {@code cpustats} command.
+     */
+    public synchronized void cancel() {
+        if (mIsCancelled) {
+            return;
+        }
+        mIsCancelled = true;
+        if (mLogStream != null) {
+            try {
+                mLogStream.flush();
+                mLogStream.close();
+            } catch (IOException e) {
+                CLog.e("Error closing stream");
+                CLog.e(e);
+            } finally {
+                mLogStream = null;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    /**
+     * Get the labels seen so far, e.g. "Total" and "cpu0"..."cpuN".
+     */
+    public synchronized List<String> getLabels() {
+        List<String> labels = new ArrayList<>(mSeries.size());
+        for (Series series : mSeries) {
+            labels.add(series.mName);
+        }
+        return labels;
+    }
+
+    /**
+     * Get a {@link Snapshot} of the statistics of a label.
+     *
+     * @param label the label, e.g. "Total" or "cpu0".
+     * @return the {@link Snapshot}, or {@code null} if no sample was seen for the label.
+     */
+    public synchronized Snapshot getSnapshot(String label) {
+        for (Series series : mSeries) {
+            if (series.mName.equals(label)) {
+                return new Snapshot(series);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of lines that could not be parsed.
+     */
+    public synchronized long getInvalidLineCount() {
+        return mInvalidLines;
+    }
+}
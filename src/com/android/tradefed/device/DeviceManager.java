@@ -131,6 +131,21 @@ public class DeviceManager implements IDeviceManager {
             isTimeVal = true)
     private long mDeviceRecoveryInterval = 30 * 60 * 1000;
 
+    @Option(name = "event-driven-device-recovery",
+            description = "recover the devices as soon as they are lost outside of an "
+                    + "invocation, instead of only every device-recovery-interval.")
+    private boolean mEventDrivenRecovery = false;
+
+    @Option(name = "device-recovery-settle-time",
+            description = "the time in ms without device events to wait for before recovering "
+                    + "lost devices, so that devices lost together are recovered together.",
+            isTimeVal = true)
+    private long mDeviceRecoverySettleTime = 30 * 1000;
+
+    @Option(name = "max-parallel-device-recoveries",
+            description = "the maximum number of device groups recovered in parallel.")
+    private int mMaxParallelRecoveries = 8;
+
     @Option(name = "adb-path", description = "path of the adb binary to use, "
             + "default use the one in $PATH.")
     private String mAdbPath = "adb";
@@ -139,7 +154,7 @@ public class DeviceManager implements IDeviceManager {
             + "default use the one in $PATH.")
     private String mFastbootPath = "fastboot";
 
-    private DeviceRecoverer mDeviceRecoverer;
+    private volatile DeviceRecoverer mDeviceRecoverer;
 
     private List<IHostMonitor> mGlobalHostMonitors = null;
 
@@ -364,6 +379,7 @@ public class DeviceManager implements IDeviceManager {
                 if (testDevice.getMonitor().waitForDeviceShell(CHECK_WAIT_DEVICE_AVAIL_MS)) {
                     DeviceEventResponse r = mManagedDeviceList.handleDeviceEvent(testDevice,
                             DeviceEvent.AVAILABLE_CHECK_PASSED);
+                    reportRecoveryEvent(testDevice, r);
                     if (r.stateChanged && r.allocationState == DeviceAllocationState.Available) {
                         CLog.logAndDisplay(LogLevel.INFO, "Detected new device %s",
                                 testDevice.getSerialNumber());
@@ -374,6 +390,7 @@ public class DeviceManager implements IDeviceManager {
                 } else {
                     DeviceEventResponse r = mManagedDeviceList.handleDeviceEvent(testDevice,
                             DeviceEvent.AVAILABLE_CHECK_FAILED);
+                    reportRecoveryEvent(testDevice, r);
                     if (r.stateChanged && r.allocationState == DeviceAllocationState.Unavailable) {
                         CLog.w("Device %s is unresponsive, will not be available for testing",
                                 testDevice.getSerialNumber());
@@ -426,7 +443,9 @@ public class DeviceManager implements IDeviceManager {
     public void addAvailableDevice(IDevice stubDevice) {
         IManagedTestDevice d = mManagedDeviceList.findOrCreate(stubDevice);
         if (d != null) {
-            mManagedDeviceList.handleDeviceEvent(d, DeviceEvent.FORCE_AVAILABLE);
+            DeviceEventResponse r = mManagedDeviceList.handleDeviceEvent(d,
+                    DeviceEvent.FORCE_AVAILABLE);
+            reportRecoveryEvent(d, r);
         } else {
             CLog.e("Could not create stub device");
         }
@@ -513,19 +532,14 @@ public class DeviceManager implements IDeviceManager {
         IDevice ideviceToReturn = device.getIDevice();
         // don't kill emulator if it wasn't launched by launchEmulator (ie emulatorProcess is null).
         if (ideviceToReturn.isEmulator() && managedDevice.getEmulatorProcess() != null) {
-            try {
-                killEmulator(device);
-                // stop emulator output log
-                device.stopEmulatorOutput();
-                // emulator killed - return a stub device
-                // TODO: this is a bit of a hack. Consider having DeviceManager inject a StubDevice
-                // when deviceDisconnected event is received
-                ideviceToReturn = new StubDevice(ideviceToReturn.getSerialNumber(), true);
-                deviceState = FreeDeviceState.AVAILABLE;
-                managedDevice.setIDevice(ideviceToReturn);
-            } catch (DeviceNotAvailableException e) {
-                CLog.e(e);
-                deviceState = FreeDeviceState.UNAVAILABLE;
+            EmulatorPool pool = getEmulatorPool();
+            if (FreeDeviceState.AVAILABLE.equals(deviceState)
+                    && pool.contains(device.getSerialNumber())) {
+                // keep the emulator booted, it is reset from its snapshot when reused
+                CLog.i("Keeping pooled emulator %s running", device.getSerialNumber());
+            } else {
+                deviceState = killFreedEmulator(managedDevice);
+                ideviceToReturn = device.getIDevice();
             }
         }
         if (ideviceToReturn instanceof TcpDevice) {
@@ -534,12 +548,34 @@ public class DeviceManager implements IDeviceManager {
         }
         DeviceEventResponse r = mManagedDeviceList.handleDeviceEvent(managedDevice,
                 getEventFromFree(managedDevice, deviceState));
+        reportRecoveryEvent(managedDevice, r);
         if (r != null && !r.stateChanged) {
             CLog.e("Device %s was in unexpected state %s when freeing", device.getSerialNumber(),
                     r.allocationState.toString());
         }
     }
 
+    /**
+     * Kill an emulator launched by {@link #launchEmulator} and replace it by a stub device.
+     *
+     * @return the {@link FreeDeviceState} of the emulator device.
+     */
+    private FreeDeviceState killFreedEmulator(IManagedTestDevice device) {
+        try {
+            killEmulator(device);
+            // stop emulator output log
+            device.stopEmulatorOutput();
+            // emulator killed - return a stub device
+            // TODO: this is a bit of a hack. Consider having DeviceManager inject a StubDevice
+            // when deviceDisconnected event is received
+            device.setIDevice(new StubDevice(device.getSerialNumber(), true));
+            return FreeDeviceState.AVAILABLE;
+        } catch (DeviceNotAvailableException e) {
+            CLog.e(e);
+            return FreeDeviceState.UNAVAILABLE;
+        }
+    }
+
     /**
      * Helper method to convert from a {@link com.android.tradefed.device.FreeDeviceState} to a
      * {@link com.android.tradefed.device.DeviceEvent}
@@ -647,28 +683,34 @@ public class DeviceManager implements IDeviceManager {
      */
     @Override
     public void killEmulator(ITestDevice device) throws DeviceNotAvailableException {
-        EmulatorConsole console = EmulatorConsole.getConsole(device.getIDevice());
-        if (console != null) {
-            console.kill();
-            // check and wait for device to become not avail
-            device.waitForDeviceNotAvailable(5 * 1000);
-            // lets ensure process is killed too - fall through
-        } else {
-            CLog.w("Could not get emulator console for %s", device.getSerialNumber());
-        }
-        // lets try killing the process
-        Process emulatorProcess = ((IManagedTestDevice) device).getEmulatorProcess();
-        if (emulatorProcess != null) {
-            emulatorProcess.destroy();
-            if (isProcessRunning(emulatorProcess)) {
-                CLog.w("Emulator process still running after destroy for %s",
-                        device.getSerialNumber());
-                forceKillProcess(emulatorProcess, device.getSerialNumber());
+        try {
+            EmulatorConsole console = EmulatorConsole.getConsole(device.getIDevice());
+            if (console != null) {
+                console.kill();
+                // check and wait for device to become not avail
+                device.waitForDeviceNotAvailable(5 * 1000);
+                // lets ensure process is killed too - fall through
+            } else {
+                CLog.w("Could not get emulator console for %s", device.getSerialNumber());
             }
-        }
-        if (!device.waitForDeviceNotAvailable(20 * 1000)) {
-            throw new DeviceNotAvailableException(String.format("Failed to kill emulator %s",
-                    device.getSerialNumber()), device.getSerialNumber());
+            // lets try killing the process
+            Process emulatorProcess = ((IManagedTestDevice) device).getEmulatorProcess();
+            if (emulatorProcess != null) {
+                emulatorProcess.destroy();
+                if (isProcessRunning(emulatorProcess)) {
+                    CLog.w("Emulator process still running after destroy for %s",
+                            device.getSerialNumber());
+                    forceKillProcess(emulatorProcess, device.getSerialNumber());
+                }
+            }
+            if (!device.waitForDeviceNotAvailable(20 * 1000)) {
+                throw new DeviceNotAvailableException(String.format("Failed to kill emulator %s",
+                        device.getSerialNumber()), device.getSerialNumber());
+            }
+        } finally {
+            // a killed emulator cannot be reset from its snapshot anymore, only forget it once
+            // it is killed as this deletes its sdk home
+            getEmulatorPool().remove(device.getSerialNumber());
         }
     }
 
@@ -799,6 +841,7 @@ public class DeviceManager implements IDeviceManager {
         checkInit();
         if (!mIsTerminated) {
             mIsTerminated = true;
+            killPooledEmulators();
             stopAdbBridgeAndDependentServices();
             // We are not terminating mFastbootMonitor here since it is a daemon thread.
             // Early terminating it can cause other threads to be blocked if they check
@@ -811,6 +854,31 @@ public class DeviceManager implements IDeviceManager {
         }
     }
 
+    /**
+     * Kill the emulators kept booted by the {@link EmulatorPool}, which would otherwise outlive
+     * the manager.
+     */
+    private void killPooledEmulators() {
+        EmulatorPool pool = getEmulatorPool();
+        for (String serial : pool.getSerials()) {
+            IManagedTestDevice device = mManagedDeviceList.find(serial);
+            if (device != null && device.getEmulatorProcess() != null) {
+                CLog.i("Killing pooled emulator %s", serial);
+                killFreedEmulator(device);
+            }
+            pool.remove(serial);
+        }
+    }
+
+    /**
+     * Get the {@link EmulatorPool} of the emulators kept booted between invocations.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    EmulatorPool getEmulatorPool() {
+        return EmulatorPool.getDefault();
+    }
+
     /** Stop adb bridge and services depending on adb connection. */
     private synchronized void stopAdbBridgeAndDependentServices() {
         terminateDeviceRecovery();
@@ -1013,8 +1081,9 @@ public class DeviceManager implements IDeviceManager {
                 } else if (DeviceState.OFFLINE.equals(idevice.getState()) ||
                         DeviceState.UNAUTHORIZED.equals(idevice.getState())) {
                     // handle device changing to offline or unauthorized.
-                    mManagedDeviceList.handleDeviceEvent(testDevice,
+                    DeviceEventResponse r = mManagedDeviceList.handleDeviceEvent(testDevice,
                             DeviceEvent.STATE_CHANGE_OFFLINE);
+                    reportRecoveryEvent(testDevice, r);
                 }
             }
         }
@@ -1046,7 +1115,9 @@ public class DeviceManager implements IDeviceManager {
                 logDeviceEvent(EventType.DEVICE_CONNECTED, testDevice.getSerialNumber());
             } else if (DeviceState.OFFLINE.equals(idevice.getState()) ||
                     DeviceState.UNAUTHORIZED.equals(idevice.getState())) {
-                mManagedDeviceList.handleDeviceEvent(testDevice, DeviceEvent.CONNECTED_OFFLINE);
+                DeviceEventResponse r = mManagedDeviceList.handleDeviceEvent(testDevice,
+                        DeviceEvent.CONNECTED_OFFLINE);
+                reportRecoveryEvent(testDevice, r);
                 logDeviceEvent(EventType.DEVICE_CONNECTED_OFFLINE, testDevice.getSerialNumber());
             }
             mFirstDeviceAdded.countDown();
@@ -1059,7 +1130,9 @@ public class DeviceManager implements IDeviceManager {
         public void deviceDisconnected(IDevice disconnectedDevice) {
             IManagedTestDevice d = mManagedDeviceList.find(disconnectedDevice.getSerialNumber());
             if (d != null) {
-                mManagedDeviceList.handleDeviceEvent(d, DeviceEvent.DISCONNECTED);
+                DeviceEventResponse r = mManagedDeviceList.handleDeviceEvent(d,
+                        DeviceEvent.DISCONNECTED);
+                reportRecoveryEvent(d, r);
                 d.setDeviceState(TestDeviceState.NOT_AVAILABLE);
                 logDeviceEvent(EventType.DEVICE_DISCONNECTED, disconnectedDevice.getSerialNumber());
             }
@@ -1129,9 +1202,16 @@ public class DeviceManager implements IDeviceManager {
         @Override
         public void run() {
             final FastbootHelper fastboot = new FastbootHelper(getRunUtil(), mFastbootPath);
+            Set<String> previousSerials = new HashSet<>();
             while (!mQuit) {
                 Set<String> serials = fastboot.getDevices();
                 if (serials != null) {
+                    DeviceRecoverer recoverer = mDeviceRecoverer;
+                    if (recoverer != null && hasUnallocatedChange(previousSerials, serials)) {
+                        // devices outside of an invocation entered or left fastboot
+                        recoverer.notifyDevicesChanged();
+                    }
+                    previousSerials = serials;
                     // Update known fastboot devices state
                     mManagedDeviceList.updateFastbootStates(serials);
                     // Add new fastboot devices.
@@ -1154,42 +1234,65 @@ public class DeviceManager implements IDeviceManager {
                 getRunUtil().sleep(FASTBOOT_POLL_WAIT_TIME);
             }
         }
+
+        /**
+         * Returns true if a device which is not allocated entered or left fastboot. Allocated
+         * devices are expected to, e.g. while being flashed, and are recovered by their
+         * invocation.
+         */
+        private boolean hasUnallocatedChange(Set<String> previousSerials, Set<String> serials) {
+            Set<String> changed = new HashSet<>(serials);
+            changed.addAll(previousSerials);
+            Set<String> unchanged = new HashSet<>(serials);
+            unchanged.retainAll(previousSerials);
+            changed.removeAll(unchanged);
+            for (String serial : changed) {
+                IManagedTestDevice device = mManagedDeviceList.find(serial);
+                if (device == null || !DeviceAllocationState.Allocated.equals(
+                        device.getAllocationState())) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 
     /**
-     * A class for a thread which performs periodic device recovery operations.
+     * A class for a thread which performs device recovery operations.
      */
-    private class DeviceRecoverer extends Thread {
-
-        private boolean mQuit = false;
-        private List<IMultiDeviceRecovery> mMultiDeviceRecoverers;
+    private class DeviceRecoverer extends DeviceRecoveryScheduler {
 
         public DeviceRecoverer(List<IMultiDeviceRecovery> multiDeviceRecoverers) {
-            super("DeviceRecoverer");
-            mMultiDeviceRecoverers = multiDeviceRecoverers;
-            // Ensure that this thread doesn't prevent TF from terminating
-            setDaemon(true);
+            super(multiDeviceRecoverers, mDeviceRecoveryInterval,
+                    mEventDrivenRecovery ? mDeviceRecoverySettleTime : -1,
+                    mMaxParallelRecoveries);
         }
 
         @Override
-        public void run() {
-            while (!mQuit) {
-                getRunUtil().sleep(mDeviceRecoveryInterval);
-                if (mQuit) {
-                    // After the sleep time, we check if we should run or not.
-                    return;
-                }
-                if (mMultiDeviceRecoverers != null && !mMultiDeviceRecoverers.isEmpty()) {
-                    for (IMultiDeviceRecovery m : mMultiDeviceRecoverers) {
-                        m.recoverDevices(getDeviceList());
-                    }
-                }
-            }
+        protected List<IManagedTestDevice> getDeviceList() {
+            return DeviceManager.this.getDeviceList();
         }
+    }
 
-        public void terminate() {
-            mQuit = true;
-            interrupt();
+    /**
+     * Reports the allocation state change of a device to the device recoverer, which recovers
+     * the devices lost outside of an invocation and measures how long they stay lost.
+     */
+    private void reportRecoveryEvent(IManagedTestDevice device, DeviceEventResponse r) {
+        DeviceRecoverer recoverer = mDeviceRecoverer;
+        if (recoverer == null || r == null || !r.stateChanged) {
+            return;
+        }
+        switch (r.allocationState) {
+            case Unavailable:
+            case Unknown:
+                recoverer.notifyDeviceLost(device.getSerialNumber());
+                break;
+            case Available:
+                recoverer.notifyDeviceRecovered(device.getSerialNumber());
+                break;
+            default:
+                break;
         }
     }
 
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.ddmlib.TimeoutException;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for a list of readiness conditions of a device with a single shell command.
+ * <p/>
+ * Instead of polling each condition from the host, a small script checks the conditions in order
+ * on the device, every {@link #DEVICE_POLL_MS}, and reports each one as soon as it holds. The
+ * device is therefore detected as ready within a fraction of a second, with one adb round trip.
+ * <p/>
+ * The probe reports whether it could run at all, so callers can fall back to polling on devices
+ * where the script does not work.
+ */
+public class DeviceReadinessProbe {
+
+    static final String STATE_TAG = "TF_PROBE_STATE ";
+    static final String READY_TAG = "TF_PROBE_READY";
+    static final String FAILED_TAG = "TF_PROBE_FAILED ";
+    static final String TIMEOUT_TAG = "TF_PROBE_TIMEOUT";
+
+    /** the time in ms the script waits between two checks on the device */
+    static final long DEVICE_POLL_MS = 500;
+
+    /** The result of a probe. */
+    public enum Result {
+        /** All the conditions hold. */
+        READY,
+        /** The conditions did not all hold in time, or one of them failed. */
+        NOT_READY,
+        /** The probe could not run, the conditions must be checked another way. */
+        NOT_SUPPORTED,
+    }
+
+    private final List<String> mNames = new ArrayList<>();
+    private final List<String> mChecks = new ArrayList<>();
+
+    /**
+     * Adds a condition to wait for, after the ones already added.
+     *
+     * @param name the name of the condition, for logging.
+     * @param check a shell command list whose exit status is 0 once the condition holds. It can
+     *            print {@link #getFailedOutput(String)} and exit to give up waiting.
+     */
+    public void addCondition(String name, String check) {
+        mNames.add(name);
+        mChecks.add(check);
+    }
+
+    /**
+     * Get the names of the conditions, in order.
+     */
+    public List<String> getConditionNames() {
+        return mNames;
+    }
+
+    /**
+     * Get the shell command list that a check prints to give up waiting.
+     */
+    public static String getFailedOutput(String name) {
+        return String.format("echo '%s%s'; exit 1", FAILED_TAG, name);
+    }
+
+    /** Check that the device boot is complete. */
+    public static String getBootCompleteCheck() {
+        return String.format("[ \"$(getprop %s)\" = 1 ]",
+                NativeDeviceStateMonitor.BOOTCOMPLETE_PROP);
+    }
+
+    /** Check that the package manager is responsive. */
+    public static String getPackageManagerCheck() {
+        return "case \"$(pm path android 2>/dev/null)\" in *package:*) true;; *) false;; esac";
+    }
+
+    /**
+     * Check that a file can be written and read back in the external storage. The check fails if
+     * the storage denies the access.
+     *
+     * @param name the name of the condition.
+     * @param mountPoint the external storage mount point, or null to use the device environment.
+     */
+    public static String getStoreMountCheck(String name, String mountPoint) {
+        if (mountPoint == null) {
+            mountPoint = "$" + IDevice.MNT_EXTERNAL_STORAGE;
+        }
+        return String.format("f=\"%s/tf_probe_$$\"; { echo probe > \"$f\"; } 2>/dev/null; "
+                + "o=$(cat \"$f\" 2>&1); rm -f \"$f\" 2>/dev/null; case \"$o\" in probe) true;; "
+                + "*'%s'*) %s;; *) false;; esac", mountPoint,
+                NativeDeviceStateMonitor.PERM_DENIED_ERROR_PATTERN, getFailedOutput(name));
+    }
+
+    /**
+     * Builds the script checking the conditions in order.
+     *
+     * @param waitTime the time in ms after which the script gives up.
+     */
+    @VisibleForTesting
+    String buildScript(long waitTime) {
+        StringBuilder script = new StringBuilder();
+        script.append("n=0; s=0; while [ $n -lt ").append(waitTime / DEVICE_POLL_MS + 1);
+        script.append(" ]; do case $s in ");
+        for (int i = 0; i < mChecks.size(); i++) {
+            script.append(String.format("%d) if %s; then echo '%s%s'; s=%d; continue; fi;; ", i,
+                    mChecks.get(i), STATE_TAG, mNames.get(i), i + 1));
+        }
+        script.append(String.format("%d) echo '%s'; exit 0;; esac; n=$((n+1)); ",
+                mChecks.size(), READY_TAG));
+        script.append(String.format("sleep %s 2>/dev/null || sleep 1; done; echo '%s'",
+                String.valueOf(DEVICE_POLL_MS / 1000.0), TIMEOUT_TAG));
+        return script.toString();
+    }
+
+    /**
+     * Runs the probe on a device.
+     *
+     * @param device the {@link IDevice} to probe.
+     * @param waitTime the time in ms to wait for all the conditions.
+     * @return the {@link Result} of the probe.
+     */
+    public Result run(IDevice device, long waitTime) {
+        String serial = device.getSerialNumber();
+        ProbeReceiver receiver = new ProbeReceiver(serial, getCurrentTime() + waitTime);
+        try {
+            device.executeShellCommand(buildScript(waitTime), receiver, waitTime,
+                    TimeUnit.MILLISECONDS);
+        } catch (ShellCommandUnresponsiveException e) {
+            CLog.i("Readiness probe on device %s made no progress in %d ms", serial, waitTime);
+            return Result.NOT_READY;
+        } catch (IOException | AdbCommandRejectedException | TimeoutException e) {
+            CLog.i("Readiness probe on device %s failed: %s", serial, e.toString());
+            return Result.NOT_SUPPORTED;
+        }
+        return receiver.getResult();
+    }
+
+    /**
+     * Exposed for testing
+     */
+    long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Parses the output of the probe and stops it once its deadline is passed.
+     */
+    class ProbeReceiver extends MultiLineReceiver {
+        private final String mSerial;
+        private final long mDeadline;
+        private boolean mProbeRan = false;
+        private Result mResult = Result.NOT_READY;
+
+        ProbeReceiver(String serial, long deadline) {
+            mSerial = serial;
+            mDeadline = deadline;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void processNewLines(String[] lines) {
+            for (String line : lines) {
+                line = line.trim();
+                if (line.startsWith(STATE_TAG)) {
+                    mProbeRan = true;
+                    CLog.i("Device %s is ready: %s", mSerial,
+                            line.substring(STATE_TAG.length()));
+                } else if (line.equals(READY_TAG)) {
+                    mProbeRan = true;
+                    mResult = Result.READY;
+                } else if (line.startsWith(FAILED_TAG)) {
+                    mProbeRan = true;
+                    CLog.w("Device %s readiness check failed: %s", mSerial,
+                            line.substring(FAILED_TAG.length()));
+                } else if (line.equals(TIMEOUT_TAG)) {
+                    mProbeRan = true;
+                } else if (!line.isEmpty()) {
+                    CLog.v("Readiness probe on device %s: %s", mSerial, line);
+                }
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized boolean isCancelled() {
+            return mResult == Result.READY || getCurrentTime() > mDeadline;
+        }
+
+        /**
+         * Get the result of the probe, once it completed.
+         */
+        synchronized Result getResult() {
+            if (!mProbeRan && getCurrentTime() <= mDeadline) {
+                // no line from the script: the shell could not run it
+                return Result.NOT_SUPPORTED;
+            }
+            return mResult;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.QuantileSketch;
+import com.android.tradefed.util.SimpleStats;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread which runs the {@link IMultiDeviceRecovery} handlers of the host.
+ * <p/>
+ * The handlers run every recovery interval, and as soon as devices are lost outside of an
+ * invocation: the device change events (adb state changes, disconnections, fastboot state
+ * changes) wake the scheduler, which waits for the events to settle so that the devices lost
+ * together, e.g. behind a USB hub which glitched, are recovered by the same pass.
+ * <p/>
+ * The handlers run in order. The devices of each handler are split by
+ * {@link IMultiDeviceRecovery#getRecoveryGroup(IManagedTestDevice)}, and the groups are
+ * recovered in parallel by a bounded pool of workers.
+ * <p/>
+ * The time between a device being lost and it coming back online is recorded, along with the
+ * duration of the recovery passes.
+ */
+public abstract class DeviceRecoveryScheduler extends Thread {
+
+    /** the group of the devices which have no recovery group */
+    private static final String DEFAULT_GROUP = "";
+
+    private final List<IMultiDeviceRecovery> mRecoverers;
+    private final long mInterval;
+    private final long mSettleTime;
+    private final int mMaxWorkers;
+    private ExecutorService mWorkers = null;
+
+    private final Object mLock = new Object();
+    private boolean mQuit = false;
+    private boolean mTriggered = false;
+    private long mLastEventTime = 0;
+    /** the time each device was lost at, until it comes back online */
+    private final Map<String, Long> mLostSince = new HashMap<>();
+    private final SimpleStats mRecoveryLatencies = new SimpleStats(new QuantileSketch());
+    private final SimpleStats mPassDurations = new SimpleStats(new QuantileSketch());
+
+    /**
+     * Creates a {@link DeviceRecoveryScheduler}.
+     *
+     * @param recoverers the {@link IMultiDeviceRecovery} to run, in order.
+     * @param interval the time in ms between two periodic recovery passes.
+     * @param settleTime the time in ms without device events to wait for before recovering lost
+     *            devices, or a negative value to only run the periodic passes.
+     * @param maxWorkers the maximum number of device groups recovered in parallel.
+     */
+    public DeviceRecoveryScheduler(List<IMultiDeviceRecovery> recoverers, long interval,
+            long settleTime, int maxWorkers) {
+        super("DeviceRecoverer");
+        mRecoverers = recoverers;
+        mInterval = interval;
+        mSettleTime = settleTime;
+        mMaxWorkers = Math.max(1, maxWorkers);
+        // Ensure that this thread doesn't prevent TF from terminating
+        setDaemon(true);
+    }
+
+    /**
+     * Get the devices to recover.
+     */
+    protected abstract List<IManagedTestDevice> getDeviceList();
+
+    /**
+     * Reports that a device was lost outside of an invocation, and triggers a recovery pass.
+     */
+    public void notifyDeviceLost(String serial) {
+        synchronized (mLock) {
+            if (!mLostSince.containsKey(serial)) {
+                mLostSince.put(serial, getCurrentTime());
+            }
+            trigger();
+        }
+    }
+
+    /**
+     * Reports that a device is back online, and records its recovery latency if it was lost.
+     */
+    public void notifyDeviceRecovered(String serial) {
+        synchronized (mLock) {
+            Long lostTime = mLostSince.remove(serial);
+            if (lostTime != null) {
+                long latency = getCurrentTime() - lostTime;
+                mRecoveryLatencies.add(latency);
+                CLog.d("Device %s recovered after %d ms", serial, latency);
+            }
+        }
+    }
+
+    /**
+     * Reports that the state of some devices changed, and triggers a recovery pass.
+     */
+    public void notifyDevicesChanged() {
+        synchronized (mLock) {
+            trigger();
+        }
+    }
+
+    private void trigger() {
+        if (mSettleTime < 0) {
+            return;
+        }
+        mTriggered = true;
+        mLastEventTime = getCurrentTime();
+        mLock.notifyAll();
+    }
+
+    /**
+     * Get the time in ms between a device being lost and it coming back online.
+     */
+    public SimpleStats getRecoveryLatencies() {
+        synchronized (mLock) {
+            SimpleStats copy = new SimpleStats(new QuantileSketch());
+            copy.merge(mRecoveryLatencies);
+            return copy;
+        }
+    }
+
+    /**
+     * Get the duration in ms of the recovery passes.
+     */
+    public SimpleStats getPassDurations() {
+        synchronized (mLock) {
+            SimpleStats copy = new SimpleStats(new QuantileSketch());
+            copy.merge(mPassDurations);
+            return copy;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+        try {
+            while (waitForNextPass()) {
+                runRecoveryPass();
+            }
+        } finally {
+            synchronized (mLock) {
+                if (mWorkers != null) {
+                    mWorkers.shutdownNow();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the scheduler, and interrupts the running recovery pass.
+     */
+    public void terminate() {
+        synchronized (mLock) {
+            mQuit = true;
+            mLock.notifyAll();
+        }
+        interrupt();
+    }
+
+    /**
+     * Waits until the next periodic pass, or until the device events settled.
+     *
+     * @return false if the scheduler was terminated.
+     */
+    @VisibleForTesting
+    boolean waitForNextPass() {
+        synchronized (mLock) {
+            long periodicPass = getCurrentTime() + mInterval;
+            try {
+                while (!mQuit) {
+                    long nextPass = periodicPass;
+                    if (mTriggered) {
+                        nextPass = Math.min(nextPass, mLastEventTime + mSettleTime);
+                    }
+                    long now = getCurrentTime();
+                    if (now >= nextPass) {
+                        mTriggered = false;
+                        return true;
+                    }
+                    mLock.wait(nextPass - now);
+                }
+            } catch (InterruptedException e) {
+                CLog.d("Device recovery interrupted");
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Runs all the {@link IMultiDeviceRecovery} once.
+     */
+    @VisibleForTesting
+    void runRecoveryPass() {
+        if (mRecoverers == null || mRecoverers.isEmpty()) {
+            return;
+        }
+        long start = getCurrentTime();
+        List<IManagedTestDevice> devices = getDeviceList();
+        for (IMultiDeviceRecovery recoverer : mRecoverers) {
+            Map<String, List<IManagedTestDevice>> groups = getGroups(recoverer, devices);
+            if (groups.size() == 1 || mMaxWorkers == 1) {
+                for (List<IManagedTestDevice> group : groups.values()) {
+                    recover(recoverer, group);
+                }
+            } else if (!recoverInParallel(recoverer, groups)) {
+                return;
+            }
+        }
+        long duration = getCurrentTime() - start;
+        synchronized (mLock) {
+            mPassDurations.add(duration);
+            CLog.i("Device recovery pass took %d ms, %d devices still lost. Recovery latency: %s",
+                    duration, mLostSince.size(), mRecoveryLatencies.isEmpty() ? "none recorded"
+                            : String.format("median %.0f ms, max %.0f ms",
+                                    mRecoveryLatencies.median(), mRecoveryLatencies.max()));
+        }
+    }
+
+    /**
+     * Splits the devices by recovery group. The devices of a recoverer which does not group them
+     * are all in the same group.
+     */
+    private Map<String, List<IManagedTestDevice>> getGroups(IMultiDeviceRecovery recoverer,
+            List<IManagedTestDevice> devices) {
+        Map<String, List<IManagedTestDevice>> groups = new LinkedHashMap<>();
+        for (IManagedTestDevice device : devices) {
+            String group = recoverer.getRecoveryGroup(device);
+            if (group == null) {
+                group = DEFAULT_GROUP;
+            }
+            List<IManagedTestDevice> groupDevices = groups.get(group);
+            if (groupDevices == null) {
+                groupDevices = new ArrayList<>();
+                groups.put(group, groupDevices);
+            }
+            groupDevices.add(device);
+        }
+        if (groups.isEmpty()) {
+            groups.put(DEFAULT_GROUP, devices);
+        }
+        return groups;
+    }
+
+    /**
+     * Recovers the groups of devices in parallel, and waits for all of them.
+     *
+     * @return false if the scheduler was interrupted.
+     */
+    private boolean recoverInParallel(final IMultiDeviceRecovery recoverer,
+            Map<String, List<IManagedTestDevice>> groups) {
+        List<Future<?>> futures = new ArrayList<>();
+        ExecutorService workers = getWorkers();
+        for (final List<IManagedTestDevice> group : groups.values()) {
+            futures.add(workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    recover(recoverer, group);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                for (Future<?> pending : futures) {
+                    pending.cancel(true);
+                }
+                CLog.d("Device recovery interrupted");
+                return false;
+            } catch (ExecutionException e) {
+                // keep waiting for the other groups
+                CLog.e(e);
+            }
+        }
+        return true;
+    }
+
+    private void recover(IMultiDeviceRecovery recoverer, List<IManagedTestDevice> devices) {
+        try {
+            recoverer.recoverDevices(devices);
+        } catch (RuntimeException e) {
+            // keep recovering the other groups and the next passes
+            CLog.e("%s failed to recover devices", recoverer.getClass().getSimpleName());
+            CLog.e(e);
+        }
+    }
+
+    private ExecutorService getWorkers() {
+        synchronized (mLock) {
+            if (mWorkers == null) {
+                final AtomicInteger count = new AtomicInteger();
+                mWorkers = Executors.newFixedThreadPool(mMaxWorkers, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, String.format("DeviceRecoverer-%d",
+                                count.incrementAndGet()));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return mWorkers;
+        }
+    }
+
+    /**
+     * Exposed for testing
+     */
+    long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+}
@@ -366,6 +366,11 @@ public class DeviceSelectionOptions implements IDeviceSelection {
             // only allocate the stub emulator if requested
             return false;
         }
+        if (device.isEmulator() && !stubEmulatorRequested()
+                && getEmulatorPool().contains(device.getSerialNumber())) {
+            // pooled emulators are only reused by invocations launching a new emulator
+            return false;
+        }
         if (nullDeviceRequested() != (device instanceof NullDevice)) {
             return false;
         }
@@ -502,6 +507,15 @@ public class DeviceSelectionOptions implements IDeviceSelection {
         return apiLevel;
     }
 
+    /**
+     * Get the {@link EmulatorPool} of the emulators kept booted between invocations.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    EmulatorPool getEmulatorPool() {
+        return EmulatorPool.getDefault();
+    }
+
     /**
      * Helper factory method to create a {@link IDeviceSelection} that will only match device
      * with given serial
@@ -72,6 +72,15 @@ public class DeviceStateMonitor extends NativeDeviceStateMonitor {
         return false;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void addPostOnlineConditions(DeviceReadinessProbe probe) {
+        probe.addCondition("package manager", DeviceReadinessProbe.getPackageManagerCheck());
+        super.addPostOnlineConditions(probe);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -19,19 +19,21 @@ package com.android.tradefed.device;
 import com.android.tradefed.command.remote.DeviceDescriptor;
 import com.android.tradefed.config.GlobalConfiguration;
 import com.android.tradefed.config.Option;
+import com.android.tradefed.device.timeseries.DeviceTimeSeriesCollector;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.CircularByteArray;
 
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * A {@link IDeviceMonitor} that calculates device utilization stats.
  * <p/>
  * Currently measures simple moving average of allocation time % over a 24 hour window.
+ * <p/>
+ * The samples are taken on the threads of the host wide {@link DeviceTimeSeriesCollector}.
  */
 public class DeviceUtilStatsMonitor implements IDeviceMonitor {
 
@@ -150,7 +152,7 @@ public class DeviceUtilStatsMonitor implements IDeviceMonitor {
         }
     }
 
-    private class SamplingTask extends TimerTask {
+    private class SamplingTask implements Runnable {
         @Override
         public void run() {
             CLog.d("Collecting utilization");
@@ -181,7 +183,7 @@ public class DeviceUtilStatsMonitor implements IDeviceMonitor {
 
     private DeviceLister mDeviceLister;
 
-    private Timer mTimer;
+    private ScheduledFuture<?> mSamplingFuture = null;
     private SamplingTask mSamplingTask = new SamplingTask();
 
     /**
@@ -218,15 +220,14 @@ public class DeviceUtilStatsMonitor implements IDeviceMonitor {
     @Override
     public void run() {
         calculateMaxSamples();
-        mTimer  = new Timer();
-        mTimer.scheduleAtFixedRate(mSamplingTask, INITIAL_DELAY_MS, mSamplingIntervalSec * 1000);
+        mSamplingFuture = getTimeSeriesCollector().schedule(mSamplingTask, INITIAL_DELAY_MS,
+                mSamplingIntervalSec * 1000L);
     }
 
     @Override
     public void stop() {
-        if (mTimer != null) {
-            mTimer.cancel();
-            mTimer.purge();
+        if (mSamplingFuture != null) {
+            mSamplingFuture.cancel(false);
         }
     }
 
@@ -296,7 +297,11 @@ public class DeviceUtilStatsMonitor implements IDeviceMonitor {
         return GlobalConfiguration.getDeviceManagerInstance();
     }
 
-    TimerTask getSamplingTask() {
+    DeviceTimeSeriesCollector getTimeSeriesCollector() {
+        return DeviceTimeSeriesCollector.getDefault();
+    }
+
+    Runnable getSamplingTask() {
         return mSamplingTask;
     }
 
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.QuantileSketch;
+import com.android.tradefed.util.SimpleStats;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps emulators booted between invocations, so that the next invocation with the same AVD
+ * configuration resets them from a snapshot instead of cold booting a new emulator.
+ * <p/>
+ * An emulator launched by {@link IDeviceManager#launchEmulator} is added to the pool once booted
+ * and snapshotted. A pooled emulator stays allocatable while it runs: the {@link DeviceManager}
+ * does not kill it when it is freed, only when it is freed in a bad state or the manager is
+ * terminated.
+ * <p/>
+ * A host wide instance is available from {@link #getDefault()}.
+ */
+public class EmulatorPool {
+
+    private static EmulatorPool sDefault = null;
+
+    private final Map<String, PooledEmulator> mEmulators = new HashMap<>();
+    private final SimpleStats mBootLatencies = new SimpleStats(new QuantileSketch());
+    private final SimpleStats mResetLatencies = new SimpleStats(new QuantileSketch());
+
+    private static class PooledEmulator {
+        final String mConfig;
+        final String mSnapshot;
+        final File mSdkHome;
+
+        PooledEmulator(String config, String snapshot, File sdkHome) {
+            mConfig = config;
+            mSnapshot = snapshot;
+            mSdkHome = sdkHome;
+        }
+    }
+
+    /**
+     * Get the host wide {@link EmulatorPool}.
+     */
+    public static synchronized EmulatorPool getDefault() {
+        if (sDefault == null) {
+            sDefault = new EmulatorPool();
+        }
+        return sDefault;
+    }
+
+    /**
+     * Add a booted emulator to the pool, unless the pool already holds enough emulators for its
+     * configuration.
+     *
+     * @param serial the serial of the emulator.
+     * @param config the AVD configuration of the emulator. Only emulators launched with the same
+     *            configuration can be reused.
+     * @param snapshot the name of the snapshot to reset the emulator from.
+     * @param sdkHome the SDK home directory holding the AVD, deleted once the emulator leaves the
+     *            pool. Can be null.
+     * @param maxPerConfig the max number of emulators to keep for the configuration.
+     * @return true if the emulator was added.
+     */
+    public synchronized boolean add(String serial, String config, String snapshot, File sdkHome,
+            int maxPerConfig) {
+        if (!mEmulators.containsKey(serial) && getSize(config) >= maxPerConfig) {
+            return false;
+        }
+        mEmulators.put(serial, new PooledEmulator(config, snapshot, sdkHome));
+        return true;
+    }
+
+    /**
+     * Remove an emulator from the pool, and delete its SDK home directory. The emulator should
+     * not be running anymore.
+     *
+     * @param serial the serial of the emulator.
+     */
+    public void remove(String serial) {
+        PooledEmulator emulator;
+        synchronized (this) {
+            emulator = mEmulators.remove(serial);
+        }
+        if (emulator != null && emulator.mSdkHome != null) {
+            CLog.i("Removing sdk home dir %s of emulator %s", emulator.mSdkHome, serial);
+            FileUtil.recursiveDelete(emulator.mSdkHome);
+        }
+    }
+
+    /**
+     * Returns true if the emulator is in the pool.
+     */
+    public synchronized boolean contains(String serial) {
+        return mEmulators.containsKey(serial);
+    }
+
+    /**
+     * Get the AVD configuration of a pooled emulator, or null if the emulator is not pooled.
+     */
+    public synchronized String getConfig(String serial) {
+        PooledEmulator emulator = mEmulators.get(serial);
+        return emulator == null ? null : emulator.mConfig;
+    }
+
+    /**
+     * Get the name of the snapshot to reset a pooled emulator from, or null if the emulator is
+     * not pooled.
+     */
+    public synchronized String getSnapshot(String serial) {
+        PooledEmulator emulator = mEmulators.get(serial);
+        return emulator == null ? null : emulator.mSnapshot;
+    }
+
+    /**
+     * Get the number of pooled emulators with an AVD configuration.
+     */
+    public synchronized int getSize(String config) {
+        int size = 0;
+        for (PooledEmulator emulator : mEmulators.values()) {
+            if (emulator.mConfig.equals(config)) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the serials of the pooled emulators.
+     */
+    public synchronized List<String> getSerials() {
+        return new ArrayList<>(mEmulators.keySet());
+    }
+
+    /**
+     * Record the time taken to cold boot an emulator.
+     */
+    public synchronized void recordBootTime(long timeMs) {
+        mBootLatencies.add(timeMs);
+    }
+
+    /**
+     * Record the time taken to reset an emulator from its snapshot.
+     */
+    public synchronized void recordResetTime(long timeMs) {
+        mResetLatencies.add(timeMs);
+    }
+
+    /**
+     * Get the times in ms taken to cold boot emulators.
+     */
+    public synchronized SimpleStats getBootLatencies() {
+        SimpleStats copy = new SimpleStats(new QuantileSketch());
+        copy.merge(mBootLatencies);
+        return copy;
+    }
+
+    /**
+     * Get the times in ms taken to reset emulators from their snapshot.
+     */
+    public synchronized SimpleStats getResetLatencies() {
+        SimpleStats copy = new SimpleStats(new QuantileSketch());
+        copy.merge(mResetLatencies);
+        return copy;
+    }
+}
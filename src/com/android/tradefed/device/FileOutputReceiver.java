@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link IShellOutputReceiver} which writes the whole shell output to a file. Unlike
+ * {@link CollectingByteOutputReceiver}, the output is never held in memory.
+ * <p/>
+ * The output is cancelled if the file cannot be written.
+ */
+public class FileOutputReceiver implements IShellOutputReceiver, Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mFile;
+    private OutputStream mStream;
+    private boolean mIsCancelled = false;
+
+    /**
+     * Creates a {@link FileOutputReceiver}.
+     *
+     * @param file the {@link File} to write to. It is overwritten.
+     * @throws IOException if the file cannot be opened.
+     */
+    public FileOutputReceiver(File file) throws IOException {
+        mFile = file;
+        mStream = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+    }
+
+    /** Get the file the output is written to. */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void addOutput(byte[] data, int offset, int length) {
+        if (mIsCancelled || mStream == null) {
+            return;
+        }
+        try {
+            mStream.write(data, offset, length);
+        } catch (IOException e) {
+            CLog.e("Failed to write output to %s: %s", mFile, e.getMessage());
+            mIsCancelled = true;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void flush() {
+        if (mStream == null) {
+            return;
+        }
+        try {
+            mStream.flush();
+        } catch (IOException e) {
+            CLog.e("Failed to flush output to %s: %s", mFile, e.getMessage());
+            mIsCancelled = true;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    /**
+     * Cancel the output collection.
+     */
+    public synchronized void cancel() {
+        mIsCancelled = true;
+    }
+
+    /**
+     * Flush and close the file. Further output is ignored.
+     */
+    @Override
+    public synchronized void close() {
+        StreamUtil.flushAndCloseStream(mStream);
+        mStream = null;
+    }
+}
@@ -106,7 +106,7 @@ public interface IDeviceManager {
      * Shut down the given emulator.
      * <p/>
      * Blocks until emulator disappears from adb. Will have no effect if emulator is already not
-     * available.
+     * available. The emulator is removed from the {@link EmulatorPool}.
      *
      * @param device the {@link ITestDevice} representing emulator to shut down
      * @throws DeviceNotAvailableException if emulator fails to shut down
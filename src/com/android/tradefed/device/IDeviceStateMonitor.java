@@ -171,4 +171,10 @@ public interface IDeviceStateMonitor {
      */
     public void setDefaultAvailableTimeout(long timeoutMs);
 
+    /**
+     * Set whether {@link #waitForDeviceAvailable()} checks all the readiness conditions with a
+     * single on-device probe instead of polling each of them from the host.
+     */
+    public void setReadinessProbeEnabled(boolean enabled);
+
 }
@@ -24,7 +24,7 @@ import java.util.List;
  * can affect multiple devices (ex) restarting adb, resetting usb, ...). We can implement those
  * recovery methods through this interface. Once the implementation is configured through
  * {@link GlobalConfiguration}, {@link #recoverDevices(List)} will be called
- * periodically from {@link DeviceManager}.
+ * periodically from {@link DeviceManager}, and when devices are lost outside of an invocation.
  */
 public interface IMultiDeviceRecovery {
 
@@ -35,6 +35,20 @@ public interface IMultiDeviceRecovery {
      */
     void recoverDevices(List<IManagedTestDevice> managedDevices);
 
+    /**
+     * Get the recovery group of a device, e.g. the USB hub it is connected to. The devices are
+     * split by group, and {@link #recoverDevices(List)} is called once per group, the groups
+     * being recovered in parallel. Implementations returning a group must therefore be thread
+     * safe.
+     *
+     * @param device a {@link IManagedTestDevice}.
+     * @return the group of the device, or null to recover it along with all the other devices
+     *         without group. By default all the devices are recovered by a single call.
+     */
+    public default String getRecoveryGroup(IManagedTestDevice device) {
+        return null;
+    }
+
     /**
      * Sets the path to the fastboot binary to be used.
      */
@@ -21,13 +21,12 @@ import com.android.ddmlib.IShellOutputReceiver;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ByteArrayInputStreamSource;
 import com.android.tradefed.result.InputStreamSource;
-import com.android.tradefed.result.SnapshotInputStreamSource;
-import com.android.tradefed.util.FixedByteArrayOutputStream;
+import com.android.tradefed.result.SharedFileInputStreamSource;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.SizeLimitedOutputStream;
-import com.android.tradefed.util.StreamUtil;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 
 /**
  * A class designed to help run long running commands collect output.
@@ -80,55 +79,31 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
      * @return The collected output from the command.
      */
     public synchronized InputStreamSource getData() {
-        if (mOutStream != null) {
-            try {
-                return new SnapshotInputStreamSource("LargeOutputReceiver", mOutStream.getData());
-            } catch (IOException e) {
-                CLog.e("failed to get %s data for %s.", mDescriptor, mSerialNumber);
-                CLog.e(e);
-            }
-        }
-
-        // return an empty InputStreamSource
-        return new ByteArrayInputStreamSource(new byte[0]);
+        return getData(-1);
     }
 
     /**
      * Gets the last <var>maxBytes</var> of collected output as a {@link InputStreamSource}.
+     * <p>
+     * The output is snapshotted into a file with {@link SizeLimitedOutputStream#copyTo}, without
+     * going through the heap, and returned as a {@link SharedFileInputStreamSource}.
+     * </p>
      *
-     * @param maxBytes the maximum amount of data to return. Should be an amount that can
-     *            comfortably fit in memory
-     * @return The collected output from the command, stored in memory
+     * @param maxBytes the maximum amount of data to return, or a negative value for all the data.
+     * @return The collected output from the command.
      */
     public synchronized InputStreamSource getData(final int maxBytes) {
         if (mOutStream != null) {
-            InputStream fullStream = null;
+            File snapshot = null;
             try {
-                fullStream = mOutStream.getData();
-                final FixedByteArrayOutputStream os = new FixedByteArrayOutputStream(maxBytes);
-                StreamUtil.copyStreams(fullStream, os);
-                return new InputStreamSource() {
-
-                    @Override
-                    public InputStream createInputStream()  {
-                        return os.getData();
-                    }
-
-                    @Override
-                    public void cancel() {
-                        // ignore, nothing to do
-                    }
-
-                    @Override
-                    public long size() {
-                        return os.size();
-                    }
-                };
+                snapshot = FileUtil.createTempFile(
+                        String.format("%s_%s_", getDescriptor(), mSerialNumber), ".txt");
+                mOutStream.copyTo(snapshot, maxBytes);
+                return new SharedFileInputStreamSource(snapshot);
             } catch (IOException e) {
                 CLog.e("failed to get %s data for %s.", mDescriptor, mSerialNumber);
                 CLog.e(e);
-            } finally {
-                StreamUtil.close(fullStream);
+                FileUtil.deleteFile(snapshot);
             }
         }
 
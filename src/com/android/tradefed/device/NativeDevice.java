@@ -39,7 +39,7 @@ import com.android.tradefed.result.ByteArrayInputStreamSource;
 import com.android.tradefed.result.FileInputStreamSource;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
-import com.android.tradefed.result.SnapshotInputStreamSource;
+import com.android.tradefed.result.SharedFileInputStreamSource;
 import com.android.tradefed.result.StubTestRunListener;
 import com.android.tradefed.targetprep.TargetSetupError;
 import com.android.tradefed.util.ArrayUtil;
@@ -278,6 +278,7 @@ public class NativeDevice implements IManagedTestDevice {
         mOptions = options;
         mStateMonitor.setDefaultOnlineTimeout(options.getOnlineTimeout());
         mStateMonitor.setDefaultAvailableTimeout(options.getAvailableTimeout());
+        mStateMonitor.setReadinessProbeEnabled(options.useReadinessProbe());
     }
 
     /**
@@ -1836,20 +1837,25 @@ public class NativeDevice implements IManagedTestDevice {
             return getLogcatDump();
         }
 
-        byte[] output = new byte[0];
+        File output = null;
+        FileOutputReceiver receiver = null;
         try {
             // use IDevice directly because we don't want callers to handle
             // DeviceNotAvailableException for this method
-            CollectingByteOutputReceiver receiver = new CollectingByteOutputReceiver();
+            output = FileUtil.createTempFile("logcat_since_" + getSerialNumber() + "_", ".txt");
+            receiver = new FileOutputReceiver(output);
             String command = String.format("%s -t '%s'", LogcatReceiver.LOGCAT_CMD, date);
             getIDevice().executeShellCommand(command, receiver);
-            output = receiver.getOutput();
+            receiver.close();
+            return new SharedFileInputStreamSource(output);
         } catch (IOException|AdbCommandRejectedException|
                 ShellCommandUnresponsiveException|TimeoutException e) {
             CLog.w("Failed to get logcat dump from %s: %s", getSerialNumber(), e.getMessage());
             CLog.e(e);
         }
-        return new ByteArrayInputStreamSource(output);
+        StreamUtil.close(receiver);
+        FileUtil.deleteFile(output);
+        return new ByteArrayInputStreamSource(new byte[0]);
     }
 
     /**
@@ -1857,15 +1863,18 @@ public class NativeDevice implements IManagedTestDevice {
      */
     @Override
     public InputStreamSource getLogcatDump() {
-        byte[] output = new byte[0];
+        File output = null;
+        FileOutputReceiver receiver = null;
         try {
             // use IDevice directly because we don't want callers to handle
             // DeviceNotAvailableException for this method
-            CollectingByteOutputReceiver receiver = new CollectingByteOutputReceiver();
+            output = FileUtil.createTempFile("logcat_dump_" + getSerialNumber() + "_", ".txt");
+            receiver = new FileOutputReceiver(output);
             // add -d parameter to make this a non blocking call
             getIDevice().executeShellCommand(LogcatReceiver.LOGCAT_CMD + " -d", receiver,
                     LOGCAT_DUMP_TIMEOUT, TimeUnit.MILLISECONDS);
-            output = receiver.getOutput();
+            receiver.close();
+            return new SharedFileInputStreamSource(output);
         } catch (IOException e) {
             CLog.w("Failed to get logcat dump from %s: ", getSerialNumber(), e.getMessage());
         } catch (TimeoutException e) {
@@ -1875,7 +1884,9 @@ public class NativeDevice implements IManagedTestDevice {
         } catch (ShellCommandUnresponsiveException e) {
             CLog.w("Failed to get logcat dump from %s: ", getSerialNumber(), e.getMessage());
         }
-        return new ByteArrayInputStreamSource(output);
+        StreamUtil.close(receiver);
+        FileUtil.deleteFile(output);
+        return new ByteArrayInputStreamSource(new byte[0]);
     }
 
     /**
@@ -3187,12 +3198,15 @@ public class NativeDevice implements IManagedTestDevice {
                 CLog.w("Emulator output for %s was not captured in background",
                         getSerialNumber());
             } else {
+                File output = null;
                 try {
-                    return new SnapshotInputStreamSource(
-                            "getEmulatorOutput", mEmulatorOutput.getData());
+                    output = FileUtil.createTempFile("getEmulatorOutput_", ".txt");
+                    mEmulatorOutput.copyTo(output, -1);
+                    return new SharedFileInputStreamSource(output);
                 } catch (IOException e) {
                     CLog.e("Failed to get %s data.", getSerialNumber());
                     CLog.e(e);
+                    FileUtil.deleteFile(output);
                 }
             }
         }
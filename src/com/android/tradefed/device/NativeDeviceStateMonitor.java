@@ -54,6 +54,9 @@ public class NativeDeviceStateMonitor implements IDeviceStateMonitor {
     /** The  time in ms to wait for a device to available. */
     private long mDefaultAvailableTimeout = 6 * 60 * 1000;
 
+    /** Whether to wait for the device to be available with a {@link DeviceReadinessProbe}. */
+    private boolean mReadinessProbeEnabled = false;
+
     private List<DeviceStateListener> mStateListeners;
     private IDeviceManager mMgr;
     private final boolean mFastbootEnabled;
@@ -94,6 +97,14 @@ public class NativeDeviceStateMonitor implements IDeviceStateMonitor {
         mDefaultAvailableTimeout = timeoutMs;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setReadinessProbeEnabled(boolean enabled) {
+        mReadinessProbeEnabled = enabled;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -209,6 +220,25 @@ public class NativeDeviceStateMonitor implements IDeviceStateMonitor {
             return null;
         }
         long elapsedTime = System.currentTimeMillis() - startTime;
+        if (mReadinessProbeEnabled) {
+            DeviceReadinessProbe probe = createReadinessProbe();
+            probe.addCondition("boot complete", DeviceReadinessProbe.getBootCompleteCheck());
+            addPostOnlineConditions(probe);
+            CLog.i("Waiting %d ms for device %s to be available: %s", waitTime - elapsedTime,
+                    getSerialNumber(), probe.getConditionNames());
+            switch (probe.run(device, waitTime - elapsedTime)) {
+                case READY:
+                    return device;
+                case NOT_READY:
+                    CLog.w("Device %s is not available after %d ms", getSerialNumber(),
+                            waitTime);
+                    return null;
+                default:
+                    CLog.i("Falling back to polling device %s", getSerialNumber());
+                    elapsedTime = System.currentTimeMillis() - startTime;
+                    break;
+            }
+        }
         if (!waitForBootComplete(waitTime - elapsedTime)) {
             return null;
         }
@@ -267,6 +297,16 @@ public class NativeDeviceStateMonitor implements IDeviceStateMonitor {
         return waitForStoreMount(waitTime);
     }
 
+    /**
+     * Adds the readiness conditions matching {@link #postOnlineCheck(long)} to a probe.
+     *
+     * @param probe the {@link DeviceReadinessProbe} to add the conditions to.
+     */
+    protected void addPostOnlineConditions(DeviceReadinessProbe probe) {
+        probe.addCondition("external store", DeviceReadinessProbe.getStoreMountCheck(
+                "external store", getIDevice().getMountPoint(IDevice.MNT_EXTERNAL_STORAGE)));
+    }
+
     /**
      * Waits for the device's external store to be mounted.
      *
@@ -280,27 +320,18 @@ public class NativeDeviceStateMonitor implements IDeviceStateMonitor {
         int counter = 1;
         while (System.currentTimeMillis() - startTime < waitTime) {
             final CollectingOutputReceiver receiver = createOutputReceiver();
-            final CollectingOutputReceiver bitBucket = new CollectingOutputReceiver();
             final long number = getCurrentTime();
             final String externalStore = getMountPoint(IDevice.MNT_EXTERNAL_STORAGE);
 
             final String testFile = String.format("'%s/%d'", externalStore, number);
             final String testString = String.format("number %d one", number);
-            final String writeCmd = String.format("echo '%s' > %s", testString, testFile);
-            final String checkCmd = String.format("cat %s", testFile);
-            final String cleanupCmd = String.format("rm %s", testFile);
-            String cmd = null;
+            // write, check and clean up in a single round trip
+            final String checkCmd = String.format("{ echo '%s' > %s; } 2>/dev/null; cat %s; "
+                    + "rm %s 2>/dev/null", testString, testFile, testFile, testFile);
             if (externalStore != null) {
                 try {
-                    cmd = writeCmd;
-                    getIDevice().executeShellCommand(writeCmd, bitBucket,
-                            MAX_OP_TIME, TimeUnit.MILLISECONDS);
-                    cmd = checkCmd;
                     getIDevice().executeShellCommand(checkCmd, receiver,
                             MAX_OP_TIME, TimeUnit.MILLISECONDS);
-                    cmd = cleanupCmd;
-                    getIDevice().executeShellCommand(cleanupCmd, bitBucket,
-                            MAX_OP_TIME, TimeUnit.MILLISECONDS);
 
                     String output = receiver.getOutput();
                     CLog.v("%s returned %s", checkCmd, output);
@@ -313,10 +344,10 @@ public class NativeDeviceStateMonitor implements IDeviceStateMonitor {
                     }
                 } catch (IOException | AdbCommandRejectedException |
                         ShellCommandUnresponsiveException e) {
-                    CLog.i("%s on device %s failed:", cmd, getSerialNumber());
+                    CLog.i("%s on device %s failed:", checkCmd, getSerialNumber());
                     CLog.e(e);
                 } catch (TimeoutException e) {
-                    CLog.i("%s on device %s failed: timeout", cmd, getSerialNumber());
+                    CLog.i("%s on device %s failed: timeout", checkCmd, getSerialNumber());
                     CLog.e(e);
                 }
             } else {
@@ -529,6 +560,14 @@ public class NativeDeviceStateMonitor implements IDeviceStateMonitor {
         return new CollectingOutputReceiver();
     }
 
+    /**
+     * Exposed for testing
+     * @return {@link DeviceReadinessProbe}
+     */
+    protected DeviceReadinessProbe createReadinessProbe() {
+        return new DeviceReadinessProbe();
+    }
+
     /**
      * Exposed for testing
      */
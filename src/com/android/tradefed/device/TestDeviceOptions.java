@@ -74,6 +74,11 @@ public class TestDeviceOptions {
             + "to be available aka fully boot.")
     private long mAvailableTimeout = 6 * 60 * 1000;
 
+    @Option(name = "readiness-probe", description = "wait for the device to be available with a "
+            + "single on-device probe of all the readiness conditions, instead of polling each of "
+            + "them from the host.")
+    private boolean mReadinessProbe = false;
+
     @Option(name = "conn-check-url",
             description = "default URL to be used for connectivity checks.")
     private String mConnCheckUrl = "http://www.google.com";
@@ -240,6 +245,13 @@ public class TestDeviceOptions {
         return mAvailableTimeout;
     }
 
+    /**
+     * @return whether to wait for the device to be available with a single on-device probe.
+     */
+    public boolean useReadinessProbe() {
+        return mReadinessProbe;
+    }
+
     /**
      * @return the default URL to be used for connectivity tests.
      */
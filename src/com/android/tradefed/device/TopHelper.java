@@ -36,6 +36,11 @@ import java.util.regex.Pattern;
  * Provides a method to record the output of top and get all recorded CPU usage measurements or an
  * average of a specified range of measurements.  Note that top can cause approximately a 10%
  * overhead to the CPU usage while running, so results will not be entirely accurate.
+ * </p><p>
+ * For long runs or many devices, prefer sampling
+ * {@link com.android.tradefed.device.timeseries.ProcStatSampler} with a
+ * {@link com.android.tradefed.device.timeseries.DeviceTimeSeriesCollector}, which does not need a
+ * thread per device and bounds the memory used.
  * </p>
  */
 public class TopHelper extends Thread {
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device.timeseries;
+
+import com.android.tradefed.device.DeviceAllocationState;
+import com.android.tradefed.device.IManagedTestDevice;
+import com.android.tradefed.device.ITestDevice;
+
+/**
+ * A {@link ITimeSeriesSampler} of the allocation state of a device, like the samples of
+ * {@link com.android.tradefed.device.DeviceUtilStatsMonitor}: 1 if the device is allocated, 0
+ * otherwise. The mean of the recording is the utilization of the device.
+ */
+public class AllocationSampler implements ITimeSeriesSampler {
+
+    private static final String[] COLUMNS = {"allocated"};
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return "allocation";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] getColumns() {
+        return COLUMNS.clone();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean sample(ITestDevice device, double[] values) {
+        if (!(device instanceof IManagedTestDevice)) {
+            return false;
+        }
+        DeviceAllocationState state = ((IManagedTestDevice) device).getAllocationState();
+        values[0] = DeviceAllocationState.Allocated.equals(state) ? 1 : 0;
+        return true;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device.timeseries;
+
+import com.android.tradefed.device.CollectingOutputReceiver;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ITimeSeriesSampler} of the current frequency of the online cpus, in MHz.
+ */
+public class CpuFreqSampler implements ITimeSeriesSampler {
+
+    private static final String[] COLUMNS = {"mean-mhz", "max-mhz", "online-cpus"};
+    private static final String CMD =
+            "cat /sys/devices/system/cpu/cpu[0-9]*/cpufreq/scaling_cur_freq 2>/dev/null";
+    private static final long SHELL_TIMEOUT_MS = 5 * 1000;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return "cpufreq";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] getColumns() {
+        return COLUMNS.clone();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean sample(ITestDevice device, double[] values)
+            throws DeviceNotAvailableException {
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        device.executeShellCommand(CMD, receiver, SHELL_TIMEOUT_MS, TimeUnit.MILLISECONDS,
+                0 /* don't retry */);
+        String output = receiver.getOutput();
+        if (output == null) {
+            return false;
+        }
+        long sum = 0;
+        long max = 0;
+        int count = 0;
+        for (String line : output.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            try {
+                long freq = Long.parseLong(line);
+                sum += freq;
+                max = Math.max(max, freq);
+                count++;
+            } catch (NumberFormatException e) {
+                // Offline cpus report an error
+            }
+        }
+        if (count == 0) {
+            return false;
+        }
+        values[0] = sum / 1000.0 / count;
+        values[1] = max / 1000.0;
+        values[2] = count;
+        return true;
+    }
+}
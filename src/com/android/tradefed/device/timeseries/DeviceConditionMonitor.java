@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device.timeseries;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.timeseries.DeviceTimeSeriesCollector.Recording;
+import com.android.tradefed.util.RunUtil;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * Waits for conditions on device metrics, e.g. for a device to cool down, without blocking a
+ * polling thread per waiter: all the devices are sampled from the shared threads of a
+ * {@link DeviceTimeSeriesCollector}.
+ * <p/>
+ * A waiter subscribes an {@link ICondition} which is evaluated on every sample of an
+ * {@link ITimeSeriesSampler}, and gets a {@link Future} which completes as soon as the condition
+ * holds. The sampling stops once the future is done or cancelled.
+ * <p/>
+ * A host wide instance is available from {@link #getDefault()}.
+ */
+public class DeviceConditionMonitor {
+
+    /** The number of samples kept by a subscription, for logging. */
+    private static final int CAPACITY = 64;
+    /** The max time in ms between two checks of the invocation interruption while waiting. */
+    private static final long INTERRUPT_CHECK_MS = 1000;
+
+    private static DeviceConditionMonitor sDefault = null;
+
+    private final DeviceTimeSeriesCollector mCollector;
+
+    /**
+     * A condition on the samples of a device.
+     * <p/>
+     * A condition is bound to a single subscription and only called from one thread at a time,
+     * so it can keep state between samples, e.g. to estimate a trend.
+     */
+    public interface ICondition {
+        /**
+         * Evaluate the condition on a new sample.
+         *
+         * @param timestamp the time of the sample, in ms.
+         * @param values the values of the sample, in the order of the sampler columns.
+         * @return true once the condition holds.
+         */
+        public boolean isMet(long timestamp, double[] values);
+    }
+
+    /**
+     * Samples a device for a subscription, and completes its future once the condition holds.
+     */
+    static class ConditionSampler implements ITimeSeriesSampler {
+        private final ITimeSeriesSampler mSampler;
+        private final ICondition mCondition;
+        private final CompletableFuture<Void> mFuture;
+
+        ConditionSampler(ITimeSeriesSampler sampler, ICondition condition,
+                CompletableFuture<Void> future) {
+            mSampler = sampler;
+            mCondition = condition;
+            mFuture = future;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getName() {
+            return mSampler.getName();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String[] getColumns() {
+            return mSampler.getColumns();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean sample(ITestDevice device, double[] values)
+                throws DeviceNotAvailableException {
+            if (mFuture.isDone()) {
+                return false;
+            }
+            try {
+                if (!mSampler.sample(device, values)) {
+                    return false;
+                }
+                if (mCondition.isMet(getCurrentTime(), values)) {
+                    mFuture.complete(null);
+                }
+            } catch (DeviceNotAvailableException | RuntimeException e) {
+                // the waiter would otherwise wait until its timeout
+                mFuture.completeExceptionally(e);
+                throw e;
+            }
+            return true;
+        }
+
+        /**
+         * Exposed for testing
+         */
+        long getCurrentTime() {
+            return System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Creates a {@link DeviceConditionMonitor}.
+     *
+     * @param collector the {@link DeviceTimeSeriesCollector} sampling the devices.
+     */
+    public DeviceConditionMonitor(DeviceTimeSeriesCollector collector) {
+        mCollector = collector;
+    }
+
+    /**
+     * Get the host wide {@link DeviceConditionMonitor}, sampling from the host wide
+     * {@link DeviceTimeSeriesCollector}.
+     */
+    public static synchronized DeviceConditionMonitor getDefault() {
+        if (sDefault == null) {
+            sDefault = new DeviceConditionMonitor(DeviceTimeSeriesCollector.getDefault());
+        }
+        return sDefault;
+    }
+
+    /**
+     * Start waiting for a condition. The first sample is taken immediately.
+     *
+     * @param device the {@link ITestDevice} to sample.
+     * @param sampler the {@link ITimeSeriesSampler}, not shared with other subscriptions.
+     * @param intervalMs the time between samples, in ms.
+     * @param condition the {@link ICondition} to wait for.
+     * @return a {@link Future} which completes once the condition holds, or exceptionally with a
+     *         {@link DeviceNotAvailableException} or the {@link RuntimeException} thrown by the
+     *         sampler or the condition. Cancel it to stop waiting.
+     */
+    public Future<Void> subscribe(ITestDevice device, ITimeSeriesSampler sampler,
+            long intervalMs, ICondition condition) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        final Recording recording = mCollector.startRecording(device,
+                createConditionSampler(sampler, condition, future), intervalMs, CAPACITY);
+        future.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable error) {
+                recording.stop();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Exposed for testing
+     */
+    @VisibleForTesting
+    ConditionSampler createConditionSampler(ITimeSeriesSampler sampler, ICondition condition,
+            CompletableFuture<Void> future) {
+        return new ConditionSampler(sampler, condition, future);
+    }
+
+    /**
+     * Waits for a subscription, and cancels it if its condition does not hold in time. The wait
+     * can be interrupted like a {@link RunUtil#sleep(long)}.
+     *
+     * @param future the {@link Future} returned by
+     *            {@link #subscribe(ITestDevice, ITimeSeriesSampler, long, ICondition)}.
+     * @param timeoutMs the max time to wait, in ms.
+     * @return true if the condition holds, false if the wait timed out.
+     * @throws DeviceNotAvailableException if the device became unavailable while waiting.
+     * @throws RuntimeException if the sampler or the condition failed.
+     */
+    public static boolean await(Future<Void> future, long timeoutMs)
+            throws DeviceNotAvailableException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                try {
+                    future.get(Math.max(0, Math.min(remaining, INTERRUPT_CHECK_MS)),
+                            TimeUnit.MILLISECONDS);
+                    return true;
+                } catch (TimeoutException e) {
+                    if (remaining <= INTERRUPT_CHECK_MS) {
+                        return false;
+                    }
+                }
+                // throws if the invocation was interrupted
+                RunUtil.getDefault().sleep(0);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            future.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device.timeseries;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Samples device metrics periodically into {@link TimeSeries}, for any number of devices, from a
+ * single small thread pool.
+ * <p/>
+ * Instead of one long-lived shell command and thread per device and per metric, each
+ * {@link ITimeSeriesSampler} takes one short sample per interval, and samples are stored in
+ * bounded columnar {@link TimeSeries}. Recordings can be exported as run metrics of an
+ * {@link ITestInvocationListener} or as csv files.
+ * <p/>
+ * A host wide instance is available from {@link #getDefault()}. It also runs the sampling task
+ * of {@link com.android.tradefed.device.DeviceUtilStatsMonitor}, and the recordings of a
+ * {@link com.android.tradefed.device.CpuStatsCollector} set up with
+ * {@link com.android.tradefed.device.CpuStatsCollector#useTimeSeries}.
+ */
+public class DeviceTimeSeriesCollector {
+
+    private static final int DEFAULT_THREADS = 4;
+    /** The default number of points stored per recording, e.g. 8 hours at 1 sample per 30s. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static DeviceTimeSeriesCollector sDefault = null;
+
+    private final ScheduledThreadPoolExecutor mExecutor;
+
+    /**
+     * A recording of the samples of one {@link ITimeSeriesSampler} for one device.
+     */
+    public class Recording implements Runnable {
+        private final ITestDevice mDevice;
+        private final ITimeSeriesSampler mSampler;
+        private final TimeSeries mTimeSeries;
+        private final double[] mValues;
+        private final long mStartTime;
+        private ScheduledFuture<?> mFuture = null;
+        private long mFailureCount = 0;
+
+        Recording(ITestDevice device, ITimeSeriesSampler sampler, int capacity) {
+            mDevice = device;
+            mSampler = sampler;
+            mTimeSeries = new TimeSeries(sampler.getColumns(), capacity);
+            mValues = new double[sampler.getColumns().length];
+            mStartTime = System.currentTimeMillis();
+        }
+
+        /**
+         * Take a sample. Called by the pool, exposed for testing.
+         */
+        @Override
+        public void run() {
+            Arrays.fill(mValues, Double.NaN);
+            try {
+                if (mSampler.sample(mDevice, mValues)) {
+                    mTimeSeries.add(System.currentTimeMillis(), mValues);
+                }
+            } catch (DeviceNotAvailableException e) {
+                logFailure(e.getMessage());
+            } catch (RuntimeException e) {
+                // Do not let the exception cancel the periodic task
+                logFailure(e.toString());
+            }
+        }
+
+        private void logFailure(String message) {
+            mFailureCount++;
+            if (mFailureCount == 1) {
+                CLog.w("Failed to sample %s on %s: %s", mSampler.getName(),
+                        mDevice.getSerialNumber(), message);
+            }
+        }
+
+        /** Get the {@link ITestDevice} sampled. */
+        public ITestDevice getDevice() {
+            return mDevice;
+        }
+
+        /** Get the {@link ITimeSeriesSampler} of the recording. */
+        public ITimeSeriesSampler getSampler() {
+            return mSampler;
+        }
+
+        /** Get the {@link TimeSeries} the samples are recorded into. */
+        public TimeSeries getTimeSeries() {
+            return mTimeSeries;
+        }
+
+        /** Stop sampling. Samples recorded so far are kept. */
+        public void stop() {
+            synchronized (this) {
+                if (mFuture != null) {
+                    mFuture.cancel(false);
+                }
+            }
+            mExecutor.remove(this);
+        }
+
+        /**
+         * Report the statistics of the recording as the metrics of a test run named after the
+         * sampler and the device.
+         *
+         * @param listener the {@link ITestInvocationListener} to report to.
+         */
+        public void reportMetrics(ITestInvocationListener listener) {
+            String runName = String.format("%s-%s", mSampler.getName(),
+                    mDevice.getSerialNumber());
+            Map<String, String> metrics = mTimeSeries.getMetrics("");
+            listener.testRunStarted(runName, 0);
+            listener.testRunEnded(System.currentTimeMillis() - mStartTime, metrics);
+        }
+
+        /**
+         * Write the recorded points to a csv file.
+         *
+         * @param file the file to write.
+         * @throws IOException if the file cannot be written.
+         */
+        public void writeCsv(File file) throws IOException {
+            Writer writer = null;
+            try {
+                writer = new BufferedWriter(new FileWriter(file));
+                mTimeSeries.writeCsv(writer);
+            } finally {
+                StreamUtil.close(writer);
+            }
+        }
+
+        synchronized void setFuture(ScheduledFuture<?> future) {
+            mFuture = future;
+        }
+    }
+
+    /**
+     * Creates a {@link DeviceTimeSeriesCollector}.
+     *
+     * @param threads the number of sampling threads, shared by all the recordings.
+     */
+    public DeviceTimeSeriesCollector(int threads) {
+        mExecutor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r,
+                        "DeviceTimeSeriesCollector-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Get the host wide {@link DeviceTimeSeriesCollector}.
+     */
+    public static synchronized DeviceTimeSeriesCollector getDefault() {
+        if (sDefault == null) {
+            sDefault = new DeviceTimeSeriesCollector(DEFAULT_THREADS);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Start sampling a device, with the {@link #DEFAULT_CAPACITY}.
+     *
+     * @see #startRecording(ITestDevice, ITimeSeriesSampler, long, int)
+     */
+    public Recording startRecording(ITestDevice device, ITimeSeriesSampler sampler,
+            long intervalMs) {
+        return startRecording(device, sampler, intervalMs, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Start sampling a device. The first sample is taken immediately, then one sample is taken
+     * every interval after the previous one completes, so a slow device does not queue samples.
+     *
+     * @param device the {@link ITestDevice} to sample.
+     * @param sampler the {@link ITimeSeriesSampler}, not shared with other recordings.
+     * @param intervalMs the time between samples, in ms.
+     * @param capacity the maximum number of points kept, see {@link TimeSeries}.
+     * @return the {@link Recording}, to stop and export it.
+     */
+    public Recording startRecording(ITestDevice device, ITimeSeriesSampler sampler,
+            long intervalMs, int capacity) {
+        Recording recording = new Recording(device, sampler, capacity);
+        recording.setFuture(mExecutor.scheduleWithFixedDelay(recording, 0, intervalMs,
+                TimeUnit.MILLISECONDS));
+        return recording;
+    }
+
+    /**
+     * Run a task periodically on the sampling threads, e.g. to sample the state of all the
+     * devices at once. Like a sampler, the task must not block for long. An exception thrown by
+     * the task is logged and does not cancel the next runs.
+     *
+     * @param task the task to run.
+     * @param initialDelayMs the time before the first run, in ms.
+     * @param intervalMs the time between the end of a run and the start of the next one, in ms.
+     * @return the {@link ScheduledFuture} of the task, to cancel it.
+     */
+    public ScheduledFuture<?> schedule(final Runnable task, long initialDelayMs,
+            long intervalMs) {
+        return mExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    CLog.e(e);
+                }
+            }
+        }, initialDelayMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the number of recordings and tasks in progress.
+     */
+    public int getActiveRecordingCount() {
+        return mExecutor.getQueue().size() + mExecutor.getActiveCount();
+    }
+
+    /**
+     * Stop all the recordings and the sampling threads.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device.timeseries;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+
+/**
+ * Takes one sample of device metrics for a {@link DeviceTimeSeriesCollector}.
+ * <p/>
+ * A sampler instance is bound to a single recording, and is only called from one thread at a
+ * time, so it can keep state between samples, e.g. to compute deltas of counters.
+ * <p/>
+ * The threads of the collector are shared by the recordings of all the devices, so a sampler
+ * must bound the time it waits for its device, e.g. by running shell commands with a timeout.
+ */
+public interface ITimeSeriesSampler {
+
+    /**
+     * Get the name of the sampler, used to name the exported metrics and files.
+     */
+    public String getName();
+
+    /**
+     * Get the names of the values of each sample.
+     */
+    public String[] getColumns();
+
+    /**
+     * Take a sample.
+     *
+     * @param device the {@link ITestDevice} to sample.
+     * @param values the array to fill with the value of each column, in the order of
+     *        {@link #getColumns()}. Missing values should be set to {@link Double#NaN}.
+     * @return {@code true} if a sample was taken, {@code false} to skip this sample.
+     * @throws DeviceNotAvailableException if the device is not available.
+     */
+    public boolean sample(ITestDevice device, double[] values) throws DeviceNotAvailableException;
+}
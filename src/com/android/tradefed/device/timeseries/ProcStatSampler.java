@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device.timeseries;
+
+import com.android.tradefed.device.CollectingOutputReceiver;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ITimeSeriesSampler} of the cpu usage, from the counters of {@code /proc/stat}.
+ * <p/>
+ * Reports the same percentages as {@link com.android.tradefed.device.TopHelper}, over the time
+ * since the previous sample. The first sample only initializes the counters.
+ */
+public class ProcStatSampler implements ITimeSeriesSampler {
+
+    private static final String[] COLUMNS = {"total", "user", "system", "iow", "irq"};
+    /** user, nice, system, idle, iowait, irq, softirq */
+    private static final int FIELDS = 7;
+    private static final long SHELL_TIMEOUT_MS = 5 * 1000;
+
+    private long[] mPrevious = null;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return "cpu";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] getColumns() {
+        return COLUMNS.clone();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean sample(ITestDevice device, double[] values)
+            throws DeviceNotAvailableException {
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        device.executeShellCommand("cat /proc/stat", receiver, SHELL_TIMEOUT_MS,
+                TimeUnit.MILLISECONDS, 0 /* don't retry */);
+        long[] counters = parseCpuLine(receiver.getOutput());
+        if (counters == null) {
+            return false;
+        }
+        long[] previous = mPrevious;
+        mPrevious = counters;
+        if (previous == null) {
+            return false;
+        }
+        long[] delta = new long[FIELDS];
+        long total = 0;
+        for (int i = 0; i < FIELDS; i++) {
+            delta[i] = counters[i] - previous[i];
+            total += delta[i];
+        }
+        if (total <= 0) {
+            return false;
+        }
+        values[1] = 100.0 * (delta[0] + delta[1]) / total;
+        values[2] = 100.0 * delta[2] / total;
+        values[3] = 100.0 * delta[4] / total;
+        values[4] = 100.0 * (delta[5] + delta[6]) / total;
+        values[0] = values[1] + values[2] + values[3] + values[4];
+        return true;
+    }
+
+    /**
+     * Parse the aggregated "cpu" line of {@code /proc/stat}.
+     *
+     * @return the first 7 counters, or {@code null} if the line is not found.
+     */
+    static long[] parseCpuLine(String procStat) {
+        if (procStat == null) {
+            return null;
+        }
+        for (String line : procStat.split("\n")) {
+            String[] fields = line.trim().split("\\s+");
+            if (!"cpu".equals(fields[0]) || fields.length < FIELDS + 1) {
+                continue;
+            }
+            long[] counters = new long[FIELDS];
+            try {
+                for (int i = 0; i < FIELDS; i++) {
+                    counters[i] = Long.parseLong(fields[i + 1]);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return counters;
+        }
+        return null;
+    }
+}
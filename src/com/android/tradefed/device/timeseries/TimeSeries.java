@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device.timeseries;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A bounded, columnar time series of samples.
+ * <p/>
+ * Timestamps and the values of each column are stored in primitive arrays of a fixed capacity.
+ * When the series is full, adjacent points are averaged in pairs, halving the resolution, and
+ * later samples are averaged by the same number before being stored. The series therefore always
+ * covers the whole recording with at most {@code capacity} points. Per column count, mean, min and
+ * max are kept over all the samples, independently of the downsampling.
+ * <p/>
+ * Missing values are recorded as {@link Double#NaN} and ignored by the averages and statistics.
+ */
+public class TimeSeries {
+
+    private final String[] mColumns;
+    private final int mCapacity;
+    private final long[] mTimestamps;
+    private final double[][] mValues;
+    private int mSize = 0;
+    /** The number of samples averaged into each stored point. */
+    private int mStride = 1;
+
+    // Samples not yet stored, averaged once mStride samples are accumulated
+    private int mPendingCount = 0;
+    private long mPendingTimestamp = 0;
+    private final double[] mPendingSums;
+    private final int[] mPendingCounts;
+
+    // Statistics over all the samples
+    private long mSampleCount = 0;
+    private final long[] mCounts;
+    private final double[] mSums;
+    private final double[] mMins;
+    private final double[] mMaxs;
+
+    /**
+     * Creates a {@link TimeSeries}.
+     *
+     * @param columns the names of the columns of each sample.
+     * @param capacity the maximum number of points to store, must be even and at least 2.
+     */
+    public TimeSeries(String[] columns, int capacity) {
+        if (capacity < 2 || capacity % 2 != 0) {
+            throw new IllegalArgumentException("capacity must be even and at least 2");
+        }
+        mColumns = columns.clone();
+        mCapacity = capacity;
+        mTimestamps = new long[capacity];
+        mValues = new double[columns.length][capacity];
+        mPendingSums = new double[columns.length];
+        mPendingCounts = new int[columns.length];
+        mCounts = new long[columns.length];
+        mSums = new double[columns.length];
+        mMins = new double[columns.length];
+        mMaxs = new double[columns.length];
+    }
+
+    /**
+     * Add a sample.
+     *
+     * @param timestamp the time of the sample, in ms.
+     * @param values the value of each column, {@link Double#NaN} if missing.
+     */
+    public synchronized void add(long timestamp, double[] values) {
+        if (values.length != mColumns.length) {
+            throw new IllegalArgumentException(String.format("Expected %d values, got %d",
+                    mColumns.length, values.length));
+        }
+        mSampleCount++;
+        if (mPendingCount == 0) {
+            if (mSize == mCapacity) {
+                downsample();
+            }
+            mPendingTimestamp = timestamp;
+        }
+        mPendingCount++;
+        for (int c = 0; c < values.length; c++) {
+            double value = values[c];
+            if (Double.isNaN(value)) {
+                continue;
+            }
+            mPendingSums[c] += value;
+            mPendingCounts[c]++;
+            if (mCounts[c] == 0) {
+                mMins[c] = value;
+                mMaxs[c] = value;
+            } else {
+                mMins[c] = Math.min(mMins[c], value);
+                mMaxs[c] = Math.max(mMaxs[c], value);
+            }
+            mCounts[c]++;
+            mSums[c] += value;
+        }
+        if (mPendingCount == mStride) {
+            storePending();
+        }
+    }
+
+    private void storePending() {
+        mTimestamps[mSize] = mPendingTimestamp;
+        for (int c = 0; c < mColumns.length; c++) {
+            mValues[c][mSize] = mPendingCounts[c] == 0 ? Double.NaN
+                    : mPendingSums[c] / mPendingCounts[c];
+            mPendingSums[c] = 0.0;
+            mPendingCounts[c] = 0;
+        }
+        mSize++;
+        mPendingCount = 0;
+    }
+
+    /** Average the stored points in pairs, and double the stride. */
+    private void downsample() {
+        int half = mSize / 2;
+        for (int i = 0; i < half; i++) {
+            mTimestamps[i] = mTimestamps[2 * i];
+            for (int c = 0; c < mColumns.length; c++) {
+                mValues[c][i] = average(mValues[c][2 * i], mValues[c][2 * i + 1]);
+            }
+        }
+        mSize = half;
+        mStride *= 2;
+    }
+
+    private static double average(double a, double b) {
+        if (Double.isNaN(a)) {
+            return b;
+        }
+        if (Double.isNaN(b)) {
+            return a;
+        }
+        return (a + b) / 2;
+    }
+
+    /** Get the names of the columns. */
+    public String[] getColumns() {
+        return mColumns.clone();
+    }
+
+    /**
+     * Get the index of a column.
+     *
+     * @return the index, or -1 if there is no such column.
+     */
+    public int getColumnIndex(String column) {
+        for (int c = 0; c < mColumns.length; c++) {
+            if (mColumns[c].equals(column)) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    /** Get the number of stored points. */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /** Get the number of samples averaged into each stored point. */
+    public synchronized int getStride() {
+        return mStride;
+    }
+
+    /** Get the number of samples added. */
+    public synchronized long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /** Get the timestamp of a stored point: the timestamp of its first sample. */
+    public synchronized long getTimestamp(int index) {
+        checkIndex(index);
+        return mTimestamps[index];
+    }
+
+    /** Get the value of a column for a stored point. */
+    public synchronized double getValue(int column, int index) {
+        checkIndex(index);
+        return mValues[column][index];
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException(String.format("Index %d, size %d", index, mSize));
+        }
+    }
+
+    /**
+     * Get the mean of a column over all the samples.
+     *
+     * @return the mean, or {@code null} if the column has no value.
+     */
+    public synchronized Double getMean(int column) {
+        return mCounts[column] == 0 ? null : mSums[column] / mCounts[column];
+    }
+
+    /**
+     * Get the minimum of a column over all the samples.
+     *
+     * @return the minimum, or {@code null} if the column has no value.
+     */
+    public synchronized Double getMin(int column) {
+        return mCounts[column] == 0 ? null : mMins[column];
+    }
+
+    /**
+     * Get the maximum of a column over all the samples.
+     *
+     * @return the maximum, or {@code null} if the column has no value.
+     */
+    public synchronized Double getMax(int column) {
+        return mCounts[column] == 0 ? null : mMaxs[column];
+    }
+
+    /**
+     * Get the statistics of each column as run metrics, named {@code <prefix><column>-mean},
+     * {@code -min} and {@code -max}. Columns without values are skipped.
+     *
+     * @param prefix the prefix of the metric names.
+     */
+    public synchronized Map<String, String> getMetrics(String prefix) {
+        Map<String, String> metrics = new HashMap<>();
+        for (int c = 0; c < mColumns.length; c++) {
+            if (mCounts[c] == 0) {
+                continue;
+            }
+            String name = prefix + mColumns[c];
+            metrics.put(name + "-mean", Double.toString(mSums[c] / mCounts[c]));
+            metrics.put(name + "-min", Double.toString(mMins[c]));
+            metrics.put(name + "-max", Double.toString(mMaxs[c]));
+        }
+        return metrics;
+    }
+
+    /**
+     * Write the stored points as csv, with a header line. Missing values are left empty.
+     *
+     * @param writer the {@link Writer} to write to.
+     * @throws IOException if the write fails.
+     */
+    public synchronized void writeCsv(Writer writer) throws IOException {
+        writer.write("timestamp");
+        for (String column : mColumns) {
+            writer.write(',');
+            writer.write(column);
+        }
+        writer.write('\n');
+        for (int i = 0; i < mSize; i++) {
+            writer.write(Long.toString(mTimestamps[i]));
+            for (int c = 0; c < mColumns.length; c++) {
+                writer.write(',');
+                if (!Double.isNaN(mValues[c][i])) {
+                    writer.write(Double.toString(mValues[c][i]));
+                }
+            }
+            writer.write('\n');
+        }
+    }
+}
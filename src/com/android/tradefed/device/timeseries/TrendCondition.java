@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device.timeseries;
+
+import com.android.tradefed.device.timeseries.DeviceConditionMonitor.ICondition;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * An {@link ICondition} which holds once a metric is stable: its rate of change, estimated by a
+ * least squares fit of the samples of a sliding window, is within a bound.
+ * <p/>
+ * It replaces fixed waits for a metric to settle, e.g. for the temperature of a device which
+ * just cooled down, and can estimate when a metric will reach a value.
+ */
+public class TrendCondition implements ICondition {
+
+    private static final double MS_PER_MINUTE = 60 * 1000;
+
+    private final int mColumn;
+    private final long mWindowMs;
+    private final double mMaxRatePerMinute;
+
+    private final Deque<Long> mTimes = new ArrayDeque<>();
+    private final Deque<Double> mValues = new ArrayDeque<>();
+    private long mFirstTime = -1;
+
+    /**
+     * Creates a {@link TrendCondition}.
+     *
+     * @param column the index of the column of the metric in the samples.
+     * @param windowMs the time window in ms of the samples used to estimate the trend. The
+     *            condition does not hold before the samples span the whole window.
+     * @param maxRatePerMinute the max absolute rate of change per minute of a stable metric.
+     */
+    public TrendCondition(int column, long windowMs, double maxRatePerMinute) {
+        mColumn = column;
+        mWindowMs = windowMs;
+        mMaxRatePerMinute = maxRatePerMinute;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isMet(long timestamp, double[] values) {
+        double value = values[mColumn];
+        if (Double.isNaN(value)) {
+            return false;
+        }
+        if (mFirstTime < 0) {
+            mFirstTime = timestamp;
+        }
+        mTimes.addLast(timestamp);
+        mValues.addLast(value);
+        while (mTimes.peekFirst() < timestamp - mWindowMs) {
+            mTimes.removeFirst();
+            mValues.removeFirst();
+        }
+        if (timestamp - mFirstTime < mWindowMs) {
+            return false;
+        }
+        double rate = getRatePerMinute();
+        return !Double.isNaN(rate) && Math.abs(rate) <= mMaxRatePerMinute;
+    }
+
+    /**
+     * Get the rate of change per minute of the metric over the window, or {@link Double#NaN} if
+     * there are not enough samples.
+     */
+    public double getRatePerMinute() {
+        int count = mTimes.size();
+        if (count < 2) {
+            return Double.NaN;
+        }
+        // least squares fit, with the times relative to the first sample for precision
+        long origin = mTimes.peekFirst();
+        double sumT = 0;
+        double sumV = 0;
+        for (long time : mTimes) {
+            sumT += time - origin;
+        }
+        for (double value : mValues) {
+            sumV += value;
+        }
+        double meanT = sumT / count;
+        double meanV = sumV / count;
+        double covariance = 0;
+        double variance = 0;
+        Iterator<Double> values = mValues.iterator();
+        for (long time : mTimes) {
+            double dt = time - origin - meanT;
+            covariance += dt * (values.next() - meanV);
+            variance += dt * dt;
+        }
+        if (variance == 0) {
+            return Double.NaN;
+        }
+        return covariance / variance * MS_PER_MINUTE;
+    }
+
+    /**
+     * Estimate the time until the metric reaches a value, following its current trend.
+     *
+     * @param current the current value of the metric.
+     * @param target the value to reach.
+     * @return the estimated time in ms, or -1 if the metric does not trend toward the target.
+     */
+    public long estimateTimeTo(double current, double target) {
+        double rate = getRatePerMinute();
+        if (Double.isNaN(rate) || rate == 0 || (target - current) / rate < 0) {
+            return -1;
+        }
+        return (long) ((target - current) / rate * MS_PER_MINUTE);
+    }
+}
@@ -38,6 +38,10 @@ public class HostOptions implements IHostOptions {
     )
     private Integer mConcurrentDownloadLimit = null;
 
+    @Option(name = "config-def-cache", description = "Cache the parsed configurations in the "
+            + "temp directory, and share them with the other TF processes of the user.")
+    private boolean mConfigDefCacheEnabled = false;
+
     /**
      * {@inheritDoc}
      */
@@ -51,4 +55,10 @@ public class HostOptions implements IHostOptions {
     public Integer getConcurrentDownloadLimit() {
         return mConcurrentDownloadLimit;
     }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isConfigDefCacheEnabled() {
+        return mConfigDefCacheEnabled;
+    }
 }
@@ -37,4 +37,10 @@ public interface IHostOptions {
      * downloads remote builds.
      */
     Integer getConcurrentDownloadLimit();
+
+    /**
+     * Returns true if the parsed configurations should be cached on disk and shared with the
+     * other TF processes of the user.
+     */
+    boolean isConfigDefCacheEnabled();
 }
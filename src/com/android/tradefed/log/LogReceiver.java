@@ -79,7 +79,7 @@ public class LogReceiver {
     public void postLog(ITestInvocationListener listener) {
         InputStreamSource stream = getData();
         try {
-            listener.testLog(getDescriptor(), LogDataType.TEXT, getData());
+            listener.testLog(getDescriptor(), LogDataType.TEXT, stream);
         } finally {
             StreamUtil.cancel(stream);
         }
@@ -38,13 +38,16 @@ import java.util.Map;
  * Note that the registry hashes on the ThreadGroup in which a thread belongs. If a thread is
  * spawned with its own explicitly-supplied ThreadGroup, it will not inherit the parent thread's
  * logger, and thus will need to register its own logger with the LogRegistry if it wants to log
- * output.
+ * output. A thread running an operation on behalf of another ThreadGroup, e.g. a shared pool
+ * thread, can log to the logger of that group with {@link #setLogThreadGroup(ThreadGroup)}.
  */
 public class LogRegistry implements ILogRegistry {
     private static final String LOG_TAG = "LogRegistry";
     private static final String GLOBAL_LOG_PREFIX = "tradefed_global_log_";
     private static final String HISTORY_LOG_PREFIX = "tradefed_history_log_";
     private static LogRegistry mLogRegistry = null;
+    /** The ThreadGroup whose logger the current thread uses, if not its own. */
+    private static final ThreadLocal<ThreadGroup> sLogThreadGroup = new ThreadLocal<>();
     private Map<ThreadGroup, ILeveledLogOutput> mLogTable = new Hashtable<>();
     private FileLogger mGlobalLogger;
     private HistoryLogger mHistoryLogger;
@@ -166,7 +169,30 @@ public class LogRegistry implements ILogRegistry {
      * @return the ThreadGroup that the current thread belongs to
      */
     ThreadGroup getCurrentThreadGroup() {
-        return Thread.currentThread().getThreadGroup();
+        return getLogThreadGroup();
+    }
+
+    /**
+     * Makes the current thread use the logger of another {@link ThreadGroup}, until reset.
+     *
+     * @param group the {@link ThreadGroup} whose logger to use, or null to use the logger of the
+     *            group of the current thread again.
+     */
+    public static void setLogThreadGroup(ThreadGroup group) {
+        if (group == null) {
+            sLogThreadGroup.remove();
+        } else {
+            sLogThreadGroup.set(group);
+        }
+    }
+
+    /**
+     * Gets the {@link ThreadGroup} whose logger the current thread uses: the one set by
+     * {@link #setLogThreadGroup(ThreadGroup)} if any, otherwise the group of the thread.
+     */
+    public static ThreadGroup getLogThreadGroup() {
+        ThreadGroup group = sLogThreadGroup.get();
+        return group != null ? group : Thread.currentThread().getThreadGroup();
     }
 
     /**
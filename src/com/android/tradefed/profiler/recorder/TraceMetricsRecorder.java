@@ -26,8 +26,10 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.BiFunction;
 
@@ -39,25 +41,27 @@ import java.util.function.BiFunction;
  */
 public class TraceMetricsRecorder extends NumericMetricsRecorder {
 
-    private static final String TRACE_DIR = "/d/tracing";
+    protected static final String TRACE_DIR = "/d/tracing";
     private static final String EVENT_DIR = TRACE_DIR + "/events/";
 
     private Map<String, TraceMetric> mTraceMetrics;
     private Map<TraceMetric, BiFunction<Double, Double, Double>> mMergeFunctions;
-    private TraceParser mParser;
+    private List<TraceMetric> mMetricList;
+    private double mLastTimestamp;
+    private boolean mHasLastTimestamp = false;
 
     @Override
     public void setUp(ITestDevice device, Collection<String> descriptors)
             throws DeviceNotAvailableException {
         mMergeFunctions = new HashMap<>();
         mTraceMetrics = new HashMap<>();
-        mParser = new TraceParser();
         for (String descriptor : descriptors) {
             TraceMetric metric = TraceMetric.parse(descriptor);
             enableSingleEventTrace(device, metric.getPrefix() + "/" + metric.getFuncName());
             mTraceMetrics.put(metric.getFuncName(), metric);
             mMergeFunctions.put(metric, getMergeFunctionByMetricType(metric.getMetricType()));
         }
+        mMetricList = new ArrayList<>(mTraceMetrics.values());
     }
 
     @Override
@@ -76,38 +80,10 @@ public class TraceMetricsRecorder extends NumericMetricsRecorder {
         BufferedReader trace = null;
         try {
             trace = getReaderFromFile(fullTrace);
+            resetTraceState();
             String line;
-            Double lastTimestamp = null;
             while ((line = trace.readLine()) != null) {
-                if (line.startsWith("#")) {
-                    continue;
-                }
-                line = line.trim();
-                CLog.v("Got trace line %s", line);
-                TraceLine descriptor = mParser.parseTraceLine(line);
-                TraceMetric matchedMetric = mTraceMetrics.get(descriptor.getFunctionName());
-                // There's no template for handling this metric, so ignore it.
-                if (matchedMetric == null) {
-                    continue;
-                }
-                if (matchedMetric.getMetricType() == MetricType.AVGTIME) {
-                    lastTimestamp = descriptor.getTimestamp();
-                    continue;
-                } else if (lastTimestamp != null) {
-                    double timeDiff = descriptor.getTimestamp() - lastTimestamp;
-                    lastTimestamp = null;
-                    metrics.merge(
-                            matchedMetric.toString(), timeDiff, mMergeFunctions.get(matchedMetric));
-                } else {
-                    Long baseParamValue =
-                            descriptor.getFunctionParams().get(matchedMetric.getParam());
-                    if (baseParamValue == null) {
-                        continue;
-                    }
-                    metrics.merge(
-                            matchedMetric.toString(), Double.valueOf(baseParamValue),
-                            mMergeFunctions.get(matchedMetric));
-                }
+                processTraceLine(line, metrics);
             }
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
@@ -121,6 +97,63 @@ public class TraceMetricsRecorder extends NumericMetricsRecorder {
         return metrics;
     }
 
+    /** Resets the state carried between trace lines, before parsing a new trace. */
+    protected void resetTraceState() {
+        mHasLastTimestamp = false;
+    }
+
+    /**
+     * Aggregates one trace line into the metrics. Lines are first filtered on their function name
+     * without parsing them, and only the parameter of the matched metric is parsed.
+     *
+     * @param line a line from /d/tracing/trace or /d/tracing/trace_pipe.
+     * @param metrics the metrics to update.
+     */
+    protected void processTraceLine(String line, Map<String, Double> metrics) {
+        if (line.startsWith("#")) {
+            return;
+        }
+        int functionStart = TraceParser.indexOfFunctionName(line);
+        if (functionStart < 0) {
+            return;
+        }
+        TraceMetric matchedMetric = null;
+        for (TraceMetric metric : mMetricList) {
+            if (TraceParser.isFunction(line, functionStart, metric.getFuncName())) {
+                matchedMetric = metric;
+                break;
+            }
+        }
+        // There's no template for handling this metric, so ignore it.
+        if (matchedMetric == null) {
+            return;
+        }
+        try {
+            if (matchedMetric.getMetricType() == MetricType.AVGTIME) {
+                mLastTimestamp = TraceParser.parseTimestamp(line, functionStart);
+                mHasLastTimestamp = true;
+            } else if (mHasLastTimestamp) {
+                double timeDiff =
+                        TraceParser.parseTimestamp(line, functionStart) - mLastTimestamp;
+                mHasLastTimestamp = false;
+                metrics.merge(
+                        matchedMetric.toString(), timeDiff, mMergeFunctions.get(matchedMetric));
+            } else {
+                Long baseParamValue = TraceParser.parseFunctionParam(
+                        line, functionStart, matchedMetric.getParam());
+                if (baseParamValue == null) {
+                    return;
+                }
+                metrics.merge(
+                        matchedMetric.toString(), Double.valueOf(baseParamValue),
+                        mMergeFunctions.get(matchedMetric));
+            }
+        } catch (NumberFormatException e) {
+            // A truncated or corrupted line must not stop the parsing of the trace
+            CLog.w("Skipping malformed trace line: %s", line);
+        }
+    }
+
     @Override
     public BiFunction<Double, Double, Double> getMergeFunction(String key) {
         CLog.i("Looking up merge function for metric %s", key);
@@ -132,11 +165,11 @@ public class TraceMetricsRecorder extends NumericMetricsRecorder {
         return "TraceMetricsRecorder";
     }
 
-    private void enableTracing(ITestDevice device) throws DeviceNotAvailableException {
+    protected void enableTracing(ITestDevice device) throws DeviceNotAvailableException {
         device.executeShellCommand("echo 1 > " + TRACE_DIR + "/tracing_on");
     }
 
-    private void disableTracing(ITestDevice device) throws DeviceNotAvailableException {
+    protected void disableTracing(ITestDevice device) throws DeviceNotAvailableException {
         device.executeShellCommand("echo 0 > " + TRACE_DIR + "/tracing_on");
     }
 
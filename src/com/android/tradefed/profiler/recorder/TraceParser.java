@@ -84,4 +84,127 @@ public class TraceParser {
         descriptor.setFunctionParams(parseFunctionParams(m.group(GRP_FUNC_PARAM)));
         return descriptor;
     }
+
+    /**
+     * Returns the index where the function name of a trace line starts, or -1 if the line is not
+     * a trace event. This does not use regular expressions nor allocate, so it can cheaply
+     * discard the lines of functions that are not of interest before any parsing.
+     *
+     * @param line a line from /d/tracing/trace or /d/tracing/trace_pipe.
+     */
+    public static int indexOfFunctionName(String line) {
+        // The function name follows the first "<timestamp>: " of the line.
+        int index = line.indexOf(": ");
+        while (index > 0) {
+            if (Character.isDigit(line.charAt(index - 1))) {
+                int start = index + 2;
+                while (start < line.length() && line.charAt(start) == ' ') {
+                    start++;
+                }
+                int end = start;
+                while (end < line.length() && isWordChar(line.charAt(end))) {
+                    end++;
+                }
+                if (end > start && end < line.length() && line.charAt(end) == ':') {
+                    return start;
+                }
+            }
+            index = line.indexOf(": ", index + 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the function name starting at the given index of the line is the given
+     * name.
+     *
+     * @param line a trace line.
+     * @param functionStart the index returned by {@link #indexOfFunctionName(String)}.
+     * @param functionName the function name to compare to.
+     */
+    public static boolean isFunction(String line, int functionStart, String functionName) {
+        int end = functionStart + functionName.length();
+        return end < line.length()
+                && line.charAt(end) == ':'
+                && line.regionMatches(functionStart, functionName, 0, functionName.length());
+    }
+
+    /**
+     * Parses the timestamp of a trace line, in seconds.
+     *
+     * @param line a trace line.
+     * @param functionStart the index returned by {@link #indexOfFunctionName(String)}.
+     * @throws NumberFormatException if the line has no valid timestamp.
+     */
+    public static double parseTimestamp(String line, int functionStart) {
+        int end = line.lastIndexOf(':', functionStart - 1);
+        if (end < 0) {
+            throw new NumberFormatException("No timestamp in line: " + line);
+        }
+        int start = line.lastIndexOf(' ', end) + 1;
+        return Double.parseDouble(line.substring(start, end));
+    }
+
+    /**
+     * Parses a single function parameter of a trace line, without parsing the others. Values
+     * starting with "0x" are parsed as hexadecimal.
+     *
+     * @param line a trace line.
+     * @param functionStart the index returned by {@link #indexOfFunctionName(String)}.
+     * @param key the name of the parameter.
+     * @return the value of the parameter, or null if the line has no such parameter.
+     * @throws NumberFormatException if the value of the parameter is not a valid number.
+     */
+    public static Long parseFunctionParam(String line, int functionStart, String key) {
+        int index = line.indexOf(':', functionStart) + 1;
+        while (index < line.length() && line.charAt(index) == ' ') {
+            index++;
+        }
+        while (index < line.length()) {
+            int next = line.indexOf(',', index);
+            if (next < 0) {
+                next = line.length();
+            }
+            int valueStart = index + key.length() + 1;
+            if (valueStart <= next
+                    && line.charAt(index + key.length()) == '='
+                    && line.regionMatches(index, key, 0, key.length())) {
+                return parseNumber(line, valueStart, next);
+            }
+            index = next + 1;
+        }
+        return null;
+    }
+
+    /** Parse a decimal or "0x" prefixed hexadecimal number from a region of the line. */
+    private static long parseNumber(String line, int start, int end) {
+        while (end > start && Character.isWhitespace(line.charAt(end - 1))) {
+            end--;
+        }
+        int radix = 10;
+        boolean negative = false;
+        if (end - start >= 2 && line.charAt(start + 1) == 'x') {
+            radix = 16;
+            start += 2;
+        } else if (start < end && line.charAt(start) == '-') {
+            negative = true;
+            start++;
+        }
+        if (start >= end) {
+            throw new NumberFormatException("Empty value in line: " + line);
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(line.charAt(i), radix);
+            if (digit < 0) {
+                throw new NumberFormatException("Invalid value in line: " + line);
+            }
+            value = value * radix + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.profiler.recorder;
+
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.RunUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link TraceMetricsRecorder} that consumes /d/tracing/trace_pipe while the test runs, instead
+ * of pulling the whole trace buffer when the test ends. Events are aggregated as they are read,
+ * so the parsing is spread over the test and a busy tracepoint cannot overflow the buffer.
+ */
+public class TracePipeMetricsRecorder extends TraceMetricsRecorder {
+
+    /** Time without new trace output after which the pipe is considered drained. */
+    private static final long DRAIN_QUIET_MS = 200;
+    private static final long DRAIN_TIMEOUT_MS = 5 * 1000;
+    private static final long STOP_TIMEOUT_MS = 30 * 1000;
+
+    /** Receives the output of trace_pipe and aggregates it as it comes. */
+    @VisibleForTesting
+    class TracePipeReceiver extends MultiLineReceiver {
+        private final Map<String, Double> mMetrics = new HashMap<>();
+        private volatile boolean mCancelled = false;
+        private volatile long mLastOutputTime = System.currentTimeMillis();
+
+        @Override
+        public void processNewLines(String[] lines) {
+            mLastOutputTime = System.currentTimeMillis();
+            synchronized (mMetrics) {
+                for (String line : lines) {
+                    processTraceLine(line, mMetrics);
+                }
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        void cancel() {
+            mCancelled = true;
+        }
+
+        long getLastOutputTime() {
+            return mLastOutputTime;
+        }
+
+        Map<String, Double> getMetrics() {
+            synchronized (mMetrics) {
+                return new HashMap<>(mMetrics);
+            }
+        }
+    }
+
+    private TracePipeReceiver mReceiver;
+    private Thread mReaderThread;
+    private DeviceNotAvailableException mReaderError;
+
+    @Override
+    public void startMetrics(final ITestDevice device) throws DeviceNotAvailableException {
+        resetTraceState();
+        mReaderError = null;
+        mReceiver = new TracePipeReceiver();
+        final TracePipeReceiver receiver = mReceiver;
+        mReaderThread = new Thread(String.format("TracePipeReader-%s", device.getSerialNumber())) {
+            @Override
+            public void run() {
+                try {
+                    // No output timeout: the pipe is silent until the traced events happen.
+                    device.executeShellCommand(
+                            "cat " + TRACE_DIR + "/trace_pipe", receiver, 0,
+                            TimeUnit.MILLISECONDS, 0);
+                } catch (DeviceNotAvailableException e) {
+                    CLog.e("Lost device while reading trace_pipe");
+                    mReaderError = e;
+                }
+            }
+        };
+        mReaderThread.setDaemon(true);
+        mReaderThread.start();
+        enableTracing(device);
+    }
+
+    @Override
+    public Map<String, Double> stopMetrics(ITestDevice device) throws DeviceNotAvailableException {
+        disableTracing(device);
+        // Let the events already in the buffer reach the host before stopping the reader.
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline && mReaderThread.isAlive()
+                && System.currentTimeMillis() - mReceiver.getLastOutputTime() < DRAIN_QUIET_MS) {
+            RunUtil.getDefault().sleep(DRAIN_QUIET_MS / 4);
+        }
+        mReceiver.cancel();
+        try {
+            mReaderThread.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mReaderThread.isAlive()) {
+            CLog.w("trace_pipe reader for %s did not stop", device.getSerialNumber());
+        }
+        if (mReaderError != null) {
+            throw mReaderError;
+        }
+        return mReceiver.getMetrics();
+    }
+
+    /** Returns the receiver of the current recording. */
+    @VisibleForTesting
+    TracePipeReceiver getReceiver() {
+        return mReceiver;
+    }
+
+    @Override
+    public String getName() {
+        return "TracePipeMetricsRecorder";
+    }
+}
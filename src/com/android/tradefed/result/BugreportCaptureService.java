@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.Bugreport;
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.TokenBucket;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Captures bugreportz in the background on behalf of a {@link BugreportCollector}.
+ * <p/>
+ * Capture requests that arrive while a capture is in flight are coalesced into the next capture,
+ * and captures are rate limited with a {@link TokenBucket}. When an {@link ILogSaver} is set, the
+ * pulled zip is saved from the capture thread, without copying it through the heap. Completed
+ * captures are then reported to the listener from the caller's thread, in
+ * {@link #deliverCompleted(ITestInvocationListener)}, so that the listener is never called
+ * concurrently with the test events.
+ */
+public class BugreportCaptureService {
+
+    /** A completed capture, with the requests it covers. */
+    static class CompletedCapture {
+        final String mName;
+        final List<String> mReasons;
+        final LogDataType mType;
+        final InputStreamSource mSource;
+        final LogFile mLogFile;
+
+        CompletedCapture(String name, List<String> reasons, LogDataType type,
+                InputStreamSource source, LogFile logFile) {
+            mName = name;
+            mReasons = reasons;
+            mType = type;
+            mSource = source;
+            mLogFile = logFile;
+        }
+    }
+
+    private final ITestDevice mDevice;
+    private final TokenBucket mRateLimiter;
+    private ILogSaver mLogSaver = null;
+    private long mDeviceWaitTimeMs = 40 * 1000;
+
+    private final Object mLock = new Object();
+    /** Requests not yet covered by a capture, guarded by mLock. */
+    private List<String> mPendingReasons = new ArrayList<>();
+    private final List<CompletedCapture> mCompleted = new LinkedList<>();
+    private Thread mWorker = null;
+    private boolean mFlushing = false;
+
+    /**
+     * Creates a {@link BugreportCaptureService}.
+     *
+     * @param device the device to capture bugreports from.
+     * @param rateLimiter the {@link TokenBucket} limiting the rate of captures.
+     */
+    public BugreportCaptureService(ITestDevice device, TokenBucket rateLimiter) {
+        mDevice = device;
+        mRateLimiter = rateLimiter;
+    }
+
+    /** Set the {@link ILogSaver} to stream captured bugreports to. */
+    public void setLogSaver(ILogSaver logSaver) {
+        mLogSaver = logSaver;
+    }
+
+    /**
+     * Set the time to wait for the device to be online before capturing. If negative, no check is
+     * performed.
+     */
+    public void setDeviceWaitTime(long waitTimeMs) {
+        mDeviceWaitTimeMs = waitTimeMs;
+    }
+
+    /**
+     * Request a bugreport. Returns immediately; the request is covered by the next capture that
+     * starts after this call.
+     *
+     * @param reason a description of the event that triggered the request, e.g. the failed test.
+     */
+    public void request(String reason) {
+        synchronized (mLock) {
+            mPendingReasons.add(reason);
+            if (mWorker == null) {
+                mWorker = new Thread(String.format("BugreportCapture-%s",
+                        mDevice.getSerialNumber())) {
+                    @Override
+                    public void run() {
+                        captureLoop();
+                    }
+                };
+                mWorker.setDaemon(true);
+                mWorker.start();
+            }
+        }
+    }
+
+    /**
+     * Block until all the requests made so far are captured. Pending requests are captured
+     * immediately, regardless of the rate limit.
+     */
+    public void blockUntilIdle() {
+        synchronized (mLock) {
+            mFlushing = true;
+            mLock.notifyAll();
+            try {
+                while (mWorker != null) {
+                    mLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                mFlushing = false;
+            }
+        }
+    }
+
+    /** Returns {@code true} if no capture is in flight or pending. */
+    public boolean isIdle() {
+        synchronized (mLock) {
+            return mWorker == null;
+        }
+    }
+
+    /**
+     * Report the captures completed so far to the listener. Must be called from the thread that
+     * calls the listener.
+     */
+    public void deliverCompleted(ITestInvocationListener listener) {
+        List<CompletedCapture> completed;
+        synchronized (mLock) {
+            if (mCompleted.isEmpty()) {
+                return;
+            }
+            completed = new ArrayList<>(mCompleted);
+            mCompleted.clear();
+        }
+        for (CompletedCapture capture : completed) {
+            try {
+                if (capture.mReasons.size() > 1) {
+                    // Keep track of which requests this capture covers
+                    StringBuilder reasons = new StringBuilder();
+                    for (String reason : capture.mReasons) {
+                        reasons.append(reason).append('\n');
+                    }
+                    InputStreamSource source =
+                            new ByteArrayInputStreamSource(reasons.toString().getBytes());
+                    listener.testLog(capture.mName + "-covers", LogDataType.TEXT, source);
+                    source.cancel();
+                }
+                if (capture.mLogFile == null) {
+                    listener.testLog(capture.mName, capture.mType, capture.mSource);
+                } else if (listener instanceof ILogSaverListener) {
+                    ((ILogSaverListener) listener).testLogSaved(capture.mName, capture.mType,
+                            capture.mSource, capture.mLogFile);
+                } else {
+                    // the listener does not know about saved logs, give it the data itself
+                    listener.testLog(capture.mName, capture.mType, capture.mSource);
+                }
+            } finally {
+                capture.mSource.cancel();
+            }
+        }
+    }
+
+    private void captureLoop() {
+        while (true) {
+            List<String> reasons;
+            synchronized (mLock) {
+                if (mPendingReasons.isEmpty()) {
+                    mWorker = null;
+                    mLock.notifyAll();
+                    return;
+                }
+                // Wait for a token, letting more requests coalesce meanwhile
+                long waitTime = mRateLimiter.getWaitTimeMs();
+                while (!mFlushing && waitTime > 0) {
+                    try {
+                        mLock.wait(waitTime);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    waitTime = mRateLimiter.getWaitTimeMs();
+                }
+                mRateLimiter.tryAcquire();
+                reasons = mPendingReasons;
+                mPendingReasons = new ArrayList<>();
+            }
+            CompletedCapture capture = null;
+            try {
+                capture = capture(reasons);
+            } catch (RuntimeException e) {
+                CLog.e("Failed to capture bugreport for %s", reasons);
+                CLog.e(e);
+            }
+            synchronized (mLock) {
+                if (capture != null) {
+                    mCompleted.add(capture);
+                }
+            }
+        }
+    }
+
+    private CompletedCapture capture(List<String> reasons) {
+        String desc = reasons.get(0);
+        if (reasons.size() > 1) {
+            desc = String.format("%s_and_%d_more", desc, reasons.size() - 1);
+        }
+        String name = String.format("bug-%s.%d", desc, System.currentTimeMillis());
+        CLog.d("Capturing bugreport %s covering %d request(s)", name, reasons.size());
+        if (mDeviceWaitTimeMs >= 0) {
+            try {
+                mDevice.waitForDeviceOnline(mDeviceWaitTimeMs);
+            } catch (DeviceNotAvailableException e) {
+                CLog.e("Caught DeviceNotAvailableException while trying to capture bugreport");
+                CLog.e(e);
+            }
+        }
+        Bugreport bugreport = mDevice.takeBugreport();
+        if (bugreport != null && bugreport.getFile() != null) {
+            // Keep the pulled file as is: it is handed to the log saver, which may link it
+            // instead of copying it, and deleted once the capture is delivered.
+            File file = bugreport.getFile();
+            LogDataType type = bugreport.isZipped() ? LogDataType.BUGREPORTZ
+                    : LogDataType.BUGREPORT;
+            LogFile logFile = null;
+            if (mLogSaver != null) {
+                try {
+                    logFile = mLogSaver.saveLogFile(name, type, file);
+                } catch (IOException e) {
+                    CLog.e("Failed to save bugreport %s", name);
+                    CLog.e(e);
+                }
+            }
+            return new CompletedCapture(name, reasons, type,
+                    new FileInputStreamSource(file, true), logFile);
+        }
+        // the bugreport could not be pulled as a file, fall back to a flat bugreport
+        LogDataType type = LogDataType.BUGREPORT;
+        InputStreamSource source = mDevice.getBugreport();
+        LogFile logFile = null;
+        if (mLogSaver != null) {
+            InputStream stream = null;
+            try {
+                stream = source.createInputStream();
+                logFile = mLogSaver.saveLogData(name, type, stream);
+            } catch (IOException e) {
+                CLog.e("Failed to save bugreport %s", name);
+                CLog.e(e);
+            } finally {
+                StreamUtil.close(stream);
+            }
+        }
+        return new CompletedCapture(name, reasons, type, source, logFile);
+    }
+}
@@ -21,6 +21,7 @@ import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.TokenBucket;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -194,8 +195,11 @@ public class BugreportCollector implements ITestInvocationListener {
     private ITestInvocationListener mListener;
     private ITestDevice mTestDevice;
     private List<Predicate> mPredicates = new LinkedList<Predicate>();
-    @SuppressWarnings("unused")
     private boolean mAsynchronous = false;
+    private BugreportCaptureService mCaptureService = null;
+    private ILogSaver mLogSaver = null;
+    private int mMaxBurst = 3;
+    private long mRefillIntervalMs = 2 * 60 * 1000;
     @SuppressWarnings("unused")
     private boolean mCapturedBugreport = false;
 
@@ -240,20 +244,45 @@ public class BugreportCollector implements ITestInvocationListener {
      * collecting a bugreport, return immediately
      */
     public void blockUntilIdle() {
-        // FIXME
-        return;
+        if (mCaptureService != null) {
+            mCaptureService.blockUntilIdle();
+            mCaptureService.deliverCompleted(mListener);
+        }
     }
 
     /**
      * Set whether bugreport collection should collect the bugreport in a different thread
      * ({@code asynchronous = true}), or block the caller until the bugreport is captured
      * ({@code asynchronous = false}).
+     * <p/>
+     * Asynchronous collection captures bugreportz. Events that request a bugreport while a capture
+     * is in flight are coalesced into the next capture, and captures are rate limited, see
+     * {@link #setRateLimit(int, long)}. Captured bugreports are passed to the child listener at
+     * the next event, and when the invocation ends.
      */
     public void setAsynchronous(boolean asynchronous) {
-        // FIXME do something
         mAsynchronous = asynchronous;
     }
 
+    /**
+     * Set the rate limit of asynchronous captures: up to {@code maxBurst} captures can run back to
+     * back, after which one capture is allowed every {@code refillIntervalMs}.
+     */
+    public void setRateLimit(int maxBurst, long refillIntervalMs) {
+        mMaxBurst = maxBurst;
+        mRefillIntervalMs = refillIntervalMs;
+    }
+
+    /**
+     * Set the {@link ILogSaver} that asynchronously captured bugreports are saved to. The child
+     * listener is then notified with {@link ILogSaverListener#testLogSaved} if it is an
+     * {@link ILogSaverListener}, otherwise it still receives the bugreport with
+     * {@link ITestInvocationListener#testLog}.
+     */
+    public void setLogSaver(ILogSaver logSaver) {
+        mLogSaver = logSaver;
+    }
+
     /**
      * Set the descriptive name to use when recording bugreports.  If {@code null},
      * {@code BugreportCollector} will fall back to the default behavior of serializing the name of
@@ -271,6 +300,10 @@ public class BugreportCollector implements ITestInvocationListener {
         if (mDescriptiveName != null) {
             logDesc = mDescriptiveName;
         }
+        if (mAsynchronous) {
+            getCaptureService().request(logDesc);
+            return;
+        }
         String logName = String.format("bug-%s.%d", logDesc, System.currentTimeMillis());
         CLog.v("Log name is %s", logName);
         if (mDeviceWaitTimeSecs >= 0) {
@@ -293,6 +326,25 @@ public class BugreportCollector implements ITestInvocationListener {
         }
     }
 
+    private BugreportCaptureService getCaptureService() {
+        if (mCaptureService == null) {
+            mCaptureService = new BugreportCaptureService(mTestDevice,
+                    new TokenBucket(mMaxBurst, mRefillIntervalMs));
+            mCaptureService.setLogSaver(mLogSaver);
+            mCaptureService.setDeviceWaitTime((long) mDeviceWaitTimeSecs * 1000);
+        }
+        return mCaptureService;
+    }
+
+    /**
+     * Pass the bugreports captured asynchronously so far to the child listener.
+     */
+    private void deliverCaptures() {
+        if (mCaptureService != null) {
+            mCaptureService.deliverCompleted(mListener);
+        }
+    }
+
     Predicate getPredicate(Predicate predicate) {
         for (Predicate p : mPredicates) {
             if (p.partialMatch(predicate)) {
@@ -441,6 +493,7 @@ public class BugreportCollector implements ITestInvocationListener {
      */
     @Override
     public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        deliverCaptures();
         mListener.testEnded(test, testMetrics);
         mCollector.testEnded(test, testMetrics);
         check(Relation.AFTER, Noun.TESTCASE, test);
@@ -474,6 +527,7 @@ public class BugreportCollector implements ITestInvocationListener {
      */
     @Override
     public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        deliverCaptures();
         mListener.testRunEnded(elapsedTime, runMetrics);
         mCollector.testRunEnded(elapsedTime, runMetrics);
         check(Relation.AFTER, Noun.TESTRUN);
@@ -494,6 +548,7 @@ public class BugreportCollector implements ITestInvocationListener {
      */
     @Override
     public void testRunStarted(String runName, int testCount) {
+        deliverCaptures();
         mListener.testRunStarted(runName, testCount);
         mCollector.testRunStarted(runName, testCount);
         check(Relation.AT_START_OF, Noun.TESTRUN);
@@ -514,6 +569,7 @@ public class BugreportCollector implements ITestInvocationListener {
      */
     @Override
     public void testStarted(TestIdentifier test) {
+        deliverCaptures();
         mListener.testStarted(test);
         mCollector.testStarted(test);
         check(Relation.AT_START_OF, Noun.TESTCASE, test);
@@ -544,6 +600,14 @@ public class BugreportCollector implements ITestInvocationListener {
      */
     @Override
     public void invocationEnded(long elapsedTime) {
+        if (mAsynchronous) {
+            // Pending captures must reach the listener before it ends
+            mCollector.invocationEnded(elapsedTime);
+            check(Relation.AFTER, Noun.INVOCATION);
+            blockUntilIdle();
+            mListener.invocationEnded(elapsedTime);
+            return;
+        }
         mListener.invocationEnded(elapsedTime);
         mCollector.invocationEnded(elapsedTime);
         check(Relation.AFTER, Noun.INVOCATION);
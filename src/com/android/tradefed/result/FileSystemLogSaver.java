@@ -27,6 +27,7 @@ import com.android.tradefed.util.StreamUtil;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -145,6 +146,32 @@ public class FileSystemLogSaver implements ILogSaver {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Data which is saved uncompressed is hardlinked into the log directory, or copied with
+     * {@link FileUtil#linkOrCopyFile(File, File)} if the link fails, without going through the
+     * heap. Otherwise the file is zipped like {@link #saveLogData}.
+     * </p>
+     */
+    @Override
+    public LogFile saveLogFile(String dataName, LogDataType dataType, File dataFile)
+            throws IOException {
+        if (mCompressFiles && !dataType.isCompressed()) {
+            try (InputStream dataStream = new FileInputStream(dataFile)) {
+                return saveLogData(dataName, dataType, dataStream);
+            }
+        }
+        // add underscore to end of data name to make generated name more readable
+        File log = FileUtil.createTempFile(sanitizeFilename(dataName) + "_",
+                "." + dataType.getFileExt(), mLogReportDir);
+        FileUtil.linkOrCopyFile(dataFile, log);
+        setGroupAccessible(log);
+        CLog.d("Saved log file %s from %s", log.getAbsolutePath(), dataFile.getAbsolutePath());
+        return new LogFile(log.getAbsolutePath(), getUrl(log), dataType.isCompressed(),
+                dataType.isText());
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -160,15 +187,18 @@ public class FileSystemLogSaver implements ILogSaver {
         final String saneDataName = sanitizeFilename(dataName);
         // add underscore to end of data name to make generated name more readable
         File log = FileUtil.createTempFile(saneDataName + "_", "." + ext, mLogReportDir);
+        setGroupAccessible(log);
+
+        FileUtil.writeToFile(dataStream, log);
+        CLog.d("Saved raw log file %s", log.getAbsolutePath());
+        return log;
+    }
 
+    private static void setGroupAccessible(File log) {
         boolean setPerms = FileUtil.chmodGroupRWX(log);
         if (!setPerms) {
             CLog.w(String.format("Failed to set dir %s to be group accessible.", log));
         }
-
-        FileUtil.writeToFile(dataStream, log);
-        CLog.d("Saved raw log file %s", log.getAbsolutePath());
-        return log;
     }
 
     /**
@@ -17,6 +17,8 @@ package com.android.tradefed.result;
 
 import com.android.tradefed.invoker.IInvocationContext;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -73,6 +75,27 @@ public interface ILogSaver {
     public LogFile saveLogData(String dataName, LogDataType dataType, InputStream dataStream)
             throws IOException;
 
+    /**
+     * Save the log data of a file.
+     * <p>
+     * Same as {@link #saveLogData(String, LogDataType, InputStream)}, for data already stored in a
+     * file. Implementations may avoid copying the data through the heap, e.g. by hardlinking the
+     * file, so the file must not be modified afterwards. The file itself is left to the caller.
+     * </p>
+     *
+     * @param dataName a {@link String} descriptive name of the data. e.g. "device_logcat"
+     * @param dataType the {@link LogDataType} of the file.
+     * @param dataFile the {@link File} containing the data.
+     * @return the {@link LogFile} containing the path and URL of the saved file.
+     * @throws IOException if log file could not be generated
+     */
+    public default LogFile saveLogFile(String dataName, LogDataType dataType, File dataFile)
+            throws IOException {
+        try (InputStream dataStream = new FileInputStream(dataFile)) {
+            return saveLogData(dataName, dataType, dataStream);
+        }
+    }
+
     /**
      * A helper method to save the log data unmodified.
      * <p>
@@ -29,6 +29,8 @@ import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.StreamUtil;
 import com.android.tradefed.util.net.HttpHelper;
+import com.android.tradefed.util.net.HttpUploadQueue;
+import com.android.tradefed.util.net.HttpUploadQueue.IUploadCallback;
 import com.android.tradefed.util.net.IHttpHelper;
 import com.google.common.base.Joiner;
 
@@ -36,6 +38,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -77,6 +80,14 @@ public class JsonHttpTestResultReporter extends CollectingTestListener {
             description = "suffix to append after the regular reporting unit key")
     private String mReportingUnitKeySuffix = null;
 
+    @Option(name = "async-upload", description = "post the results in the background, so that "
+            + "the invocation does not wait for the upload. The results are spooled to disk and "
+            + "retried if the endpoint fails.")
+    private boolean mAsyncUpload = false;
+
+    @Option(name = "gzip-upload", description = "compress the posted results with gzip. The "
+            + "endpoint must accept a gzip content encoding. Only applies to async uploads.")
+    private boolean mGzipUpload = false;
 
     private boolean mHasInvocationFailures = false;
     private IInvocationContext mInvocationContext = null;
@@ -103,7 +114,12 @@ public class JsonHttpTestResultReporter extends CollectingTestListener {
             CLog.d("Skipping reporting beacuse there are invocation failures.");
         } else {
             try {
-                postResults(convertMetricsToJson(getRunResults()));
+                JSONObject results = convertMetricsToJson(getRunResults());
+                if (mAsyncUpload) {
+                    enqueueResults(results);
+                } else {
+                    postResults(results);
+                }
             } catch (JSONException e) {
                 CLog.e("JSONException while converting test metrics.");
                 CLog.e(e);
@@ -146,6 +162,39 @@ public class JsonHttpTestResultReporter extends CollectingTestListener {
         }
     }
 
+    /**
+     * Queue data to be posted to the specified HTTP endpoint in the background
+     * @param postData data to be posted
+     */
+    protected void enqueueResults(JSONObject postData) {
+        final String buildId = mInvocationContext.getBuildInfos().get(0).getBuildId();
+        String data = postData.toString();
+        CLog.d("Queueing post to %s: Data: '%s'", mPostingEndpoint, data);
+        // do not keep the results in memory until the upload completes
+        final byte[] body = data.getBytes(StandardCharsets.UTF_8);
+        final int size = body.length;
+        getUploadQueue().enqueue(mPostingEndpoint, "application/json", body, mGzipUpload,
+                new IUploadCallback() {
+                    @Override
+                    public void uploadSucceeded(int responseCode, String response) {
+                        CLog.d("Successfully posted results, build: %s, size: %d bytes", buildId,
+                                size);
+                    }
+
+                    @Override
+                    public void uploadFailed(String reason) {
+                        CLog.e("Posting failure for build %s: %s", buildId, reason);
+                    }
+                });
+    }
+
+    /**
+     * Get the {@link HttpUploadQueue} posting the results in the background. Exposed for testing.
+     */
+    protected HttpUploadQueue getUploadQueue() {
+        return HttpUploadQueue.getDefault();
+    }
+
     /**
      * A util method that converts test metrics and invocation context to json format
      */
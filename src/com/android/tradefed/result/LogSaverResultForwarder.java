@@ -18,7 +18,9 @@ package com.android.tradefed.result;
 
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.logcollector.LogCollectorListener;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
 
@@ -37,6 +39,10 @@ public class LogSaverResultForwarder extends ResultForwarder {
             if (listener instanceof ILogSaverListener) {
                 ((ILogSaverListener) listener).setLogSaver(mLogSaver);
             }
+            if (listener instanceof LogCollectorListener) {
+                // the collected logs are reported to the other listeners
+                ((LogCollectorListener) listener).setLogSaverListeners(listeners);
+            }
         }
     }
 
@@ -79,8 +85,14 @@ public class LogSaverResultForwarder extends ResultForwarder {
     public void testLog(String dataName, LogDataType dataType, InputStreamSource dataStream) {
         super.testLog(dataName, dataType, dataStream);
         try {
-            LogFile logFile = mLogSaver.saveLogData(dataName, dataType,
-                    dataStream.createInputStream());
+            LogFile logFile;
+            File dataFile = getBackingFile(dataStream);
+            if (dataFile != null) {
+                logFile = mLogSaver.saveLogFile(dataName, dataType, dataFile);
+            } else {
+                logFile = mLogSaver.saveLogData(dataName, dataType,
+                        dataStream.createInputStream());
+            }
             for (ITestInvocationListener listener : getListeners()) {
                 if (listener instanceof ILogSaverListener) {
                     ((ILogSaverListener) listener).testLogSaved(dataName, dataType,
@@ -92,4 +104,22 @@ public class LogSaverResultForwarder extends ResultForwarder {
             CLog.e(e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Get the file containing the data of a {@link InputStreamSource}, if it is a
+     * {@link SharedFileInputStreamSource}, so it can be saved without copying it through the heap.
+     * Other file backed sources may still be modified by their owner, so they are not linked.
+     *
+     * @return the {@link File}, or {@code null} if the data is not in an immutable file.
+     */
+    static File getBackingFile(InputStreamSource dataStream) {
+        if (!(dataStream instanceof SharedFileInputStreamSource)) {
+            return null;
+        }
+        File file = ((SharedFileInputStreamSource) dataStream).getFile();
+        if (file != null && file.isFile()) {
+            return file;
+        }
+        return null;
+    }
+}
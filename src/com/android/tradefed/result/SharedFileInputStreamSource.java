@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A reference counted {@link InputStreamSource} backed by an immutable file.
+ * <p/>
+ * The source starts with a single reference, owned by its creator. Holders that need the data
+ * beyond the call that gave them the source, e.g. to log it later, take their own reference with
+ * {@link #retain()} instead of snapshotting the data. Each reference is released by
+ * {@link #cancel()}, and the file is deleted when the last one is released.
+ * <p/>
+ * The file must not be modified once wrapped: consumers like {@link ILogSaver#saveLogFile} may
+ * hardlink it instead of copying its contents.
+ */
+public class SharedFileInputStreamSource implements InputStreamSource {
+
+    private File mFile;
+    private final boolean mDeleteOnRelease;
+    private int mRefCount = 1;
+
+    /**
+     * Creates a {@link SharedFileInputStreamSource} owning the file: it is deleted once all the
+     * references are released.
+     *
+     * @param file the {@link File} containing the data.
+     */
+    public SharedFileInputStreamSource(File file) {
+        this(file, true);
+    }
+
+    /**
+     * Creates a {@link SharedFileInputStreamSource}.
+     *
+     * @param file the {@link File} containing the data.
+     * @param deleteOnRelease if true, the file is deleted once all the references are released.
+     */
+    public SharedFileInputStreamSource(File file, boolean deleteOnRelease) {
+        if (file == null) {
+            throw new NullPointerException();
+        }
+        mFile = file;
+        mDeleteOnRelease = deleteOnRelease;
+    }
+
+    /**
+     * Take an additional reference on the data, released by a call to {@link #cancel()}.
+     *
+     * @return this source, or {@code null} if all the references were already released.
+     */
+    public synchronized SharedFileInputStreamSource retain() {
+        if (mRefCount == 0) {
+            return null;
+        }
+        mRefCount++;
+        return this;
+    }
+
+    /**
+     * Get the file backing the source. It must not be modified.
+     *
+     * @return the {@link File}, or {@code null} if all the references were released.
+     */
+    public synchronized File getFile() {
+        return mFile;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized InputStream createInputStream() {
+        if (mFile == null) {
+            return null;
+        }
+        try {
+            return new FileInputStream(mFile);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Releases one reference. The source is only invalidated when the last reference is released.
+     */
+    @Override
+    public synchronized void cancel() {
+        if (mRefCount == 0) {
+            return;
+        }
+        mRefCount--;
+        if (mRefCount == 0) {
+            if (mDeleteOnRelease) {
+                FileUtil.deleteFile(mFile);
+            }
+            mFile = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long size() {
+        return mFile == null ? 0 : mFile.length();
+    }
+
+    /**
+     * Get the number of references not yet released. Exposed for testing.
+     */
+    synchronized int getRefCount() {
+        return mRefCount;
+    }
+}
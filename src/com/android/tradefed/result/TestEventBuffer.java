@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link ITestInvocationListener} that records the test run events it receives, and replays
+ * them in the same order to another listener on {@link #flush()}.
+ * <p>
+ * Used to run tests on other threads while the destination listener still receives well ordered
+ * test runs. Logs are buffered with the other events, holding a reference on their data until
+ * they are replayed.
+ * </p>
+ */
+public class TestEventBuffer implements ITestInvocationListener {
+
+    /** A recorded event, replayed against the destination listener. */
+    private interface Event {
+        void replay(ITestInvocationListener listener);
+    }
+
+    private final ITestInvocationListener mDestination;
+    private final List<Event> mEvents = new ArrayList<>();
+
+    /**
+     * Creates a {@link TestEventBuffer}.
+     *
+     * @param destination the {@link ITestInvocationListener} the events are replayed to.
+     */
+    public TestEventBuffer(ITestInvocationListener destination) {
+        mDestination = destination;
+    }
+
+    private synchronized void record(Event event) {
+        mEvents.add(event);
+    }
+
+    /**
+     * Replays all the events recorded so far to the destination listener, then clears them.
+     */
+    public void flush() {
+        List<Event> events;
+        synchronized (this) {
+            events = new ArrayList<>(mEvents);
+            mEvents.clear();
+        }
+        synchronized (mDestination) {
+            for (Event event : events) {
+                event.replay(mDestination);
+            }
+        }
+    }
+
+    /** Returns the number of events waiting to be replayed. */
+    public synchronized int size() {
+        return mEvents.size();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testLog(final String dataName, final LogDataType dataType,
+            final InputStreamSource dataStream) {
+        final InputStreamSource source = retainSource(dataName, dataStream);
+        record(new Event() {
+            @Override
+            public void replay(ITestInvocationListener listener) {
+                if (source == null) {
+                    listener.testLog(dataName, dataType, dataStream);
+                    return;
+                }
+                try {
+                    listener.testLog(dataName, dataType, source);
+                } finally {
+                    source.cancel();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a source for the data that stays valid after the caller cancels its own source:
+     * either an additional reference on a shared source, or a snapshot of the data. Returns null
+     * if there is no data to hold.
+     */
+    private static InputStreamSource retainSource(String dataName,
+            InputStreamSource dataStream) {
+        if (dataStream instanceof SharedFileInputStreamSource) {
+            InputStreamSource retained = ((SharedFileInputStreamSource) dataStream).retain();
+            if (retained != null) {
+                return retained;
+            }
+        }
+        InputStream stream = dataStream == null ? null : dataStream.createInputStream();
+        if (stream == null) {
+            return null;
+        }
+        try {
+            return new SnapshotInputStreamSource(dataName, stream);
+        } finally {
+            StreamUtil.close(stream);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testRunStarted(final String runName, final int testCount) {
+        record(new Event() {
+            @Override
+            public void replay(ITestInvocationListener listener) {
+                listener.testRunStarted(runName, testCount);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testStarted(final TestIdentifier test) {
+        record(new Event() {
+            @Override
+            public void replay(ITestInvocationListener listener) {
+                listener.testStarted(test);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testStarted(final TestIdentifier test, final long startTime) {
+        record(new Event() {
+            @Override
+            public void replay(ITestInvocationListener listener) {
+                listener.testStarted(test, startTime);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testFailed(final TestIdentifier test, final String trace) {
+        record(new Event() {
+            @Override
+            public void replay(ITestInvocationListener listener) {
+                listener.testFailed(test, trace);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testAssumptionFailure(final TestIdentifier test, final String trace) {
+        record(new Event() {
+            @Override
+            public void replay(ITestInvocationListener listener) {
+                listener.testAssumptionFailure(test, trace);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testIgnored(final TestIdentifier test) {
+        record(new Event() {
+            @Override
+            public void replay(ITestInvocationListener listener) {
+                listener.testIgnored(test);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testEnded(final TestIdentifier test, final Map<String, String> testMetrics) {
+        record(new Event() {
+            @Override
+            public void replay(ITestInvocationListener listener) {
+                listener.testEnded(test, testMetrics);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testEnded(final TestIdentifier test, final long endTime,
+            final Map<String, String> testMetrics) {
+        record(new Event() {
+            @Override
+            public void replay(ITestInvocationListener listener) {
+                listener.testEnded(test, endTime, testMetrics);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testRunFailed(final String errorMessage) {
+        record(new Event() {
+            @Override
+            public void replay(ITestInvocationListener listener) {
+                listener.testRunFailed(errorMessage);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testRunStopped(final long elapsedTime) {
+        record(new Event() {
+            @Override
+            public void replay(ITestInvocationListener listener) {
+                listener.testRunStopped(elapsedTime);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testRunEnded(final long elapsedTime, final Map<String, String> runMetrics) {
+        record(new Event() {
+            @Override
+            public void replay(ITestInvocationListener listener) {
+                listener.testRunEnded(elapsedTime, runMetrics);
+            }
+        });
+    }
+}
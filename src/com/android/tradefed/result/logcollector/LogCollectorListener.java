@@ -0,0 +1,525 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result.logcollector;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.config.Option;
+import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.FileInputStreamSource;
+import com.android.tradefed.result.ILogSaver;
+import com.android.tradefed.result.ILogSaverListener;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.result.LogFile;
+import com.android.tradefed.result.logcollector.LogCollectorSpec.Trigger;
+import com.android.tradefed.util.SizeLimitedOutputStream;
+import com.android.tradefed.util.StreamUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A listener that collects logs from the devices of the invocation according to
+ * {@link LogCollectorSpec}s, usually loaded from proto/collector.proto text protos.
+ * <p/>
+ * Collections run in the background on a scheduled executor per device, with a bounded number of
+ * collections running at the same time, so the test thread is never blocked. A collection that is
+ * already queued absorbs any new trigger of the same collector, and the triggers that mark the
+ * end of a test (failure, finish, crash) only collect once per test. Collected logs are stored on
+ * disk and streamed to the {@link ILogSaver}.
+ * <p/>
+ * Each saved log is then reported to the other {@link ILogSaverListener}s of the invocation, set
+ * with {@link #setLogSaverListeners(List)}. The reports are delivered on the invocation thread, on
+ * the next test event, so that the listeners are never called concurrently with the test events.
+ * The log collector should come before the reporters in the configuration, so that the last logs
+ * reach them before the end of the invocation.
+ */
+@OptionClass(alias = "log-collector")
+public class LogCollectorListener implements ILogSaverListener {
+
+    @Option(name = "collector-config",
+            description = "text proto file describing a log collector. May be repeated.")
+    private List<File> mCollectorConfigs = new ArrayList<>();
+
+    @Option(name = "max-concurrent-collections",
+            description = "the maximum number of collections running at the same time on a "
+                    + "device.")
+    private int mMaxConcurrentCollections = 2;
+
+    @Option(name = "device-results-dir",
+            description = "the device directory that collected files relative to the results "
+                    + "are resolved against.")
+    private String mDeviceResultsDir = "/sdcard/";
+
+    @Option(name = "collection-timeout", isTimeVal = true,
+            description = "the maximum time a collection command may run without output.")
+    private long mCollectionTimeout = 5 * 60 * 1000;
+
+    @Option(name = "max-collection-size",
+            description = "the approximate maximum size in bytes of a collected command output.")
+    private long mMaxCollectionSize = 20 * 1024 * 1024;
+
+    @Option(name = "invocation-end-timeout", isTimeVal = true,
+            description = "the maximum time to wait for pending collections when the invocation "
+                    + "ends.")
+    private long mInvocationEndTimeout = 2 * 60 * 1000;
+
+    @Option(name = "disable", description = "Disable log collection.")
+    private boolean mDisable = false;
+
+    private final List<LogCollectorSpec> mSpecs = new ArrayList<>();
+    private final List<DeviceCollector> mDeviceCollectors = new ArrayList<>();
+    private ILogSaver mLogSaver = null;
+    private List<ITestInvocationListener> mLogSaverListeners = Collections.emptyList();
+    /** The saved logs not reported yet, guarded by itself. */
+    private final List<SavedLog> mSavedLogs = new LinkedList<>();
+    private TestIdentifier mCurrentTest = null;
+    /** Identifies the current test or run, to collect only once at the end of each. */
+    private long mCurrentEvent = 0;
+
+    /** The collectors of one device, and the executor they run on. */
+    private class DeviceCollector {
+        private final ITestDevice mDevice;
+        private final List<CollectorState> mStates = new ArrayList<>();
+        private final ScheduledThreadPoolExecutor mExecutor;
+        private final List<ScheduledFuture<?>> mIntervalTasks = new ArrayList<>();
+        private final AtomicBoolean mDeviceLost = new AtomicBoolean(false);
+
+        DeviceCollector(ITestDevice device, List<LogCollectorSpec> specs) {
+            mDevice = device;
+            for (LogCollectorSpec spec : specs) {
+                mStates.add(new CollectorState(spec));
+            }
+            final String serial = device.getSerialNumber();
+            final AtomicInteger count = new AtomicInteger();
+            mExecutor = new ScheduledThreadPoolExecutor(mMaxConcurrentCollections,
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, String.format("LogCollector-%s-%d",
+                                    serial, count.incrementAndGet()));
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+
+        void start() {
+            for (final CollectorState state : mStates) {
+                long interval = state.mSpec.getIntervalMs();
+                if (state.mSpec.hasTrigger(Trigger.INTERVAL) && interval > 0) {
+                    mIntervalTasks.add(mExecutor.scheduleAtFixedRate(new Runnable() {
+                        @Override
+                        public void run() {
+                            submit(state, null);
+                        }
+                    }, interval, interval, TimeUnit.MILLISECONDS));
+                }
+            }
+        }
+
+        void trigger(Trigger trigger, TestIdentifier test, long event) {
+            for (CollectorState state : mStates) {
+                if (!state.mSpec.hasTrigger(trigger)) {
+                    continue;
+                }
+                if (trigger != Trigger.TEST_START && trigger != Trigger.INTERVAL) {
+                    // failure, finish and crash of the same test overlap
+                    synchronized (state) {
+                        if (state.mLastEndEvent == event) {
+                            continue;
+                        }
+                        state.mLastEndEvent = event;
+                    }
+                }
+                submit(state, test);
+            }
+        }
+
+        private void submit(final CollectorState state, final TestIdentifier test) {
+            if (mDeviceLost.get() || mExecutor.isShutdown()) {
+                return;
+            }
+            if (!state.mPending.compareAndSet(false, true)) {
+                // A collection is already queued, it will capture this trigger too
+                return;
+            }
+            final long timestamp = System.currentTimeMillis();
+            Runnable collection = new Runnable() {
+                @Override
+                public void run() {
+                    state.mPending.set(false);
+                    if (mDeviceLost.get()) {
+                        return;
+                    }
+                    try {
+                        collect(mDevice, state.mSpec, state.mSpec.formatResultName(test,
+                                timestamp));
+                    } catch (DeviceNotAvailableException e) {
+                        CLog.w("Device %s not available, stopping log collection",
+                                mDevice.getSerialNumber());
+                        mDeviceLost.set(true);
+                    } catch (RuntimeException e) {
+                        CLog.e("Collector %s failed on %s", state.mSpec.getName(),
+                                mDevice.getSerialNumber());
+                        CLog.e(e);
+                    }
+                }
+            };
+            try {
+                mExecutor.execute(collection);
+            } catch (RejectedExecutionException e) {
+                // the invocation ended
+                state.mPending.set(false);
+            }
+        }
+
+        void finish(long timeoutMs) {
+            for (ScheduledFuture<?> task : mIntervalTasks) {
+                task.cancel(false);
+            }
+            mExecutor.shutdown();
+            try {
+                if (!mExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                    CLog.w("Log collections on %s did not finish in time",
+                            mDevice.getSerialNumber());
+                    mExecutor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                mExecutor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** A saved log waiting to be reported to the other listeners. */
+    private static class SavedLog {
+        final String mName;
+        final LogDataType mType;
+        final InputStreamSource mSource;
+        final LogFile mLogFile;
+
+        SavedLog(String name, LogDataType type, InputStreamSource source, LogFile logFile) {
+            mName = name;
+            mType = type;
+            mSource = source;
+            mLogFile = logFile;
+        }
+    }
+
+    /** The state of one collector on one device. */
+    private static class CollectorState {
+        final LogCollectorSpec mSpec;
+        final AtomicBoolean mPending = new AtomicBoolean(false);
+        long mLastEndEvent = -1;
+
+        CollectorState(LogCollectorSpec spec) {
+            mSpec = spec;
+        }
+    }
+
+    /** Add a collector, in addition to the ones loaded from the configs. */
+    public void addCollector(LogCollectorSpec spec) {
+        mSpecs.add(spec);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setLogSaver(ILogSaver logSaver) {
+        mLogSaver = logSaver;
+    }
+
+    /**
+     * Set the listeners of the invocation. The {@link ILogSaverListener}s among them, other than
+     * this one, are told about each saved log.
+     */
+    public void setLogSaverListeners(List<ITestInvocationListener> listeners) {
+        mLogSaverListeners = listeners;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void invocationStarted(IInvocationContext context) {
+        if (mDisable) {
+            return;
+        }
+        for (File config : mCollectorConfigs) {
+            try {
+                mSpecs.add(LogCollectorProtoLoader.load(config, mDeviceResultsDir));
+            } catch (IOException e) {
+                CLog.e("Failed to load log collector %s", config);
+                CLog.e(e);
+            }
+        }
+        if (mSpecs.isEmpty()) {
+            return;
+        }
+        for (ITestDevice device : context.getDevices()) {
+            IBuildInfo build = context.getBuildInfo(device);
+            String flavor = build != null ? build.getBuildFlavor() : null;
+            List<LogCollectorSpec> specs = new ArrayList<>();
+            for (LogCollectorSpec spec : mSpecs) {
+                if (spec.appliesTo(flavor, context.getTestTag())) {
+                    specs.add(spec);
+                }
+            }
+            if (!specs.isEmpty()) {
+                DeviceCollector collector = new DeviceCollector(device, specs);
+                mDeviceCollectors.add(collector);
+                collector.start();
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testRunStarted(String runName, int testCount) {
+        deliverSavedLogs();
+        mCurrentEvent++;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testStarted(TestIdentifier test) {
+        deliverSavedLogs();
+        mCurrentTest = test;
+        mCurrentEvent++;
+        trigger(Trigger.TEST_START);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testFailed(TestIdentifier test, String trace) {
+        deliverSavedLogs();
+        trigger(Trigger.FAILURE);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        deliverSavedLogs();
+        trigger(Trigger.TEST_FINISH);
+        mCurrentTest = null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testRunFailed(String errorMessage) {
+        deliverSavedLogs();
+        trigger(Trigger.CRASH);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        deliverSavedLogs();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void invocationFailed(Throwable cause) {
+        deliverSavedLogs();
+        mCurrentEvent++;
+        trigger(Trigger.TOOL_FAILURE);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void invocationEnded(long elapsedTime) {
+        for (DeviceCollector collector : mDeviceCollectors) {
+            collector.finish(mInvocationEndTimeout);
+        }
+        mDeviceCollectors.clear();
+        deliverSavedLogs();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testLogSaved(String dataName, LogDataType dataType, InputStreamSource dataStream,
+            LogFile logFile) {
+        // ignore
+    }
+
+    /**
+     * Report the saved logs to the other {@link ILogSaverListener}s, then release their data.
+     */
+    private void deliverSavedLogs() {
+        List<SavedLog> savedLogs;
+        synchronized (mSavedLogs) {
+            if (mSavedLogs.isEmpty()) {
+                return;
+            }
+            savedLogs = new ArrayList<>(mSavedLogs);
+            mSavedLogs.clear();
+        }
+        for (SavedLog log : savedLogs) {
+            for (ITestInvocationListener listener : mLogSaverListeners) {
+                if (listener == this || !(listener instanceof ILogSaverListener)) {
+                    continue;
+                }
+                try {
+                    ((ILogSaverListener) listener).testLogSaved(log.mName, log.mType,
+                            log.mSource, log.mLogFile);
+                } catch (RuntimeException e) {
+                    CLog.e("Failed to report %s", log.mName);
+                    CLog.e(e);
+                }
+            }
+            log.mSource.cancel();
+        }
+    }
+
+    private void trigger(Trigger trigger) {
+        for (DeviceCollector collector : mDeviceCollectors) {
+            collector.trigger(trigger, mCurrentTest, mCurrentEvent);
+        }
+    }
+
+    /**
+     * Run a collector on a device and save its output with the {@link ILogSaver}. Called from the
+     * collection threads.
+     */
+    @VisibleForTesting
+    void collect(ITestDevice device, LogCollectorSpec spec, String resultName)
+            throws DeviceNotAvailableException {
+        if (mLogSaver == null) {
+            CLog.w("No log saver, cannot save %s", resultName);
+            return;
+        }
+        if (spec.getCommand() != null) {
+            // Spool the output to disk rather than memory, then stream it to the log saver
+            final SizeLimitedOutputStream output = new SizeLimitedOutputStream(
+                    mMaxCollectionSize, spec.getName(), ".txt");
+            final AtomicLong outputSize = new AtomicLong();
+            IShellOutputReceiver receiver = new IShellOutputReceiver() {
+                @Override
+                public void addOutput(byte[] data, int offset, int length) {
+                    outputSize.addAndGet(length);
+                    try {
+                        output.write(data, offset, length);
+                    } catch (IOException e) {
+                        CLog.w("Failed to write collected output: %s", e.getMessage());
+                    }
+                }
+
+                @Override
+                public void flush() {
+                    output.flush();
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return false;
+                }
+            };
+            InputStreamSource source = new InputStreamSource() {
+                @Override
+                public InputStream createInputStream() {
+                    try {
+                        return output.getData();
+                    } catch (IOException e) {
+                        CLog.e(e);
+                        return null;
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                    output.delete();
+                }
+
+                @Override
+                public long size() {
+                    // the oldest output is dropped beyond the max size
+                    return Math.min(outputSize.get(), mMaxCollectionSize);
+                }
+            };
+            boolean saved = false;
+            try {
+                device.executeShellCommand(spec.getCommand(), receiver, mCollectionTimeout,
+                        TimeUnit.MILLISECONDS, 0);
+                saved = save(resultName, spec.getType(), source);
+            } finally {
+                if (!saved) {
+                    source.cancel();
+                }
+            }
+        } else if (spec.getDevicePath() != null) {
+            File file = device.pullFile(spec.getDevicePath());
+            if (file == null) {
+                CLog.w("Could not pull %s from %s", spec.getDevicePath(),
+                        device.getSerialNumber());
+                return;
+            }
+            FileInputStreamSource source = new FileInputStreamSource(file, true);
+            if (!save(resultName, spec.getType(), source)) {
+                source.cancel();
+            }
+        }
+    }
+
+    /**
+     * Stream a collected log to the {@link ILogSaver}, and queue it to be reported to the other
+     * {@link ILogSaverListener}s.
+     *
+     * @return true if the log was queued, the source is then released once reported.
+     */
+    private boolean save(String resultName, LogDataType type, InputStreamSource source) {
+        LogFile logFile = null;
+        InputStream stream = source.createInputStream();
+        if (stream == null) {
+            CLog.e("Failed to read collected %s", resultName);
+            return false;
+        }
+        try {
+            logFile = mLogSaver.saveLogData(resultName, type, stream);
+            CLog.d("Saved %s to %s", resultName, logFile.getPath());
+        } catch (IOException e) {
+            CLog.e("Failed to save %s", resultName);
+            CLog.e(e);
+            return false;
+        } finally {
+            StreamUtil.close(stream);
+        }
+        synchronized (mSavedLogs) {
+            mSavedLogs.add(new SavedLog(resultName, type, source, logFile));
+        }
+        return true;
+    }
+}
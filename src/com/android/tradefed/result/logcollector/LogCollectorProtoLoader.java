@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result.logcollector;
+
+import com.android.test.metrics.proto.FileMetadataProto.LogType;
+import com.android.test.metrics.proto.LogCollectorProto;
+import com.android.test.metrics.proto.LogCollectorProto.Collector;
+import com.android.test.metrics.proto.LogCollectorProto.FormattedFileName;
+import com.android.test.metrics.proto.LogCollectorProto.ShellCommand;
+import com.android.test.metrics.proto.LogCollectorProto.TestPattern;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.result.logcollector.LogCollectorSpec.FormatParam;
+import com.android.tradefed.result.logcollector.LogCollectorSpec.Trigger;
+import com.android.tradefed.util.StreamUtil;
+
+import com.google.protobuf.TextFormat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Converts the {@link Collector} protos of proto/collector.proto to {@link LogCollectorSpec}s. */
+public class LogCollectorProtoLoader {
+
+    private LogCollectorProtoLoader() {}
+
+    /**
+     * Load a {@link Collector} text proto file.
+     *
+     * @param file the text proto file
+     * @param deviceResultsDir the device directory that files relative to the results are resolved
+     *        against.
+     * @throws IOException if the file cannot be read or parsed
+     */
+    public static LogCollectorSpec load(File file, String deviceResultsDir) throws IOException {
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            Collector.Builder builder = Collector.newBuilder();
+            TextFormat.merge(reader, builder);
+            return convert(builder.build(), deviceResultsDir);
+        } finally {
+            StreamUtil.close(reader);
+        }
+    }
+
+    /**
+     * Convert a {@link Collector} proto.
+     *
+     * @param collector the proto to convert
+     * @param deviceResultsDir the device directory that files relative to the results are resolved
+     *        against.
+     */
+    public static LogCollectorSpec convert(Collector collector, String deviceResultsDir) {
+        LogCollectorSpec spec = new LogCollectorSpec(collector.getName());
+        spec.setType(getLogDataType(collector.getType()));
+        // Without test patterns, the collector never runs
+        if (collector.getTestsCount() > 0) {
+            for (LogCollectorProto.Trigger trigger : collector.getTriggersList()) {
+                if (trigger != LogCollectorProto.Trigger.NEVER) {
+                    spec.addTrigger(Trigger.valueOf(trigger.name()));
+                }
+            }
+        }
+        for (TestPattern pattern : collector.getTestsList()) {
+            for (String target : pattern.getBuildTargetList()) {
+                spec.addBuildTarget(target);
+            }
+            for (String prefix : pattern.getAtpTestPrefixList()) {
+                spec.addTestPrefix(prefix);
+            }
+        }
+        spec.setIntervalMs(collector.getIntervalMillis());
+
+        switch (collector.getSourceCase()) {
+            case COMMAND:
+                ShellCommand command = collector.getCommand();
+                StringBuilder commandLine = new StringBuilder(command.getExecutable());
+                for (String option : command.getOptionsList()) {
+                    commandLine.append(' ').append(option);
+                }
+                spec.setCommand(commandLine.toString());
+                break;
+            case FILE:
+                String path = collector.getFile().getPath();
+                if (collector.getFile().getRelativeToResults()) {
+                    path = new File(deviceResultsDir, path).getPath();
+                }
+                spec.setDevicePath(path);
+                break;
+            default:
+                break;
+        }
+
+        switch (collector.getResultCase()) {
+            case RESULT_FILE_NAME:
+                spec.setResultFormat(collector.getResultFileName().replace("%", "%%"),
+                        new ArrayList<FormatParam>());
+                break;
+            case RESULT_FILE_FORMATTED:
+                // The log saver owns the results directory, so relative_to_results is implied
+                FormattedFileName formatted = collector.getResultFileFormatted();
+                List<FormatParam> params = new ArrayList<>();
+                for (FormattedFileName.FormatParam param : formatted.getFormatParamsList()) {
+                    params.add(FormatParam.valueOf(param.name()));
+                }
+                spec.setResultFormat(formatted.getNameFormatString(), params);
+                break;
+            default:
+                break;
+        }
+        return spec;
+    }
+
+    private static LogDataType getLogDataType(LogType type) {
+        switch (type) {
+            case BUGREPORT:
+                return LogDataType.BUGREPORT;
+            case BUGREPORTZ:
+                return LogDataType.BUGREPORTZ;
+            case COMPACT_MEMINFO:
+                return LogDataType.COMPACT_MEMINFO;
+            case CPUINFO:
+                return LogDataType.CPU_INFO;
+            case DUMPSYS:
+                return LogDataType.DUMPSYS;
+            case GFXINFO:
+                return LogDataType.GFX_INFO;
+            case KERNEL:
+                return LogDataType.KERNEL_LOG;
+            case LOGCAT:
+                return LogDataType.LOGCAT;
+            case MEMINFO:
+                return LogDataType.MEM_INFO;
+            case PROCRANK:
+                return LogDataType.PROCRANK;
+            case SERVICES:
+                return LogDataType.SERVICES;
+            case TOP:
+                return LogDataType.TOP;
+            default: // All others
+                return LogDataType.TEXT;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result.logcollector;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.result.LogDataType;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The description of a log to collect from a device, and of when to collect it. This mirrors the
+ * {@code Collector} message of proto/collector.proto, see {@link LogCollectorProtoLoader}.
+ */
+public class LogCollectorSpec {
+
+    /** Conditions that can trigger a collection. */
+    public enum Trigger {
+        TEST_START,
+        TEST_FINISH,
+        FAILURE,
+        CRASH,
+        TOOL_FAILURE,
+        INTERVAL,
+    }
+
+    /** Values that can be used to format the result name. */
+    public enum FormatParam {
+        EMPTY,
+        TIMESTAMP_EPOCH_MILLIS,
+        TEST_NAME,
+        TEST_CLASS,
+    }
+
+    private final String mName;
+    private LogDataType mType = LogDataType.TEXT;
+    private final Set<Trigger> mTriggers = EnumSet.noneOf(Trigger.class);
+    private long mIntervalMs = 0;
+    private String mCommand = null;
+    private String mDevicePath = null;
+    private String mResultFormat = null;
+    private final List<FormatParam> mFormatParams = new ArrayList<>();
+    private final List<String> mBuildTargets = new ArrayList<>();
+    private final List<String> mTestPrefixes = new ArrayList<>();
+
+    /**
+     * Creates a {@link LogCollectorSpec}.
+     *
+     * @param name the name of the collector, also used as result name if none is set.
+     */
+    public LogCollectorSpec(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public LogDataType getType() {
+        return mType;
+    }
+
+    public LogCollectorSpec setType(LogDataType type) {
+        mType = type;
+        return this;
+    }
+
+    public Set<Trigger> getTriggers() {
+        return mTriggers;
+    }
+
+    public LogCollectorSpec addTrigger(Trigger trigger) {
+        mTriggers.add(trigger);
+        return this;
+    }
+
+    public boolean hasTrigger(Trigger trigger) {
+        return mTriggers.contains(trigger);
+    }
+
+    public long getIntervalMs() {
+        return mIntervalMs;
+    }
+
+    public LogCollectorSpec setIntervalMs(long intervalMs) {
+        mIntervalMs = intervalMs;
+        return this;
+    }
+
+    /** Returns the shell command whose output is collected, or {@code null}. */
+    public String getCommand() {
+        return mCommand;
+    }
+
+    public LogCollectorSpec setCommand(String command) {
+        mCommand = command;
+        mDevicePath = null;
+        return this;
+    }
+
+    /** Returns the path of the device file to collect, or {@code null}. */
+    public String getDevicePath() {
+        return mDevicePath;
+    }
+
+    public LogCollectorSpec setDevicePath(String devicePath) {
+        mDevicePath = devicePath;
+        mCommand = null;
+        return this;
+    }
+
+    /**
+     * Sets the format of the result name.
+     *
+     * @param format a java format string, where {@link FormatParam#TIMESTAMP_EPOCH_MILLIS} must
+     *        correspond to %d and the others to %s.
+     * @param params a {@link FormatParam} for each format field.
+     */
+    public LogCollectorSpec setResultFormat(String format, List<FormatParam> params) {
+        mResultFormat = format;
+        mFormatParams.clear();
+        mFormatParams.addAll(params);
+        return this;
+    }
+
+    /**
+     * Only run the collector for the given build targets, compared to the build flavor. By
+     * default the collector runs for all build targets.
+     */
+    public LogCollectorSpec addBuildTarget(String buildTarget) {
+        mBuildTargets.add(buildTarget);
+        return this;
+    }
+
+    /**
+     * Only run the collector for the invocations whose test tag has one of the given prefixes. By
+     * default the collector runs for all invocations.
+     */
+    public LogCollectorSpec addTestPrefix(String prefix) {
+        mTestPrefixes.add(prefix);
+        return this;
+    }
+
+    /**
+     * Returns whether the collector applies to an invocation.
+     *
+     * @param buildFlavor the build flavor of the device, or {@code null} if unknown.
+     * @param testTag the test tag of the invocation, or {@code null} if unknown.
+     */
+    public boolean appliesTo(String buildFlavor, String testTag) {
+        if (!mBuildTargets.isEmpty() && !mBuildTargets.contains(buildFlavor)) {
+            return false;
+        }
+        if (mTestPrefixes.isEmpty()) {
+            return true;
+        }
+        if (testTag != null) {
+            for (String prefix : mTestPrefixes) {
+                if (testTag.startsWith(prefix)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the name to save a collected log under.
+     *
+     * @param test the test that triggered the collection, or {@code null}.
+     * @param timestamp the time of the collection.
+     */
+    public String formatResultName(TestIdentifier test, long timestamp) {
+        if (mResultFormat == null) {
+            return mName;
+        }
+        Object[] args = new Object[mFormatParams.size()];
+        for (int i = 0; i < args.length; i++) {
+            switch (mFormatParams.get(i)) {
+                case TIMESTAMP_EPOCH_MILLIS:
+                    args[i] = timestamp;
+                    break;
+                case TEST_NAME:
+                    args[i] = test != null ? test.getTestName() : "";
+                    break;
+                case TEST_CLASS:
+                    args[i] = test != null ? test.getClassName() : "";
+                    break;
+                default:
+                    args[i] = "";
+            }
+        }
+        return String.format(mResultFormat, args);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return String.format("%s%s", mName, mTriggers);
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.targetprep;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Installs a set of apks on a device, overlapping the push of the next apk with the package
+ * manager install of the previous one.
+ * <p>
+ * Apks are pushed concurrently to a temporary location on the device by a bounded pool of
+ * threads, then installed in order with {@code pm install} as soon as their push completes. Split
+ * apks are installed together with the full apk of their package in a single package manager
+ * session. Packages whose installed apks have the same md5 as the local ones can be skipped.
+ * </p>
+ */
+public class ApkInstallPipeline {
+
+    private static final String INSTALL_FAILED_UPDATE_INCOMPATIBLE =
+            "INSTALL_FAILED_UPDATE_INCOMPATIBLE";
+    private static final String REMOTE_TMP_DIR = "/data/local/tmp/";
+    private static final String SUCCESS_OUTPUT = "Success";
+    private static final String PACKAGE_MARKER = "==tf-pkg:";
+    private static final Pattern SESSION_PATTERN = Pattern.compile(".*\\[(\\d+)\\].*");
+    private static final Pattern MD5_PATTERN = Pattern.compile("^([0-9a-fA-F]{32})\\s+\\S+$");
+    /** Min api level for session based install: pm install-create/install-write/commit */
+    private static final int SESSION_API_LEVEL = 21;
+    /** Min api level for runtime permissions, for which -g grants all of them. */
+    private static final int RUNTIME_PERMISSION_API_LEVEL = 23;
+
+    private final ITestDevice mDevice;
+    private final List<String> mInstallArgs;
+    private final int mPushThreads;
+    private boolean mSkipIfInstalled = false;
+
+    /**
+     * Creates a {@link ApkInstallPipeline}.
+     *
+     * @param device the {@link ITestDevice} to install on.
+     * @param installArgs the extra arguments to pass to the install command.
+     * @param pushThreads the maximum number of apks pushed concurrently.
+     */
+    public ApkInstallPipeline(ITestDevice device, List<String> installArgs, int pushThreads) {
+        mDevice = device;
+        mInstallArgs = new ArrayList<>(installArgs);
+        mPushThreads = Math.max(1, pushThreads);
+    }
+
+    /** Sets whether packages whose installed apks match the local apks should be skipped. */
+    public void setSkipIfInstalled(boolean skip) {
+        mSkipIfInstalled = skip;
+    }
+
+    /**
+     * Install the given apks on the device. Each apk is installed on its own.
+     *
+     * @param apks an ordered map of the local apk files to their package name.
+     * @return the set of package names that were installed or skipped as up to date.
+     * @throws TargetSetupError if one of the apk failed to install.
+     * @throws DeviceNotAvailableException
+     * @see #install(Map, Set)
+     */
+    public Set<String> install(Map<File, String> apks)
+            throws TargetSetupError, DeviceNotAvailableException {
+        return install(apks, Collections.<File>emptySet());
+    }
+
+    /**
+     * Install the given apks on the device.
+     * <p>
+     * Split apks are installed in the same session as the last full apk of their package. Splits
+     * without a full apk are installed together as an update of their package already on the
+     * device. Several full apks of the same package are installed one after the other.
+     * </p>
+     *
+     * @param apks an ordered map of the local apk files to their package name.
+     * @param splitApks the apks from <var>apks</var> which are split apks.
+     * @return the set of package names that were installed or skipped as up to date.
+     * @throws TargetSetupError if one of the apk failed to install.
+     * @throws DeviceNotAvailableException
+     */
+    public Set<String> install(Map<File, String> apks, Set<File> splitApks)
+            throws TargetSetupError, DeviceNotAvailableException {
+        List<InstallUnit> units = new ArrayList<>();
+        Map<String, InstallUnit> baseUnits = new HashMap<>();
+        for (Map.Entry<File, String> entry : apks.entrySet()) {
+            if (!splitApks.contains(entry.getKey())) {
+                InstallUnit unit = new InstallUnit(entry.getValue(), true);
+                unit.mApks.add(entry.getKey());
+                units.add(unit);
+                baseUnits.put(entry.getValue(), unit);
+            }
+        }
+        for (Map.Entry<File, String> entry : apks.entrySet()) {
+            if (splitApks.contains(entry.getKey())) {
+                InstallUnit unit = baseUnits.get(entry.getValue());
+                if (unit == null) {
+                    unit = new InstallUnit(entry.getValue(), false);
+                    units.add(unit);
+                    baseUnits.put(entry.getValue(), unit);
+                }
+                unit.mApks.add(entry.getKey());
+            }
+        }
+        Set<String> installed = new HashSet<>();
+        if (mSkipIfInstalled) {
+            // Only packages installed by a single unit can be compared with the device.
+            Map<String, List<File>> packages = new LinkedHashMap<>();
+            Set<String> repeated = new HashSet<>();
+            for (InstallUnit unit : units) {
+                if (packages.put(unit.mPackageName, unit.mApks) != null) {
+                    repeated.add(unit.mPackageName);
+                }
+            }
+            packages.keySet().removeAll(repeated);
+            Set<String> upToDate = packages.isEmpty()
+                    ? Collections.<String>emptySet() : getUpToDatePackages(packages);
+            Iterator<InstallUnit> it = units.iterator();
+            while (it.hasNext()) {
+                String packageName = it.next().mPackageName;
+                if (upToDate.contains(packageName)) {
+                    CLog.d("Package %s already installed with the same apks, skipping.",
+                            packageName);
+                    // still report it, so it is cleaned up like the installed ones
+                    installed.add(packageName);
+                    it.remove();
+                }
+            }
+        }
+        if (units.isEmpty()) {
+            return installed;
+        }
+
+        boolean useSession = mDevice.getApiLevel() >= SESSION_API_LEVEL;
+        List<String> args = new ArrayList<>(mInstallArgs);
+        if (mDevice.getApiLevel() >= RUNTIME_PERMISSION_API_LEVEL) {
+            args.add("-g");
+        }
+        ExecutorService pushPool = Executors.newFixedThreadPool(mPushThreads);
+        List<String> remoteFiles = new ArrayList<>();
+        try {
+            // Start all the pushes, the pool bounds how many are in flight.
+            List<List<Future<String>>> pushes = new ArrayList<>();
+            for (InstallUnit unit : units) {
+                List<Future<String>> futures = new ArrayList<>();
+                for (File apk : unit.mApks) {
+                    String remotePath =
+                            String.format("%stf-install-%d-%s", REMOTE_TMP_DIR,
+                                    remoteFiles.size(), apk.getName());
+                    remoteFiles.add(remotePath);
+                    futures.add(pushPool.submit(new PushCallable(apk, remotePath)));
+                }
+                pushes.add(futures);
+            }
+            // Install in order, while the remaining pushes are still running.
+            for (int i = 0; i < units.size(); i++) {
+                InstallUnit unit = units.get(i);
+                String packageName = unit.mPackageName;
+                List<String> remotePaths = new ArrayList<>();
+                for (Future<String> push : pushes.get(i)) {
+                    remotePaths.add(joinPush(push));
+                }
+                String result = installRemote(unit, remotePaths, args, useSession);
+                if (result != null && result.contains(INSTALL_FAILED_UPDATE_INCOMPATIBLE)
+                        && unit.mHasBase) {
+                    String msg = mDevice.uninstallPackage(packageName);
+                    if (msg != null) {
+                        CLog.w("error uninstalling package '%s': %s", packageName, msg);
+                    }
+                    result = installRemote(unit, remotePaths, args, useSession);
+                }
+                if (result != null) {
+                    throw new TargetSetupError(
+                            String.format("Failed to install %s on %s. Reason: '%s'",
+                                    packageName, mDevice.getSerialNumber(), result),
+                            mDevice.getDeviceDescriptor());
+                }
+                installed.add(packageName);
+            }
+        } finally {
+            pushPool.shutdownNow();
+            if (!remoteFiles.isEmpty()) {
+                StringBuilder rm = new StringBuilder("rm -f");
+                for (String remote : remoteFiles) {
+                    rm.append(' ').append(remote);
+                }
+                mDevice.executeShellCommand(rm.toString());
+            }
+        }
+        return installed;
+    }
+
+    /**
+     * Returns the packages for which the apks installed on the device have the same md5 as the
+     * local apks. All packages are queried with a single shell command.
+     */
+    @VisibleForTesting
+    Set<String> getUpToDatePackages(Map<String, List<File>> packages)
+            throws DeviceNotAvailableException {
+        StringBuilder cmd = new StringBuilder();
+        for (String packageName : packages.keySet()) {
+            cmd.append(String.format("for p in $(pm path %s); do md5sum ${p#package:}; done; "
+                    + "echo %s%s; ", packageName, PACKAGE_MARKER, packageName));
+        }
+        String output = mDevice.executeShellCommand(cmd.toString());
+        Map<String, Set<String>> deviceHashes = parseDeviceHashes(output);
+        Set<String> upToDate = new HashSet<>();
+        for (Map.Entry<String, List<File>> entry : packages.entrySet()) {
+            Set<String> installedHashes = deviceHashes.get(entry.getKey());
+            if (installedHashes == null || installedHashes.isEmpty()) {
+                continue;
+            }
+            Set<String> localHashes = new HashSet<>();
+            try {
+                for (File apk : entry.getValue()) {
+                    localHashes.add(FileUtil.calculateMd5(apk).toLowerCase());
+                }
+            } catch (IOException e) {
+                CLog.e(e);
+                continue;
+            }
+            if (localHashes.equals(installedHashes)) {
+                upToDate.add(entry.getKey());
+            }
+        }
+        return upToDate;
+    }
+
+    /** Parse the output of the batched md5 command into a map of package to apk hashes. */
+    @VisibleForTesting
+    static Map<String, Set<String>> parseDeviceHashes(String output) {
+        Map<String, Set<String>> hashes = new HashMap<>();
+        if (output == null) {
+            return hashes;
+        }
+        Set<String> current = new HashSet<>();
+        for (String line : output.split("\r?\n")) {
+            line = line.trim();
+            if (line.startsWith(PACKAGE_MARKER)) {
+                hashes.put(line.substring(PACKAGE_MARKER.length()), current);
+                current = new HashSet<>();
+                continue;
+            }
+            Matcher m = MD5_PATTERN.matcher(line);
+            if (m.matches()) {
+                current.add(m.group(1).toLowerCase());
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Install apks already present on the device.
+     *
+     * @return null if successful, the error output otherwise.
+     */
+    private String installRemote(InstallUnit unit, List<String> remotePaths, List<String> args,
+            boolean useSession) throws DeviceNotAvailableException {
+        String joinedArgs = String.join(" ", args);
+        if (!useSession || (remotePaths.size() == 1 && unit.mHasBase)) {
+            for (String remotePath : remotePaths) {
+                String output = mDevice.executeShellCommand(
+                        String.format("pm install -r %s %s", joinedArgs, remotePath));
+                if (!isSuccess(output)) {
+                    return trim(output);
+                }
+            }
+            return null;
+        }
+        String createArgs = unit.mHasBase
+                ? joinedArgs : String.format("%s -p %s", joinedArgs, unit.mPackageName);
+        String output = trim(mDevice.executeShellCommand(
+                String.format("pm install-create -r %s", createArgs)));
+        Matcher m = SESSION_PATTERN.matcher(output);
+        if (!isSuccess(output) || !m.matches()) {
+            return output;
+        }
+        String sessionId = m.group(1);
+        StringBuilder writes = new StringBuilder();
+        for (int i = 0; i < remotePaths.size(); i++) {
+            String remotePath = remotePaths.get(i);
+            writes.append(String.format("pm install-write %s %d_split.apk %s && ",
+                    sessionId, i, remotePath));
+        }
+        writes.append(String.format("pm install-commit %s", sessionId));
+        output = trim(mDevice.executeShellCommand(writes.toString()));
+        if (!output.endsWith(SUCCESS_OUTPUT)) {
+            mDevice.executeShellCommand(String.format("pm install-abandon %s", sessionId));
+            return output;
+        }
+        return null;
+    }
+
+    /** Trims a shell output, a missing output is returned as an empty string. */
+    private static String trim(String output) {
+        return output == null ? "" : output.trim();
+    }
+
+    private static boolean isSuccess(String output) {
+        return output != null && output.trim().startsWith(SUCCESS_OUTPUT);
+    }
+
+    private String joinPush(Future<String> push)
+            throws TargetSetupError, DeviceNotAvailableException {
+        try {
+            return push.get();
+        } catch (InterruptedException e) {
+            throw new TargetSetupError("Interrupted while pushing apk", e,
+                    mDevice.getDeviceDescriptor());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException) cause;
+            }
+            if (cause instanceof TargetSetupError) {
+                throw (TargetSetupError) cause;
+            }
+            throw new TargetSetupError("Failed to push apk", cause,
+                    mDevice.getDeviceDescriptor());
+        }
+    }
+
+    /** The apks installed together by one install command or session. */
+    private static class InstallUnit {
+        final String mPackageName;
+        /** Whether the unit holds a full apk, or only splits of an installed package. */
+        final boolean mHasBase;
+        final List<File> mApks = new ArrayList<>();
+
+        InstallUnit(String packageName, boolean hasBase) {
+            mPackageName = packageName;
+            mHasBase = hasBase;
+        }
+    }
+
+    /** Pushes one apk to the device, returns its remote path. */
+    private class PushCallable implements Callable<String> {
+        private final File mApk;
+        private final String mRemotePath;
+
+        PushCallable(File apk, String remotePath) {
+            mApk = apk;
+            mRemotePath = remotePath;
+        }
+
+        @Override
+        public String call() throws Exception {
+            if (!mDevice.pushFile(mApk, mRemotePath)) {
+                throw new TargetSetupError(
+                        String.format("Failed to push %s to %s", mApk.getName(), mRemotePath),
+                        mDevice.getDeviceDescriptor());
+            }
+            return mRemotePath;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.targetprep;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.MultiMap;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Helper for {@link DeviceSetup} that reads the current device settings and properties in bulk,
+ * computes the changes needed to reach the desired state and applies them in batched shell
+ * commands instead of one adb round-trip per setting.
+ * <p>
+ * Also records the time spent in each phase of the setup.
+ * </p>
+ */
+public class BatchedDeviceSetupHelper {
+
+    /** Max length of one batched shell command, to stay under old adb shell limits. */
+    @VisibleForTesting
+    static final int MAX_BATCH_LENGTH = 1000;
+    private static final String NAMESPACE_MARKER = "==tf-settings:";
+    private static final String EXIT_MARKER = "==tf-exit:";
+    private static final Pattern EXIT_PATTERN =
+            Pattern.compile("^" + EXIT_MARKER + "(\\d+):(\\d+)$");
+    private static final Pattern PROP_PATTERN = Pattern.compile("^\\[(.*)\\]: \\[(.*)\\]$");
+
+    private final ITestDevice mDevice;
+    private Map<String, Map<String, String>> mSettings = null;
+    private Map<String, String> mProperties = null;
+    private Map<String, Long> mPhaseTimes = new LinkedHashMap<>();
+    private long mLastMark;
+
+    /**
+     * Creates a {@link BatchedDeviceSetupHelper}.
+     *
+     * @param device the {@link ITestDevice} being set up.
+     */
+    public BatchedDeviceSetupHelper(ITestDevice device) {
+        mDevice = device;
+        mLastMark = System.currentTimeMillis();
+    }
+
+    /**
+     * Records the time elapsed since the previous mark under the given phase name.
+     *
+     * @param phase the name of the phase that just completed.
+     */
+    public void markPhase(String phase) {
+        long now = System.currentTimeMillis();
+        mPhaseTimes.put(phase, now - mLastMark);
+        mLastMark = now;
+    }
+
+    /** Returns the time in ms spent in each phase, in the order they were recorded. */
+    public Map<String, Long> getPhaseTimes() {
+        return mPhaseTimes;
+    }
+
+    /** Logs the time spent in each phase. */
+    public void logPhaseTimes() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> phase : mPhaseTimes.entrySet()) {
+            sb.append(String.format("%s: %d ms\n", phase.getKey(), phase.getValue()));
+        }
+        CLog.d("Device setup timing on %s:\n%s", mDevice.getSerialNumber(), sb.toString());
+    }
+
+    /**
+     * Returns the current value of the settings in the given namespace. All namespaces are read
+     * with a single shell command the first time this is called.
+     */
+    public Map<String, String> getSettings(String namespace) throws DeviceNotAvailableException {
+        if (mSettings == null) {
+            StringBuilder cmd = new StringBuilder();
+            for (String ns : new String[] {"system", "secure", "global"}) {
+                cmd.append(String.format("echo %s%s; settings list %s; ",
+                        NAMESPACE_MARKER, ns, ns));
+            }
+            mSettings = parseSettings(mDevice.executeShellCommand(cmd.toString()));
+        }
+        Map<String, String> settings = mSettings.get(namespace);
+        return settings != null ? settings : new HashMap<String, String>();
+    }
+
+    /** Returns all the current properties of the device, read with a single getprop. */
+    public Map<String, String> getProperties() throws DeviceNotAvailableException {
+        if (mProperties == null) {
+            mProperties = parseProperties(mDevice.executeShellCommand("getprop"));
+        }
+        return mProperties;
+    }
+
+    /**
+     * Returns the {@code settings put} commands needed to apply the desired settings. Settings
+     * that already have their final desired value on the device are skipped.
+     *
+     * @param namespace the settings namespace: system, secure or global.
+     * @param desired the desired settings. If a key has several values, the last one wins.
+     */
+    public List<String> getSettingCommands(String namespace, MultiMap<String, String> desired)
+            throws DeviceNotAvailableException {
+        List<String> commands = new ArrayList<>();
+        if (desired.isEmpty()) {
+            return commands;
+        }
+        Map<String, String> current = getSettings(namespace);
+        for (String key : desired.keySet()) {
+            List<String> values = desired.get(key);
+            String value = values.get(values.size() - 1).trim();
+            if (value.equals(current.get(key.trim()))) {
+                CLog.d("%s setting %s already set to %s", namespace, key, value);
+                continue;
+            }
+            commands.add(String.format("settings put %s %s %s", namespace, key.trim(), value));
+        }
+        return commands;
+    }
+
+    /**
+     * Returns the subset of the desired properties whose value differs from the device.
+     */
+    public Map<String, String> getChangedProperties(Map<String, String> desired)
+            throws DeviceNotAvailableException {
+        Map<String, String> changed = new LinkedHashMap<>();
+        if (desired.isEmpty()) {
+            return changed;
+        }
+        Map<String, String> current = getProperties();
+        for (Map.Entry<String, String> prop : desired.entrySet()) {
+            if (!prop.getValue().equals(current.get(prop.getKey()))) {
+                changed.put(prop.getKey(), prop.getValue());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Runs the given commands, joined in as few shell invocations as possible. Each command runs
+     * in its own shell, so that it cannot affect the others, and its exit code is checked.
+     *
+     * @param commands the shell commands to run in order.
+     */
+    public void runBatched(List<String> commands) throws DeviceNotAvailableException {
+        int start = 0;
+        for (String batch : createBatches(commands)) {
+            String output = mDevice.executeShellCommand(batch);
+            start = checkBatchOutput(commands, start, output);
+        }
+    }
+
+    /**
+     * Logs the output and the failures of the commands of one batch.
+     *
+     * @param commands all the commands being run.
+     * @param start the index in <var>commands</var> of the first command of the batch.
+     * @param output the output of the batch.
+     * @return the index of the first command of the next batch.
+     */
+    private int checkBatchOutput(List<String> commands, int start, String output) {
+        int next = start;
+        StringBuilder commandOutput = new StringBuilder();
+        if (output != null) {
+            for (String line : output.split("\r?\n")) {
+                Matcher m = EXIT_PATTERN.matcher(line.trim());
+                if (!m.matches()) {
+                    commandOutput.append(line).append('\n');
+                    continue;
+                }
+                int index = Integer.parseInt(m.group(1));
+                if (index >= commands.size()) {
+                    continue;
+                }
+                String command = commands.get(index);
+                if (commandOutput.toString().trim().length() > 0) {
+                    CLog.d("Output of '%s': %s", command, commandOutput.toString().trim());
+                }
+                if (!"0".equals(m.group(2))) {
+                    CLog.w("Command '%s' failed on %s with exit code %s", command,
+                            mDevice.getSerialNumber(), m.group(2));
+                }
+                commandOutput = new StringBuilder();
+                next = index + 1;
+            }
+        }
+        if (commandOutput.toString().trim().length() > 0) {
+            CLog.d("Output of batched commands: %s", commandOutput.toString().trim());
+        }
+        return next;
+    }
+
+    /**
+     * Joins the commands into shell scripts no longer than {@link #MAX_BATCH_LENGTH}. Each
+     * command is run with {@code sh -c}, followed by a marker holding its index in
+     * <var>commands</var> and its exit code.
+     */
+    @VisibleForTesting
+    static List<String> createBatches(List<String> commands) {
+        List<String> batches = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        for (int i = 0; i < commands.size(); i++) {
+            String command = wrapCommand(commands.get(i), i);
+            if (current.length() > 0
+                    && current.length() + command.length() + 2 > MAX_BATCH_LENGTH) {
+                batches.add(current.toString());
+                current = new StringBuilder();
+            }
+            if (current.length() > 0) {
+                current.append("; ");
+            }
+            current.append(command);
+        }
+        if (current.length() > 0) {
+            batches.add(current.toString());
+        }
+        return batches;
+    }
+
+    /** Wraps a command in its own shell, followed by its exit marker. */
+    @VisibleForTesting
+    static String wrapCommand(String command, int index) {
+        return String.format("sh -c '%s'; echo %s%d:$?", command.replace("'", "'\\''"),
+                EXIT_MARKER, index);
+    }
+
+    /** Parse the output of the batched settings list command. */
+    @VisibleForTesting
+    static Map<String, Map<String, String>> parseSettings(String output) {
+        Map<String, Map<String, String>> settings = new HashMap<>();
+        if (output == null) {
+            return settings;
+        }
+        Map<String, String> current = null;
+        for (String line : output.split("\r?\n")) {
+            if (line.startsWith(NAMESPACE_MARKER)) {
+                current = new HashMap<>();
+                settings.put(line.substring(NAMESPACE_MARKER.length()).trim(), current);
+                continue;
+            }
+            int index = line.indexOf('=');
+            if (current != null && index > 0) {
+                current.put(line.substring(0, index), line.substring(index + 1).trim());
+            }
+        }
+        return settings;
+    }
+
+    /** Parse the output of getprop. */
+    @VisibleForTesting
+    static Map<String, String> parseProperties(String output) {
+        Map<String, String> props = new HashMap<>();
+        if (output == null) {
+            return props;
+        }
+        for (String line : output.split("\r?\n")) {
+            Matcher m = PROP_PATTERN.matcher(line.trim());
+            if (m.matches()) {
+                props.put(m.group(1), m.group(2));
+            }
+        }
+        return props;
+    }
+}
@@ -18,8 +18,12 @@ package com.android.tradefed.targetprep;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.device.CollectingOutputReceiver;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.timeseries.DeviceConditionMonitor;
+import com.android.tradefed.device.timeseries.DeviceConditionMonitor.ICondition;
+import com.android.tradefed.device.timeseries.ITimeSeriesSampler;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.RunUtil;
 
@@ -28,15 +32,22 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An {@link ITargetPreparer} that waits until max frequency on all cores are restored to highest
  * level available
- *
+ * <p/>
+ * The core frequencies are sampled by the host wide {@link DeviceConditionMonitor}, and the wait
+ * ends as soon as no core is throttled, then once no core was throttled during a time window.
  */
 @OptionClass(alias = "cpu-throttle-waiter")
 public class CpuThrottlingWaiter implements ITargetPreparer {
 
+    /** the max time to read the core frequencies, from the shared threads of the monitor */
+    private static final long SHELL_TIMEOUT_MS = 5 * 1000;
+
     @Option(name = "poll-interval",
             description = "Interval in seconds, to poll for core frequencies; defaults to 5s")
     private long mPollIntervalSecs = 5;
@@ -45,10 +56,15 @@ public class CpuThrottlingWaiter implements ITargetPreparer {
             + " free of throttling; defaults to 240s")
     private long mMaxWaitSecs = 240;
 
-    @Option(name = "post-idle-wait", description = "Additional time to wait in seconds, after cores"
-            + " are no longer subject to throttling; defaults to 120s")
+    @Option(name = "post-idle-wait", description = "Max additional time to wait in seconds, after "
+            + "cores are no longer subject to throttling, for them to stay so; defaults to 120s")
     private long mPostIdleWaitSecs = 120;
 
+    @Option(name = "stable-window", description = "Time in seconds, cores should stay free of "
+            + "throttling for the post idle wait to end. Set to a negative value to always wait "
+            + "the whole post-idle-wait; defaults to 30s")
+    private long mStableWindowSecs = 30;
+
     @Option(name = "abort-on-timeout", description = "If test should be aborted if cores are still"
             + " subject to throttling after timeout has reached; defaults to false")
     private boolean mAbortOnTimeout = false;
@@ -71,39 +87,120 @@ public class CpuThrottlingWaiter implements ITargetPreparer {
         long start = System.currentTimeMillis();
         long maxWaitMs = mMaxWaitSecs * 1000;
         long intervalMs = mPollIntervalSecs * 1000;
-        while (true) {
-            boolean ready = true;
-            for (Entry<String, String> e : cpuMaxFreqs.entrySet()) {
+        Future<Void> unthrottled = getConditionMonitor().subscribe(device,
+                new ThrottlingSampler(cpuMaxFreqs), intervalMs, new ICondition() {
+                    @Override
+                    public boolean isMet(long timestamp, double[] values) {
+                        return values[0] == 0;
+                    }
+                });
+        if (!DeviceConditionMonitor.await(unthrottled, maxWaitMs)) {
+            CLog.w("cores still throttled after %ds", maxWaitMs);
+            String result = device.executeShellCommand(
+                    "cat /sys/devices/system/cpu/*/cpufreq/cpuinfo_max_freq");
+            CLog.w("Current CPU frequencies:\n%s", result);
+            if (mAbortOnTimeout) {
+                throw new TargetSetupError("cores are still throttled after wait timeout",
+                        device.getDeviceDescriptor());
+            }
+        }
+        // extra idle time so that in case of thermal related throttling, allow heat to dissipate
+        if (mStableWindowSecs < 0) {
+            RunUtil.getDefault().sleep(mPostIdleWaitSecs * 1000);
+        } else if (mPostIdleWaitSecs > 0) {
+            Future<Void> stable = getConditionMonitor().subscribe(device,
+                    new ThrottlingSampler(cpuMaxFreqs), intervalMs,
+                    new StableCondition(mStableWindowSecs * 1000));
+            DeviceConditionMonitor.await(stable, mPostIdleWaitSecs * 1000);
+        }
+        CLog.i("Done waiting, total time elapsed: %ds",
+                (System.currentTimeMillis() - start) / 1000);
+    }
+
+    /**
+     * Get the {@link DeviceConditionMonitor} sampling the core frequencies.
+     * <p/>
+     * Exposed for testing.
+     */
+    protected DeviceConditionMonitor getConditionMonitor() {
+        return DeviceConditionMonitor.getDefault();
+    }
+
+    /**
+     * Met once no core was throttled during a whole window, i.e. since the last sample with
+     * throttled cores, or since the first sample.
+     */
+    static class StableCondition implements ICondition {
+        private final long mWindowMs;
+        private long mLastThrottled = -1;
+
+        StableCondition(long windowMs) {
+            mWindowMs = windowMs;
+        }
+
+        @Override
+        public boolean isMet(long timestamp, double[] values) {
+            if (mLastThrottled < 0 || values[0] > 0) {
+                mLastThrottled = timestamp;
+            }
+            return timestamp - mLastThrottled >= mWindowMs;
+        }
+    }
+
+    /**
+     * Samples the number of throttled cores, reading the max frequency of all the cores with a
+     * single command.
+     */
+    static class ThrottlingSampler implements ITimeSeriesSampler {
+        private final Map<String, String> mCpuMaxFreqs;
+        private final String mCommand;
+
+        ThrottlingSampler(Map<String, String> cpuMaxFreqs) {
+            mCpuMaxFreqs = cpuMaxFreqs;
+            StringBuilder command = new StringBuilder("for c in");
+            for (String cpu : cpuMaxFreqs.keySet()) {
+                command.append(' ').append(cpu);
+            }
+            command.append("; do echo \"$c $(cat $c/cpuinfo_max_freq)\"; done");
+            mCommand = command.toString();
+        }
+
+        @Override
+        public String getName() {
+            return "cpu-throttling";
+        }
+
+        @Override
+        public String[] getColumns() {
+            return new String[] {"throttled-cpus"};
+        }
+
+        @Override
+        public boolean sample(ITestDevice device, double[] values)
+                throws DeviceNotAvailableException {
+            CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+            device.executeShellCommand(mCommand, receiver, SHELL_TIMEOUT_MS,
+                    TimeUnit.MILLISECONDS, 0 /* don't retry */);
+            Map<String, String> freqs = new HashMap<>();
+            for (String line : receiver.getOutput().split("\r?\n")) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length == 2) {
+                    freqs.put(fields[0], fields[1]);
+                }
+            }
+            int throttled = 0;
+            for (Entry<String, String> e : mCpuMaxFreqs.entrySet()) {
                 // check current frequency of each CPU
-                String freq = device.executeShellCommand(
-                        String.format("cat %s/cpuinfo_max_freq", e.getKey())).trim();
+                String freq = freqs.get(e.getKey());
                 if (!e.getValue().equals(freq)) {
                     // not ready
                     CLog.d("CPU %s not ready: %s/%s", e.getKey(), freq, e.getValue());
-                    ready = false;
-                    break; // for loop
-                }
-            }
-            if (ready) {
-                break; // while loop
-            }
-            if ((System.currentTimeMillis() - start) > maxWaitMs) {
-                CLog.w("cores still throttled after %ds", maxWaitMs);
-                String result = device.executeShellCommand(
-                        "cat /sys/devices/system/cpu/*/cpufreq/cpuinfo_max_freq");
-                CLog.w("Current CPU frequencies:\n%s", result);
-                if (mAbortOnTimeout) {
-                    throw new TargetSetupError("cores are still throttled after wait timeout",
-                            device.getDeviceDescriptor());
+                    throttled++;
                 }
-                break; // while loop
             }
-            RunUtil.getDefault().sleep(intervalMs);
+            values[0] = throttled;
+            return true;
         }
-        // extra idle time so that in case of thermal related throttling, allow heat to dissipate
-        RunUtil.getDefault().sleep(mPostIdleWaitSecs * 1000);
-        CLog.i("Done waiting, total time elapsed: %ds",
-                (System.currentTimeMillis() - start) / 1000);
     }
 
     /**
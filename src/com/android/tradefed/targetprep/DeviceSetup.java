@@ -278,6 +278,12 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
             "will be ignored.")
     protected boolean mForceSkipRunCommands = false;
 
+    @Option(name = "batch-setup",
+            description = "Read the current settings and properties in bulk, only apply the " +
+            "ones that differ from the desired values, and batch settings and commands in as " +
+            "few shell invocations as possible.")
+    protected boolean mBatchSetup = false;
+
     @Option(name = "set-test-harness",
             description = "Set the read-only test harness flag on boot")
     protected boolean mSetTestHarness = true;
@@ -368,6 +374,8 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
 
     private static final String PERSIST_PREFIX = "persist.";
 
+    private BatchedDeviceSetupHelper mSetupHelper = null;
+
     /**
      * {@inheritDoc}
      */
@@ -379,34 +387,57 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
         }
 
         CLog.i("Performing setup on %s", device.getSerialNumber());
+        mSetupHelper = new BatchedDeviceSetupHelper(device);
 
         if (device.getOptions().isEnableAdbRoot() && !device.enableAdbRoot()) {
             throw new TargetSetupError(String.format("Failed to enable adb root on %s",
                     device.getSerialNumber()), device.getDeviceDescriptor());
         }
+        mSetupHelper.markPhase("adb-root");
 
         // Convert deprecated options into current options
         processDeprecatedOptions(device);
         // Convert options into settings and run commands
         processOptions(device);
+        mSetupHelper.markPhase("process-options");
         // Change system props (will reboot device)
         changeSystemProps(device);
+        mSetupHelper.markPhase("system-props");
         // Handle screen always on setting
         handleScreenAlwaysOnSetting(device);
+        mSetupHelper.markPhase("screen-always-on");
         // Run commands designated to be run before changing settings
         runCommands(device, mRunCommandBeforeSettings);
+        mSetupHelper.markPhase("run-commands-before-settings");
         // Change settings
         changeSettings(device);
+        mSetupHelper.markPhase("settings");
         // Connect wifi after settings since this may take a while
         connectWifi(device);
+        mSetupHelper.markPhase("connect-wifi");
         // Sync data after settings since this may take a while
         syncTestData(device);
+        mSetupHelper.markPhase("sync-test-data");
         // Run commands designated to be run after changing settings
         runCommands(device, mRunCommandAfterSettings);
+        mSetupHelper.markPhase("run-commands");
         // Throw an error if there is not enough storage space
         checkExternalStoreSpace(device);
+        mSetupHelper.markPhase("check-external-storage");
 
         device.clearErrorDialogs();
+        mSetupHelper.logPhaseTimes();
+    }
+
+    /**
+     * Returns the {@link BatchedDeviceSetupHelper} of the current setup, creating it if the
+     * setup steps are called individually.
+     */
+    private BatchedDeviceSetupHelper getSetupHelper(ITestDevice device) {
+        if (mSetupHelper == null) {
+            mSetupHelper = new BatchedDeviceSetupHelper(device);
+        }
+        return mSetupHelper;
     }
 
     /**
@@ -627,20 +658,39 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
             return;
         }
 
-        StringBuilder sb = new StringBuilder();
-        for (Map.Entry<String, String> prop : mSetProps.entrySet()) {
+        Map<String, String> props = mSetProps;
+        if (mBatchSetup) {
+            // Only the properties that differ from the device need to be applied
+            props = getSetupHelper(device).getChangedProperties(mSetProps);
+        }
+        List<String> setPropCommands = new ArrayList<>();
+        boolean needsLocalProp = false;
+        for (Map.Entry<String, String> prop : props.entrySet()) {
             if (prop.getKey().startsWith(PERSIST_PREFIX)) {
-                String command = String.format("setprop \"%s\" \"%s\"",
-                        prop.getKey(), prop.getValue());
-                device.executeShellCommand(command);
+                setPropCommands.add(String.format("setprop \"%s\" \"%s\"",
+                        prop.getKey(), prop.getValue()));
             } else {
-                sb.append(String.format("%s=%s\n", prop.getKey(), prop.getValue()));
+                needsLocalProp = true;
+            }
+        }
+        if (mBatchSetup) {
+            getSetupHelper(device).runBatched(setPropCommands);
+        } else {
+            for (String command : setPropCommands) {
+                device.executeShellCommand(command);
             }
         }
 
-        if (sb.length() == 0) {
+        if (!needsLocalProp) {
             return;
         }
+        // /data/local.prop is overwritten, so it must contain all the non-persist properties
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> prop : mSetProps.entrySet()) {
+            if (!prop.getKey().startsWith(PERSIST_PREFIX)) {
+                sb.append(String.format("%s=%s\n", prop.getKey(), prop.getValue()));
+            }
+        }
 
         boolean result = device.pushString(sb.toString(), "/data/local.prop");
         if (!result) {
@@ -710,6 +760,11 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
                     "must be API 22+", device.getSerialNumber()), device.getDeviceDescriptor());
         }
 
+        if (mBatchSetup) {
+            changeSettingsBatched(device);
+            return;
+        }
+
         // Special case airplane mode since it needs to be set before other connectivity settings
         // For example, it is possible to enable airplane mode and then turn wifi on
         String command = "am broadcast -a android.intent.action.AIRPLANE_MODE --ez state %s";
@@ -754,6 +809,35 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
         }
     }
 
+    /**
+     * Change only the settings that differ from the device, in batched shell commands.
+     *
+     * @param device The {@link ITestDevice}
+     * @throws DeviceNotAvailableException if the device is not available
+     */
+    private void changeSettingsBatched(ITestDevice device) throws DeviceNotAvailableException {
+        BatchedDeviceSetupHelper helper = getSetupHelper(device);
+        List<String> commands = new ArrayList<>();
+        // Airplane mode still goes first, see changeSettings
+        if (!BinaryState.IGNORE.equals(mAirplaneMode)) {
+            boolean on = BinaryState.ON.equals(mAirplaneMode);
+            MultiMap<String, String> airplaneMode = new MultiMap<>();
+            airplaneMode.put("airplane_mode_on", on ? "1" : "0");
+            List<String> airplaneCommands = helper.getSettingCommands("global", airplaneMode);
+            commands.addAll(airplaneCommands);
+            if (!airplaneCommands.isEmpty() && !mForceSkipRunCommands) {
+                commands.add(String.format(
+                        "am broadcast -a android.intent.action.AIRPLANE_MODE --ez state %s",
+                        on ? "true" : "false"));
+            }
+        }
+        commands.addAll(helper.getSettingCommands("system", mSystemSettings));
+        commands.addAll(helper.getSettingCommands("secure", mSecureSettings));
+        commands.addAll(helper.getSettingCommands("global", mGlobalSettings));
+        CLog.d("Changing %d settings on %s", commands.size(), device.getSerialNumber());
+        helper.runBatched(commands);
+    }
+
     /**
      * Execute additional commands on the device.
      *
@@ -769,6 +853,10 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
             return;
         }
 
+        if (mBatchSetup) {
+            getSetupHelper(device).runBatched(commands);
+            return;
+        }
         for (String command : commands) {
             device.executeShellCommand(command);
         }
@@ -1165,6 +1253,13 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
         mMinExternalStorageKb = storageKb;
     }
 
+    /**
+     * Exposed for unit testing
+     */
+    protected void setBatchSetup(boolean batchSetup) {
+        mBatchSetup = batchSetup;
+    }
+
     /**
      * Exposed for unit testing
      */
@@ -23,12 +23,13 @@ import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.AaptParser;
+import com.android.tradefed.util.ArchiveExtractor;
 import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.ZipExtractionCache;
 import com.android.tradefed.util.ZipUtil2;
 
-import org.apache.commons.compress.archivers.zip.ZipFile;
-
 import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -70,6 +71,14 @@ public class InstallAllTestZipAppsSetup implements ITargetCleaner {
     @Option(name = "disable", description = "Disable this target preparer.")
     private boolean mDisable;
 
+    @Option(
+        name = "use-zip-extraction-cache",
+        description =
+                "Install the apks from a host-wide cache of extracted zips, instead of "
+                        + "extracting the test zip to a temporary directory."
+    )
+    private boolean mUseZipExtractionCache = false;
+
     List<String> mPackagesInstalled = new ArrayList<>();
 
     public void setTestZipName(String testZipName) {
@@ -104,7 +113,11 @@ public class InstallAllTestZipAppsSetup implements ITargetCleaner {
         }
         File testsDir;
         try {
-            testsDir = extractZip(testsZip);
+            if (mUseZipExtractionCache) {
+                testsDir = extractZipFromCache(testsZip);
+            } else {
+                testsDir = extractZip(testsZip);
+            }
         } catch (IOException e) {
             throw new TargetSetupError(
                     "Failed to extract test zip.", e, device.getDeviceDescriptor());
@@ -156,6 +169,27 @@ public class InstallAllTestZipAppsSetup implements ITargetCleaner {
         }
     }
 
+    /**
+     * Link the apks of the given zip file from the {@link ZipExtractionCache} into a local dir.
+     */
+    private File extractZipFromCache(File testsZip) throws IOException {
+        File testsDir = null;
+        try {
+            testsDir = FileUtil.createTempDir("tests-zip_");
+            // Only the apks are needed
+            ZipExtractionCache.getDefault().extractTo(testsZip, testsDir, new FileFilter() {
+                @Override
+                public boolean accept(File file) {
+                    return file.getName().toLowerCase().endsWith(".apk");
+                }
+            });
+        } catch (IOException e) {
+            FileUtil.recursiveDelete(testsDir);
+            throw e;
+        }
+        return testsDir;
+    }
+
     /**
      * Extract the given zip file to a local dir.
      *
@@ -167,9 +201,15 @@ public class InstallAllTestZipAppsSetup implements ITargetCleaner {
      */
     File extractZip(File testsZip) throws IOException {
         File testsDir = null;
-        try (ZipFile zip = new ZipFile(testsZip)) {
+        try {
             testsDir = FileUtil.createTempDir("tests-zip_");
-            ZipUtil2.extractZip(zip, testsDir);
+            // Only the apks are needed
+            ZipUtil2.extractZip(testsZip, testsDir, new ArchiveExtractor.IEntryFilter() {
+                @Override
+                public boolean accept(String entryName) {
+                    return entryName.toLowerCase().endsWith(".apk");
+                }
+            }, Runtime.getRuntime().availableProcessors());
         } catch (IOException e) {
             FileUtil.recursiveDelete(testsDir);
             throw e;
@@ -68,6 +68,6 @@ public class LocalSdkAvdPreparer extends SdkAvdPreparer {
             throw new TargetSetupError("Please set the path of the sdk using --local-sdk-path.",
                     device.getDeviceDescriptor());
         }
-        launchEmulatorForAvd(mSdkBuildInfo, device, createAvd(mSdkBuildInfo));
+        prepareEmulator(mSdkBuildInfo, device, buildInfo);
     }
 }
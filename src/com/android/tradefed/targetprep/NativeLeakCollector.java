@@ -15,27 +15,48 @@
  */
 package com.android.tradefed.targetprep;
 
+import com.android.ddmlib.IShellOutputReceiver;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
-import com.android.tradefed.device.CollectingOutputReceiver;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.ITestLogger;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.FileInputStreamSource;
 import com.android.tradefed.result.ITestLoggerReceiver;
+import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.StreamUtil;
 
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A {@link ITargetCleaner} that runs 'dumpsys meminfo --unreachable -a' to identify the unreachable
  * native memory currently held by each process.
  * <p>
+ * The dump is spooled to a file as it is received, and the unreachable bytes of each process are
+ * parsed on the fly, so a summary of the processes holding the most unreachable memory is logged
+ * along with the full dump.
+ * <p>
  * Note: this preparer requires N platform or newer.
  */
 @OptionClass(alias = "native-leak-collector")
@@ -43,6 +64,12 @@ public class NativeLeakCollector implements ITestLoggerReceiver, ITargetCleaner
     private static final String UNREACHABLE_MEMINFO_CMD = "dumpsys -t %d meminfo --unreachable -a";
     private static final String DIRECT_UNREACHABLE_CMD = "dumpsys -t %d %s --unreachable";
     private static final String OUTPUT_HEADER = "\nExecuted command: %s\n";
+    /** The header of the dump of each process, e.g. "** MEMINFO in pid 123 [system] **" */
+    private static final Pattern PROCESS_PATTERN =
+            Pattern.compile("\\*\\* MEMINFO in pid (\\d+) \\[(.*)\\] \\*\\*");
+    /** The summary of libmemunreachable, e.g. "1234 bytes in 5 unreachable allocations" */
+    private static final Pattern UNREACHABLE_PATTERN =
+            Pattern.compile("(\\d+) bytes in (\\d+) unreachable allocations");
 
     private ITestLogger mTestLogger;
 
@@ -67,6 +94,10 @@ public class NativeLeakCollector implements ITestLoggerReceiver, ITargetCleaner
             isTimeVal = true)
     private long mAdditionalDumpTimeout = 1 * 60 * 1000; // defaults to 1m
 
+    @Option(name = "summary-max-processes", description = "The number of processes with the most "
+            + "unreachable memory to list in the summary log.")
+    private int mSummaryMaxProcesses = 20;
+
     /**
      * {@inheritDoc}
      */
@@ -86,37 +117,195 @@ public class NativeLeakCollector implements ITestLoggerReceiver, ITargetCleaner
             return;
         }
 
-        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
-        String allCommand = String.format(UNREACHABLE_MEMINFO_CMD, mDumpTimeout / 1000);
-        writeToReceiver(String.format(OUTPUT_HEADER, allCommand), receiver);
-        device.executeShellCommand(allCommand, receiver, mDumpTimeout, TimeUnit.MILLISECONDS, 1);
+        UnreachableMemoryReceiver receiver;
+        try {
+            receiver = new UnreachableMemoryReceiver(
+                    FileUtil.createTempFile(mLogFilename, ".txt"));
+        } catch (IOException ioe) {
+            CLog.e("Failed to create a file for the unreachable memory dump");
+            CLog.e(ioe);
+            return;
+        }
+        try {
+            String allCommand = String.format(UNREACHABLE_MEMINFO_CMD, mDumpTimeout / 1000);
+            writeToReceiver(String.format(OUTPUT_HEADER, allCommand), receiver);
+            device.executeShellCommand(allCommand, receiver, mDumpTimeout, TimeUnit.MILLISECONDS,
+                    1);
 
-        for (String proc : mAdditionalProc) {
-            String procCommand = String.format(DIRECT_UNREACHABLE_CMD,
-                    mAdditionalDumpTimeout / 1000, proc);
-            writeToReceiver(String.format(OUTPUT_HEADER, procCommand), receiver);
-            device.executeShellCommand(procCommand, receiver, mAdditionalDumpTimeout,
-                    TimeUnit.MILLISECONDS, 1);
+            for (String proc : mAdditionalProc) {
+                String procCommand = String.format(DIRECT_UNREACHABLE_CMD,
+                        mAdditionalDumpTimeout / 1000, proc);
+                writeToReceiver(String.format(OUTPUT_HEADER, procCommand), receiver);
+                receiver.setCurrentProcess(proc);
+                device.executeShellCommand(procCommand, receiver, mAdditionalDumpTimeout,
+                        TimeUnit.MILLISECONDS, 1);
+            }
+            receiver.close();
+            logOutput(receiver);
+        } finally {
+            receiver.close();
+            FileUtil.deleteFile(receiver.getFile());
         }
+    }
 
-        if (receiver.getOutput() != null && !receiver.getOutput().isEmpty()) {
-            if (mTestLogger != null) {
-                ByteArrayInputStreamSource byteOutput =
-                        new ByteArrayInputStreamSource(receiver.getOutput().getBytes());
-                mTestLogger.testLog(mLogFilename, LogDataType.TEXT, byteOutput);
-                StreamUtil.cancel(byteOutput);
-            } else {
-                CLog.w("No test logger available, printing output here:\n%s", receiver.getOutput());
+    private void logOutput(UnreachableMemoryReceiver receiver) {
+        if (receiver.getFile().length() == 0) {
+            return;
+        }
+        String summary = receiver.getSummary(mSummaryMaxProcesses);
+        if (mTestLogger == null) {
+            try {
+                CLog.w("No test logger available, printing output here:\n%s",
+                        FileUtil.readStringFromFile(receiver.getFile()));
+            } catch (IOException e) {
+                CLog.e(e);
+            }
+            return;
+        }
+        InputStreamSource output = new FileInputStreamSource(receiver.getFile());
+        try {
+            mTestLogger.testLog(mLogFilename, LogDataType.TEXT, output);
+        } finally {
+            StreamUtil.cancel(output);
+        }
+        if (!summary.isEmpty()) {
+            CLog.i("Unreachable native memory:\n%s", summary);
+            InputStreamSource summarySource = new ByteArrayInputStreamSource(summary.getBytes());
+            try {
+                mTestLogger.testLog(mLogFilename + "-summary", LogDataType.TEXT, summarySource);
+            } finally {
+                StreamUtil.cancel(summarySource);
             }
         }
     }
 
-    private void writeToReceiver (String msg, CollectingOutputReceiver receiver) {
+    private void writeToReceiver(String msg, IShellOutputReceiver receiver) {
         byte[] msgBytes = msg.getBytes();
         int byteCount = msgBytes.length;
         receiver.addOutput(msgBytes, 0, byteCount);
     }
 
+    /**
+     * Receiver spooling the dump to a file, and parsing the unreachable memory of each process as
+     * the lines are received.
+     */
+    @VisibleForTesting
+    static class UnreachableMemoryReceiver implements IShellOutputReceiver {
+        /** Only the start of long lines is parsed, the summary lines are short. */
+        private static final int MAX_LINE_LENGTH = 256;
+
+        private final File mFile;
+        private OutputStream mOutput;
+        private final byte[] mLine = new byte[MAX_LINE_LENGTH];
+        private int mLineLength = 0;
+        private String mCurrentProcess = null;
+        /** Unreachable bytes by process, in the order of the dump. */
+        private final Map<String, Long> mUnreachableBytes = new LinkedHashMap<>();
+
+        UnreachableMemoryReceiver(File file) throws IOException {
+            mFile = file;
+            mOutput = new BufferedOutputStream(new FileOutputStream(file));
+        }
+
+        File getFile() {
+            return mFile;
+        }
+
+        /** Set the process the next lines are about, for dumps without process header. */
+        void setCurrentProcess(String process) {
+            endLine();
+            mCurrentProcess = process;
+        }
+
+        @Override
+        public void addOutput(byte[] data, int offset, int length) {
+            if (mOutput != null) {
+                try {
+                    mOutput.write(data, offset, length);
+                } catch (IOException e) {
+                    CLog.e("Failed to write the unreachable memory dump");
+                    CLog.e(e);
+                    close();
+                }
+            }
+            for (int i = offset; i < offset + length; i++) {
+                byte b = data[i];
+                if (b == '\n') {
+                    endLine();
+                } else if (mLineLength < MAX_LINE_LENGTH) {
+                    mLine[mLineLength++] = b;
+                }
+            }
+        }
+
+        private void endLine() {
+            if (mLineLength == 0) {
+                return;
+            }
+            String line = new String(mLine, 0, mLineLength, StandardCharsets.UTF_8).trim();
+            mLineLength = 0;
+            if (line.startsWith("**")) {
+                Matcher m = PROCESS_PATTERN.matcher(line);
+                if (m.matches()) {
+                    mCurrentProcess = String.format("%s (%s)", m.group(2), m.group(1));
+                }
+            } else if (line.endsWith("unreachable allocations") && mCurrentProcess != null) {
+                Matcher m = UNREACHABLE_PATTERN.matcher(line);
+                if (m.matches()) {
+                    Long bytes = mUnreachableBytes.get(mCurrentProcess);
+                    mUnreachableBytes.put(mCurrentProcess, Long.parseLong(m.group(1))
+                            + (bytes == null ? 0 : bytes));
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+            endLine();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        void close() {
+            endLine();
+            StreamUtil.close(mOutput);
+            mOutput = null;
+        }
+
+        /** Get the unreachable bytes by process, in the order of the dump. */
+        Map<String, Long> getUnreachableBytes() {
+            return mUnreachableBytes;
+        }
+
+        /**
+         * Get a summary of the processes with the most unreachable memory, one per line, or an
+         * empty string if no unreachable memory was found.
+         */
+        String getSummary(int maxProcesses) {
+            List<Map.Entry<String, Long>> entries = new ArrayList<>();
+            for (Map.Entry<String, Long> entry : mUnreachableBytes.entrySet()) {
+                if (entry.getValue() > 0) {
+                    entries.add(entry);
+                }
+            }
+            Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+                @Override
+                public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                    return Long.compare(b.getValue(), a.getValue());
+                }
+            });
+            StringBuilder summary = new StringBuilder();
+            for (int i = 0; i < entries.size() && i < maxProcesses; i++) {
+                summary.append(String.format("%s: %d bytes unreachable\n",
+                        entries.get(i).getKey(), entries.get(i).getValue()));
+            }
+            return summary.toString();
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
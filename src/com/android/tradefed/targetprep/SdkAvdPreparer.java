@@ -22,6 +22,7 @@ import com.android.tradefed.build.ISdkBuildInfo;
 import com.android.tradefed.config.GlobalConfiguration;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.EmulatorPool;
 import com.android.tradefed.device.IDeviceManager;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.TestDeviceState;
@@ -32,6 +33,7 @@ import com.android.tradefed.util.CommandStatus;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
+import com.android.tradefed.util.SimpleStats;
 
 import com.google.common.annotations.VisibleForTesting;
 
@@ -44,12 +46,19 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * A {@link ITargetPreparer} that will create an avd and launch an emulator
  */
 public class SdkAvdPreparer implements ITargetPreparer, IHostCleaner {
 
+    /** The name of the snapshot pooled emulators are reset from. */
+    static final String POOL_SNAPSHOT = "tradefed_pool";
+    /** The build attribute holding the time in ms taken to cold boot the emulator. */
+    static final String BOOT_TIME_ATTRIBUTE = "emulator_boot_ms";
+    /** The build attribute holding the time in ms taken to reset a pooled emulator. */
+    static final String RESET_TIME_ATTRIBUTE = "emulator_reset_ms";
 
     @Option(name = "sdk-target", description = "the name of SDK target to launch. " +
             "If unspecified, will use first target found")
@@ -120,11 +129,18 @@ public class SdkAvdPreparer implements ITargetPreparer, IHostCleaner {
     @Option(name = "verbose", description = "Use verbose for emulator output")
     private boolean mVerbose = false;
 
+    @Option(name = "emulator-pool-size", description = "the max number of emulators to keep "
+            + "booted between invocations for the same avd configuration. A kept emulator is "
+            + "reset from a snapshot instead of cold booted when reused. 0 to always kill the "
+            + "emulator.")
+    private int mPoolSize = 0;
+
     private final IRunUtil mRunUtil;
     private IDeviceManager mDeviceManager;
     private ITestDevice mTestDevice;
 
     private File mSdkHome = null;
+    private long mBootTimeMs = -1;
 
     /**
      * Creates a {@link SdkAvdPreparer}.
@@ -152,9 +168,131 @@ public class SdkAvdPreparer implements ITargetPreparer, IHostCleaner {
             DeviceNotAvailableException, BuildError {
         Assert.assertTrue("Provided build is not a ISdkBuildInfo",
                 buildInfo instanceof ISdkBuildInfo);
-        mTestDevice = device;
         ISdkBuildInfo sdkBuildInfo = (ISdkBuildInfo)buildInfo;
-        launchEmulatorForAvd(sdkBuildInfo, device, createAvd(sdkBuildInfo));
+        prepareEmulator(sdkBuildInfo, device, buildInfo);
+    }
+
+    /**
+     * Provides a booted emulator for the given sdk: resets a pooled emulator launched with the
+     * same avd configuration if there is one, otherwise creates an avd and launches an emulator
+     * for it. The boot or reset time is reported as a build attribute.
+     *
+     * @param sdkBuild the {@link ISdkBuildInfo}
+     * @param device the {@link ITestDevice} representing the allocated emulator device
+     * @param buildInfo the {@link IBuildInfo} of the invocation, to report the boot time to
+     * @throws DeviceNotAvailableException
+     * @throws TargetSetupError if could not get targets
+     * @throws BuildError if failed to create the avd or the emulator fails to boot
+     */
+    protected void prepareEmulator(ISdkBuildInfo sdkBuild, ITestDevice device,
+            IBuildInfo buildInfo) throws DeviceNotAvailableException, TargetSetupError,
+            BuildError {
+        mTestDevice = device;
+        String config = mPoolSize > 0 ? getPoolConfig(sdkBuild) : null;
+        if (config == null && getEmulatorPool().contains(device.getSerialNumber())) {
+            CLog.i("Pooling is disabled, killing pooled emulator %s", device.getSerialNumber());
+            killPooledEmulator(device);
+        } else if (config != null && resetPooledEmulator(device, config, buildInfo)) {
+            return;
+        }
+        launchEmulatorForAvd(sdkBuild, device, createAvd(sdkBuild));
+        buildInfo.addBuildAttribute(BOOT_TIME_ATTRIBUTE, Long.toString(mBootTimeMs));
+        if (config != null) {
+            addToPool(device, config);
+        }
+    }
+
+    /**
+     * Reset a pooled emulator from its snapshot if it was launched with the given avd
+     * configuration. A pooled emulator which cannot be reused is killed.
+     *
+     * @return true if the emulator was reset, false if a new emulator should be launched.
+     */
+    private boolean resetPooledEmulator(ITestDevice device, String config, IBuildInfo buildInfo)
+            throws DeviceNotAvailableException {
+        EmulatorPool pool = getEmulatorPool();
+        String serial = device.getSerialNumber();
+        String snapshot = pool.getSnapshot(serial);
+        if (snapshot == null) {
+            return false;
+        }
+        if (!config.equals(pool.getConfig(serial))
+                || !TestDeviceState.ONLINE.equals(device.getDeviceState())) {
+            CLog.i("Pooled emulator %s cannot be reused for this avd configuration", serial);
+            killPooledEmulator(device);
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            String output = device.executeAdbCommand("emu", "avd", "snapshot", "load", snapshot);
+            if (output == null || output.contains("KO")) {
+                CLog.w("Failed to load snapshot %s of emulator %s: %s", snapshot, serial, output);
+                killPooledEmulator(device);
+                return false;
+            }
+            device.waitForDeviceAvailable(mMaxBootTime * 60 * 1000);
+        } catch (DeviceNotAvailableException e) {
+            CLog.w("Pooled emulator %s failed to reset. Cause: %s", serial, e);
+            killPooledEmulator(device);
+            return false;
+        }
+        long resetTime = System.currentTimeMillis() - start;
+        pool.recordResetTime(resetTime);
+        SimpleStats boots = pool.getBootLatencies();
+        SimpleStats resets = pool.getResetLatencies();
+        CLog.i("Reset pooled emulator %s in %d ms. Median reset time %s ms, median boot time "
+                + "%s ms", serial, resetTime, resets.median(), boots.median());
+        buildInfo.addBuildAttribute(RESET_TIME_ATTRIBUTE, Long.toString(resetTime));
+        return true;
+    }
+
+    /**
+     * Snapshot a freshly booted emulator and add it to the pool, so that it is kept booted once
+     * freed. The pool then owns the sdk home holding the avd.
+     */
+    private void addToPool(ITestDevice device, String config) throws DeviceNotAvailableException {
+        String output = device.executeAdbCommand("emu", "avd", "snapshot", "save", POOL_SNAPSHOT);
+        if (output == null || output.contains("KO")) {
+            CLog.w("Failed to snapshot emulator %s, not pooling it: %s",
+                    device.getSerialNumber(), output);
+            return;
+        }
+        if (getEmulatorPool().add(device.getSerialNumber(), config, POOL_SNAPSHOT, mSdkHome,
+                mPoolSize)) {
+            mSdkHome = null;
+        }
+    }
+
+    private void killPooledEmulator(ITestDevice device) {
+        try {
+            getDeviceManager().killEmulator(device);
+        } catch (DeviceNotAvailableException e) {
+            CLog.w("Failed to kill pooled emulator %s. Cause: %s", device.getSerialNumber(), e);
+        }
+    }
+
+    /**
+     * Get the avd configuration of the emulators launched by this preparer. Only emulators with
+     * the same configuration are reused from the pool.
+     */
+    @VisibleForTesting
+    String getPoolConfig(ISdkBuildInfo sdkBuild) {
+        return String.format("sdk=%s build=%s target=%s tag=%s skin=%s device=%s abi=%s "
+                + "sdcard=%s hw=%s window=%s gpu=%s kvm=%s display=%s system=%s ramdisk=%s "
+                + "props=%s binary=%s args=%s", sdkBuild.getSdkDir().getAbsolutePath(),
+                sdkBuild.getBuildId(), mTargetName, mAvdTag, mAvdSkin, mDevice, mAbi,
+                mSdcardSize, new TreeMap<String, String>(mHwOptions), mWindow, mGpu, mForceKvm,
+                mDisplay, mEmulatorSystemImage, mEmulatorRamdiskImage,
+                new TreeMap<String, String>(mProps), mEmulatorBinary, mEmulatorArgs);
+    }
+
+    /**
+     * Get the {@link EmulatorPool} of the emulators kept booted between invocations.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    EmulatorPool getEmulatorPool() {
+        return EmulatorPool.getDefault();
     }
 
     /**
@@ -478,6 +616,7 @@ public class SdkAvdPreparer implements ITargetPreparer, IHostCleaner {
      */
     void launchEmulator(ITestDevice device, String avd, List<String> emulatorArgs)
             throws BuildError {
+        long start = System.currentTimeMillis();
         for (int i = 1; i <= mLaunchAttempts; i++) {
             try {
                 getDeviceManager().launchEmulator(device, mMaxBootTime * 60 * 1000, mRunUtil,
@@ -492,6 +631,9 @@ public class SdkAvdPreparer implements ITargetPreparer, IHostCleaner {
                 }
 
                 // hurray - launched!
+                mBootTimeMs = System.currentTimeMillis() - start;
+                getEmulatorPool().recordBootTime(mBootTimeMs);
+                CLog.i("Emulator for avd '%s' booted in %d ms", avd, mBootTimeMs);
                 return;
             } catch (DeviceNotAvailableException e) {
                 CLog.w("Emulator for avd '%s' failed to launch on attempt %d of %d. Cause: %s",
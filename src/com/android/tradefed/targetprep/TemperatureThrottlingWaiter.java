@@ -18,17 +18,34 @@ package com.android.tradefed.targetprep;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.device.CollectingOutputReceiver;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.timeseries.DeviceConditionMonitor;
+import com.android.tradefed.device.timeseries.DeviceConditionMonitor.ICondition;
+import com.android.tradefed.device.timeseries.ITimeSeriesSampler;
+import com.android.tradefed.device.timeseries.TrendCondition;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.RunUtil;
 
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 /**
- * An {@link ITargetPreparer} that waits until device's temperature gets down to target
+ * An {@link ITargetPreparer} that waits until device's temperature gets down to target, then until
+ * the temperature is stable.
+ * <p/>
+ * The temperature is sampled by the host wide {@link DeviceConditionMonitor}, and the wait ends as
+ * soon as the temperature meets the conditions.
  */
 @OptionClass(alias = "temperature-throttle-waiter")
 public class TemperatureThrottlingWaiter implements ITargetPreparer {
 
+    /** the number of samples the cool down trend is estimated from */
+    private static final int TREND_SAMPLES = 5;
+    /** the max time to read the temperature, from the shared threads of the monitor */
+    private static final long SHELL_TIMEOUT_MS = 5 * 1000;
+
     @Option(name = "poll-interval",
             description = "Interval in seconds, to poll for device temperature; defaults to 30s")
     private long mPollIntervalSecs = 30;
@@ -41,10 +58,23 @@ public class TemperatureThrottlingWaiter implements ITargetPreparer {
         + " above expected temperature; defaults to false")
     private boolean mAbortOnTimeout = false;
 
-    @Option(name = "post-idle-wait", description = "Additional time to wait in seconds, after "
-        + "temperature has reached to target; defaults to 120s")
+    @Option(name = "post-idle-wait", description = "Max additional time to wait in seconds, "
+        + "after temperature has reached to target, for it to stabilize; defaults to 120s")
     private long mPostIdleWaitSecs = 120;
 
+    @Option(name = "post-idle-poll-interval", description = "Interval in seconds, to poll for "
+        + "device temperature while waiting for it to stabilize; defaults to 10s")
+    private long mPostIdlePollIntervalSecs = 10;
+
+    @Option(name = "stable-temperature-rate", description = "Rate of change in degrees per "
+        + "minute, under which the temperature is stable and the post idle wait ends. Set to a "
+        + "negative value to always wait the whole post-idle-wait; defaults to 0.5")
+    private double mStableTemperatureRate = 0.5;
+
+    @Option(name = "stable-temperature-window", description = "Time window in seconds, over "
+        + "which the temperature rate of change is estimated; defaults to 40s")
+    private long mStableTemperatureWindowSecs = 40;
+
     @Option(name = "device-temperature-file-path", description = "Name of file that contains device"
         + "temperature. Example: /sys/class/hwmon/hwmon1/device/msm_therm")
     private String mDeviceTemperatureFilePath = null;
@@ -64,20 +94,35 @@ public class TemperatureThrottlingWaiter implements ITargetPreparer {
         }
         long start = System.currentTimeMillis();
         long maxWaitMs = mMaxWaitSecs * 1000;
-        long intervalMs = mPollIntervalSecs * 1000;
-        int deviceTemperature = Integer.MAX_VALUE;
-        while (true) {
-            // get device temperature
-            deviceTemperature = getDeviceTemperature(device, mDeviceTemperatureFilePath);
-            if (deviceTemperature > mTargetTemperature) {
-                CLog.d("Temperature is still high actual %d/expected %d",
-                        deviceTemperature, mTargetTemperature);
-            } else {
+        // also checks that the temperature file can be read
+        int deviceTemperature = getDeviceTemperature(device, mDeviceTemperatureFilePath);
+        if (deviceTemperature > mTargetTemperature) {
+            CLog.d("Temperature is still high actual %d/expected %d",
+                    deviceTemperature, mTargetTemperature);
+            // only used to estimate when the target will be reached
+            final TrendCondition trend = new TrendCondition(0,
+                    TREND_SAMPLES * mPollIntervalSecs * 1000, Double.MAX_VALUE);
+            Future<Void> cooled = getConditionMonitor().subscribe(device,
+                    new TemperatureSampler(), mPollIntervalSecs * 1000, new ICondition() {
+                        @Override
+                        public boolean isMet(long timestamp, double[] values) {
+                            trend.isMet(timestamp, values);
+                            if (values[0] <= mTargetTemperature) {
+                                return true;
+                            }
+                            long estimate = trend.estimateTimeTo(values[0], mTargetTemperature);
+                            CLog.d("Temperature is still high actual %d/expected %d, "
+                                    + "estimated time to target: %s", (int) values[0],
+                                    mTargetTemperature,
+                                    estimate < 0 ? "unknown" : (estimate / 1000) + "s");
+                            return false;
+                        }
+                    });
+            if (DeviceConditionMonitor.await(cooled, maxWaitMs)) {
                 CLog.i("Total time elapsed to get to %dc : %ds", mTargetTemperature,
                         (System.currentTimeMillis() - start) / 1000);
-                break; // while loop
-            }
-            if ((System.currentTimeMillis() - start) > maxWaitMs) {
+            } else {
+                deviceTemperature = getDeviceTemperature(device, mDeviceTemperatureFilePath);
                 CLog.w("Temperature is still high, actual %d/expected %d; waiting after %ds",
                         deviceTemperature, mTargetTemperature, maxWaitMs);
                 if (mAbortOnTimeout) {
@@ -85,16 +130,67 @@ public class TemperatureThrottlingWaiter implements ITargetPreparer {
                             + "timeout; actual %d/expected %d", deviceTemperature,
                             mTargetTemperature), device.getDeviceDescriptor());
                 }
-                break; // while loop
             }
-            RunUtil.getDefault().sleep(intervalMs);
+        } else {
+            CLog.i("Total time elapsed to get to %dc : %ds", mTargetTemperature,
+                    (System.currentTimeMillis() - start) / 1000);
+        }
+        // extra idle time after reaching the target to stable the system
+        if (mStableTemperatureRate < 0) {
+            RunUtil.getDefault().sleep(mPostIdleWaitSecs * 1000);
+        } else if (mPostIdleWaitSecs > 0) {
+            long postIdleStart = System.currentTimeMillis();
+            Future<Void> stable = getConditionMonitor().subscribe(device,
+                    new TemperatureSampler(), mPostIdlePollIntervalSecs * 1000,
+                    new TrendCondition(0, mStableTemperatureWindowSecs * 1000,
+                            mStableTemperatureRate));
+            if (DeviceConditionMonitor.await(stable, mPostIdleWaitSecs * 1000)) {
+                CLog.i("Temperature stable after %ds",
+                        (System.currentTimeMillis() - postIdleStart) / 1000);
+            }
         }
-        // extra idle time after reaching the targetl to stable the system
-        RunUtil.getDefault().sleep(mPostIdleWaitSecs * 1000);
         CLog.d("Done waiting, total time elapsed: %ds",
                 (System.currentTimeMillis() - start) / 1000);
     }
 
+    /**
+     * Get the {@link DeviceConditionMonitor} sampling the device temperature.
+     * <p/>
+     * Exposed for testing.
+     */
+    protected DeviceConditionMonitor getConditionMonitor() {
+        return DeviceConditionMonitor.getDefault();
+    }
+
+    /**
+     * Samples the device temperature with {@link #getDeviceTemperature(ITestDevice, String)}.
+     */
+    private class TemperatureSampler implements ITimeSeriesSampler {
+
+        @Override
+        public String getName() {
+            return "temperature";
+        }
+
+        @Override
+        public String[] getColumns() {
+            return new String[] {"temperature"};
+        }
+
+        @Override
+        public boolean sample(ITestDevice device, double[] values)
+                throws DeviceNotAvailableException {
+            try {
+                values[0] = getDeviceTemperature(device, mDeviceTemperatureFilePath);
+                return true;
+            } catch (TargetSetupError | NumberFormatException e) {
+                // the file was valid when the wait started, skip the sample
+                CLog.w("Failed to read temperature: %s", e.getMessage());
+                return false;
+            }
+        }
+    }
+
     /**
      * @param device
      * @param fileName : filename where device temperature is stored
@@ -103,8 +199,10 @@ public class TemperatureThrottlingWaiter implements ITargetPreparer {
     protected int getDeviceTemperature (ITestDevice device, String fileName)
             throws DeviceNotAvailableException, TargetSetupError {
         int deviceTemp = Integer.MAX_VALUE;
-        String result = device.executeShellCommand(
-                String.format("cat %s", fileName)).trim();
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        device.executeShellCommand(String.format("cat %s", fileName), receiver,
+                SHELL_TIMEOUT_MS, TimeUnit.MILLISECONDS, 0 /* don't retry */);
+        String result = receiver.getOutput().trim();
         CLog.i(String.format("Temperature file output : %s", result));
         // example output : Result:30 Raw:7f6f
         if (result == null || result.contains("No such file or directory")) {
@@ -30,11 +30,17 @@ import com.android.tradefed.util.AaptParser;
 import com.android.tradefed.util.AbiFormatter;
 import com.android.tradefed.util.BuildTestsZipUtils;
 
+import com.google.common.annotations.VisibleForTesting;
+
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * A {@link ITargetPreparer} that installs one or more apps from a
@@ -91,6 +97,21 @@ public class TestAppInstallSetup implements ITargetCleaner, IAbiReceiver {
             + "when searching for apks to install")
     private AltDirBehavior mAltDirBehavior = AltDirBehavior.FALLBACK;
 
+    @Option(name = "parallel-install",
+            description = "Push the apks concurrently and install them in a pipeline, overlapping "
+                    + "the push of the next apk with the install of the previous one.")
+    private boolean mParallelInstall = false;
+
+    @Option(name = "parallel-install-push-threads",
+            description = "Maximum number of apks pushed concurrently when parallel-install is "
+                    + "enabled.")
+    private int mPushThreads = 4;
+
+    @Option(name = "skip-installed-apks",
+            description = "When parallel-install is enabled, skip the packages whose installed "
+                    + "apks have the same md5 as the apks to install.")
+    private boolean mSkipInstalledApks = false;
+
     private IAbi mAbi = null;
 
     private List<String> mPackagesInstalled = null;
@@ -141,6 +162,8 @@ public class TestAppInstallSetup implements ITargetCleaner, IAbiReceiver {
         if (mCleanup) {
             mPackagesInstalled = new ArrayList<>();
         }
+        Map<File, String> pipelineApks = new LinkedHashMap<>();
+        Set<File> splitApks = new HashSet<>();
 
         for (String testAppName : mTestFileNames) {
             if (testAppName == null || testAppName.trim().isEmpty()) {
@@ -180,6 +203,16 @@ public class TestAppInstallSetup implements ITargetCleaner, IAbiReceiver {
             if (abiName != null) {
                 mInstallArgs.add(String.format("--abi %s", abiName));
             }
+            if (mParallelInstall) {
+                // a single aapt run gives both the package name and the split name
+                AaptParser parser = parseApk(testAppFile, device.getDeviceDescriptor());
+                pipelineApks.put(testAppFile, parser.getPackageName());
+                if (parser.getSplitName() != null) {
+                    // split apks cannot be installed on their own
+                    splitApks.add(testAppFile);
+                }
+                continue;
+            }
             String packageName = parsePackageName(testAppFile, device.getDeviceDescriptor());
             CLog.d("Installing apk from %s ...", testAppFile.getAbsolutePath());
             String result = installPackage(device, testAppFile);
@@ -199,6 +232,22 @@ public class TestAppInstallSetup implements ITargetCleaner, IAbiReceiver {
                 mPackagesInstalled.add(packageName);
             }
         }
+        if (!pipelineApks.isEmpty()) {
+            Set<String> installed = createInstallPipeline(device).install(pipelineApks,
+                    splitApks);
+            if (mCleanup) {
+                mPackagesInstalled.addAll(installed);
+            }
+        }
+    }
+
+    /** Creates the {@link ApkInstallPipeline} used when parallel-install is enabled. */
+    @VisibleForTesting
+    ApkInstallPipeline createInstallPipeline(ITestDevice device) {
+        ApkInstallPipeline pipeline =
+                new ApkInstallPipeline(device, new ArrayList<>(mInstallArgs), mPushThreads);
+        pipeline.setSkipIfInstalled(mSkipInstalledApks);
+        return pipeline;
     }
 
     @Override
@@ -249,10 +298,16 @@ public class TestAppInstallSetup implements ITargetCleaner, IAbiReceiver {
     /** Get the package name from the test app. */
     protected String parsePackageName(File testAppFile, DeviceDescriptor deviceDescriptor)
             throws TargetSetupError {
+        return parseApk(testAppFile, deviceDescriptor).getPackageName();
+    }
+
+    /** Parse the test app with aapt. */
+    protected AaptParser parseApk(File testAppFile, DeviceDescriptor deviceDescriptor)
+            throws TargetSetupError {
         AaptParser parser = AaptParser.parse(testAppFile);
         if (parser == null) {
             throw new TargetSetupError("apk installed but AaptParser failed", deviceDescriptor);
         }
-        return parser.getPackageName();
+        return parser;
     }
 }
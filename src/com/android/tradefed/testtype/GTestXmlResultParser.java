@@ -19,38 +19,47 @@ import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.device.CollectingOutputReceiver;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 
 /**
  * Parses the 'xml output mode' results of native tests using GTest that run from shell,
  * and informs a ITestRunListener of the results.
+ * <p/>
+ * The xml is parsed as a stream: each test is reported as soon as its element is read, and the
+ * memory used does not depend on the size of the report. The input can therefore be a pipe, see
+ * {@link #parseResult(InputStream, CollectingOutputReceiver)}.
  */
 public class GTestXmlResultParser {
 
+    private final static String TEST_SUITES_TAG = "testsuites";
     private final static String TEST_SUITE_TAG = "testsuite";
     private final static String TEST_CASE_TAG = "testcase";
+    private final static String FAILURE_TAG = "failure";
 
     private final String mTestRunName;
     private int mNumTestsRun = 0;
     private int mNumTestsExpected = 0;
     private long mTotalRunTime = 0;
+    private boolean mTestRunStarted = false;
     private final Collection<ITestRunListener> mTestListeners;
 
     /**
@@ -86,43 +95,43 @@ public class GTestXmlResultParser {
      * @param output The output collected from the execution run to complete the logs if necessary
      */
     public void parseResult(File f, CollectingOutputReceiver output) {
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        Document result = null;
+        InputStream stream = null;
         try {
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            db.setErrorHandler(new DefaultHandler());
-            result = db.parse(f);
+            stream = new BufferedInputStream(new FileInputStream(f));
+            parseResult(stream, output);
+        } catch (IOException e) {
+            reportXmlFailure(output);
+        } finally {
+            StreamUtil.close(stream);
+        }
+    }
+
+    /**
+     * Parse the xml results as they are read from a stream. Tests are reported as their elements
+     * are read, so the stream can be a pipe.
+     *
+     * @param xmlStream the {@link InputStream} of the outputed xml, read until its end.
+     * @param output The output collected from the execution run to complete the logs if necessary
+     */
+    public void parseResult(InputStream xmlStream, CollectingOutputReceiver output) {
+        GTestXmlHandler handler = new GTestXmlHandler();
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.newSAXParser().parse(new InputSource(xmlStream), handler);
         } catch (SAXException | IOException | ParserConfigurationException e) {
-            reportTestRunStarted();
-            for (ITestRunListener listener : mTestListeners) {
-                String errorMessage = String.format("Failed to get an xml output from tests,"
-                        + " it probably crashed");
-                if (output != null) {
-                    errorMessage += "\nlogs:\n" + output.getOutput();
-                    CLog.e(errorMessage);
-                }
-                listener.testRunFailed(errorMessage);
-                listener.testRunEnded(mTotalRunTime, Collections.emptyMap());
+            if (!mTestRunStarted) {
+                reportXmlFailure(output);
+                return;
             }
-            return;
+            // The xml was cut short, close what was reported so far.
+            CLog.e("Failed to parse gtest xml output after %d tests: %s", mNumTestsRun,
+                    e.getMessage());
+            handler.reportIncompleteTest();
         }
-        Element rootNode = result.getDocumentElement();
-        // Parse root node: "testsuites" for generic infos.
-        getTestSuitesInfo(rootNode);
-        reportTestRunStarted();
-        // Iterate other "testsuite" for each test results.
-        NodeList testSuiteList = rootNode.getElementsByTagName(TEST_SUITE_TAG);
-        if (testSuiteList != null && testSuiteList.getLength() > 0) {
-            for (int i = 0; i < testSuiteList.getLength() ; i++) {
-                NodeList testcasesList =
-                        ((Element)testSuiteList.item(i)).getElementsByTagName(TEST_CASE_TAG);
-                // Iterate other the test cases in the test suite.
-                if (testcasesList != null && testcasesList.getLength() > 0) {
-                    for (int j = 0 ; j < testcasesList.getLength(); j++) {
-                        processTestResult((Element)testcasesList.item(j));
-                    }
-                }
-            }
+        if (!mTestRunStarted) {
+            // No root element was found.
+            reportXmlFailure(output);
+            return;
         }
 
         if (mNumTestsExpected > mNumTestsRun) {
@@ -137,69 +146,144 @@ public class GTestXmlResultParser {
         }
     }
 
-    private void getTestSuitesInfo(Element rootNode) {
-        mNumTestsExpected = Integer.parseInt(rootNode.getAttribute("tests"));
-        mTotalRunTime = (long) (Double.parseDouble(rootNode.getAttribute("time")) * 1000d);
-    }
-
-    /**
-     * Reports the start of a test run, and the total test count, if it has not been previously
-     * reported.
-     */
-    private void reportTestRunStarted() {
+    /** Reports a run failure when no xml results could be parsed. */
+    private void reportXmlFailure(CollectingOutputReceiver output) {
+        reportTestRunStarted();
         for (ITestRunListener listener : mTestListeners) {
-            listener.testRunStarted(mTestRunName, mNumTestsExpected);
+            String errorMessage = String.format("Failed to get an xml output from tests,"
+                    + " it probably crashed");
+            if (output != null) {
+                errorMessage += "\nlogs:\n" + output.getOutput();
+                CLog.e(errorMessage);
+            }
+            listener.testRunFailed(errorMessage);
+            listener.testRunEnded(mTotalRunTime, Collections.emptyMap());
         }
     }
 
     /**
-     * Processes and informs listener when we encounter a tag indicating that a test has started.
+     * SAX handler reporting the tests of the xml as their elements are read. Expected
+     * tags/attributes are
      *
-     * @param testcase Raw log output of the form classname.testname, with an optional time (x ms)
+     * testsuites tests="X" time="Y"
+     *     testsuite name="suite"
+     *         testcase classname="FooTest" name="testMethodName" time="Z"
+     *             failure message="trace"
      */
-    private void processTestResult(Element testcase) {
-        String classname = testcase.getAttribute("classname");
-        String testname = testcase.getAttribute("name");
-        String runtime = testcase.getAttribute("time");
-        ParsedTestInfo parsedResults = new ParsedTestInfo(classname, testname, runtime);
-        TestIdentifier testId = new TestIdentifier(parsedResults.mTestClassName,
-                parsedResults.mTestName);
-        mNumTestsRun++;
-        for (ITestRunListener listener : mTestListeners) {
-            listener.testStarted(testId);
+    private class GTestXmlHandler extends DefaultHandler {
+        private int mDepth = 0;
+        private int mSuiteDepth = -1;
+        private TestIdentifier mCurrentTest = null;
+        private String mCurrentRunTime = null;
+        private boolean mCurrentFailed = false;
+
+        @Override
+        public void startElement(String uri, String localName, String name,
+                Attributes attributes) throws SAXException {
+            mDepth++;
+            if (mDepth == 1) {
+                // Parse root node: "testsuites" for generic infos.
+                if (TEST_SUITES_TAG.equals(name)) {
+                    getTestSuitesInfo(attributes);
+                }
+                reportTestRunStarted();
+            } else if (TEST_SUITE_TAG.equals(name)) {
+                if (mSuiteDepth < 0) {
+                    mSuiteDepth = mDepth;
+                }
+            } else if (TEST_CASE_TAG.equals(name)) {
+                // Only report test cases of a "testsuite", and not nested ones.
+                if (mSuiteDepth > 0 && mCurrentTest == null) {
+                    processTestStarted(attributes);
+                }
+            } else if (FAILURE_TAG.equals(name)) {
+                if (mCurrentTest != null && !mCurrentFailed) {
+                    processTestFailure(attributes);
+                }
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String name) {
+            if (TEST_CASE_TAG.equals(name) && mCurrentTest != null) {
+                processTestEnded();
+            } else if (TEST_SUITE_TAG.equals(name) && mDepth == mSuiteDepth) {
+                mSuiteDepth = -1;
+            }
+            mDepth--;
         }
 
-        // If there is a failure tag report failure
-        if (testcase.getElementsByTagName("failure").getLength() != 0) {
-            String trace = ((Element)testcase.getElementsByTagName("failure").item(0))
-                    .getAttribute("message");
+        private void processTestStarted(Attributes attributes) {
+            String classname = getAttribute(attributes, "classname");
+            String testname = getAttribute(attributes, "name");
+            mCurrentRunTime = getAttribute(attributes, "time");
+            // Same identifier as the one reported before the parser streamed the xml
+            mCurrentTest = new TestIdentifier(testname, classname);
+            mCurrentFailed = false;
+            mNumTestsRun++;
+            for (ITestRunListener listener : mTestListeners) {
+                listener.testStarted(mCurrentTest);
+            }
+        }
+
+        private void processTestFailure(Attributes attributes) {
+            String trace = getAttribute(attributes, "message");
             if (!trace.contains("Failed")) {
                 // For some reason, the alternative GTest format doesn't specify Failed in the
                 // trace and error doesn't show properly in reporter, so adding it here.
                 trace += "\nFailed";
             }
+            mCurrentFailed = true;
             for (ITestRunListener listener : mTestListeners) {
-                listener.testFailed(testId, trace);
+                listener.testFailed(mCurrentTest, trace);
             }
         }
 
-        Map<String, String> map = new HashMap<>();
-        map.put("runtime", parsedResults.mTestRunTime);
-        for (ITestRunListener listener : mTestListeners) {
-            listener.testEnded(testId, map);
+        private void processTestEnded() {
+            Map<String, String> map = new HashMap<>();
+            map.put("runtime", mCurrentRunTime);
+            for (ITestRunListener listener : mTestListeners) {
+                listener.testEnded(mCurrentTest, map);
+            }
+            mCurrentTest = null;
+        }
+
+        /** Ends the test being read, if any, when the xml is cut short. */
+        void reportIncompleteTest() {
+            if (mCurrentTest == null) {
+                return;
+            }
+            if (!mCurrentFailed) {
+                for (ITestRunListener listener : mTestListeners) {
+                    listener.testFailed(mCurrentTest, "Test xml output is incomplete\nFailed");
+                }
+            }
+            processTestEnded();
         }
     }
 
-    /** Internal helper struct to store parsed test info. */
-    private static class ParsedTestInfo {
-        String mTestName = null;
-        String mTestClassName = null;
-        String mTestRunTime = null;
+    /** Returns the value of an attribute, or an empty string if absent, like the DOM api. */
+    private static String getAttribute(Attributes attributes, String name) {
+        String value = attributes.getValue(name);
+        return value == null ? "" : value;
+    }
+
+    private void getTestSuitesInfo(Attributes rootNode) {
+        mNumTestsExpected = Integer.parseInt(getAttribute(rootNode, "tests"));
+        mTotalRunTime = (long) (Double.parseDouble(getAttribute(rootNode, "time")) * 1000d);
+    }
 
-        public ParsedTestInfo(String testName, String testClassName, String testRunTime) {
-            mTestName = testName;
-            mTestClassName = testClassName;
-            mTestRunTime = testRunTime;
+    /**
+     * Reports the start of a test run, and the total test count, if it has not been previously
+     * reported.
+     */
+    private void reportTestRunStarted() {
+        if (mTestRunStarted) {
+            return;
+        }
+        mTestRunStarted = true;
+        for (ITestRunListener listener : mTestListeners) {
+            listener.testRunStarted(mTestRunName, mNumTestsExpected);
         }
     }
 }
@@ -25,8 +25,10 @@ import com.android.tradefed.config.OptionCopier;
 import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.JUnit4ResultForwarder;
+import com.android.tradefed.result.TestEventBuffer;
 import com.android.tradefed.util.JUnit4TestFilter;
 import com.android.tradefed.util.TestFilterHelper;
 
@@ -59,6 +61,14 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A test runner for JUnit host based tests. If the test to be run implements {@link IDeviceTest}
@@ -129,6 +139,21 @@ public class HostTest
             description = "Shard by class or method")
     private ShardUnit mShardUnit = ShardUnit.CLASS;
 
+    enum ParallelPolicy {
+        NONE, HOST_ONLY, ALL;
+    }
+
+    @Option(name = "parallel-policy",
+            description = "Which test classes run in parallel in the host JVM. NONE runs all "
+                    + "classes sequentially, HOST_ONLY runs in parallel the classes that do not "
+                    + "receive the device, ALL runs every class in parallel.")
+    private ParallelPolicy mParallelPolicy = ParallelPolicy.NONE;
+
+    @Option(name = "parallel-threads",
+            description = "The max number of test classes running at the same time when "
+                    + "parallel-policy is not NONE.")
+    private int mParallelThreads = Runtime.getRuntime().availableProcessors();
+
     private ITestDevice mDevice;
     private IBuildInfo mBuildInfo;
     private IAbi mAbi;
@@ -399,32 +424,172 @@ public class HostTest
     }
 
     private void runTestClasses(ITestInvocationListener listener) throws DeviceNotAvailableException {
-        for (Class<?> classObj : getClasses()) {
-            if (IRemoteTest.class.isAssignableFrom(classObj)) {
-                IRemoteTest test = (IRemoteTest) loadObject(classObj);
-                applyFilters(classObj, test);
-                runRemoteTest(listener, test);
-            } else if (Test.class.isAssignableFrom(classObj)) {
-                TestSuite junitTest = collectTests(collectClasses(classObj));
-                runJUnit3Tests(listener, junitTest, classObj.getName());
-            } else if (hasJUnit4Annotation(classObj)) {
-                // Include the method name filtering
-                Set<String> includes = mFilterHelper.getIncludeFilters();
-                if (mMethodName != null) {
-                    includes.add(String.format(TEST_FULL_NAME_FORMAT, classObj.getName(),
-                            mMethodName));
+        List<Class<?>> classes = getClasses();
+        if (ParallelPolicy.NONE.equals(mParallelPolicy) || mParallelThreads < 2
+                || classes.size() < 2 || mMethodName != null) {
+            for (Class<?> classObj : classes) {
+                runTestClass(listener, classObj);
+            }
+        } else {
+            runTestClassesInParallel(listener, classes);
+        }
+    }
+
+    /**
+     * Runs the classes allowed by the parallel policy on a bounded pool of threads, and the
+     * others sequentially on the invocation thread. Each class reports to its own
+     * {@link TestEventBuffer}, flushed in the original class order, so the listener receives the
+     * test runs one after the other.
+     */
+    private void runTestClassesInParallel(ITestInvocationListener listener,
+            List<Class<?>> classes) throws DeviceNotAvailableException {
+        CLog.d("Running %d test classes with parallel-policy %s on %d threads", classes.size(),
+                mParallelPolicy, mParallelThreads);
+        ExecutorService executor = Executors.newFixedThreadPool(mParallelThreads,
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r,
+                                String.format("HostTest-parallel-%d", mCount.incrementAndGet()));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        List<TestEventBuffer> buffers = new ArrayList<>(classes.size());
+        List<Future<Void>> futures = new ArrayList<>(classes.size());
+        int next = 0;
+        try {
+            for (final Class<?> classObj : classes) {
+                final TestEventBuffer buffer = new TestEventBuffer(listener);
+                buffers.add(buffer);
+                if (canRunInParallel(classObj)) {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws DeviceNotAvailableException {
+                            runTestClass(buffer, classObj);
+                            return null;
+                        }
+                    }));
+                } else {
+                    futures.add(null);
                 }
+            }
+            for (; next < classes.size(); next++) {
+                TestEventBuffer buffer = buffers.get(next);
+                try {
+                    if (futures.get(next) == null) {
+                        // Logs of the parallel classes may reach the listener at any time, so
+                        // the sequential classes are buffered as well.
+                        runTestClass(buffer, classes.get(next));
+                    } else {
+                        futures.get(next).get();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof DeviceNotAvailableException) {
+                        throw (DeviceNotAvailableException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new RuntimeException(cause);
+                } finally {
+                    buffer.flush();
+                }
+            }
+        } finally {
+            // On failure, the classes not started yet are dropped, but the ones already running
+            // complete and their events are replayed instead of being lost.
+            for (Future<Void> future : futures) {
+                if (future != null) {
+                    future.cancel(false);
+                }
+            }
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+            }
+            for (int i = next + 1; i < buffers.size(); i++) {
+                buffers.get(i).flush();
+            }
+        }
+    }
 
-                // Running in a full JUnit4 manner, no downgrade to JUnit3 {@link Test}
-                Request req = Request.aClass(classObj);
-                req = req.filterWith(new JUnit4TestFilter(mFilterHelper));
-                Runner checkRunner = req.getRunner();
-                runJUnit4Tests(listener, checkRunner, classObj.getName());
-            } else {
-                throw new IllegalArgumentException(
-                        String.format("%s is not a supported test", classObj.getName()));
+    /**
+     * Returns true if the class can run in parallel with the other classes under the current
+     * parallel-policy.
+     */
+    @VisibleForTesting
+    boolean canRunInParallel(Class<?> classObj) {
+        switch (mParallelPolicy) {
+            case ALL:
+                return true;
+            case HOST_ONLY:
+                // A JUnit3 suite can contain anything, only its instance knows.
+                return !TestSuite.class.isAssignableFrom(classObj) && !receivesDevice(classObj);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns true if the class, its JUnit4 runner or one of its JUnit4 suite classes receives
+     * the device.
+     */
+    private boolean receivesDevice(Class<?> classObj) {
+        if (IDeviceTest.class.isAssignableFrom(classObj)) {
+            return true;
+        }
+        RunWith runWith = classObj.getAnnotation(RunWith.class);
+        if (runWith != null && IDeviceTest.class.isAssignableFrom(runWith.value())) {
+            return true;
+        }
+        SuiteClasses suiteClasses = classObj.getAnnotation(SuiteClasses.class);
+        if (suiteClasses != null) {
+            for (Class<?> child : suiteClasses.value()) {
+                if (child != classObj && receivesDevice(child)) {
+                    return true;
+                }
             }
         }
+        return false;
+    }
+
+    private void runTestClass(ITestInvocationListener listener, Class<?> classObj)
+            throws DeviceNotAvailableException {
+        if (IRemoteTest.class.isAssignableFrom(classObj)) {
+            IRemoteTest test = (IRemoteTest) loadObject(classObj);
+            applyFilters(classObj, test);
+            runRemoteTest(listener, test);
+        } else if (Test.class.isAssignableFrom(classObj)) {
+            TestSuite junitTest = collectTests(collectClasses(classObj));
+            runJUnit3Tests(listener, junitTest, classObj.getName());
+        } else if (hasJUnit4Annotation(classObj)) {
+            // Include the method name filtering
+            Set<String> includes = mFilterHelper.getIncludeFilters();
+            if (mMethodName != null) {
+                includes.add(String.format(TEST_FULL_NAME_FORMAT, classObj.getName(),
+                        mMethodName));
+            }
+
+            // Running in a full JUnit4 manner, no downgrade to JUnit3 {@link Test}
+            Request req = Request.aClass(classObj);
+            req = req.filterWith(new JUnit4TestFilter(mFilterHelper));
+            Runner checkRunner = req.getRunner();
+            runJUnit4Tests(listener, checkRunner, classObj.getName());
+        } else {
+            throw new IllegalArgumentException(
+                    String.format("%s is not a supported test", classObj.getName()));
+        }
     }
 
     private void runTestCases(ITestInvocationListener listener) throws DeviceNotAvailableException {
@@ -17,6 +17,7 @@ package com.android.tradefed.testtype;
 
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.result.SharedFileInputStreamSource;
 import com.android.tradefed.result.SnapshotInputStreamSource;
 
 import junit.framework.TestCase;
@@ -81,9 +82,18 @@ public class MetricTestCase extends TestCase {
         public LogHolder(String dataName, LogDataType dataType, InputStreamSource dataStream) {
             mDataName = dataName;
             mDataType = dataType;
-            // We hold a copy because the caller will most likely cancel the stream after.
-            mDataStream =
-                    new SnapshotInputStreamSource("LogHolder", dataStream.createInputStream());
+            // We hold a reference or a copy because the caller will most likely cancel the stream
+            // after.
+            InputStreamSource shared = null;
+            if (dataStream instanceof SharedFileInputStreamSource) {
+                shared = ((SharedFileInputStreamSource) dataStream).retain();
+            }
+            if (shared != null) {
+                mDataStream = shared;
+            } else {
+                mDataStream =
+                        new SnapshotInputStreamSource("LogHolder", dataStream.createInputStream());
+            }
         }
     }
 }
@@ -26,6 +26,7 @@ import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.util.DirectedGraph;
 import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.ZipExtractionCache;
 import com.android.tradefed.util.ZipUtil2;
 
 import org.apache.commons.compress.archivers.zip.ZipFile;
@@ -59,6 +60,14 @@ public class TfSuiteRunner extends ITestSuite {
     )
     private String mAdditionalTestsZip = null;
 
+    @Option(
+        name = "use-zip-extraction-cache",
+        description = "Link the content of additional-tests-zip from a host-wide cache of "
+                + "extracted zips, instead of extracting it on each load. The linked files are "
+                + "read-only."
+    )
+    private boolean mUseZipExtractionCache = false;
+
     private DirectedGraph<String> mLoadedConfigGraph = null;
 
     /** {@inheritDoc} */
@@ -94,8 +103,13 @@ public class TfSuiteRunner extends ITestSuite {
                             mAdditionalTestsZip);
                     ZipFile zip = null;
                     try {
-                        zip = new ZipFile(mAdditionalTestsZip);
-                        ZipUtil2.extractZip(zip, testsDir);
+                        if (mUseZipExtractionCache) {
+                            ZipExtractionCache.getDefault()
+                                    .extractTo(new File(mAdditionalTestsZip), testsDir);
+                        } else {
+                            zip = new ZipFile(mAdditionalTestsZip);
+                            ZipUtil2.extractZip(zip, testsDir);
+                        }
                     } catch (IOException e) {
                         RuntimeException runtimeException =
                                 new RuntimeException(
@@ -32,6 +32,9 @@ public class AaptParser {
     private static final Pattern PKG_PATTERN = Pattern.compile(
             "^package:\\s+name='(.*?)'\\s+versionCode='(\\d*)'\\s+versionName='(.*?)'.*$",
             Pattern.MULTILINE);
+    /** Split apks carry the name of their split on the package line. */
+    private static final Pattern SPLIT_PATTERN = Pattern.compile(
+            "^package:.*\\ssplit='(.*?)'.*$", Pattern.MULTILINE);
     private static final Pattern LABEL_PATTERN = Pattern.compile(
             "^application-label:'(.+?)'.*$",
             Pattern.MULTILINE);
@@ -51,6 +54,7 @@ public class AaptParser {
     private String mVersionName;
     private List<String> mNativeCode = new ArrayList<>();
     private String mLabel;
+    private String mSplitName;
     private int mSdkVersion = INVALID_SDK;
 
     // @VisibleForTesting
@@ -65,6 +69,10 @@ public class AaptParser {
             mLabel = mPackageName;
             mVersionCode = m.group(2);
             mVersionName = m.group(3);
+            m = SPLIT_PATTERN.matcher(aaptOut);
+            if (m.find()) {
+                mSplitName = m.group(1);
+            }
             m = LABEL_PATTERN.matcher(aaptOut);
             if (m.find()) {
                 mLabel = m.group(1);
@@ -144,4 +152,12 @@ public class AaptParser {
     public int getSdkVersion() {
         return mSdkVersion;
     }
+
+    /**
+     * Returns the name of the split if the apk is a split apk, <code>null</code> if it is a full
+     * apk.
+     */
+    public String getSplitName() {
+        return mSplitName;
+    }
 }
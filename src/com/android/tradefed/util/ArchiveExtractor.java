@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts zip and tar archives to a directory.
+ * <p/>
+ * Files are written through a {@link FileChannel}, pre-sized to the uncompressed size of their
+ * entry when known, and each parent directory is only created once. Since the central directory
+ * of a zip gives random access to its entries, zip entries can be inflated by several threads,
+ * each reading the archive through its own {@link ZipFile}; the largest entries are extracted
+ * first. Tar archives can only be read sequentially.
+ * <p/>
+ * An {@link IEntryFilter} can restrict the extraction to the entries the caller needs.
+ */
+public class ArchiveExtractor {
+
+    /** Filter selecting the archive entries to extract. */
+    public interface IEntryFilter {
+        /**
+         * Returns true if the entry should be extracted.
+         *
+         * @param entryName the name of the entry in the archive, e.g. "DATA/app/Foo.apk".
+         */
+        boolean accept(String entryName);
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int mThreads;
+    private IEntryFilter mFilter = null;
+
+    /** Creates an {@link ArchiveExtractor} extracting on the calling thread. */
+    public ArchiveExtractor() {
+        this(1);
+    }
+
+    /**
+     * Creates an {@link ArchiveExtractor}.
+     *
+     * @param threads the max number of threads extracting zip entries at the same time.
+     */
+    public ArchiveExtractor(int threads) {
+        mThreads = threads;
+    }
+
+    /**
+     * Only extract the entries accepted by the given filter.
+     *
+     * @param filter the {@link IEntryFilter}, or null to extract all entries.
+     * @return this {@link ArchiveExtractor}.
+     */
+    public ArchiveExtractor setFilter(IEntryFilter filter) {
+        mFilter = filter;
+        return this;
+    }
+
+    private boolean accept(String entryName) {
+        return mFilter == null || mFilter.accept(entryName);
+    }
+
+    /**
+     * Extracts a zip file to a directory, using the configured number of threads.
+     *
+     * @param zip the zip file to extract.
+     * @param destDir the directory to extract to.
+     * @return the extracted files and directories, in the order of the zip entries.
+     * @throws IOException if the zip cannot be read or a file cannot be written.
+     */
+    public List<File> extractZip(final File zip, final File destDir) throws IOException {
+        List<File> extracted = new ArrayList<>();
+        final List<ZipArchiveEntry> fileEntries = new ArrayList<>();
+        List<ZipArchiveEntry> dirEntries = new ArrayList<>();
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            prepareZip(zipFile, destDir, fileEntries, dirEntries, extracted);
+            if (mThreads <= 1 || fileEntries.size() <= 1) {
+                extractZipEntries(zipFile, fileEntries, new AtomicInteger(), destDir);
+                applyDirModes(dirEntries, destDir);
+                return extracted;
+            }
+        }
+        // Extract the largest entries first, so one large entry does not end up alone at the end
+        Collections.sort(fileEntries, new Comparator<ZipArchiveEntry>() {
+            @Override
+            public int compare(ZipArchiveEntry e1, ZipArchiveEntry e2) {
+                return Long.compare(e2.getCompressedSize(), e1.getCompressedSize());
+            }
+        });
+        final AtomicInteger next = new AtomicInteger();
+        int poolSize = Math.min(mThreads, fileEntries.size());
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+        try {
+            List<Future<Void>> futures = new ArrayList<>(poolSize);
+            for (int i = 0; i < poolSize; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        try (ZipFile zipFile = new ZipFile(zip)) {
+                            extractZipEntries(zipFile, fileEntries, next, destDir);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while extracting " + zip.getAbsolutePath(), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(
+                    String.format("Failed to extract %s", zip.getAbsolutePath()), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        applyDirModes(dirEntries, destDir);
+        return extracted;
+    }
+
+    /**
+     * Extracts an already opened zip file to a directory, on the calling thread.
+     *
+     * @param zipFile the {@link ZipFile} to extract.
+     * @param destDir the directory to extract to.
+     * @return the extracted files and directories, in the order of the zip entries.
+     * @throws IOException if a file cannot be written.
+     */
+    public List<File> extractZip(ZipFile zipFile, File destDir) throws IOException {
+        List<File> extracted = new ArrayList<>();
+        List<ZipArchiveEntry> fileEntries = new ArrayList<>();
+        List<ZipArchiveEntry> dirEntries = new ArrayList<>();
+        prepareZip(zipFile, destDir, fileEntries, dirEntries, extracted);
+        extractZipEntries(zipFile, fileEntries, new AtomicInteger(), destDir);
+        applyDirModes(dirEntries, destDir);
+        return extracted;
+    }
+
+    /**
+     * Lists the accepted entries of the zip and creates all the directories needed to extract
+     * them.
+     */
+    private void prepareZip(ZipFile zipFile, File destDir, List<ZipArchiveEntry> fileEntries,
+            List<ZipArchiveEntry> dirEntries, List<File> extracted) throws IOException {
+        Set<File> dirs = new HashSet<>();
+        Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
+        while (entries.hasMoreElements()) {
+            ZipArchiveEntry entry = entries.nextElement();
+            if (!accept(entry.getName())) {
+                continue;
+            }
+            File childFile = new File(destDir, entry.getName());
+            if (entry.isDirectory()) {
+                createDir(childFile, dirs);
+                dirEntries.add(entry);
+            } else {
+                createDir(childFile.getParentFile(), dirs);
+                fileEntries.add(entry);
+            }
+            extracted.add(childFile);
+        }
+    }
+
+    /**
+     * Extracts the file entries of the list, taking the index of the next entry to extract from
+     * a counter shared with the other extracting threads.
+     */
+    private static void extractZipEntries(ZipFile zipFile, List<ZipArchiveEntry> entries,
+            AtomicInteger next, File destDir) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        int index;
+        while ((index = next.getAndIncrement()) < entries.size()) {
+            // Entries may come from another ZipFile of the same archive: look them up by name.
+            ZipArchiveEntry entry = zipFile.getEntry(entries.get(index).getName());
+            File childFile = new File(destDir, entry.getName());
+            try (InputStream in = zipFile.getInputStream(entry)) {
+                writeEntry(in, childFile, entry.getSize(), buffer);
+            }
+            applyUnixModeIfNecessary(entry, childFile);
+        }
+    }
+
+    /** Apply the directory modes once their content is extracted. */
+    private static void applyDirModes(List<ZipArchiveEntry> dirEntries, File destDir)
+            throws IOException {
+        for (ZipArchiveEntry entry : dirEntries) {
+            applyUnixModeIfNecessary(entry, new File(destDir, entry.getName()));
+        }
+    }
+
+    /**
+     * Extracts a tar file to a directory.
+     *
+     * @param tar the tar file to extract. tar.gz files need to be ungzipped first.
+     * @param destDir the directory to extract to.
+     * @return the extracted files and directories, in the order of the tar entries.
+     * @throws IOException if the tar cannot be read or a file cannot be written.
+     */
+    public List<File> extractTar(File tar, File destDir) throws IOException {
+        List<File> extracted = new ArrayList<>();
+        Set<File> dirs = new HashSet<>();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (InputStream is = new FileInputStream(tar);
+                TarArchiveInputStream tarStream = (TarArchiveInputStream)
+                        new ArchiveStreamFactory().createArchiveInputStream("tar", is)) {
+            TarArchiveEntry entry = null;
+            while ((entry = tarStream.getNextTarEntry()) != null) {
+                if (!accept(entry.getName())) {
+                    continue;
+                }
+                File outputFile = new File(destDir, entry.getName());
+                if (entry.isDirectory()) {
+                    createDir(outputFile, dirs);
+                } else {
+                    createDir(outputFile.getParentFile(), dirs);
+                    writeEntry(tarStream, outputFile, entry.getSize(), buffer);
+                }
+                extracted.add(outputFile);
+            }
+        } catch (ArchiveException ae) {
+            // We rethrow the ArchiveException through a more generic one.
+            throw new IOException(ae);
+        }
+        CLog.d("Extracted %d entries from %s", extracted.size(), tar.getAbsolutePath());
+        return extracted;
+    }
+
+    /** Creates a directory and its parents, unless it was already created. */
+    private static void createDir(File dir, Set<File> createdDirs) throws IOException {
+        if (createdDirs.add(dir) && !dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException(
+                    String.format("Couldn't create directory %s.", dir.getAbsolutePath()));
+        }
+    }
+
+    /**
+     * Writes the content of an entry to a file through a {@link FileChannel}. The stream is not
+     * closed.
+     *
+     * @param in the stream of the entry content.
+     * @param destFile the file to write, replaced if it exists.
+     * @param size the uncompressed size of the entry, or a negative value if unknown.
+     * @param buffer the buffer to copy through.
+     * @return the number of bytes written.
+     */
+    @VisibleForTesting
+    static long writeEntry(InputStream in, File destFile, long size, ByteBuffer buffer)
+            throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(destFile, "rw");
+                FileChannel channel = file.getChannel()) {
+            if (size >= 0) {
+                // Pre-size the file to limit fragmentation and metadata updates
+                file.setLength(size);
+            }
+            ReadableByteChannel source = Channels.newChannel(in);
+            long written = 0;
+            buffer.clear();
+            while (source.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer);
+                }
+                buffer.clear();
+            }
+            if (channel.size() != written) {
+                channel.truncate(written);
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Apply the unix mode from a {@link ZipArchiveEntry} to the extracted file if the entry has
+     * one.
+     */
+    static void applyUnixModeIfNecessary(ZipArchiveEntry entry, File localFile)
+            throws IOException {
+        // Entries without unix mode keep the default permissions, this is not logged since it
+        // applies to every entry of such zips.
+        if (entry.getPlatform() == ZipArchiveEntry.PLATFORM_UNIX) {
+            Files.setPosixFilePermissions(localFile.toPath(),
+                    FileUtil.unixModeToPosix(entry.getUnixMode()));
+        }
+    }
+}
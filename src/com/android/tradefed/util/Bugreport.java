@@ -64,6 +64,14 @@ public class Bugreport implements Closeable {
         source.cancel();
     }
 
+    /**
+     * Return the {@link File} of the bugreport itself, the zip for a zipped bugreport. The file is
+     * owned by this object and deleted by {@link #close()}.
+     */
+    public File getFile() {
+        return mBugreport;
+    }
+
     /**
      * Return a {@link File} pointing to the bugreport main file. For a flat bugreport, it returns
      * the flat bugreport itself. For a zipped bugreport, it returns the main entry file.
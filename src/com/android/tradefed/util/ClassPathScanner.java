@@ -20,11 +20,15 @@ import com.android.ddmlib.Log;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.JarFile;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
@@ -33,12 +37,33 @@ import java.util.zip.ZipEntry;
  * Finds entries on classpath.
  *
  * <p>Adapted from vogar.target.ClassPathScanner</p>
+ * <p/>
+ * The entry names of each jar are read once per process and kept in a sorted index, which is
+ * reused as long as the size and modification time of the jar are unchanged. Prefix queries only
+ * visit the matching range of the index.
  */
 public class ClassPathScanner {
 
     private static final String LOG_TAG = "ClassPathScanner";
+
+    /** Map of jar absolute path to its sorted entry names, shared by all scanners */
+    private static final Map<String, JarIndex> sJarIndexes = new ConcurrentHashMap<>();
+
     private String[] mClassPath;
 
+    /** The sorted entry names of a jar, along with the jar attributes they were read from. */
+    private static class JarIndex {
+        final long mLength;
+        final long mModifiedTime;
+        final String[] mEntryNames;
+
+        JarIndex(long length, long modifiedTime, String[] entryNames) {
+            mLength = length;
+            mModifiedTime = modifiedTime;
+            mEntryNames = entryNames;
+        }
+    }
+
     /**
      * A filter for classpath entry paths
      * <p/>
@@ -112,19 +137,62 @@ public class ClassPathScanner {
      */
     public Set<String> getEntriesFromJar(File plainFile, IClassPathFilter filter)
             throws IOException {
+        return getEntriesFromJar(plainFile, "", filter);
+    }
+
+    /**
+     * Gets the names of all entries contained in given jar file, that start with the given prefix
+     * and match given filter
+     * @throws IOException
+     */
+    public Set<String> getEntriesFromJar(File plainFile, String prefix, IClassPathFilter filter)
+            throws IOException {
         Set<String> entryNames = new LinkedHashSet<String>();
-        JarFile jarFile = new JarFile(plainFile);
-        for (Enumeration<? extends ZipEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
-            String entryName = e.nextElement().getName();
-            if (filter.accept(entryName)) {
-                entryNames.add(filter.transform(entryName));
+        String[] allNames = getJarEntryNames(plainFile);
+        int index = Arrays.binarySearch(allNames, prefix);
+        if (index < 0) {
+            index = -(index + 1);
+        }
+        for (; index < allNames.length && allNames[index].startsWith(prefix); index++) {
+            if (filter.accept(allNames[index])) {
+                entryNames.add(filter.transform(allNames[index]));
             }
-            entryName = null;
         }
-        jarFile.close();
         return entryNames;
     }
 
+    /**
+     * Gets the sorted names of all entries of a jar, reading the jar only if it changed since it
+     * was last indexed.
+     */
+    private static String[] getJarEntryNames(File plainFile) throws IOException {
+        String key = plainFile.getAbsolutePath();
+        long length = plainFile.length();
+        long modifiedTime = plainFile.lastModified();
+        JarIndex jarIndex = sJarIndexes.get(key);
+        if (jarIndex != null && jarIndex.mLength == length
+                && jarIndex.mModifiedTime == modifiedTime) {
+            return jarIndex.mEntryNames;
+        }
+        List<String> names = new ArrayList<>();
+        try (JarFile jarFile = new JarFile(plainFile)) {
+            for (Enumeration<? extends ZipEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
+                names.add(e.nextElement().getName());
+            }
+        }
+        String[] entryNames = names.toArray(new String[names.size()]);
+        Arrays.sort(entryNames);
+        sJarIndexes.put(key, new JarIndex(length, modifiedTime, entryNames));
+        return entryNames;
+    }
+
+    /**
+     * Forget the indexed jar entries. Exposed for testing.
+     */
+    static void clearJarIndexes() {
+        sJarIndexes.clear();
+    }
+
     /**
      * Gets the names of all entries contained in given class path directory, that match given
      * filter
@@ -132,8 +200,32 @@ public class ClassPathScanner {
      */
     public Set<String> getEntriesFromDir(File classPathDir, IClassPathFilter filter)
             throws IOException {
+        return getEntriesFromDir(classPathDir, "", filter);
+    }
+
+    /**
+     * Gets the names of all entries contained in given class path directory, that start with the
+     * given prefix and match given filter. Only the sub directory matching the prefix is scanned.
+     * @throws IOException
+     */
+    public Set<String> getEntriesFromDir(File classPathDir, String prefix,
+            IClassPathFilter filter) throws IOException {
         Set<String> entryNames = new LinkedHashSet<String>();
-        getEntriesFromDir(classPathDir, entryNames, new LinkedList<String>(), filter);
+        // scan from the deepest directory fully named by the prefix
+        List<String> rootPath = new LinkedList<String>();
+        File dir = classPathDir;
+        int start = 0;
+        int end;
+        while ((end = prefix.indexOf('/', start)) >= 0) {
+            String element = prefix.substring(start, end);
+            rootPath.add(element + "/");
+            dir = new File(dir, element);
+            start = end + 1;
+        }
+        if (!dir.isDirectory()) {
+            return entryNames;
+        }
+        getEntriesFromDir(dir, entryNames, rootPath, new PrefixFilter(prefix, filter));
         return entryNames;
     }
 
@@ -174,6 +266,30 @@ public class ClassPathScanner {
         }
     }
 
+    /**
+     * A {@link IClassPathFilter} that only accepts entries starting with a prefix, and delegates
+     * to another filter.
+     */
+    private static class PrefixFilter implements IClassPathFilter {
+        private final String mPrefix;
+        private final IClassPathFilter mFilter;
+
+        PrefixFilter(String prefix, IClassPathFilter filter) {
+            mPrefix = prefix;
+            mFilter = filter;
+        }
+
+        @Override
+        public boolean accept(String pathName) {
+            return pathName.startsWith(mPrefix) && mFilter.accept(pathName);
+        }
+
+        @Override
+        public String transform(String pathName) {
+            return mFilter.transform(pathName);
+        }
+    }
+
     /**
      * Construct a relative class path path for the given class path file
      *
@@ -194,14 +310,22 @@ public class ClassPathScanner {
      * Retrieves set of classpath entries that match given {@link IClassPathFilter}
      */
     public Set<String> getClassPathEntries(IClassPathFilter filter) {
+        return getClassPathEntries("", filter);
+    }
+
+    /**
+     * Retrieves set of classpath entries that start with the given prefix, e.g. "config/suite/",
+     * and match given {@link IClassPathFilter}
+     */
+    public Set<String> getClassPathEntries(String prefix, IClassPathFilter filter) {
         Set<String> entryNames = new LinkedHashSet<String>();
         for (String classPathElement : mClassPath) {
             File classPathFile = new File(classPathElement);
             try {
                 if (classPathFile.isFile() && classPathElement.endsWith(".jar")) {
-                    entryNames.addAll(getEntriesFromJar(classPathFile, filter));
+                    entryNames.addAll(getEntriesFromJar(classPathFile, prefix, filter));
                 } else if (classPathFile.isDirectory()) {
-                    entryNames.addAll(getEntriesFromDir(classPathFile, filter));
+                    entryNames.addAll(getEntriesFromDir(classPathFile, prefix, filter));
                 } else {
                     Log.w(LOG_TAG, String.format(
                             "class path entry %s does not exist or is not recognized, skipping",
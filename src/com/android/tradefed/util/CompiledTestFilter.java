@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedElement;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A read-only, pre-processed form of the filters of a {@link TestFilterHelper}, that can be
+ * queried repeatedly without allocating.
+ * <p>
+ * Name filters are indexed by package or class name, with the method filters nested under their
+ * class, so a test method is matched without building its "class#method" name. Include
+ * annotations are resolved to a bit mask once per class or method, and class lookups by name are
+ * memoized. Instances are safe to query from several threads.
+ * </p>
+ */
+public class CompiledTestFilter {
+
+    private static final String METHOD_SEPARATOR = "#";
+
+    /** Annotation information of one class or method, resolved against the filters. */
+    static class AnnotationInfo {
+        final long[] mIncludeMask;
+        final boolean mExcluded;
+
+        AnnotationInfo(long[] includeMask, boolean excluded) {
+            mIncludeMask = includeMask;
+            mExcluded = excluded;
+        }
+    }
+
+    /** One node of the name index: a package, a class, or a method of a class. */
+    private static class Node {
+        boolean mIncluded = false;
+        boolean mExcluded = false;
+        Map<String, Node> mMethods = null;
+    }
+
+    private final Map<String, Node> mNames = new HashMap<>();
+    private final boolean mHasIncludeFilters;
+    private final Map<String, Integer> mIncludeAnnotationBits = new HashMap<>();
+    private final Set<String> mExcludeAnnotations;
+    private final long[] mRequiredMask;
+
+    private final Map<AnnotatedElement, AnnotationInfo> mAnnotationCache =
+            new ConcurrentHashMap<>();
+    private final Map<String, Class<?>> mClassCache = new ConcurrentHashMap<>();
+    private final Map<Class<?>, String> mPackageCache = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a {@link CompiledTestFilter} from a copy of the given filters.
+     *
+     * @param includeFilters the include filters: package, class or class#method names.
+     * @param excludeFilters the exclude filters: package, class or class#method names.
+     * @param includeAnnotations the annotations a test must all have to run.
+     * @param excludeAnnotations the annotations that prevent a test from running.
+     */
+    public CompiledTestFilter(Collection<String> includeFilters, Collection<String> excludeFilters,
+            Collection<String> includeAnnotations, Collection<String> excludeAnnotations) {
+        for (String filter : includeFilters) {
+            getOrCreateNode(filter).mIncluded = true;
+        }
+        for (String filter : excludeFilters) {
+            getOrCreateNode(filter).mExcluded = true;
+        }
+        mHasIncludeFilters = !includeFilters.isEmpty();
+        for (String annotation : includeAnnotations) {
+            if (!mIncludeAnnotationBits.containsKey(annotation)) {
+                mIncludeAnnotationBits.put(annotation, mIncludeAnnotationBits.size());
+            }
+        }
+        mRequiredMask = new long[maskLength()];
+        for (int bit : mIncludeAnnotationBits.values()) {
+            mRequiredMask[bit / 64] |= 1L << (bit % 64);
+        }
+        mExcludeAnnotations = new HashSet<>(excludeAnnotations);
+    }
+
+    private Node getOrCreateNode(String filter) {
+        int index = filter.indexOf(METHOD_SEPARATOR);
+        String name = index < 0 ? filter : filter.substring(0, index);
+        Node node = mNames.get(name);
+        if (node == null) {
+            node = new Node();
+            mNames.put(name, node);
+        }
+        if (index < 0) {
+            return node;
+        }
+        String method = filter.substring(index + 1);
+        if (node.mMethods == null) {
+            node.mMethods = new HashMap<>();
+        }
+        Node methodNode = node.mMethods.get(method);
+        if (methodNode == null) {
+            methodNode = new Node();
+            node.mMethods.put(method, methodNode);
+        }
+        return methodNode;
+    }
+
+    private Node getMethodNode(String className, String methodName) {
+        Node classNode = mNames.get(className);
+        if (classNode == null || classNode.mMethods == null || methodName == null) {
+            return null;
+        }
+        return classNode.mMethods.get(methodName);
+    }
+
+    /** Returns true if the package, class or method is matched by an exclude filter. */
+    public boolean isExcludedByName(String packageName, String className, String methodName) {
+        Node node = mNames.get(packageName);
+        if (node != null && node.mExcluded) {
+            return true;
+        }
+        node = mNames.get(className);
+        if (node != null && node.mExcluded) {
+            return true;
+        }
+        node = getMethodNode(className, methodName);
+        return node != null && node.mExcluded;
+    }
+
+    /**
+     * Returns true if there are no include filters, or if the package, class or method is
+     * matched by one of them.
+     */
+    public boolean isIncludedByName(String packageName, String className, String methodName) {
+        if (!mHasIncludeFilters) {
+            return true;
+        }
+        Node node = getMethodNode(className, methodName);
+        if (node != null && node.mIncluded) {
+            return true;
+        }
+        node = mNames.get(className);
+        if (node != null && node.mIncluded) {
+            return true;
+        }
+        node = mNames.get(packageName);
+        return node != null && node.mIncluded;
+    }
+
+    /** Returns true if there are include annotations to match. */
+    public boolean hasIncludeAnnotations() {
+        return !mIncludeAnnotationBits.isEmpty();
+    }
+
+    /** Returns the memoized {@link AnnotationInfo} of a class or a method. */
+    AnnotationInfo getAnnotationInfo(AnnotatedElement element) {
+        AnnotationInfo info = mAnnotationCache.get(element);
+        if (info == null) {
+            info = resolve(element.getAnnotations());
+            mAnnotationCache.put(element, info);
+        }
+        return info;
+    }
+
+    /**
+     * Returns true if the annotations do not match an exclude annotation and hold all the include
+     * annotations. Unlike {@link #getAnnotationInfo}, nothing is cached or allocated, since the
+     * annotations of a {@link org.junit.runner.Description} are queried once per test.
+     */
+    boolean matchesAnnotations(Collection<Annotation> annotations) {
+        // the annotations of an element have distinct types, so counting the include annotations
+        // found is enough to know if they are all present.
+        int included = 0;
+        if (annotations instanceof List && annotations instanceof RandomAccess) {
+            List<Annotation> list = (List<Annotation>) annotations;
+            for (int i = 0; i < list.size(); i++) {
+                int match = matchAnnotation(list.get(i));
+                if (match < 0) {
+                    return false;
+                }
+                included += match;
+            }
+        } else {
+            for (Annotation a : annotations) {
+                int match = matchAnnotation(a);
+                if (match < 0) {
+                    return false;
+                }
+                included += match;
+            }
+        }
+        return included == mIncludeAnnotationBits.size();
+    }
+
+    /** Returns -1 if the annotation is excluded, 1 if it is included, 0 otherwise. */
+    private int matchAnnotation(Annotation a) {
+        String name = a.annotationType().getName();
+        if (mExcludeAnnotations.contains(name)) {
+            return -1;
+        }
+        return mIncludeAnnotationBits.containsKey(name) ? 1 : 0;
+    }
+
+    private AnnotationInfo resolve(Annotation[] annotations) {
+        long[] mask = new long[maskLength()];
+        boolean excluded = false;
+        for (Annotation a : annotations) {
+            String name = a.annotationType().getName();
+            if (mExcludeAnnotations.contains(name)) {
+                excluded = true;
+            }
+            Integer bit = mIncludeAnnotationBits.get(name);
+            if (bit != null) {
+                mask[bit / 64] |= 1L << (bit % 64);
+            }
+        }
+        return new AnnotationInfo(mask, excluded);
+    }
+
+    /** Returns true if the element has all the include annotations, or if there are none. */
+    boolean isIncluded(AnnotationInfo info) {
+        for (int i = 0; i < mRequiredMask.length; i++) {
+            if ((info.mIncludeMask[i] & mRequiredMask[i]) != mRequiredMask[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the {@link Class} of the given name, loading it only the first time.
+     *
+     * @throws ClassNotFoundException if the class cannot be loaded.
+     */
+    public Class<?> loadClass(String className) throws ClassNotFoundException {
+        Class<?> classObj = mClassCache.get(className);
+        if (classObj == null) {
+            classObj = Class.forName(className);
+            mClassCache.put(className, classObj);
+        }
+        return classObj;
+    }
+
+    /** Returns the memoized package name of the class. */
+    public String getPackageName(Class<?> classObj) {
+        String packageName = mPackageCache.get(classObj);
+        if (packageName == null) {
+            packageName = classObj.getPackage() != null ? classObj.getPackage().getName() : "";
+            mPackageCache.put(classObj, packageName);
+        }
+        return packageName;
+    }
+
+    private int maskLength() {
+        return (mIncludeAnnotationBits.size() + 63) / 64;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An in-memory index of the file names under directory trees.
+ * <p/>
+ * Each directory listing is kept along with the modification time of the directory, which changes
+ * whenever an entry is added, removed or renamed in it. Repeated queries only stat the directories
+ * of the tree and list again the ones that changed, instead of walking every file.
+ * <p/>
+ * Directories modified less than {@link #RACY_WINDOW_MS} before they were listed are listed again
+ * on the next query, since a change within the same timestamp tick would go unnoticed.
+ * <p/>
+ * Symbolic links are not followed, like {@link Files#walk}.
+ */
+public class FileTreeIndex {
+
+    /** The window within which a directory modification time is not trusted. */
+    static final long RACY_WINDOW_MS = 2 * 1000;
+
+    private static FileTreeIndex sDefaultIndex = null;
+
+    /** Map of absolute directory path to its last listing */
+    private final Map<String, DirListing> mListings = new HashMap<>();
+
+    /** The listing of a single directory. */
+    private static class DirListing {
+        FileTime mModifiedTime;
+        long mListedTime;
+        final List<String> mFileNames = new ArrayList<>();
+        final List<String> mDirNames = new ArrayList<>();
+    }
+
+    /**
+     * Get the process-wide {@link FileTreeIndex}.
+     */
+    public static synchronized FileTreeIndex getDefault() {
+        if (sDefaultIndex == null) {
+            sDefaultIndex = new FileTreeIndex();
+        }
+        return sDefaultIndex;
+    }
+
+    /**
+     * Get the absolute paths of all the files under <var>dir</var> with a name ending with one of
+     * the given suffixes.
+     *
+     * @param dir the root {@link File} directory to search recursively.
+     * @param suffixes the file name suffixes to match, e.g. ".config". If none are given, all the
+     *            files are returned.
+     * @return the {@link Set} of absolute file paths. Empty if <var>dir</var> is not a directory.
+     */
+    public synchronized Set<String> findFiles(File dir, String... suffixes) {
+        Set<String> files = new LinkedHashSet<>();
+        findFiles(dir.getAbsoluteFile().toPath(), suffixes, files);
+        return files;
+    }
+
+    /**
+     * Forget all the listings.
+     */
+    public synchronized void clear() {
+        mListings.clear();
+    }
+
+    private void findFiles(Path dir, String[] suffixes, Set<String> files) {
+        DirListing listing = getListing(dir);
+        if (listing == null) {
+            return;
+        }
+        for (String name : listing.mFileNames) {
+            if (matches(name, suffixes)) {
+                files.add(dir.resolve(name).toString());
+            }
+        }
+        for (String name : listing.mDirNames) {
+            findFiles(dir.resolve(name), suffixes, files);
+        }
+    }
+
+    private static boolean matches(String name, String[] suffixes) {
+        if (suffixes.length == 0) {
+            return true;
+        }
+        for (String suffix : suffixes) {
+            if (name.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the up to date listing of a directory, listing it again if it changed.
+     *
+     * @return the {@link DirListing} or null if the directory does not exist anymore.
+     */
+    private DirListing getListing(Path dir) {
+        String key = dir.toString();
+        FileTime modifiedTime;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(
+                    dir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (!attrs.isDirectory()) {
+                removeListing(key);
+                return null;
+            }
+            modifiedTime = attrs.lastModifiedTime();
+        } catch (IOException e) {
+            removeListing(key);
+            return null;
+        }
+        DirListing listing = mListings.get(key);
+        if (listing != null && listing.mModifiedTime.equals(modifiedTime)
+                && modifiedTime.toMillis() + RACY_WINDOW_MS < listing.mListedTime) {
+            return listing;
+        }
+        DirListing newListing = new DirListing();
+        newListing.mModifiedTime = modifiedTime;
+        newListing.mListedTime = getCurrentTime();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path child : stream) {
+                BasicFileAttributes attrs = Files.readAttributes(
+                        child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                String name = child.getFileName().toString();
+                if (attrs.isDirectory()) {
+                    newListing.mDirNames.add(name);
+                } else {
+                    newListing.mFileNames.add(name);
+                }
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to list directory %s: %s", dir, e.getMessage());
+            removeListing(key);
+            return null;
+        }
+        if (listing != null) {
+            // drop the listings of the sub directories that are gone
+            for (String name : listing.mDirNames) {
+                if (!newListing.mDirNames.contains(name)) {
+                    removeListing(dir.resolve(name).toString());
+                }
+            }
+        }
+        mListings.put(key, newListing);
+        return newListing;
+    }
+
+    /**
+     * Remove the listing of a directory and of all its sub directories.
+     */
+    private void removeListing(String key) {
+        if (mListings.remove(key) == null) {
+            return;
+        }
+        String prefix = key + File.separator;
+        Iterator<String> it = mListings.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Get the number of directory listings held. Exposed for testing.
+     */
+    @VisibleForTesting
+    synchronized int getListingCount() {
+        return mListings.size();
+    }
+
+    /**
+     * Get the current time in ms. Exposed for testing.
+     */
+    @VisibleForTesting
+    long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+}
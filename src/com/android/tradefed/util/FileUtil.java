@@ -32,6 +32,7 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermission;
@@ -500,6 +501,58 @@ public class FileUtil {
         writeToFile(new FileInputStream(origFile), destFile);
     }
 
+    /**
+     * A helper method that transfers the contents of a file, from a position to its end, to a
+     * channel. The data is copied by the OS when possible, and does not go through the heap.
+     *
+     * @param origFile the file to transfer
+     * @param position the position in the file to start from
+     * @param dest the {@link FileChannel} to write to
+     * @return the number of bytes transferred
+     * @throws IOException if failed to transfer the file
+     */
+    public static long transferFile(File origFile, long position, FileChannel dest)
+            throws IOException {
+        try (FileInputStream input = new FileInputStream(origFile)) {
+            FileChannel channel = input.getChannel();
+            long size = channel.size();
+            long pos = position;
+            while (pos < size) {
+                long count = channel.transferTo(pos, size - pos, dest);
+                if (count <= 0) {
+                    // file was truncated under us
+                    break;
+                }
+                pos += count;
+            }
+            return Math.max(0, pos - position);
+        }
+    }
+
+    /**
+     * A helper method that hardlinks a file to a destination, or copies it if the link fails,
+     * e.g. across filesystem boundaries. Unlike {@link #hardlinkFile(File, File)}, no process is
+     * forked. The destination is replaced if it exists.
+     * <p/>
+     * Callers must not modify the original file once linked, since both files share the data.
+     *
+     * @param origFile the original file
+     * @param destFile the destination file
+     * @throws IOException if failed to link or copy the file
+     */
+    public static void linkOrCopyFile(File origFile, File destFile) throws IOException {
+        Files.deleteIfExists(destFile.toPath());
+        try {
+            Files.createLink(destFile.toPath(), origFile.toPath());
+            return;
+        } catch (IOException | UnsupportedOperationException e) {
+            CLog.d("Failed to hardlink %s, copying it instead: %s", origFile, e.getMessage());
+        }
+        try (FileOutputStream output = new FileOutputStream(destFile)) {
+            transferFile(origFile, 0, output.getChannel());
+        }
+    }
+
     /**
      * Recursively copy folder contents.
      * <p/>
@@ -19,28 +19,113 @@ import com.android.tradefed.log.LogUtil.CLog;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.PriorityQueue;
 
-/** Helper class to parse info from an Allocation Sites section of hprof reports. */
+/**
+ * Helper class to parse info from an Allocation Sites section of hprof reports.
+ * <p/>
+ * The report is read line by line and only the columns needed are tokenized. A parser created
+ * with a max number of sites only keeps the sites with the most allocated bytes, so memory does
+ * not grow with the report.
+ */
 public class HprofAllocSiteParser {
 
     private static final String ALLOC_SITES_START_PATTERN = "SITES BEGIN";
     private static final String ALLOC_SITES_END_PATTERN = "SITES END";
+
+    /** An allocation site of the report. */
+    public static class AllocSite {
+        private final int mRank;
+        private final long mLiveBytes;
+        private final long mAllocBytes;
+        private final long mAllocObjects;
+        private final String mClassName;
+
+        AllocSite(int rank, long liveBytes, long allocBytes, long allocObjects,
+                String className) {
+            mRank = rank;
+            mLiveBytes = liveBytes;
+            mAllocBytes = allocBytes;
+            mAllocObjects = allocObjects;
+            mClassName = className;
+        }
+
+        /** Get the rank of the site in the report. */
+        public int getRank() {
+            return mRank;
+        }
+
+        /** Get the bytes of the live objects allocated by the site. */
+        public long getLiveBytes() {
+            return mLiveBytes;
+        }
+
+        /** Get the total bytes allocated by the site. */
+        public long getAllocBytes() {
+            return mAllocBytes;
+        }
+
+        /** Get the number of objects allocated by the site. */
+        public long getAllocObjects() {
+            return mAllocObjects;
+        }
+
+        /** Get the name of the class allocated. */
+        public String getClassName() {
+            return mClassName;
+        }
+    }
+
+    private static final Comparator<AllocSite> ALLOC_BYTES_ORDER = new Comparator<AllocSite>() {
+        @Override
+        public int compare(AllocSite a, AllocSite b) {
+            int res = Long.compare(a.mAllocBytes, b.mAllocBytes);
+            if (res == 0) {
+                // Prefer the better ranked site when equal
+                res = Integer.compare(b.mRank, a.mRank);
+            }
+            return res;
+        }
+    };
+
+    private final int mMaxSites;
     private boolean mHasAllocSiteStarted = false;
+    /** Min-heap of the sites kept, the site with the fewest allocated bytes first. */
+    private PriorityQueue<AllocSite> mTopSites;
+    private int mSiteCount = 0;
+    private final long[] mFields = new long[7];
+
     // format:
     //            percent          live          alloc'ed  stack class
     //   rank   self  accum     bytes objs     bytes  objs trace name
     //      1 12.24% 12.24%  12441616    1  12441616     1 586322 byte[]
-    private static final Pattern RANK_PATTERN =
-            Pattern.compile(
-                    "(\\s+)([0-9]*)(\\s+)([0-9]*\\.?[0-9]+%)(\\s+)([0-9]*\\.?[0-9]+%)(\\s+)"
-                            + "([0-9]+)(\\s+)([0-9]+)(\\s+)([0-9]+)(\\s+)([0-9]+)(\\s+)([0-9]+)"
-                            + "(\\s+)(.*)");
+
+    /** Creates a {@link HprofAllocSiteParser} reporting all the sites. */
+    public HprofAllocSiteParser() {
+        mMaxSites = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Creates a {@link HprofAllocSiteParser}.
+     *
+     * @param maxSites the number of sites with the most allocated bytes to report.
+     */
+    public HprofAllocSiteParser(int maxSites) {
+        if (maxSites < 1) {
+            throw new IllegalArgumentException("maxSites must be positive");
+        }
+        mMaxSites = maxSites;
+    }
 
     /**
      * Parse a text hprof report.
@@ -49,50 +134,113 @@ public class HprofAllocSiteParser {
      * @return a Map containing the results
      */
     public Map<String, String> parse(File hprofReport) throws IOException {
-        Map<String, String> results = new HashMap<>();
         if (hprofReport == null || !hprofReport.exists()) {
-            return results;
+            return new HashMap<>();
         }
-        internalParse(hprofReport, results);
+        mHasAllocSiteStarted = false;
+        mTopSites = new PriorityQueue<>(ALLOC_BYTES_ORDER);
+        mSiteCount = 0;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                new FileInputStream(hprofReport), StandardCharsets.UTF_8))) {
+            for (String line; (line = br.readLine()) != null; ) {
+                handleAllocSites(line);
+            }
+        }
+        Map<String, String> results = new HashMap<>();
+        for (AllocSite site : mTopSites) {
+            results.put(String.format("Rank%d", site.mRank), Long.toString(site.mAllocBytes));
+        }
+        CLog.d("Parsed %d allocation sites, reporting %d", mSiteCount, results.size());
         return results;
     }
 
     /**
-     * Actual parsing line by line of the report to extract information.
-     *
-     * @param report the {@link File} containing the hprof report.
-     * @param currentRes the {@link Map} where the allocation sites will be stored.
+     * Get the sites kept by the last parse, the most allocated bytes first.
      */
-    private void internalParse(File report, Map<String, String> currentRes) throws IOException {
-        try (BufferedReader br = new BufferedReader(new FileReader(report))) {
-            for (String line; (line = br.readLine()) != null; ) {
-                handleAllocSites(line, currentRes);
-            }
+    public List<AllocSite> getTopSites() {
+        if (mTopSites == null) {
+            return new ArrayList<>();
         }
+        List<AllocSite> sites = new ArrayList<>(mTopSites);
+        Collections.sort(sites, Collections.reverseOrder(ALLOC_BYTES_ORDER));
+        return sites;
     }
 
     /** Handles the allocation sites in the hprof report. */
-    private void handleAllocSites(String line, Map<String, String> currentRes) {
+    private void handleAllocSites(String line) {
         if (line.startsWith(ALLOC_SITES_START_PATTERN)) {
             mHasAllocSiteStarted = true;
         } else if (line.startsWith(ALLOC_SITES_END_PATTERN)) {
             mHasAllocSiteStarted = false;
         } else if (mHasAllocSiteStarted) {
-            Matcher m = RANK_PATTERN.matcher(line);
-            if (m.find()) {
-                CLog.d(
-                        "Rank %s-%s-%s-%s-%s-%s-%s-%s-%s",
-                        m.group(2),
-                        m.group(4),
-                        m.group(6),
-                        m.group(8),
-                        m.group(10),
-                        m.group(12),
-                        m.group(14),
-                        m.group(16),
-                        m.group(18));
-                currentRes.put(String.format("Rank%s", m.group(2)), m.group(12));
+            parseSite(line);
+        }
+    }
+
+    /**
+     * Tokenize a site line: rank, self %, accum %, live bytes, live objs, alloc'ed bytes,
+     * alloc'ed objs, trace and class name. Lines that do not match, like the headers, are ignored.
+     */
+    private void parseSite(String line) {
+        int length = line.length();
+        int pos = 0;
+        // rank, then the 2 percentages, then 5 numbers
+        for (int field = 0; field < 8; field++) {
+            int start = skipSpaces(line, pos);
+            if (start == pos && field > 0) {
+                // fields must be separated by spaces
+                return;
+            }
+            pos = start;
+            long value = 0;
+            while (pos < length && isDigit(line.charAt(pos))) {
+                value = value * 10 + (line.charAt(pos) - '0');
+                pos++;
             }
+            if (field == 1 || field == 2) {
+                // percentage: digits, optional fraction, then '%'
+                if (pos < length && line.charAt(pos) == '.') {
+                    pos++;
+                    while (pos < length && isDigit(line.charAt(pos))) {
+                        pos++;
+                    }
+                }
+                if (pos == start || pos >= length || line.charAt(pos) != '%') {
+                    return;
+                }
+                pos++;
+            } else {
+                if (pos == start) {
+                    return;
+                }
+                mFields[field == 0 ? 0 : field - 2] = value;
+            }
+        }
+        int nameStart = skipSpaces(line, pos);
+        if (nameStart == pos) {
+            return;
+        }
+        mSiteCount++;
+        long allocBytes = mFields[3];
+        if (mTopSites.size() == mMaxSites && mTopSites.peek().mAllocBytes >= allocBytes) {
+            // Not in the top sites, avoid allocating the site
+            return;
         }
+        mTopSites.add(new AllocSite((int) mFields[0], mFields[1], allocBytes, mFields[4],
+                line.substring(nameStart).trim()));
+        if (mTopSites.size() > mMaxSites) {
+            mTopSites.poll();
+        }
+    }
+
+    private static int skipSpaces(String line, int pos) {
+        while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
     }
 }
@@ -25,16 +25,21 @@ import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import java.io.InputStream;
 import java.util.Collections;
 
 /**
  * Parser that extracts test result data from JUnit results stored in ant's XMLJUnitResultFormatter
  * and forwards it to a ITestInvocationListener.
  * <p/>
+ * Results are forwarded as their elements are parsed. If the input is cut short, the test and run
+ * in progress are reported as failed and ended.
+ * <p/>
  * @see XmlTestRunListener
  */
 public class JUnitXmlParser extends AbstractXmlParser {
     private final ITestInvocationListener mTestListener;
+    private JUnitXmlHandler mHandler = null;
 
     /**
      * Parses the xml format. Expected tags/attributes are
@@ -51,6 +56,8 @@ public class JUnitXmlParser extends AbstractXmlParser {
         private static final String TESTCASE_TAG = "testcase";
         private TestIdentifier mCurrentTest = null;
         private StringBuffer mFailureContent = null;
+        private boolean mRunInProgress = false;
+        private boolean mCurrentTestFailed = false;
 
         /**
         * {@inheritDoc}
@@ -65,6 +72,7 @@ public class JUnitXmlParser extends AbstractXmlParser {
                 String testCountString = getMandatoryAttribute(name, "tests", attributes);
                 int testCount = Integer.parseInt(testCountString);
                 mTestListener.testRunStarted(testSuiteName, testCount);
+                mRunInProgress = true;
             }
             if (TESTCASE_TAG.equalsIgnoreCase(name)) {
                 // start of description of an individual test method - extract out test name and
@@ -72,6 +80,7 @@ public class JUnitXmlParser extends AbstractXmlParser {
                 String testClassName = getMandatoryAttribute(name, "classname", attributes);
                 String methodName = getMandatoryAttribute(name, "name", attributes);
                 mCurrentTest = new TestIdentifier(testClassName, methodName);
+                mCurrentTestFailed = false;
                 mTestListener.testStarted(mCurrentTest);
             }
             if (FAILURE_TAG.equalsIgnoreCase(name)) {
@@ -109,17 +118,38 @@ public class JUnitXmlParser extends AbstractXmlParser {
         public void endElement(String uri, String localName, String name) {
             if (TESTSUITE_TAG.equalsIgnoreCase(name)) {
                 mTestListener.testRunEnded(0, Collections.<String, String> emptyMap());
+                mRunInProgress = false;
             }
             if (TESTCASE_TAG.equalsIgnoreCase(name)) {
                 mTestListener.testEnded(mCurrentTest, Collections.<String, String> emptyMap());
+                mCurrentTest = null;
             }
             if (FAILURE_TAG.equalsIgnoreCase(name)) {
                 mTestListener.testFailed(mCurrentTest,
                         mFailureContent.toString());
+                mCurrentTestFailed = true;
             }
             mFailureContent = null;
         }
 
+        /**
+         * Ends the test and run in progress, if any, when the xml is cut short.
+         */
+        void reportIncomplete(String cause) {
+            if (mCurrentTest != null) {
+                if (!mCurrentTestFailed) {
+                    mTestListener.testFailed(mCurrentTest, cause);
+                }
+                mTestListener.testEnded(mCurrentTest, Collections.<String, String> emptyMap());
+                mCurrentTest = null;
+            }
+            if (mRunInProgress) {
+                mTestListener.testRunFailed(cause);
+                mTestListener.testRunEnded(0, Collections.<String, String> emptyMap());
+                mRunInProgress = false;
+            }
+        }
+
         /**
          * Retrieves an attributes value.
          *
@@ -145,11 +175,31 @@ public class JUnitXmlParser extends AbstractXmlParser {
         mTestListener = listener;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void parse(InputStream xmlInput) throws ParseException {
+        try {
+            super.parse(xmlInput);
+        } catch (ParseException e) {
+            if (mHandler != null) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                mHandler.reportIncomplete(String.format("Incomplete xml results: %s",
+                        cause.getMessage()));
+            }
+            throw e;
+        } finally {
+            mHandler = null;
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     protected DefaultHandler createXmlHandler() {
-        return new JUnitXmlHandler();
+        mHandler = new JUnitXmlHandler();
+        return mHandler;
     }
 }
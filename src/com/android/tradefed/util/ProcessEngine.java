@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogRegistry;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the operations and pumps the output streams of the commands of {@link RunUtil} on shared
+ * threads, instead of starting new threads for every command.
+ * <p/>
+ * Operations run on a pool which grows with the number of concurrent operations and keeps its
+ * idle threads for a while, as each caller blocks on its own operation. Stream pumping uses a
+ * bounded pool, and falls back to a dedicated thread once all its threads are busy, since a
+ * process blocks if its output is not read.
+ * <p/>
+ * The shared threads belong to a {@link ThreadGroup} of the engine rather than to the group of
+ * the invocation which first needed them, so they are not reported as stray invocation threads.
+ * They log to the logger of the caller while running its operation.
+ * <p/>
+ * The engine also keeps a latency histogram per command.
+ */
+public class ProcessEngine {
+
+    /** The max number of pooled threads pumping streams. */
+    private static final int MAX_PUMP_THREADS = 64;
+    /** The time in seconds idle threads are kept. */
+    private static final long KEEP_ALIVE_SEC = 60;
+    /** The max number of commands with a latency histogram, the others are aggregated. */
+    private static final int MAX_COMMANDS = 256;
+    private static final String OTHER_COMMANDS = "other";
+
+    private static ProcessEngine sDefault = null;
+
+    private final ThreadGroup mThreadGroup;
+    private final ThreadPoolExecutor mExecutor;
+    private final ThreadPoolExecutor mPumpExecutor;
+    private final ConcurrentMap<String, SimpleStats> mLatencies = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a {@link ProcessEngine}.
+     *
+     * @param maxPumpThreads the max number of pooled threads pumping streams.
+     */
+    public ProcessEngine(int maxPumpThreads) {
+        mThreadGroup = new ThreadGroup(getRootThreadGroup(), "ProcessEngine");
+        mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), createThreadFactory("RunUtilExecutor"));
+        mPumpExecutor = new ThreadPoolExecutor(0, maxPumpThreads, KEEP_ALIVE_SEC,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                createThreadFactory("RunUtilPump"), new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        // all the pooled threads are busy, the stream still has to be read
+                        Thread t = new Thread(mThreadGroup, r, "RunUtilPump-overflow");
+                        t.setDaemon(true);
+                        t.start();
+                    }
+                });
+    }
+
+    /**
+     * Get the host wide {@link ProcessEngine}.
+     */
+    public static synchronized ProcessEngine getDefault() {
+        if (sDefault == null) {
+            sDefault = new ProcessEngine(MAX_PUMP_THREADS);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Get the root {@link ThreadGroup}, so that the group of the engine is not a subgroup of the
+     * group of an invocation.
+     */
+    private static ThreadGroup getRootThreadGroup() {
+        ThreadGroup group = Thread.currentThread().getThreadGroup();
+        while (group.getParent() != null) {
+            group = group.getParent();
+        }
+        return group;
+    }
+
+    private ThreadFactory createThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(mThreadGroup, r,
+                        String.format("%s-%d", name, mCount.incrementAndGet()));
+                // do not prevent TF from shutting down
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Run an operation on a shared thread.
+     *
+     * @param runnable the {@link IRunUtil.IRunnableResult} to run.
+     * @param logErrors log the exceptions thrown by the operation.
+     * @return a {@link CompletableFuture} completed with the {@link CommandStatus} of the
+     *         operation, {@link CommandStatus#EXCEPTION} if it threw.
+     */
+    public CompletableFuture<CommandStatus> execute(final IRunUtil.IRunnableResult runnable,
+            final boolean logErrors) {
+        final CompletableFuture<CommandStatus> future = new CompletableFuture<>();
+        final ThreadGroup logGroup = LogRegistry.getLogThreadGroup();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String name = Thread.currentThread().getName();
+                // name the thread for tracking purpose while it runs the operation
+                Thread.currentThread().setName(RunUtil.RUNNABLE_NOTIFIER_NAME);
+                LogRegistry.setLogThreadGroup(logGroup);
+                CommandStatus status;
+                try {
+                    status = runnable.run() ? CommandStatus.SUCCESS : CommandStatus.FAILED;
+                } catch (InterruptedException e) {
+                    CLog.i("runutil interrupted");
+                    status = CommandStatus.EXCEPTION;
+                } catch (Exception e) {
+                    if (logErrors) {
+                        CLog.e("Exception occurred when executing runnable");
+                        CLog.e(e);
+                    }
+                    status = CommandStatus.EXCEPTION;
+                } finally {
+                    LogRegistry.setLogThreadGroup(null);
+                    Thread.currentThread().setName(name);
+                }
+                future.complete(status);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Copy a stream to another on a shared thread, until the end of the source stream.
+     *
+     * @param src the {@link InputStream} to read.
+     * @param dest the {@link OutputStream} to write to.
+     * @param name the name of the thread while it copies, for tracking purpose.
+     * @return a {@link Future} which completes once the stream is copied.
+     */
+    public Future<?> pump(final InputStream src, final OutputStream dest, final String name) {
+        final ThreadGroup logGroup = LogRegistry.getLogThreadGroup();
+        FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                String threadName = Thread.currentThread().getName();
+                Thread.currentThread().setName(name);
+                LogRegistry.setLogThreadGroup(logGroup);
+                try {
+                    StreamUtil.copyStreams(src, dest);
+                } catch (IOException e) {
+                    CLog.e("Failed to read input stream.");
+                } finally {
+                    LogRegistry.setLogThreadGroup(null);
+                    Thread.currentThread().setName(threadName);
+                }
+            }
+        }, null);
+        mPumpExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Record the time taken by a command.
+     *
+     * @param executable the executable of the command, only its file name is kept.
+     * @param timeMs the time taken in ms.
+     */
+    public void recordLatency(String executable, long timeMs) {
+        String command = new File(executable).getName();
+        SimpleStats stats = mLatencies.get(command);
+        if (stats == null) {
+            if (mLatencies.size() >= MAX_COMMANDS) {
+                command = OTHER_COMMANDS;
+            }
+            SimpleStats newStats = new SimpleStats(new QuantileSketch());
+            stats = mLatencies.putIfAbsent(command, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        synchronized (stats) {
+            stats.add(timeMs);
+        }
+    }
+
+    /**
+     * Get the latency histograms of the commands, in ms, keyed by executable file name.
+     */
+    public Map<String, SimpleStats> getLatencies() {
+        Map<String, SimpleStats> latencies = new HashMap<>();
+        for (Map.Entry<String, SimpleStats> entry : mLatencies.entrySet()) {
+            SimpleStats copy = new SimpleStats(new QuantileSketch());
+            synchronized (entry.getValue()) {
+                copy.merge(entry.getValue());
+            }
+            latencies.put(entry.getKey(), copy);
+        }
+        return latencies;
+    }
+
+    /**
+     * Log the latency histograms of the commands.
+     */
+    public void logLatencies() {
+        for (Map.Entry<String, SimpleStats> entry : getLatencies().entrySet()) {
+            SimpleStats stats = entry.getValue();
+            CLog.d("Command %s: %d runs, median %s ms, 90th percentile %s ms, max %s ms",
+                    entry.getKey(), stats.size(), stats.median(), stats.quantile(0.9),
+                    stats.max());
+        }
+    }
+
+    /**
+     * Get the number of threads of the pump pool.
+     */
+    @VisibleForTesting
+    int getPumpPoolSize() {
+        return mPumpExecutor.getPoolSize();
+    }
+}
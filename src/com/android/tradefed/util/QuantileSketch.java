@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable sketch that estimates quantiles of a stream of measurements in bounded memory.
+ * <p/>
+ * Values are counted in logarithmically sized buckets, so any estimated quantile is within the
+ * configured relative accuracy of a value of the dataset. Two sketches created with the same
+ * accuracy can be merged without losing precision, e.g. to combine the results of several shards
+ * or devices. When more than the maximum number of buckets is needed, the buckets of the smallest
+ * magnitudes are collapsed together, which only affects the accuracy of the lowest quantiles.
+ */
+public class QuantileSketch {
+
+    public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+    public static final int DEFAULT_MAX_BUCKETS = 2048;
+
+    /** Values with a smaller magnitude are counted as zero. */
+    private static final double MIN_INDEXABLE_VALUE = 1e-9;
+
+    private final double mRelativeAccuracy;
+    private final double mGamma;
+    private final double mLogGamma;
+    private final int mMaxBuckets;
+
+    private final Buckets mPositive = new Buckets();
+    private final Buckets mNegative = new Buckets();
+    private long mZeroCount = 0;
+    private long mCount = 0;
+
+    /**
+     * Counts per bucket index, stored in a growable array starting at the lowest index kept.
+     */
+    private class Buckets {
+        private long[] mCounts = new long[0];
+        private int mOffset = 0;
+        private int mMaxIndex = 0;
+        private long mTotal = 0;
+
+        void add(int index, long count) {
+            if (mTotal == 0) {
+                if (mCounts.length == 0) {
+                    mCounts = new long[Math.min(16, mMaxBuckets)];
+                }
+                mOffset = index;
+                mMaxIndex = index;
+            } else if (index < mOffset) {
+                int lowest = Math.max(index, mMaxIndex - mMaxBuckets + 1);
+                if (lowest < mOffset) {
+                    resize(lowest, Math.min(mCounts.length + mOffset - lowest, mMaxBuckets));
+                }
+                // Collapse into the lowest bucket kept if the range is exceeded
+                index = Math.max(index, lowest);
+            } else if (index > mMaxIndex) {
+                mMaxIndex = index;
+                if (mMaxIndex - mOffset + 1 > mMaxBuckets) {
+                    collapseBelow(mMaxIndex - mMaxBuckets + 1);
+                }
+                if (mMaxIndex - mOffset >= mCounts.length) {
+                    resize(mOffset, Math.min(Math.max(mCounts.length * 2,
+                            mMaxIndex - mOffset + 1), mMaxBuckets));
+                }
+            }
+            mCounts[index - mOffset] += count;
+            mTotal += count;
+        }
+
+        /** Re-allocates the counts, with the first bucket at {@code offset}. */
+        private void resize(int offset, int size) {
+            long[] counts = new long[Math.max(size, mMaxIndex - offset + 1)];
+            System.arraycopy(mCounts, 0, counts, mOffset - offset,
+                    Math.min(mCounts.length, mMaxIndex - mOffset + 1));
+            mCounts = counts;
+            mOffset = offset;
+        }
+
+        /** Merges the counts of all buckets below {@code index} into that bucket. */
+        private void collapseBelow(int index) {
+            int shift = index - mOffset;
+            long collapsed = 0;
+            for (int i = 0; i < shift && i < mCounts.length; i++) {
+                collapsed += mCounts[i];
+            }
+            long[] counts = new long[mCounts.length];
+            if (shift < mCounts.length) {
+                System.arraycopy(mCounts, shift, counts, 0, mCounts.length - shift);
+            }
+            counts[0] += collapsed;
+            mCounts = counts;
+            mOffset = index;
+        }
+
+        void merge(Buckets other) {
+            for (int i = 0; i < other.mCounts.length; i++) {
+                if (other.mCounts[i] != 0) {
+                    add(other.mOffset + i, other.mCounts[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a sketch with the {@link #DEFAULT_RELATIVE_ACCURACY} and
+     * {@link #DEFAULT_MAX_BUCKETS}.
+     */
+    public QuantileSketch() {
+        this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_BUCKETS);
+    }
+
+    /**
+     * Creates a sketch.
+     *
+     * @param relativeAccuracy the maximum relative error of the estimated quantiles, in ]0, 1[
+     * @param maxBuckets the maximum number of buckets per sign, which bounds the memory used
+     */
+    public QuantileSketch(double relativeAccuracy, int maxBuckets) {
+        if (relativeAccuracy <= 0 || relativeAccuracy >= 1) {
+            throw new IllegalArgumentException("relative accuracy must be in ]0, 1[");
+        }
+        if (maxBuckets < 1) {
+            throw new IllegalArgumentException("max buckets must be positive");
+        }
+        mRelativeAccuracy = relativeAccuracy;
+        mGamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        mLogGamma = Math.log(mGamma);
+        mMaxBuckets = maxBuckets;
+    }
+
+    /** Returns the relative accuracy of the sketch. */
+    public double getRelativeAccuracy() {
+        return mRelativeAccuracy;
+    }
+
+    /** Add a measurement to the sketch. */
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            throw new IllegalArgumentException("cannot add NaN to a sketch");
+        }
+        if (value > MIN_INDEXABLE_VALUE) {
+            mPositive.add(index(value), 1);
+        } else if (value < -MIN_INDEXABLE_VALUE) {
+            mNegative.add(index(-value), 1);
+        } else {
+            mZeroCount++;
+        }
+        mCount++;
+    }
+
+    /**
+     * Merge the content of another sketch into this one.
+     *
+     * @throws IllegalArgumentException if the sketches do not have the same accuracy
+     */
+    public void merge(QuantileSketch other) {
+        if (Double.compare(mRelativeAccuracy, other.mRelativeAccuracy) != 0) {
+            throw new IllegalArgumentException(String.format(
+                    "cannot merge sketches of accuracy %s and %s", mRelativeAccuracy,
+                    other.mRelativeAccuracy));
+        }
+        mPositive.merge(other.mPositive);
+        mNegative.merge(other.mNegative);
+        mZeroCount += other.mZeroCount;
+        mCount += other.mCount;
+    }
+
+    /** Returns the number of measurements in the sketch. */
+    public long getCount() {
+        return mCount;
+    }
+
+    /** Check if the sketch is empty. */
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * Estimate the given quantile of the dataset, or return {@code null} if the sketch is empty.
+     *
+     * @param quantile the quantile to estimate, in [0, 1], e.g. 0.9 for the 90th percentile.
+     */
+    public Double getQuantile(double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("quantile must be in [0, 1]");
+        }
+        if (isEmpty()) {
+            return null;
+        }
+        long rank = (long) (quantile * (mCount - 1));
+        // Negative values, from the most negative one (highest index) upward
+        long seen = 0;
+        for (int i = mNegative.mCounts.length - 1; i >= 0; i--) {
+            seen += mNegative.mCounts[i];
+            if (seen > rank) {
+                return -value(mNegative.mOffset + i);
+            }
+        }
+        seen += mZeroCount;
+        if (seen > rank) {
+            return 0.0;
+        }
+        for (int i = 0; i < mPositive.mCounts.length; i++) {
+            seen += mPositive.mCounts[i];
+            if (seen > rank) {
+                return value(mPositive.mOffset + i);
+            }
+        }
+        // The counts of all the buckets add up to mCount, so the rank is always found above.
+        throw new IllegalStateException("inconsistent sketch counts");
+    }
+
+    private int index(double value) {
+        return (int) Math.ceil(Math.log(value) / mLogGamma);
+    }
+
+    /** Returns the value representing a bucket, within the relative accuracy of its values. */
+    private double value(int index) {
+        return 2 * Math.pow(mGamma, index) / (mGamma + 1);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return String.format("QuantileSketch{count=%d, positive=%s, negative=%s, zero=%d}",
+                mCount, Arrays.toString(mPositive.mCounts), Arrays.toString(mNegative.mCounts),
+                mZeroCount);
+    }
+}
@@ -34,8 +34,14 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * A collection of helper methods for executing operations.
@@ -46,7 +52,6 @@ public class RunUtil implements IRunUtil {
     public static final String INHERITIO_PREFIX = "inheritio-";
 
     private static final int POLL_TIME_INCREASE_FACTOR = 4;
-    private static final long THREAD_JOIN_POLL_INTERVAL = 30 * 1000;
     private static final long IO_THREAD_JOIN_INTERVAL = 5 * 1000;
     private static final long PROCESS_DESTROY_TIMEOUT_SEC = 2;
     private static IRunUtil sDefaultInstance = null;
@@ -60,9 +65,12 @@ public class RunUtil implements IRunUtil {
             return Boolean.FALSE;
         }
     };
-    private Map<Long, String> mInterruptThreads = new HashMap<>();
+    private final ConcurrentMap<Long, String> mInterruptThreads = new ConcurrentHashMap<>();
+    /** The futures waking up the threads waiting in runTimed, when they are interrupted. */
+    private final ConcurrentMap<Long, CompletableFuture<Void>> mWaitingThreads =
+            new ConcurrentHashMap<>();
     private ThreadLocal<Timer> mWatchdogInterrupt = null;
-    private boolean mInterruptibleGlobal = false;
+    private volatile boolean mInterruptibleGlobal = false;
 
     /**
      * Create a new {@link RunUtil} object to use.
@@ -150,11 +158,25 @@ public class RunUtil implements IRunUtil {
         final CommandResult result = new CommandResult();
         IRunUtil.IRunnableResult osRunnable =
                 createRunnableResult(result, stdout, stderr, closeStreamAfterRun, command);
-        CommandStatus status = runTimed(timeout, osRunnable, true);
+        CommandStatus status = runTimedCommand(timeout, osRunnable, true, Arrays.asList(command));
         result.setStatus(status);
         return result;
     }
 
+    /**
+     * Helper method to run a command, and record its latency.
+     *
+     * @param command the command, its latency is recorded under its executable.
+     */
+    private CommandStatus runTimedCommand(long timeout, IRunUtil.IRunnableResult runnable,
+            boolean logErrors, List<String> command) {
+        long startTime = System.currentTimeMillis();
+        CommandStatus status = runTimed(timeout, runnable, logErrors);
+        getProcessEngine().recordLatency(command.isEmpty() ? "" : command.get(0),
+                System.currentTimeMillis() - startTime);
+        return status;
+    }
+
     /**
      * Create a {@link com.android.tradefed.util.IRunUtil.IRunnableResult} that will run the
      * command.
@@ -170,6 +192,15 @@ public class RunUtil implements IRunUtil {
                 result, null, createProcessBuilder(command), stdout, stderr, closeStreamAfterRun);
     }
 
+    /**
+     * Get the {@link ProcessEngine} running the operations and pumping the streams.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    ProcessEngine getProcessEngine() {
+        return ProcessEngine.getDefault();
+    }
+
     /** {@inheritDoc} */
     @Override
     public CommandResult runTimedCmdRetry(
@@ -187,32 +218,44 @@ public class RunUtil implements IRunUtil {
         return result;
     }
 
-    private synchronized ProcessBuilder createProcessBuilder(String... command) {
+    private ProcessBuilder createProcessBuilder(String... command) {
         return createProcessBuilder(Arrays.asList(command));
     }
 
-    private synchronized ProcessBuilder createProcessBuilder(List<String> commandList) {
+    private ProcessBuilder createProcessBuilder(List<String> commandList) {
+        // only copy the settings under the lock, building the environment is comparatively slow
+        File workingDir;
+        Map<String, String> envVariables;
+        Set<String> unsetEnvVariables;
+        EnvPriority envVariablePriority;
+        synchronized (this) {
+            workingDir = mWorkingDir;
+            envVariables = mEnvVariables.isEmpty() ? null : new HashMap<>(mEnvVariables);
+            unsetEnvVariables =
+                    mUnsetEnvVariables.isEmpty() ? null : new HashSet<>(mUnsetEnvVariables);
+            envVariablePriority = mEnvVariablePriority;
+        }
         ProcessBuilder processBuilder = new ProcessBuilder();
-        if (mWorkingDir != null) {
-            processBuilder.directory(mWorkingDir);
+        if (workingDir != null) {
+            processBuilder.directory(workingDir);
         }
         // By default unset an env. for process has higher priority, but in some case we might want
         // the 'set' to have priority.
-        if (EnvPriority.UNSET.equals(mEnvVariablePriority)) {
-            if (!mEnvVariables.isEmpty()) {
-                processBuilder.environment().putAll(mEnvVariables);
+        if (EnvPriority.UNSET.equals(envVariablePriority)) {
+            if (envVariables != null) {
+                processBuilder.environment().putAll(envVariables);
             }
-            if (!mUnsetEnvVariables.isEmpty()) {
+            if (unsetEnvVariables != null) {
                 // in this implementation, the unsetEnv's priority is higher than set.
-                processBuilder.environment().keySet().removeAll(mUnsetEnvVariables);
+                processBuilder.environment().keySet().removeAll(unsetEnvVariables);
             }
         } else {
-            if (!mUnsetEnvVariables.isEmpty()) {
-                processBuilder.environment().keySet().removeAll(mUnsetEnvVariables);
+            if (unsetEnvVariables != null) {
+                processBuilder.environment().keySet().removeAll(unsetEnvVariables);
             }
-            if (!mEnvVariables.isEmpty()) {
+            if (envVariables != null) {
                 // in this implementation, the setEnv's priority is higher than set.
-                processBuilder.environment().putAll(mEnvVariables);
+                processBuilder.environment().putAll(envVariables);
             }
         }
         return processBuilder.command(commandList);
@@ -236,7 +279,7 @@ public class RunUtil implements IRunUtil {
         final CommandResult result = new CommandResult();
         IRunUtil.IRunnableResult osRunnable = new RunnableResult(result, input,
                 createProcessBuilder(command));
-        CommandStatus status = runTimed(timeout, osRunnable, true);
+        CommandStatus status = runTimedCommand(timeout, osRunnable, true, command);
         result.setStatus(status);
         return result;
     }
@@ -249,7 +292,7 @@ public class RunUtil implements IRunUtil {
         final CommandResult result = new CommandResult();
         IRunUtil.IRunnableResult osRunnable = new RunnableResult(result, null,
                 createProcessBuilder(command));
-        CommandStatus status = runTimed(timeout, osRunnable, false);
+        CommandStatus status = runTimedCommand(timeout, osRunnable, false, Arrays.asList(command));
         result.setStatus(status);
         return result;
     }
@@ -319,36 +362,62 @@ public class RunUtil implements IRunUtil {
     public CommandStatus runTimed(long timeout, IRunUtil.IRunnableResult runnable,
             boolean logErrors) {
         checkInterrupted();
-        RunnableNotifier runThread = new RunnableNotifier(runnable, logErrors);
         CLog.d("Running command with timeout: %dms", timeout);
-        runThread.start();
+        CompletableFuture<CommandStatus> done = getProcessEngine().execute(runnable, logErrors);
         long startTime = System.currentTimeMillis();
-        long pollIterval = 0;
-        if (timeout < THREAD_JOIN_POLL_INTERVAL) {
-            pollIterval = timeout;
-        } else {
-            pollIterval = THREAD_JOIN_POLL_INTERVAL;
-        }
-        do {
-            try {
-                runThread.join(pollIterval);
-            } catch (InterruptedException e) {
-                if (mIsInterruptAllowed.get()) {
-                    CLog.i("runTimed: interrupted while joining the runnable");
+        final long threadId = Thread.currentThread().getId();
+        try {
+            while (true) {
+                long remaining = timeout - (System.currentTimeMillis() - startTime);
+                if (remaining <= 0) {
+                    break;
+                }
+                // completed by interrupt(), to check the interruption without polling
+                CompletableFuture<Void> wakeUp = new CompletableFuture<>();
+                mWaitingThreads.put(threadId, wakeUp);
+                if (isInterruptAllowed() && mInterruptThreads.containsKey(threadId)) {
+                    // interrupted since the last check
+                    wakeUp.complete(null);
+                }
+                try {
+                    if (Thread.interrupted()) {
+                        // like a join, a pending interrupt is consumed even if the runnable is
+                        // already done
+                        throw new InterruptedException();
+                    }
+                    CompletableFuture.anyOf(done, wakeUp).get(remaining, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
                     break;
+                } catch (InterruptedException e) {
+                    if (mIsInterruptAllowed.get()) {
+                        CLog.i("runTimed: interrupted while waiting for the runnable");
+                        break;
+                    } else {
+                        CLog.i("runTimed: received an interrupt but uninterruptible mode, "
+                                + "ignoring");
+                    }
+                } catch (ExecutionException e) {
+                    // not thrown, the futures are never completed exceptionally
+                    throw new RuntimeException(e.getCause());
                 }
-                else {
-                    CLog.i("runTimed: received an interrupt but uninterruptible mode, ignoring");
+                if (done.isDone()) {
+                    break;
                 }
+                checkInterrupted();
             }
-            checkInterrupted();
-        } while ((System.currentTimeMillis() - startTime) < timeout && runThread.isAlive());
-        // Snapshot the status when out of the run loop because thread may terminate and return a
-        // false FAILED instead of TIMED_OUT.
-        CommandStatus status = runThread.getStatus();
+        } catch (RunInterruptedException e) {
+            // do not leave the process running for an interrupted invocation
+            runnable.cancel();
+            throw e;
+        } finally {
+            mWaitingThreads.remove(threadId);
+        }
+        // Snapshot the status when out of the run loop because the runnable may terminate and
+        // return a false FAILED instead of TIMED_OUT.
+        CommandStatus status = done.getNow(CommandStatus.TIMED_OUT);
         if (CommandStatus.TIMED_OUT.equals(status) || CommandStatus.EXCEPTION.equals(status)) {
             CLog.i("runTimed: Calling interrupt, status is %s", status);
-            runThread.cancel();
+            runnable.cancel();
         }
         checkInterrupted();
         return status;
@@ -488,14 +557,18 @@ public class RunUtil implements IRunUtil {
      * {@inheritDoc}
      */
     @Override
-    public synchronized void interrupt(Thread thread, String message) {
+    public void interrupt(Thread thread, String message) {
         if (message == null) {
             throw new IllegalArgumentException("message cannot be null.");
         }
         mInterruptThreads.put(thread.getId(), message);
+        CompletableFuture<Void> wakeUp = mWaitingThreads.get(thread.getId());
+        if (wakeUp != null) {
+            wakeUp.complete(null);
+        }
     }
 
-    private synchronized void checkInterrupted() {
+    private void checkInterrupted() {
         final long threadId = Thread.currentThread().getId();
         if (mInterruptibleGlobal) {
             // If the global flag is on, meaning everything must terminate.
@@ -512,53 +585,6 @@ public class RunUtil implements IRunUtil {
         }
     }
 
-    /**
-     * Helper thread that wraps a runnable, and notifies when done.
-     */
-    private static class RunnableNotifier extends Thread {
-
-        private final IRunUtil.IRunnableResult mRunnable;
-        private CommandStatus mStatus = CommandStatus.TIMED_OUT;
-        private boolean mLogErrors = true;
-
-        RunnableNotifier(IRunUtil.IRunnableResult runnable, boolean logErrors) {
-            // Set this thread to be a daemon so that it does not prevent
-            // TF from shutting down.
-            setName(RUNNABLE_NOTIFIER_NAME);
-            setDaemon(true);
-            mRunnable = runnable;
-            mLogErrors = logErrors;
-        }
-
-        @Override
-        public void run() {
-            CommandStatus status;
-            try {
-                status = mRunnable.run() ? CommandStatus.SUCCESS : CommandStatus.FAILED;
-            } catch (InterruptedException e) {
-                CLog.i("runutil interrupted");
-                status = CommandStatus.EXCEPTION;
-            } catch (Exception e) {
-                if (mLogErrors) {
-                    CLog.e("Exception occurred when executing runnable");
-                    CLog.e(e);
-                }
-                status = CommandStatus.EXCEPTION;
-            }
-            synchronized (this) {
-                mStatus = status;
-            }
-        }
-
-        public void cancel() {
-            mRunnable.cancel();
-        }
-
-        synchronized CommandStatus getStatus() {
-            return mStatus;
-        }
-    }
-
     class RunnableResult implements IRunUtil.IRunnableResult {
         private final ProcessBuilder mProcessBuilder;
         private final CommandResult mCommandResult;
@@ -618,8 +644,8 @@ public class RunUtil implements IRunUtil {
 
         @Override
         public boolean run() throws Exception {
-            Thread stdoutThread = null;
-            Thread stderrThread = null;
+            Future<?> stdoutPump = null;
+            Future<?> stderrPump = null;
             synchronized (mLock) {
                 if (mCancelled == true) {
                     // if cancel() was called before run() took the lock, we do not even attempt
@@ -637,13 +663,13 @@ public class RunUtil implements IRunUtil {
                     processStdin.close();
                 }
                 // Log the command for thread tracking purpose.
-                stdoutThread =
-                        inheritIO(
+                stdoutPump =
+                        getProcessEngine().pump(
                                 mProcess.getInputStream(),
                                 stdOut,
                                 String.format("inheritio-stdout-%s", mProcessBuilder.command()));
-                stderrThread =
-                        inheritIO(
+                stderrPump =
+                        getProcessEngine().pump(
                                 mProcess.getErrorStream(),
                                 stdErr,
                                 String.format("inheritio-stderr-%s", mProcessBuilder.command()));
@@ -654,14 +680,8 @@ public class RunUtil implements IRunUtil {
                 try {
                     rc = mProcess.waitFor();
                     // wait for stdout and stderr to be read
-                    stdoutThread.join(IO_THREAD_JOIN_INTERVAL);
-                    if (stdoutThread.isAlive()) {
-                        CLog.d("stdout read thread %s still alive.", stdoutThread.toString());
-                    }
-                    stderrThread.join(IO_THREAD_JOIN_INTERVAL);
-                    if (stderrThread.isAlive()) {
-                        CLog.d("stderr read thread %s still alive.", stderrThread.toString());
-                    }
+                    waitForPump(stdoutPump, "stdout");
+                    waitForPump(stderrPump, "stderr");
                     // close the buffer that holds stdout/err content if default stream
                     // stream specified by caller should be handled by the caller.
                     if (mCloseStreamAfterRun) {
@@ -685,6 +705,10 @@ public class RunUtil implements IRunUtil {
                 }
             } finally {
                 mCountDown.countDown();
+                synchronized (mLock) {
+                    // the shared thread may run other operations once this one is done
+                    mExecutionThread = null;
+                }
             }
 
             if (rc == 0) {
@@ -695,6 +719,16 @@ public class RunUtil implements IRunUtil {
             return false;
         }
 
+        private void waitForPump(Future<?> pump, String stream) throws InterruptedException {
+            try {
+                pump.get(IO_THREAD_JOIN_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                CLog.d("%s read of %s still running.", stream, mProcessBuilder.command());
+            } catch (ExecutionException e) {
+                CLog.e(e.getCause());
+            }
+        }
+
         @Override
         public void cancel() {
             mCancelled = true;
@@ -706,7 +740,6 @@ public class RunUtil implements IRunUtil {
                 mProcess.destroy();
                 try {
                     // Only allow to continue if the Stdout has been read
-                    // RunnableNotifier#Interrupt is the next call and will terminate the thread
                     if (!mCountDown.await(PROCESS_DESTROY_TIMEOUT_SEC, TimeUnit.SECONDS)) {
                         CLog.i("Process still not terminated, interrupting the execution thread");
                         mExecutionThread.interrupt();
@@ -15,20 +15,56 @@
  */
 package com.android.tradefed.util;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
  * A small utility class that calculates a few statistical measures given a numerical dataset.  The
- * values are stored internally as {@link Double}s.
+ * values are stored internally in a primitive {@code double} array, and the mean and variance are
+ * updated incrementally as measurements are added.
+ * <p />
+ * For long running collections, a {@link QuantileSketch} can be used instead of retaining the
+ * measurements (see {@link #SimpleStats(QuantileSketch)}). The memory used is then bounded, and
+ * the median and quantiles are estimated from the sketch.
  */
 public class SimpleStats {
-    private List<Double> mData = new LinkedList<Double>();
+    private static final int INITIAL_CAPACITY = 16;
 
-    // cached values
-    private double mSum = 0;
+    private double[] mData;
+    private int mSize = 0;
+    private boolean mSorted = true;
+    private final QuantileSketch mSketch;
+
+    // running values, updated with Welford's algorithm
+    private long mCount = 0;
+    private double mMean = 0;
+    private double mSumSquaredDiff = 0;
+    private double mMin = Double.POSITIVE_INFINITY;
+    private double mMax = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Creates a {@link SimpleStats} retaining all the measurements.
+     */
+    public SimpleStats() {
+        mData = new double[INITIAL_CAPACITY];
+        mSketch = null;
+    }
+
+    /**
+     * Creates a {@link SimpleStats} that only aggregates the measurements into the given sketch,
+     * without retaining them. {@link #median()} and {@link #quantile(double)} are estimated from
+     * the sketch, and {@link #getData()} and {@link #meanOverOneStandardDeviationRange()} are not
+     * supported.
+     */
+    public SimpleStats(QuantileSketch sketch) {
+        if (sketch == null) {
+            throw new NullPointerException();
+        }
+        mData = null;
+        mSketch = sketch;
+    }
 
     /**
      * Add a number of measurements to the dataset.
@@ -48,29 +84,88 @@ public class SimpleStats {
      * Add a measurement to the dataset.
      */
     public void add(double meas) {
-        mData.add(meas);
-        mSum += meas;
+        if (mData != null) {
+            if (mSize == mData.length) {
+                mData = Arrays.copyOf(mData, mSize * 2);
+            }
+            if (mSize > 0 && meas < mData[mSize - 1]) {
+                mSorted = false;
+            }
+            mData[mSize++] = meas;
+        } else {
+            mSketch.add(meas);
+        }
+        mCount++;
+        double diff = meas - mMean;
+        mMean += diff / mCount;
+        mSumSquaredDiff += diff * (meas - mMean);
+        mMin = Math.min(mMin, meas);
+        mMax = Math.max(mMax, meas);
     }
 
     /**
-     * Retrieve the dataset.
+     * Merge the measurements of another {@link SimpleStats} into this one, e.g. to combine the
+     * results of several shards or devices.
+     *
+     * @throws IllegalArgumentException if only one of the two instances retains its measurements,
+     *         or if their sketches cannot be merged.
+     */
+    public void merge(SimpleStats other) {
+        if ((mData == null) != (other.mData == null)) {
+            throw new IllegalArgumentException(
+                    "cannot merge stats with and without retained measurements");
+        }
+        if (other.mCount == 0) {
+            return;
+        }
+        if (mData != null) {
+            int size = other.mSize;
+            if (mSize + size > mData.length) {
+                mData = Arrays.copyOf(mData, Math.max(mSize + size, mData.length * 2));
+            }
+            System.arraycopy(other.mData, 0, mData, mSize, size);
+            mSize += size;
+            mSorted = false;
+        } else {
+            mSketch.merge(other.mSketch);
+        }
+        // Chan et al. combination of the running mean and variance
+        long count = mCount + other.mCount;
+        double diff = other.mMean - mMean;
+        mSumSquaredDiff += other.mSumSquaredDiff
+                + diff * diff * ((double) mCount * other.mCount / count);
+        mMean += diff * other.mCount / count;
+        mCount = count;
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    /**
+     * Retrieve a copy of the dataset.
+     *
+     * @throws UnsupportedOperationException if the measurements are not retained.
      */
     public List<Double> getData() {
-        return mData;
+        checkDataRetained();
+        List<Double> data = new ArrayList<Double>(mSize);
+        for (int i = 0; i < mSize; i++) {
+            data.add(mData[i]);
+        }
+        return data;
     }
 
     /**
      * Check if the dataset is empty.
      */
     public boolean isEmpty() {
-        return mData.isEmpty();
+        return mCount == 0;
     }
 
     /**
      * Check how many elements are in the dataset.
      */
     public int size() {
-        return mData.size();
+        return (int) mCount;
     }
 
     /**
@@ -81,7 +176,7 @@ public class SimpleStats {
             return null;
         }
 
-        return mSum / size();
+        return mMean;
     }
 
     /**
@@ -91,20 +186,50 @@ public class SimpleStats {
         if (isEmpty()) {
             return null;
         }
+        if (mData == null) {
+            return mSketch.getQuantile(0.5);
+        }
 
-        Collections.sort(mData);
-        if ((mData.size() & 0x1) == 1) {
+        sort();
+        if ((mSize & 0x1) == 1) {
             // odd count of items, pick the middle element.  Note that we don't +1 since indices
             // are zero-based rather than one-based
-            int idx = size() / 2;
-            return mData.get(idx);
+            int idx = mSize / 2;
+            return mData[idx];
         } else {
             // even count of items, average the two middle elements
-            int idx = size() / 2;
-            return (mData.get(idx - 1) + mData.get(idx)) / 2;
+            int idx = mSize / 2;
+            return (mData[idx - 1] + mData[idx]) / 2;
         }
     }
 
+    /**
+     * Calculate and return the given quantile of the dataset, or {@code null} if the dataset is
+     * empty. Values between two measurements are linearly interpolated, and the quantile is
+     * estimated if the measurements are not retained.
+     *
+     * @param quantile the quantile in [0, 1], e.g. 0.9 for the 90th percentile.
+     */
+    public Double quantile(double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("quantile must be in [0, 1]");
+        }
+        if (isEmpty()) {
+            return null;
+        }
+        if (mData == null) {
+            return mSketch.getQuantile(quantile);
+        }
+
+        sort();
+        double pos = quantile * (mSize - 1);
+        int idx = (int) pos;
+        if (idx == mSize - 1) {
+            return mData[idx];
+        }
+        return mData[idx] + (pos - idx) * (mData[idx + 1] - mData[idx]);
+    }
+
     /**
      * Return the minimum value in the dataset, or {@code null} if the dataset is empty.
      */
@@ -113,8 +238,7 @@ public class SimpleStats {
             return null;
         }
 
-        Collections.sort(mData);
-        return mData.get(0);
+        return mMin;
     }
 
     /**
@@ -125,8 +249,7 @@ public class SimpleStats {
             return null;
         }
 
-        Collections.sort(mData);
-        return mData.get(size() - 1);
+        return mMax;
     }
 
     /**
@@ -141,14 +264,7 @@ public class SimpleStats {
             return null;
         }
 
-        Double avg = mean();
-        Double ssd = 0.0;  // sum of squared differences
-        for (Double meas : mData) {
-            Double diff = meas - avg;
-            ssd += diff * diff;
-        }
-
-        return Math.sqrt(ssd / size());
+        return Math.sqrt(mSumSquaredDiff / mCount);
     }
 
     /**
@@ -157,19 +273,23 @@ public class SimpleStats {
      * 2.55 50.3 50.4 48.5 50.1 29.8 30 46 48 49
      * average: 40.45, stdev: 15.54
      * average of the values within one stdev is: 44.67
+     *
+     * @throws UnsupportedOperationException if the measurements are not retained.
      */
     public Double meanOverOneStandardDeviationRange() {
         if (isEmpty()) {
             return null;
         }
+        checkDataRetained();
 
-        Double avg = mean();
-        Double std = stdev();
-        Double upper = avg + std;
-        Double lower = avg - std;
-        Double sum = 0.0;
+        double avg = mean();
+        double std = stdev();
+        double upper = avg + std;
+        double lower = avg - std;
+        double sum = 0.0;
         int count = 0;
-        for (Double meas : mData) {
+        for (int i = 0; i < mSize; i++) {
+            double meas = mData[i];
             if (meas > lower && meas < upper) {
                 sum += meas;
                 count++;
@@ -177,5 +297,26 @@ public class SimpleStats {
         }
         return sum / count;
     }
-}
 
+    /**
+     * Return the sketch the measurements are aggregated into, or {@code null} if the measurements
+     * are retained.
+     */
+    public QuantileSketch getSketch() {
+        return mSketch;
+    }
+
+    private void sort() {
+        if (!mSorted) {
+            Arrays.sort(mData, 0, mSize);
+            mSorted = true;
+        }
+    }
+
+    private void checkDataRetained() {
+        if (mData == null) {
+            throw new UnsupportedOperationException(
+                    "measurements are not retained when using a sketch");
+        }
+    }
+}
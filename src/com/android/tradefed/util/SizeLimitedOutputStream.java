@@ -113,6 +113,46 @@ public class SizeLimitedOutputStream extends OutputStream {
 
     }
 
+    /**
+     * Copies the last <var>maxBytes</var> of the collected output to a file.
+     * <p/>
+     * The backing files are transferred with {@link FileUtil#transferFile}, so the data does not
+     * go through the heap.
+     *
+     * @param destFile the file to write to. It is overwritten.
+     * @param maxBytes the maximum number of bytes to copy, the oldest are dropped. Negative to copy
+     *            all the collected output.
+     * @return the number of bytes copied
+     */
+    public synchronized long copyTo(File destFile, long maxBytes) throws IOException {
+        flush();
+        long total = 0;
+        for (File file : mFiles) {
+            if (file != null) {
+                total += file.length();
+            }
+        }
+        long skip = maxBytes < 0 ? 0 : Math.max(0, total - maxBytes);
+        long copied = 0;
+        try (FileOutputStream output = new FileOutputStream(destFile)) {
+            for (int i = 0; i < mFiles.length; i++) {
+                // oldest/starting file is always the next one up from current
+                File file = mFiles[(mCurrentFilePos + i + 1) % mFiles.length];
+                if (file == null) {
+                    continue;
+                }
+                long length = file.length();
+                if (skip >= length) {
+                    skip -= length;
+                    continue;
+                }
+                copied += FileUtil.transferFile(file, skip, output.getChannel());
+                skip = 0;
+            }
+        }
+        return copied;
+    }
+
     /**
      * {@inheritDoc}
      */
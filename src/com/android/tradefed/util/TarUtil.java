@@ -21,10 +21,6 @@ import com.android.tradefed.result.FileInputStreamSource;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
 
-import org.apache.commons.compress.archivers.ArchiveException;
-import org.apache.commons.compress.archivers.ArchiveStreamFactory;
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.utils.IOUtils;
 
 import java.io.File;
@@ -32,9 +28,6 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -56,45 +49,26 @@ public class TarUtil {
      */
     public static List<File> unTar(final File inputFile, final File outputDir)
             throws FileNotFoundException, IOException {
+        return unTar(inputFile, outputDir, null);
+    }
+
+    /**
+     * Untar the entries of a tar file accepted by a filter into a directory.
+     * tar.gz file need to up {@link #unGzip(File, File)} first.
+     *
+     * @param inputFile The tar file to extract
+     * @param outputDir the directory where to put the extracted files.
+     * @param filter the {@link ArchiveExtractor.IEntryFilter} selecting the entries to extract,
+     *     or null to extract all of them.
+     * @return The list of {@link File} untarred.
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public static List<File> unTar(final File inputFile, final File outputDir,
+            ArchiveExtractor.IEntryFilter filter) throws FileNotFoundException, IOException {
         CLog.i(String.format("Untaring %s to dir %s.", inputFile.getAbsolutePath(),
                 outputDir.getAbsolutePath()));
-        final List<File> untaredFiles = new LinkedList<File>();
-        final InputStream is = new FileInputStream(inputFile);
-        TarArchiveInputStream debInputStream = null;
-        try {
-            debInputStream = (TarArchiveInputStream)
-                    new ArchiveStreamFactory().createArchiveInputStream("tar", is);
-            TarArchiveEntry entry = null;
-            while ((entry = (TarArchiveEntry)debInputStream.getNextEntry()) != null) {
-                final File outputFile = new File(outputDir, entry.getName());
-                if (entry.isDirectory()) {
-                    CLog.i(String.format("Attempting to write output directory %s.",
-                            outputFile.getAbsolutePath()));
-                    if (!outputFile.exists()) {
-                        CLog.i(String.format("Attempting to create output directory %s.",
-                                outputFile.getAbsolutePath()));
-                        if (!outputFile.mkdirs()) {
-                            throw new IllegalStateException(
-                                    String.format("Couldn't create directory %s.",
-                                    outputFile.getAbsolutePath()));
-                        }
-                    }
-                } else {
-                    CLog.i(String.format("Creating output file %s.", outputFile.getAbsolutePath()));
-                    final OutputStream outputFileStream = new FileOutputStream(outputFile);
-                    IOUtils.copy(debInputStream, outputFileStream);
-                    StreamUtil.close(outputFileStream);
-                }
-                untaredFiles.add(outputFile);
-            }
-        } catch (ArchiveException ae) {
-            // We rethrow the ArchiveException through a more generic one.
-            throw new IOException(ae);
-        } finally {
-            StreamUtil.close(debInputStream);
-            StreamUtil.close(is);
-        }
-        return untaredFiles;
+        return new ArchiveExtractor().setFilter(filter).extractTar(inputFile, outputDir);
     }
 
     /**
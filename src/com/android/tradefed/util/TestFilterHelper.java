@@ -15,34 +15,105 @@
  */
 package com.android.tradefed.util;
 
-import com.android.tradefed.log.LogUtil.CLog;
-
 import org.junit.runner.Description;
 
-import java.lang.annotation.Annotation;
 import java.lang.reflect.AnnotatedElement;
 import java.lang.reflect.Method;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
+import java.util.function.Predicate;
 
 /**
  * Helper class for filtering tests
+ * <p>
+ * The filters are compiled into a {@link CompiledTestFilter} on first use, and recompiled only
+ * when one of the filter sets is modified.
+ * </p>
  */
 public class TestFilterHelper {
 
     /** The include filters of the test name to run */
-    private Set<String> mIncludeFilters = new HashSet<>();
+    private Set<String> mIncludeFilters = new TrackedSet();
 
     /** The exclude filters of the test name to run */
-    private Set<String> mExcludeFilters = new HashSet<>();
+    private Set<String> mExcludeFilters = new TrackedSet();
 
     /** The include annotations of the test to run */
-    private Set<String> mIncludeAnnotations = new HashSet<>();
+    private Set<String> mIncludeAnnotations = new TrackedSet();
 
     /** The exclude annotations of the test to run */
-    private Set<String> mExcludeAnnotations = new HashSet<>();
+    private Set<String> mExcludeAnnotations = new TrackedSet();
+
+    /** The compiled form of the filters, null when it needs to be rebuilt. */
+    private volatile CompiledTestFilter mCompiledFilter = null;
+
+    /**
+     * A {@link HashSet} that invalidates the compiled filter when modified, since the sets are
+     * returned to callers that may add to them directly.
+     */
+    private class TrackedSet extends HashSet<String> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean add(String e) {
+            mCompiledFilter = null;
+            return super.add(e);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            mCompiledFilter = null;
+            return super.remove(o);
+        }
+
+        @Override
+        public void clear() {
+            mCompiledFilter = null;
+            super.clear();
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            mCompiledFilter = null;
+            return super.removeAll(c);
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> c) {
+            mCompiledFilter = null;
+            return super.retainAll(c);
+        }
+
+        @Override
+        public boolean removeIf(Predicate<? super String> filter) {
+            mCompiledFilter = null;
+            return super.removeIf(filter);
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            final Iterator<String> it = super.iterator();
+            return new Iterator<String>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    return it.next();
+                }
+
+                @Override
+                public void remove() {
+                    mCompiledFilter = null;
+                    it.remove();
+                }
+            };
+        }
+    }
 
     public TestFilterHelper() {
     }
@@ -127,6 +198,22 @@ public class TestFilterHelper {
         return mExcludeAnnotations;
     }
 
+    /** Returns the compiled form of the current filters. */
+    CompiledTestFilter getCompiledFilter() {
+        CompiledTestFilter compiled = mCompiledFilter;
+        if (compiled == null) {
+            synchronized (this) {
+                compiled = mCompiledFilter;
+                if (compiled == null) {
+                    compiled = new CompiledTestFilter(mIncludeFilters, mExcludeFilters,
+                            mIncludeAnnotations, mExcludeAnnotations);
+                    mCompiledFilter = compiled;
+                }
+            }
+        }
+        return compiled;
+    }
+
 
     /**
      * Check if an element that has annotation passes the filter
@@ -135,7 +222,8 @@ public class TestFilterHelper {
      * @return true if the test should run, false otherwise
      */
     public boolean shouldTestRun(AnnotatedElement annotatedElement) {
-        return shouldTestRun(Arrays.asList(annotatedElement.getAnnotations()));
+        CompiledTestFilter compiled = getCompiledFilter();
+        return shouldTestRun(compiled, compiled.getAnnotationInfo(annotatedElement));
     }
 
     /**
@@ -145,48 +233,17 @@ public class TestFilterHelper {
      * @return true if the test should run, false otherwise
      */
     public boolean shouldTestRun(Description desc) {
-        return shouldTestRun(desc.getAnnotations());
+        return getCompiledFilter().matchesAnnotations(desc.getAnnotations());
     }
 
     /**
      * Internal helper to determine if a particular test should run based on its annotations.
      */
-    private boolean shouldTestRun(Collection<Annotation> annotationsList) {
-        if (isExcluded(annotationsList)) {
-            return false;
-        }
-        return isIncluded(annotationsList);
-    }
-
-    private boolean isExcluded(Collection<Annotation> annotationsList) {
-        if (!mExcludeAnnotations.isEmpty()) {
-            for (Annotation a : annotationsList) {
-                if (mExcludeAnnotations.contains(a.annotationType().getName())) {
-                    // If any of the method annotation match an ExcludeAnnotation, don't run it
-                    CLog.i("Skipping %s, ExcludeAnnotation exclude it", a);
-                    return true;
-                }
-            }
-        }
-        return false;
-    }
-
-    private boolean isIncluded(Collection<Annotation> annotationsList) {
-        if (!mIncludeAnnotations.isEmpty()) {
-            Set<String> neededAnnotation = new HashSet<String>();
-            neededAnnotation.addAll(mIncludeAnnotations);
-            for (Annotation a : annotationsList) {
-                if (neededAnnotation.contains(a.annotationType().getName())) {
-                    neededAnnotation.remove(a.annotationType().getName());
-                }
-            }
-            if (neededAnnotation.size() != 0) {
-                // The test needs to have all the include annotation to pass.
-                CLog.i("Skipping, IncludeAnnotation filtered it");
-                return false;
-            }
-        }
-        return true;
+    private boolean shouldTestRun(CompiledTestFilter compiled,
+            CompiledTestFilter.AnnotationInfo info) {
+        // If any of the annotations match an ExcludeAnnotation, don't run it. Otherwise the test
+        // needs to have all the include annotation to pass.
+        return !info.mExcluded && compiled.isIncluded(info);
     }
 
     /**
@@ -198,32 +255,31 @@ public class TestFilterHelper {
      * @return true if the test method should run, false otherwise
      */
     public boolean shouldRun(String packageName, Class<?> classObj, Method method) {
+        CompiledTestFilter compiled = getCompiledFilter();
         String className = classObj.getName();
-        String methodName = String.format("%s#%s", className, method.getName());
-        if (!shouldRunFilter(packageName, className, methodName)) {
+        String methodName = method.getName();
+        if (compiled.isExcludedByName(packageName, className, methodName)) {
             return false;
         }
+        CompiledTestFilter.AnnotationInfo classInfo = compiled.getAnnotationInfo(classObj);
         // If class is explicitly annotated to be excluded.
-        if (isExcluded(Arrays.asList(classObj.getAnnotations()))) {
+        if (classInfo.mExcluded) {
             return false;
         }
+        boolean classIncluded = compiled.isIncluded(classInfo);
+        CompiledTestFilter.AnnotationInfo methodInfo = compiled.getAnnotationInfo(method);
         // if class include but method exclude, we exclude
-        if (isIncluded(Arrays.asList(classObj.getAnnotations()))
-                && isExcluded(Arrays.asList(method.getAnnotations()))) {
+        if (classIncluded && methodInfo.mExcluded) {
             return false;
         }
         // If a class is explicitly included and check above says method could run, we skip method
         // check, it will be included.
-        if (mIncludeAnnotations.isEmpty()
-                || !isIncluded(Arrays.asList(classObj.getAnnotations()))) {
-            if (!shouldTestRun(method)) {
+        if (!compiled.hasIncludeAnnotations() || !classIncluded) {
+            if (!shouldTestRun(compiled, methodInfo)) {
                 return false;
             }
         }
-        return mIncludeFilters.isEmpty()
-                || mIncludeFilters.contains(methodName)
-                || mIncludeFilters.contains(className)
-                || mIncludeFilters.contains(packageName);
+        return compiled.isIncludedByName(packageName, className, methodName);
     }
 
     /**
@@ -233,50 +289,24 @@ public class TestFilterHelper {
      * @return true if the test method should run, false otherwise
      */
     public boolean shouldRun(Description desc) {
+        CompiledTestFilter compiled = getCompiledFilter();
         // We need to build the packageName for a description object
+        String className = desc.getClassName();
         Class<?> classObj = null;
         try {
-            classObj = Class.forName(desc.getClassName());
+            classObj = compiled.loadClass(className);
         } catch (ClassNotFoundException e) {
             throw new IllegalArgumentException(String.format("Could not load Test class %s",
-                    classObj), e);
+                    className), e);
         }
-        String packageName = classObj.getPackage().getName();
-
-        String className = desc.getClassName();
-        String methodName = String.format("%s#%s", className, desc.getMethodName());
-        if (!shouldRunFilter(packageName, className, methodName)) {
+        String packageName = compiled.getPackageName(classObj);
+        String methodName = desc.getMethodName();
+        if (compiled.isExcludedByName(packageName, className, methodName)) {
             return false;
         }
         if (!shouldTestRun(desc)) {
             return false;
         }
-        return mIncludeFilters.isEmpty()
-                || mIncludeFilters.contains(methodName)
-                || mIncludeFilters.contains(className)
-                || mIncludeFilters.contains(packageName);
-    }
-
-    /**
-     * Internal helper to check if a particular test should run based on its package, class, method
-     * names.
-     */
-    private boolean shouldRunFilter(String packageName, String className, String methodName) {
-        if (mExcludeFilters.contains(packageName)) {
-            // Skip package because it was excluded
-            CLog.i("Skip package %s because it was excluded", packageName);
-            return false;
-        }
-        if (mExcludeFilters.contains(className)) {
-            // Skip class because it was excluded
-            CLog.i("Skip class %s because it was excluded", className);
-            return false;
-        }
-        if (mExcludeFilters.contains(methodName)) {
-            // Skip method because it was excluded
-            CLog.i("Skip method %s in class %s because it was excluded", methodName, className);
-            return false;
-        }
-        return true;
+        return compiled.isIncludedByName(packageName, className, methodName);
     }
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+/**
+ * A token bucket rate limiter: up to {@code capacity} operations can run back to back, after which
+ * one operation is allowed per refill interval.
+ */
+public class TokenBucket {
+
+    private final int mCapacity;
+    private final long mRefillIntervalMs;
+    private double mTokens;
+    private long mLastRefillTime;
+
+    /**
+     * Creates a full {@link TokenBucket}.
+     *
+     * @param capacity the maximum number of tokens, i.e. the size of a burst.
+     * @param refillIntervalMs the time it takes to add one token to the bucket.
+     */
+    public TokenBucket(int capacity, long refillIntervalMs) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        if (refillIntervalMs < 0) {
+            throw new IllegalArgumentException("refill interval cannot be negative");
+        }
+        mCapacity = capacity;
+        mRefillIntervalMs = refillIntervalMs;
+        mTokens = capacity;
+        mLastRefillTime = getCurrentTimeMs();
+    }
+
+    /**
+     * Take a token if one is available.
+     *
+     * @return {@code true} if a token was taken, {@code false} if the bucket is empty.
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (mTokens >= 1) {
+            mTokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the time in ms until a token is available, or 0 if one is available now.
+     */
+    public synchronized long getWaitTimeMs() {
+        refill();
+        if (mTokens >= 1) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - mTokens) * mRefillIntervalMs);
+    }
+
+    private void refill() {
+        long now = getCurrentTimeMs();
+        if (mRefillIntervalMs == 0) {
+            mTokens = mCapacity;
+        } else {
+            mTokens = Math.min(mCapacity,
+                    mTokens + (double) (now - mLastRefillTime) / mRefillIntervalMs);
+        }
+        mLastRefillTime = now;
+    }
+
+    /**
+     * Returns the current time in ms. Exposed for unit testing.
+     */
+    protected long getCurrentTimeMs() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A host-wide cache of extracted zip files, shared between invocations.
+ * <p/>
+ * A zip is identified by a key computed from its central directory, see {@link #computeKey}, so
+ * the same zip downloaded to different paths is only extracted once. Each zip is extracted once
+ * to a read-only tree under the cache directory, whose files are then hard linked into the
+ * workspace of each invocation, so that using a cached zip does not write its content again. The
+ * files are copied instead when they cannot be linked, e.g. across file systems.
+ * <p/>
+ * Linked files share their content and permissions with the cached tree: workspaces must not
+ * modify them in place, but can delete or replace them.
+ * <p/>
+ * Extraction happens in a temporary directory which is atomically renamed once complete, so
+ * several TF processes can share the same cache directory. Each cached tree has a lock file,
+ * locked while the tree is extracted or linked, so that no process evicts a tree in use. The
+ * least recently used trees are deleted along with their lock file once there are more than the
+ * max number of entries.
+ */
+public class ZipExtractionCache {
+
+    private static final String DEFAULT_CACHE_DIR_NAME = "tf-zip-extraction-cache";
+    private static final int DEFAULT_MAX_ENTRIES = 3;
+    private static final String TMP_PREFIX = "tmp-";
+    private static final String LOCK_SUFFIX = ".lock";
+
+    // use the "singleton inner class" pattern
+    // http://en.wikipedia.org/wiki/Singleton_pattern#The_solution_of_Bill_Pugh
+    private static class SingletonHolder {
+        public static final ZipExtractionCache INSTANCE = new ZipExtractionCache(
+                new File(System.getProperty("java.io.tmpdir"), String.format("%s-%s",
+                        DEFAULT_CACHE_DIR_NAME, System.getProperty("user.name"))),
+                DEFAULT_MAX_ENTRIES);
+    }
+
+    /** Key of a zip file on disk, to avoid hashing the same zip several times. */
+    private static class ZipId {
+        final String mPath;
+        final long mLength;
+        final long mLastModified;
+
+        ZipId(File zip) {
+            mPath = zip.getAbsolutePath();
+            mLength = zip.length();
+            mLastModified = zip.lastModified();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof ZipId)) {
+                return false;
+            }
+            ZipId id = (ZipId) other;
+            return mPath.equals(id.mPath) && mLength == id.mLength
+                    && mLastModified == id.mLastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[] {mPath, mLength, mLastModified});
+        }
+    }
+
+    private final File mCacheDir;
+    private final int mMaxEntries;
+    private final Map<ZipId, String> mKeys = new HashMap<>();
+    private final Map<String, Object> mKeyLocks = new HashMap<>();
+    private int mExtractionThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Creates a {@link ZipExtractionCache}.
+     *
+     * @param cacheDir the directory where the extracted trees are stored.
+     * @param maxEntries the max number of extracted trees to keep.
+     */
+    public ZipExtractionCache(File cacheDir, int maxEntries) {
+        mCacheDir = cacheDir;
+        mMaxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the default host-wide {@link ZipExtractionCache}, in a directory of the temp
+     * directory owned by the current user.
+     */
+    public static ZipExtractionCache getDefault() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    /** Sets the number of threads used to extract a zip. */
+    public void setExtractionThreads(int threads) {
+        mExtractionThreads = threads;
+    }
+
+    /**
+     * Makes the content of the zip available in the given directory, by linking the files of the
+     * cached extraction, extracting the zip first if its content is not in the cache yet.
+     * Existing files are replaced. The linked files are read-only.
+     *
+     * @param zip the zip file.
+     * @param destDir the directory to populate.
+     * @throws IOException if the zip cannot be extracted or linked.
+     */
+    public void extractTo(File zip, File destDir) throws IOException {
+        extractTo(zip, destDir, null);
+    }
+
+    /**
+     * Makes some of the content of the zip available in the given directory, see
+     * {@link #extractTo(File, File)}.
+     *
+     * @param zip the zip file.
+     * @param destDir the directory to populate.
+     * @param filter the {@link FileFilter} selecting the extracted files to link, or null to link
+     *            them all.
+     * @throws IOException if the zip cannot be extracted or linked.
+     */
+    public void extractTo(File zip, File destDir, FileFilter filter) throws IOException {
+        String key = getKey(zip);
+        synchronized (getKeyLock(key)) {
+            FileChannel lock = lockEntry(key);
+            try {
+                File extracted = getExtractedDir(zip, key);
+                linkTree(extracted, destDir, filter);
+            } finally {
+                if (!new File(mCacheDir, key).isDirectory()) {
+                    // the extraction failed, do not leave its lock file behind
+                    deleteLockFile(key, lock);
+                }
+                StreamUtil.close(lock);
+            }
+        }
+        evictOldEntries(key);
+    }
+
+    /**
+     * Returns the read-only directory where the content of the zip is extracted, extracting it
+     * if this content is not in the cache yet. The lock of the entry must be held.
+     */
+    private File getExtractedDir(File zip, String key) throws IOException {
+        File extracted = new File(mCacheDir, key);
+        if (extracted.isDirectory()) {
+            CLog.d("Using cached extraction of %s: %s", zip.getAbsolutePath(), extracted);
+            extracted.setLastModified(System.currentTimeMillis());
+            return extracted;
+        }
+        File tmpDir = FileUtil.createTempDir(TMP_PREFIX + key, mCacheDir);
+        try {
+            long start = System.currentTimeMillis();
+            new ArchiveExtractor(mExtractionThreads).extractZip(zip, tmpDir);
+            makeReadOnly(tmpDir);
+            // Readers only look for complete trees, in case a process dies while extracting
+            Files.move(tmpDir.toPath(), extracted.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            CLog.d("Extracted %s to %s in %d ms", zip.getAbsolutePath(), extracted,
+                    System.currentTimeMillis() - start);
+        } finally {
+            FileUtil.recursiveDelete(tmpDir);
+        }
+        return extracted;
+    }
+
+    /**
+     * Locks the entry of a key against the other processes, until the returned channel is
+     * closed.
+     */
+    private FileChannel lockEntry(String key) throws IOException {
+        if (!mCacheDir.isDirectory() && !mCacheDir.mkdirs() && !mCacheDir.isDirectory()) {
+            throw new IOException(String.format("Could not create cache directory %s",
+                    mCacheDir.getAbsolutePath()));
+        }
+        while (true) {
+            FileChannel channel = FileChannel.open(getLockFile(key).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                channel.lock();
+                if (channel.size() == 0) {
+                    return channel;
+                }
+            } catch (IOException | RuntimeException e) {
+                StreamUtil.close(channel);
+                throw e;
+            }
+            // the lock file was deleted while waiting for it, lock the new one
+            StreamUtil.close(channel);
+        }
+    }
+
+    private File getLockFile(String key) {
+        return new File(mCacheDir, key + LOCK_SUFFIX);
+    }
+
+    /**
+     * Deletes the lock file of an entry, whose lock must be held. The lock file is marked first,
+     * so that the processes waiting on it know to lock a new one.
+     */
+    private void deleteLockFile(String key, FileChannel lock) {
+        try {
+            lock.write(ByteBuffer.wrap(new byte[] {1}), 0);
+        } catch (IOException e) {
+            CLog.w("Failed to mark lock file of %s: %s", key, e.toString());
+            return;
+        }
+        FileUtil.deleteFile(getLockFile(key));
+    }
+
+    /**
+     * Links the files of the cached tree into the destination directory, or copies them if they
+     * cannot be linked.
+     */
+    private static void linkTree(File sourceDir, File destDir, FileFilter filter)
+            throws IOException {
+        if (!destDir.isDirectory() && !destDir.mkdirs()) {
+            throw new IOException(String.format("Could not create directory %s",
+                    destDir.getAbsolutePath()));
+        }
+        for (File child : sourceDir.listFiles()) {
+            File destChild = new File(destDir, child.getName());
+            if (child.isDirectory()) {
+                linkTree(child, destChild, filter);
+            } else if (filter == null || filter.accept(child)) {
+                Files.deleteIfExists(destChild.toPath());
+                try {
+                    Files.createLink(destChild.toPath(), child.toPath());
+                } catch (IOException | UnsupportedOperationException e) {
+                    CLog.d("Could not link %s, copying it: %s", child, e.toString());
+                    Files.copy(child.toPath(), destChild.toPath(),
+                            StandardCopyOption.COPY_ATTRIBUTES);
+                }
+            }
+        }
+    }
+
+    /** Removes the write permissions of all the files of the cached tree. */
+    private static void makeReadOnly(File dir) {
+        for (File child : dir.listFiles()) {
+            if (child.isDirectory()) {
+                makeReadOnly(child);
+            } else {
+                child.setWritable(false, false);
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used extractions beyond the max number of entries. Entries
+     * locked by another process are in use, and kept.
+     */
+    private void evictOldEntries(String currentKey) {
+        File[] entries = mCacheDir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        List<File> candidates = new ArrayList<>();
+        for (File entry : entries) {
+            String name = entry.getName();
+            if (entry.isDirectory() && !name.startsWith(TMP_PREFIX)
+                    && !name.equals(currentKey)) {
+                candidates.add(entry);
+            } else if (name.endsWith(LOCK_SUFFIX)) {
+                String key = name.substring(0, name.length() - LOCK_SUFFIX.length());
+                if (!key.equals(currentKey) && !new File(mCacheDir, key).exists()) {
+                    // left behind by a process which died while extracting
+                    evictEntry(key);
+                }
+            }
+        }
+        Collections.sort(candidates, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        // The current entry counts toward the max
+        for (int i = 0; i < candidates.size() - (mMaxEntries - 1); i++) {
+            evictEntry(candidates.get(i).getName());
+        }
+    }
+
+    /**
+     * Deletes an entry and its lock file, unless another process is using it.
+     */
+    private void evictEntry(String key) {
+        File entry = new File(mCacheDir, key);
+        synchronized (getKeyLock(key)) {
+            try (FileChannel channel = FileChannel.open(getLockFile(key).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                if (channel.tryLock() == null) {
+                    CLog.d("%s is in use, not evicting it", entry);
+                    return;
+                }
+                CLog.d("Evicting %s from the zip extraction cache", entry);
+                FileUtil.recursiveDelete(entry);
+                deleteLockFile(key, channel);
+            } catch (IOException e) {
+                CLog.e("Failed to evict %s", entry);
+                CLog.e(e);
+            }
+        }
+    }
+
+    private synchronized Object getKeyLock(String key) {
+        Object lock = mKeyLocks.get(key);
+        if (lock == null) {
+            lock = new Object();
+            mKeyLocks.put(key, lock);
+        }
+        return lock;
+    }
+
+    /** Returns the content key of the zip, only hashing it once per path and modification. */
+    @VisibleForTesting
+    String getKey(File zip) throws IOException {
+        ZipId id = new ZipId(zip);
+        synchronized (mKeys) {
+            String key = mKeys.get(id);
+            if (key != null) {
+                return key;
+            }
+        }
+        String key = computeKey(zip);
+        synchronized (mKeys) {
+            mKeys.put(id, key);
+        }
+        return key;
+    }
+
+    /**
+     * Computes the content key of a zip from its central directory: the name, size, CRC-32 and
+     * mode of each entry. This does not need to read the compressed data, but it relies on the
+     * CRC-32 of the entries: two zips whose entries only differ by content with the same size and
+     * CRC-32 get the same key. This is fine for build artifacts, not for untrusted zips.
+     */
+    @VisibleForTesting
+    static String computeKey(File zip) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                String line = String.format("%s:%d:%d:%d:%d\n", entry.getName(), entry.getSize(),
+                        entry.getCrc(), entry.getPlatform(), entry.getUnixMode());
+                digest.update(line.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+}
@@ -15,37 +15,21 @@
  */
 package com.android.tradefed.util;
 
-import com.android.tradefed.log.LogUtil.CLog;
-
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.util.Enumeration;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  * A helper class for zip extraction that takes POSIX file permissions into account
  */
 public class ZipUtil2 {
 
-    /**
-     * A util method to apply unix mode from {@link ZipArchiveEntry} to the created local file
-     * system entry if necessary
-     * @param entry the entry inside zipfile (potentially contains mode info)
-     * @param localFile the extracted local file entry
-     * @throws IOException
-     */
-    private static void applyUnixModeIfNecessary(ZipArchiveEntry entry, File localFile)
-            throws IOException {
-        if (entry.getPlatform() == ZipArchiveEntry.PLATFORM_UNIX) {
-            Files.setPosixFilePermissions(localFile.toPath(),
-                    FileUtil.unixModeToPosix(entry.getUnixMode()));
-        } else {
-            CLog.i("Entry does not contain Unix mode info: %s", entry.getName());
-        }
-    }
+    private static final int BUFFER_SIZE = 64 * 1024;
 
     /**
      * Utility method to extract entire contents of zip file into given directory
@@ -55,20 +39,23 @@ public class ZipUtil2 {
      * @throws IOException if failed to extract file
      */
     public static void extractZip(ZipFile zipFile, File destDir) throws IOException {
-        Enumeration<? extends ZipArchiveEntry> entries = zipFile.getEntries();
-        while (entries.hasMoreElements()) {
-            ZipArchiveEntry entry = entries.nextElement();
-            File childFile = new File(destDir, entry.getName());
-            childFile.getParentFile().mkdirs();
-            if (entry.isDirectory()) {
-                childFile.mkdirs();
-                applyUnixModeIfNecessary(entry, childFile);
-                continue;
-            } else {
-                FileUtil.writeToFile(zipFile.getInputStream(entry), childFile);
-                applyUnixModeIfNecessary(entry, childFile);
-            }
-        }
+        new ArchiveExtractor().extractZip(zipFile, destDir);
+    }
+
+    /**
+     * Utility method to extract the entries of a zip file accepted by a filter into given
+     * directory, using several threads.
+     *
+     * @param zip the zip file to extract
+     * @param destDir the local dir to extract file to
+     * @param filter the {@link ArchiveExtractor.IEntryFilter} selecting the entries to extract
+     * @param threads the max number of threads extracting entries at the same time
+     * @return the extracted files and directories
+     * @throws IOException if failed to extract file
+     */
+    public static List<File> extractZip(File zip, File destDir,
+            ArchiveExtractor.IEntryFilter filter, int threads) throws IOException {
+        return new ArchiveExtractor(threads).setFilter(filter).extractZip(zip, destDir);
     }
 
     /**
@@ -86,8 +73,11 @@ public class ZipUtil2 {
         }
         File createdFile = FileUtil.createTempFile("extracted",
                 FileUtil.getExtension(filePath));
-        FileUtil.writeToFile(zipFile.getInputStream(entry), createdFile);
-        applyUnixModeIfNecessary(entry, createdFile);
+        try (InputStream in = zipFile.getInputStream(entry)) {
+            ArchiveExtractor.writeEntry(in, createdFile, entry.getSize(),
+                    ByteBuffer.allocate(BUFFER_SIZE));
+        }
+        ArchiveExtractor.applyUnixModeIfNecessary(entry, createdFile);
         return createdFile;
     }
 
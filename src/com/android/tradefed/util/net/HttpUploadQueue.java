@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.net;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A queue of HTTP POST requests, sent in the background with retries.
+ * <p/>
+ * The body of each request is spooled to a file when it is enqueued, so pending and retried
+ * requests do not hold memory, and the total size of the spooled bodies is bounded. The spool
+ * directory is only accessible to the current user. Bodies can be gzip compressed. The requests
+ * are sent from a small pool of threads, which reuse the keep-alive connections of
+ * {@link HttpURLConnection} since responses are always fully read. Failed requests are retried
+ * with an escalating delay, without holding a thread while waiting.
+ * <p/>
+ * The sending threads are not daemon threads, so the pending requests are sent before the JVM
+ * exits normally. The bodies left in the spool by a process which did not exit normally cannot
+ * be sent again, as their url is not spooled, and are deleted once no queue can still be sending
+ * them. A host wide instance is available from {@link #getDefault()}.
+ */
+public class HttpUploadQueue {
+
+    private static final String DEFAULT_SPOOL_DIR_NAME = "tf-http-upload-spool";
+    private static final int DEFAULT_THREADS = 2;
+    private static final long DEFAULT_MAX_SPOOL_BYTES = 512L * 1024 * 1024;
+    /** Time in ms after which an idle sending thread exits. */
+    private static final long KEEP_ALIVE_MS = 5 * 1000;
+    private static final int RETRY_INCREASE_FACTOR = 4;
+    private static final String BODY_PREFIX = "upload";
+    private static final Set<PosixFilePermission> OWNER_ONLY =
+            PosixFilePermissions.fromString("rwx------");
+
+    private static HttpUploadQueue sDefault = null;
+
+    /**
+     * Receives the outcome of a request. Called from a sending thread.
+     */
+    public static interface IUploadCallback {
+        /**
+         * Called when the request succeeded with a 2xx response.
+         *
+         * @param responseCode the HTTP response code.
+         * @param response the response body.
+         */
+        public void uploadSucceeded(int responseCode, String response);
+
+        /**
+         * Called when the request failed, and will not be retried.
+         *
+         * @param reason the reason of the failure.
+         */
+        public void uploadFailed(String reason);
+    }
+
+    private final File mSpoolDir;
+    private final long mMaxSpoolBytes;
+    private final IHttpHelper mHttpHelper;
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final Object mLock = new Object();
+    private long mSpoolBytes = 0;
+    private final Set<File> mPendingBodies = new HashSet<>();
+
+    /**
+     * A pending request.
+     */
+    private class Upload implements Runnable {
+        private final String mUrl;
+        private final String mContentType;
+        private final boolean mGzip;
+        private final File mBody;
+        private final IUploadCallback mCallback;
+        private final long mStartTime;
+        private long mRetryDelay;
+
+        Upload(String url, String contentType, boolean gzip, File body,
+                IUploadCallback callback) {
+            mUrl = url;
+            mContentType = contentType;
+            mGzip = gzip;
+            mBody = body;
+            mCallback = callback;
+            mStartTime = System.currentTimeMillis();
+            mRetryDelay = mHttpHelper.getInitialPollInterval();
+        }
+
+        /**
+         * Sends the request once, and schedules a retry if it failed.
+         */
+        @Override
+        public void run() {
+            String failure;
+            try {
+                sendRequest(this);
+                return;
+            } catch (RetryableException e) {
+                failure = e.getMessage();
+            } catch (IOException e) {
+                failure = e.toString();
+            } catch (RuntimeException e) {
+                complete(false, 0, e.toString());
+                return;
+            }
+            long remaining = mHttpHelper.getMaxTime()
+                    - (System.currentTimeMillis() - mStartTime);
+            if (remaining <= 0 || mExecutor.isShutdown()) {
+                complete(false, 0, String.format("still failing after %d ms: %s",
+                        mHttpHelper.getMaxTime(), failure));
+                return;
+            }
+            long delay = Math.min(mRetryDelay, remaining);
+            CLog.d("Upload to %s failed, retrying in %d ms: %s", mUrl, delay, failure);
+            mRetryDelay = Math.min(mRetryDelay * RETRY_INCREASE_FACTOR,
+                    mHttpHelper.getMaxPollInterval());
+            try {
+                mExecutor.schedule(this, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                complete(false, 0, String.format("queue shut down: %s", failure));
+            }
+        }
+
+        /**
+         * Deletes the spooled body and notifies the callback.
+         */
+        void complete(boolean success, int code, String message) {
+            long size = mBody.length();
+            FileUtil.deleteFile(mBody);
+            if (success) {
+                CLog.d("Uploaded %d bytes to %s", size, mUrl);
+                if (mCallback != null) {
+                    mCallback.uploadSucceeded(code, message);
+                }
+            } else {
+                CLog.e("Failed to upload to %s: %s", mUrl, message);
+                if (mCallback != null) {
+                    mCallback.uploadFailed(message);
+                }
+            }
+            synchronized (mLock) {
+                mSpoolBytes -= size;
+                mPendingBodies.remove(mBody);
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * A failure of a request which is worth retrying, e.g. a server error.
+     */
+    @SuppressWarnings("serial")
+    private static class RetryableException extends Exception {
+        RetryableException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Creates a {@link HttpUploadQueue}.
+     *
+     * @param spoolDir the directory where the request bodies are spooled.
+     * @param threads the number of sending threads.
+     * @param maxSpoolBytes the max total size of the spooled bodies. Requests are rejected when
+     *            the spool is full.
+     * @param httpHelper the {@link IHttpHelper} creating the connections, and defining the timeouts
+     *            and the retry delays.
+     */
+    public HttpUploadQueue(File spoolDir, int threads, long maxSpoolBytes,
+            IHttpHelper httpHelper) {
+        mSpoolDir = spoolDir;
+        mMaxSpoolBytes = maxSpoolBytes;
+        mHttpHelper = httpHelper;
+        final AtomicInteger count = new AtomicInteger();
+        mExecutor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                // not a daemon, so the pending requests are sent before the JVM exits
+                return new Thread(r, "HttpUploadQueue-" + count.incrementAndGet());
+            }
+        });
+        mExecutor.setKeepAliveTime(KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+        deleteStaleBodies();
+    }
+
+    /**
+     * Deletes the bodies left in the spool directory by queues which stopped before sending
+     * them. A body is stale once it is older than twice the max retry time, so that the bodies
+     * of the queues of other running processes are kept.
+     */
+    private void deleteStaleBodies() {
+        File[] files = mSpoolDir.listFiles();
+        if (files == null || !checkSpoolDir()) {
+            return;
+        }
+        long staleTime = System.currentTimeMillis() - 2L * mHttpHelper.getMaxTime();
+        for (File file : files) {
+            if (file.isFile() && file.getName().startsWith(BODY_PREFIX)
+                    && file.lastModified() < staleTime) {
+                CLog.i("Deleting stale upload body %s", file);
+                FileUtil.deleteFile(file);
+            }
+        }
+    }
+
+    /**
+     * Creates the spool directory if needed, only accessible to the current user.
+     *
+     * @return true if the spool directory can be used.
+     */
+    private boolean prepareSpoolDir() throws IOException {
+        if (!mSpoolDir.isDirectory()) {
+            try {
+                Files.createDirectories(mSpoolDir.toPath(),
+                        PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            } catch (FileAlreadyExistsException e) {
+                // created concurrently, checked below
+            }
+        }
+        return checkSpoolDir();
+    }
+
+    /**
+     * Returns true if the spool directory is owned by the current user and not writable by anyone
+     * else, so that the spooled bodies cannot be tampered with.
+     */
+    private boolean checkSpoolDir() {
+        Path dir = mSpoolDir.toPath();
+        try {
+            String owner = Files.getOwner(dir, LinkOption.NOFOLLOW_LINKS).getName();
+            Set<PosixFilePermission> perms =
+                    Files.getPosixFilePermissions(dir, LinkOption.NOFOLLOW_LINKS);
+            if (owner.equals(System.getProperty("user.name"))
+                    && !perms.contains(PosixFilePermission.GROUP_WRITE)
+                    && !perms.contains(PosixFilePermission.OTHERS_WRITE)) {
+                return true;
+            }
+            CLog.w("Not using upload spool %s: owned by %s with permissions %s", mSpoolDir, owner,
+                    PosixFilePermissions.toString(perms));
+        } catch (IOException | UnsupportedOperationException e) {
+            CLog.w("Not using upload spool %s: %s", mSpoolDir, e.toString());
+        }
+        return false;
+    }
+
+    /**
+     * Get the host wide {@link HttpUploadQueue}, spooling to a directory of the current user in
+     * the temp directory.
+     */
+    public static synchronized HttpUploadQueue getDefault() {
+        if (sDefault == null) {
+            sDefault = new HttpUploadQueue(
+                    new File(System.getProperty("java.io.tmpdir"), String.format("%s-%s",
+                            DEFAULT_SPOOL_DIR_NAME, System.getProperty("user.name"))),
+                    DEFAULT_THREADS, DEFAULT_MAX_SPOOL_BYTES, new HttpHelper());
+        }
+        return sDefault;
+    }
+
+    /**
+     * Waits for the requests of the host wide {@link HttpUploadQueue} to complete, if it was used.
+     *
+     * @param timeoutMs the max time to wait, in ms.
+     * @return true if no request is pending.
+     */
+    public static boolean awaitDefault(long timeoutMs) {
+        HttpUploadQueue queue;
+        synchronized (HttpUploadQueue.class) {
+            queue = sDefault;
+        }
+        return queue == null || queue.await(timeoutMs);
+    }
+
+    /**
+     * Enqueues a POST request.
+     *
+     * @param url the url to post to.
+     * @param contentType the content type of the body, or null.
+     * @param body the body of the request.
+     * @param gzip true to compress the body, and send it with a gzip content encoding.
+     * @param callback the {@link IUploadCallback} notified of the outcome, or null.
+     * @return false if the request was rejected, because the spool is full or the body cannot be
+     *         spooled. The callback is then notified of the failure too.
+     */
+    public boolean enqueue(String url, String contentType, byte[] body, boolean gzip,
+            IUploadCallback callback) {
+        File bodyFile = null;
+        try {
+            if (!prepareSpoolDir()) {
+                return reject(callback, String.format("cannot use upload spool %s", mSpoolDir));
+            }
+            bodyFile = FileUtil.createTempFile(BODY_PREFIX, gzip ? ".gz" : ".body", mSpoolDir);
+            try (OutputStream out = gzip
+                    ? new GZIPOutputStream(new FileOutputStream(bodyFile))
+                    : new BufferedOutputStream(new FileOutputStream(bodyFile))) {
+                out.write(body);
+            }
+        } catch (IOException e) {
+            FileUtil.deleteFile(bodyFile);
+            return reject(callback, String.format("failed to spool request: %s", e.toString()));
+        }
+        long size = bodyFile.length();
+        synchronized (mLock) {
+            if (mSpoolBytes + size > mMaxSpoolBytes) {
+                FileUtil.deleteFile(bodyFile);
+                return reject(callback, String.format(
+                        "upload spool is full: %d bytes pending", mSpoolBytes));
+            }
+            mSpoolBytes += size;
+            mPendingBodies.add(bodyFile);
+        }
+        Upload upload = new Upload(url, contentType, gzip, bodyFile, callback);
+        try {
+            mExecutor.execute(upload);
+        } catch (RejectedExecutionException e) {
+            upload.complete(false, 0, "queue shut down");
+            return false;
+        }
+        return true;
+    }
+
+    private boolean reject(IUploadCallback callback, String reason) {
+        CLog.e("Rejected upload: %s", reason);
+        if (callback != null) {
+            callback.uploadFailed(reason);
+        }
+        return false;
+    }
+
+    /**
+     * Sends a request once.
+     *
+     * @throws RetryableException if the server failed to process the request.
+     * @throws IOException if the request could not be sent.
+     */
+    private void sendRequest(Upload upload) throws RetryableException, IOException {
+        HttpURLConnection conn = mHttpHelper.createConnection(new URL(upload.mUrl), "POST",
+                upload.mContentType);
+        if (upload.mGzip) {
+            conn.setRequestProperty("Content-Encoding", "gzip");
+        }
+        // stream the body from the spool
+        conn.setFixedLengthStreamingMode(upload.mBody.length());
+        try (InputStream in = new BufferedInputStream(new FileInputStream(upload.mBody));
+                OutputStream out = conn.getOutputStream()) {
+            StreamUtil.copyStreams(in, out);
+        }
+        int code = conn.getResponseCode();
+        String response = readResponse(conn, code);
+        if (code >= 200 && code < 300) {
+            upload.complete(true, code, response);
+            return;
+        }
+        String failure = String.format("code: %d, response: %s", code, response);
+        if (code >= 500 || code == 408 || code == 429) {
+            throw new RetryableException(failure);
+        }
+        upload.complete(false, code, failure);
+    }
+
+    /**
+     * Reads the whole response, so the connection can be reused.
+     */
+    private static String readResponse(HttpURLConnection conn, int code) throws IOException {
+        InputStream in = code >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        if (in == null) {
+            return "";
+        }
+        try {
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            StreamUtil.copyStreams(in, response);
+            return new String(response.toByteArray(), StandardCharsets.UTF_8).trim();
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    /**
+     * Get the number of requests which did not complete yet.
+     */
+    public int getPendingCount() {
+        synchronized (mLock) {
+            return mPendingBodies.size();
+        }
+    }
+
+    /**
+     * Get the total size of the spooled request bodies.
+     */
+    @VisibleForTesting
+    long getSpoolBytes() {
+        synchronized (mLock) {
+            return mSpoolBytes;
+        }
+    }
+
+    /**
+     * Waits for the pending requests to complete.
+     *
+     * @param timeoutMs the max time to wait, in ms.
+     * @return true if no request is pending.
+     */
+    public boolean await(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (mLock) {
+            try {
+                while (!mPendingBodies.isEmpty()) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    mLock.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Stops the sending threads. Pending requests are not sent, and their spooled bodies are
+     * deleted.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+        synchronized (mLock) {
+            for (File body : mPendingBodies) {
+                FileUtil.deleteFile(body);
+            }
+            mPendingBodies.clear();
+            mSpoolBytes = 0;
+            mLock.notifyAll();
+        }
+    }
+}
@@ -36,6 +36,7 @@ import com.android.tradefed.command.VerifyTest;
 import com.android.tradefed.command.remote.RemoteManagerTest;
 import com.android.tradefed.command.remote.RemoteOperationTest;
 import com.android.tradefed.config.ArgsOptionParserTest;
+import com.android.tradefed.config.ConfigurationDefCacheTest;
 import com.android.tradefed.config.ConfigurationDefTest;
 import com.android.tradefed.config.ConfigurationDescriptorTest;
 import com.android.tradefed.config.ConfigurationFactoryTest;
@@ -48,6 +49,8 @@ import com.android.tradefed.config.OptionUpdateRuleTest;
 import com.android.tradefed.device.BackgroundDeviceActionTest;
 import com.android.tradefed.device.CpuStatsCollectorTest;
 import com.android.tradefed.device.DeviceManagerTest;
+import com.android.tradefed.device.DeviceReadinessProbeTest;
+import com.android.tradefed.device.DeviceRecoverySchedulerTest;
 import com.android.tradefed.device.DeviceSelectionOptionsTest;
 import com.android.tradefed.device.DeviceStateMonitorTest;
 import com.android.tradefed.device.DeviceUtilStatsMonitorTest;
@@ -62,6 +65,9 @@ import com.android.tradefed.device.TestDeviceTest;
 import com.android.tradefed.device.TopHelperTest;
 import com.android.tradefed.device.WaitDeviceRecoveryTest;
 import com.android.tradefed.device.WifiHelperTest;
+import com.android.tradefed.device.timeseries.DeviceConditionMonitorTest;
+import com.android.tradefed.device.timeseries.DeviceTimeSeriesCollectorTest;
+import com.android.tradefed.device.timeseries.TimeSeriesTest;
 import com.android.tradefed.invoker.InvocationContextTest;
 import com.android.tradefed.invoker.TestInvocationTest;
 import com.android.tradefed.invoker.shard.ShardHelperTest;
@@ -76,6 +82,7 @@ import com.android.tradefed.profiler.MetricOutputDataTest;
 import com.android.tradefed.profiler.recorder.TraceMetricTest;
 import com.android.tradefed.profiler.recorder.TraceMetricsRecorderTest;
 import com.android.tradefed.profiler.recorder.TraceParserTest;
+import com.android.tradefed.profiler.recorder.TracePipeMetricsRecorderTest;
 import com.android.tradefed.result.AggregatingProfilerListenerTest;
 import com.android.tradefed.result.BugreportCollectorTest;
 import com.android.tradefed.result.CollectingTestListenerTest;
@@ -90,17 +97,23 @@ import com.android.tradefed.result.InvocationFailureEmailResultReporterTest;
 import com.android.tradefed.result.InvocationToJUnitResultForwarderTest;
 import com.android.tradefed.result.JUnitToInvocationResultForwarderTest;
 import com.android.tradefed.result.LogFileSaverTest;
+import com.android.tradefed.result.SharedFileInputStreamSourceTest;
 import com.android.tradefed.result.SnapshotInputStreamSourceTest;
 import com.android.tradefed.result.SubprocessResultsReporterTest;
+import com.android.tradefed.result.TestEventBufferTest;
 import com.android.tradefed.result.TestFailureEmailResultReporterTest;
 import com.android.tradefed.result.TestSummaryTest;
 import com.android.tradefed.result.XmlResultReporterTest;
+import com.android.tradefed.result.logcollector.LogCollectorListenerTest;
 import com.android.tradefed.suite.checker.KeyguardStatusCheckerTest;
 import com.android.tradefed.suite.checker.SystemServerFileDescriptorCheckerTest;
 import com.android.tradefed.suite.checker.SystemServerStatusCheckerTest;
 import com.android.tradefed.targetprep.AllTestAppsInstallSetupTest;
+import com.android.tradefed.targetprep.ApkInstallPipelineTest;
 import com.android.tradefed.targetprep.AppSetupTest;
+import com.android.tradefed.targetprep.BatchedDeviceSetupHelperTest;
 import com.android.tradefed.targetprep.BuildInfoAttributePreparerTest;
+import com.android.tradefed.targetprep.CpuThrottlingWaiterTest;
 import com.android.tradefed.targetprep.DefaultTestsZipInstallerTest;
 import com.android.tradefed.targetprep.DeviceFlashPreparerTest;
 import com.android.tradefed.targetprep.DeviceSetupTest;
@@ -110,6 +123,7 @@ import com.android.tradefed.targetprep.InstallAllTestZipAppsSetupTest;
 import com.android.tradefed.targetprep.InstallApkSetupTest;
 import com.android.tradefed.targetprep.InstrumentationPreparerTest;
 import com.android.tradefed.targetprep.KernelFlashPreparerTest;
+import com.android.tradefed.targetprep.NativeLeakCollectorTest;
 import com.android.tradefed.targetprep.PreloadedClassesPreparerTest;
 import com.android.tradefed.targetprep.PushFilePreparerTest;
 import com.android.tradefed.targetprep.PythonVirtualenvPreparerTest;
@@ -118,6 +132,7 @@ import com.android.tradefed.targetprep.RunHostCommandTargetPreparerTest;
 import com.android.tradefed.targetprep.SdkAvdPreparerTest;
 import com.android.tradefed.targetprep.StopServicesSetupTest;
 import com.android.tradefed.targetprep.SystemUpdaterDeviceFlasherTest;
+import com.android.tradefed.targetprep.TemperatureThrottlingWaiterTest;
 import com.android.tradefed.targetprep.TestAppInstallSetupTest;
 import com.android.tradefed.targetprep.TestFilePushSetupTest;
 import com.android.tradefed.targetprep.suite.SuiteApkInstallerTest;
@@ -164,17 +179,20 @@ import com.android.tradefed.testtype.testdefs.XmlDefsTestTest;
 import com.android.tradefed.util.AaptParserTest;
 import com.android.tradefed.util.AbiFormatterTest;
 import com.android.tradefed.util.AbiUtilsTest;
+import com.android.tradefed.util.ArchiveExtractorTest;
 import com.android.tradefed.util.ArrayUtilTest;
 import com.android.tradefed.util.BluetoothUtilsTest;
 import com.android.tradefed.util.BugreportTest;
 import com.android.tradefed.util.ByteArrayListTest;
 import com.android.tradefed.util.ClassPathScannerTest;
+import com.android.tradefed.util.CompiledTestFilterTest;
 import com.android.tradefed.util.ConditionPriorityBlockingQueueTest;
 import com.android.tradefed.util.ConfigCompletorTest;
 import com.android.tradefed.util.DirectedGraphTest;
 import com.android.tradefed.util.EmailTest;
 import com.android.tradefed.util.EmmaXmlReporterParserTest;
 import com.android.tradefed.util.FakeTestsZipFolderTest;
+import com.android.tradefed.util.FileTreeIndexTest;
 import com.android.tradefed.util.FileUtilTest;
 import com.android.tradefed.util.FixedByteArrayOutputStreamTest;
 import com.android.tradefed.util.HprofAllocSiteParserTest;
@@ -185,8 +203,10 @@ import com.android.tradefed.util.LogcatUpdaterEventParserTest;
 import com.android.tradefed.util.MultiMapTest;
 import com.android.tradefed.util.NullUtilTest;
 import com.android.tradefed.util.PairTest;
+import com.android.tradefed.util.ProcessEngineTest;
 import com.android.tradefed.util.PropertyChangerTest;
 import com.android.tradefed.util.PsParserTest;
+import com.android.tradefed.util.QuantileSketchTest;
 import com.android.tradefed.util.QuotationAwareTokenizerTest;
 import com.android.tradefed.util.RegexTrieTest;
 import com.android.tradefed.util.RunUtilTest;
@@ -203,6 +223,8 @@ import com.android.tradefed.util.TarUtilTest;
 import com.android.tradefed.util.TestLoaderTest;
 import com.android.tradefed.util.TimeUtilTest;
 import com.android.tradefed.util.TimeValTest;
+import com.android.tradefed.util.TokenBucketTest;
+import com.android.tradefed.util.ZipExtractionCacheTest;
 import com.android.tradefed.util.ZipUtil2Test;
 import com.android.tradefed.util.ZipUtilTest;
 import com.android.tradefed.util.hostmetric.AbstractHostMonitorTest;
@@ -211,6 +233,7 @@ import com.android.tradefed.util.keystore.JSONFileKeyStoreClientTest;
 import com.android.tradefed.util.keystore.JSONFileKeyStoreFactoryTest;
 import com.android.tradefed.util.net.HttpHelperTest;
 import com.android.tradefed.util.net.HttpMultipartPostTest;
+import com.android.tradefed.util.net.HttpUploadQueueTest;
 import com.android.tradefed.util.net.XmlRpcHelperTest;
 import com.android.tradefed.util.sl4a.Sl4aClientTest;
 import com.android.tradefed.util.sl4a.Sl4aEventDispatcherTest;
@@ -257,6 +280,7 @@ import org.junit.runners.Suite.SuiteClasses;
 
     // config
     ArgsOptionParserTest.class,
+    ConfigurationDefCacheTest.class,
     ConfigurationDefTest.class,
     ConfigurationDescriptorTest.class,
     ConfigurationFactoryTest.class,
@@ -271,6 +295,8 @@ import org.junit.runners.Suite.SuiteClasses;
     BackgroundDeviceActionTest.class,
     CpuStatsCollectorTest.class,
     DeviceManagerTest.class,
+    DeviceReadinessProbeTest.class,
+    DeviceRecoverySchedulerTest.class,
     DeviceSelectionOptionsTest.class,
     DeviceStateMonitorTest.class,
     DeviceUtilStatsMonitorTest.class,
@@ -287,6 +313,11 @@ import org.junit.runners.Suite.SuiteClasses;
     WaitDeviceRecoveryTest.class,
     WifiHelperTest.class,
 
+    // device.timeseries
+    DeviceConditionMonitorTest.class,
+    DeviceTimeSeriesCollectorTest.class,
+    TimeSeriesTest.class,
+
     // invoker
     InvocationContextTest.class,
     TestInvocationTest.class,
@@ -308,6 +339,7 @@ import org.junit.runners.Suite.SuiteClasses;
     TraceMetricsRecorderTest.class,
     TraceMetricTest.class,
     TraceParserTest.class,
+    TracePipeMetricsRecorderTest.class,
 
     // result
     AggregatingProfilerListenerTest.class,
@@ -325,16 +357,24 @@ import org.junit.runners.Suite.SuiteClasses;
     InvocationToJUnitResultForwarderTest.class,
     JUnitToInvocationResultForwarderTest.class,
     LogFileSaverTest.class,
+    SharedFileInputStreamSourceTest.class,
     SnapshotInputStreamSourceTest.class,
     SubprocessResultsReporterTest.class,
+    TestEventBufferTest.class,
     TestSummaryTest.class,
     TestFailureEmailResultReporterTest.class,
     XmlResultReporterTest.class,
 
+    // result.logcollector
+    LogCollectorListenerTest.class,
+
     // targetprep
     AllTestAppsInstallSetupTest.class,
+    ApkInstallPipelineTest.class,
     AppSetupTest.class,
+    BatchedDeviceSetupHelperTest.class,
     BuildInfoAttributePreparerTest.class,
+    CpuThrottlingWaiterTest.class,
     DefaultTestsZipInstallerTest.class,
     DeviceFlashPreparerTest.class,
     DeviceSetupTest.class,
@@ -344,6 +384,7 @@ import org.junit.runners.Suite.SuiteClasses;
     InstallApkSetupTest.class,
     InstrumentationPreparerTest.class,
     KernelFlashPreparerTest.class,
+    NativeLeakCollectorTest.class,
     PreloadedClassesPreparerTest.class,
     PushFilePreparerTest.class,
     PythonVirtualenvPreparerTest.class,
@@ -352,6 +393,7 @@ import org.junit.runners.Suite.SuiteClasses;
     SdkAvdPreparerTest.class,
     StopServicesSetupTest.class,
     SystemUpdaterDeviceFlasherTest.class,
+    TemperatureThrottlingWaiterTest.class,
     TestAppInstallSetupTest.class,
     TestFilePushSetupTest.class,
 
@@ -413,21 +455,25 @@ import org.junit.runners.Suite.SuiteClasses;
     AaptParserTest.class,
     AbiFormatterTest.class,
     AbiUtilsTest.class,
+    ArchiveExtractorTest.class,
     ArrayUtilTest.class,
     BluetoothUtilsTest.class,
     BugreportTest.class,
     ByteArrayListTest.class,
     ClassPathScannerTest.class,
+    CompiledTestFilterTest.class,
     ConditionPriorityBlockingQueueTest.class,
     ConfigCompletorTest.class,
     DirectedGraphTest.class,
     EmailTest.class,
     FakeTestsZipFolderTest.class,
+    FileTreeIndexTest.class,
     FileUtilTest.class,
     FixedByteArrayOutputStreamTest.class,
     HprofAllocSiteParserTest.class,
     HttpHelperTest.class,
     HttpMultipartPostTest.class,
+    HttpUploadQueueTest.class,
     JUnitXmlParserTest.class,
     KeyguardControllerStateTest.class,
     ListInstrumentationParserTest.class,
@@ -435,7 +481,9 @@ import org.junit.runners.Suite.SuiteClasses;
     MultiMapTest.class,
     NullUtilTest.class,
     PairTest.class,
+    ProcessEngineTest.class,
     PsParserTest.class,
+    QuantileSketchTest.class,
     QuotationAwareTokenizerTest.class,
     RegexTrieTest.class,
     RunUtilTest.class,
@@ -452,7 +500,9 @@ import org.junit.runners.Suite.SuiteClasses;
     TestLoaderTest.class,
     TimeUtilTest.class,
     TimeValTest.class,
+    TokenBucketTest.class,
     XmlRpcHelperTest.class,
+    ZipExtractionCacheTest.class,
     ZipUtilTest.class,
     ZipUtil2Test.class,
 
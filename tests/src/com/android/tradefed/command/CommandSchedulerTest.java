@@ -27,6 +27,7 @@ import com.android.tradefed.config.IConfiguration;
 import com.android.tradefed.config.IConfigurationFactory;
 import com.android.tradefed.config.IDeviceConfiguration;
 import com.android.tradefed.config.IGlobalConfiguration;
+import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.DeviceSelectionOptions;
 import com.android.tradefed.device.FreeDeviceState;
@@ -395,6 +396,60 @@ public class CommandSchedulerTest extends TestCase {
         }
     }
 
+    /**
+     * Test {@link CommandScheduler#run()} with lazy-command-configs: the configuration is created
+     * to validate the command, then again only when the command is matched with a device.
+     */
+    public void testRun_oneConfig_lazy() throws Throwable {
+        String[] args = new String[] {};
+        mMockManager.setNumDevices(2);
+        setCreateConfigExpectations(args, 2);
+        setExpectedInvokeCalls(1);
+        mMockConfiguration.validateOptions();
+        replayMocks();
+        new OptionSetter(mScheduler).setOptionValue("lazy-command-configs", "true");
+        mScheduler.start();
+        mScheduler.addCommand(args);
+        mScheduler.shutdownOnEmpty();
+        mScheduler.join();
+        verifyMocks();
+    }
+
+    /**
+     * Test {@link CommandScheduler#run()} with lazy-command-configs when one config has been added
+     * in a loop: requeued commands do not create a configuration until they are matched.
+     */
+    public void testRun_oneConfigLoop_lazy() throws Throwable {
+        String[] args = new String[] {};
+        UncaughtExceptionHandler defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        try {
+            ExceptionTracker tracker = new ExceptionTracker();
+            Thread.setDefaultUncaughtExceptionHandler(tracker);
+            mMockManager.setNumDevices(1);
+            // created to validate the command, then once per invocation
+            setCreateConfigExpectations(args, 3);
+            mCommandOptions.setLoopMode(true);
+            mCommandOptions.setMinLoopTime(50);
+            Object notifier = waitForExpectedInvokeCalls(2);
+            mMockConfiguration.validateOptions();
+            replayMocks();
+            new OptionSetter(mScheduler).setOptionValue("lazy-command-configs", "true");
+            mScheduler.start();
+            mScheduler.addCommand(args);
+            synchronized (notifier) {
+                notifier.wait(1 * 1000);
+            }
+            mScheduler.shutdown();
+            mScheduler.join();
+            // Wait a little for device to be released.
+            RunUtil.getDefault().sleep(SHORT_WAIT_MS);
+            verifyMocks();
+            assertNull("exception occurred on background thread!", tracker.mThrowable);
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(defaultHandler);
+        }
+    }
+
     class ExceptionTracker implements UncaughtExceptionHandler {
 
         private Throwable mThrowable = null;
@@ -627,6 +682,69 @@ public class CommandSchedulerTest extends TestCase {
         Assert.assertArrayEquals(cmdFile2Args, cmds.get(1).getArgs());
     }
 
+    /**
+     * Test that reloading a command file only creates the configurations of new or modified
+     * commands, and that unchanged commands keep their {@link CommandTracker}.
+     */
+    public void testAddCommandFile_reloadIncremental() throws ConfigurationException {
+        // set number of devices to 0 so we can verify command presence
+        mMockManager.setNumDevices(0);
+        String[] unchangedArgs = new String[] {"unchanged"};
+        String[] duplicatedArgs = new String[] {"duplicated"};
+        String[] removedArgs = new String[] {"removed"};
+        String[] addedArgs = new String[] {"added"};
+        // unchanged commands are only created once
+        setCreateConfigExpectations(unchangedArgs, 1);
+        setCreateConfigExpectations(duplicatedArgs, 2);
+        setCreateConfigExpectations(removedArgs, 1);
+        setCreateConfigExpectations(addedArgs, 1);
+        mMockConfiguration.validateOptions();
+        EasyMock.expectLastCall().times(5);
+
+        final List<CommandLine> cmdFileContent1 = Arrays.asList(
+                new CommandLine(Arrays.asList("unchanged"), null, 0),
+                new CommandLine(Arrays.asList("duplicated"), null, 1),
+                new CommandLine(Arrays.asList("duplicated"), null, 2),
+                new CommandLine(Arrays.asList("removed"), null, 3));
+        final List<CommandLine> cmdFileContent2 = Arrays.asList(
+                new CommandLine(Arrays.asList("added"), null, 0),
+                new CommandLine(Arrays.asList("duplicated"), null, 1),
+                new CommandLine(Arrays.asList("unchanged"), null, 2));
+        mMockCmdFileParser = new CommandFileParser() {
+            boolean firstCall = true;
+            @Override
+            public List<CommandLine> parseFile(File cmdFile) {
+                if (firstCall) {
+                    firstCall = false;
+                    return cmdFileContent1;
+                }
+                return cmdFileContent2;
+            }
+        };
+        replayMocks();
+        mScheduler.start();
+        mScheduler.setCommandFileReload(true);
+        mScheduler.addCommandFile("mycmd.txt", Collections.<String>emptyList());
+
+        List<CommandTracker> cmds = mScheduler.getCommandTrackers();
+        assertEquals(4, cmds.size());
+        Collections.sort(cmds, new CommandTrackerIdComparator());
+        CommandTracker unchanged = cmds.get(0);
+        unchanged.incrementExecTime(1000);
+        CommandTracker duplicated = cmds.get(1);
+
+        mScheduler.notifyFileChanged(new File("mycmd.txt"), Collections.<String>emptyList());
+
+        cmds = mScheduler.getCommandTrackers();
+        assertEquals(3, cmds.size());
+        Collections.sort(cmds, new CommandTrackerIdComparator());
+        assertSame(unchanged, cmds.get(0));
+        assertEquals(1000, cmds.get(0).getTotalExecTime());
+        assertSame(duplicated, cmds.get(1));
+        Assert.assertArrayEquals(addedArgs, cmds.get(2).getArgs());
+        verifyMocks();
+    }
+
     /**
      * Verify attempts to add the same commmand file in reload mode are rejected
      */
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.config;
+
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link ConfigurationDefCache}
+ */
+public class ConfigurationDefCacheTest extends TestCase {
+
+    private static final String SOURCE_NAME = "source";
+
+    private File mCacheDir;
+    private ConfigurationDefCache mCache;
+    private final Map<String, String> mSources = new HashMap<>();
+    private final ConfigurationDefCache.ISourceReader mReader =
+            new ConfigurationDefCache.ISourceReader() {
+                @Override
+                public byte[] readSource(String name) throws ConfigurationException {
+                    String content = mSources.get(name);
+                    if (content == null) {
+                        throw new ConfigurationException("missing " + name);
+                    }
+                    return content.getBytes(StandardCharsets.UTF_8);
+                }
+            };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = FileUtil.createTempDir("config-def-cache");
+        mCache = new ConfigurationDefCache(mCacheDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mCacheDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that an entry is only returned while its sources have the same content.
+     */
+    public void testGet_validation() throws Exception {
+        mSources.put(SOURCE_NAME, "<configuration/>");
+        ConfigurationDef def = new ConfigurationDef("name");
+        def.setDescription("desc");
+        def.addOptionDef("option", null, "value", SOURCE_NAME);
+        Map<String, String> hashes = new LinkedHashMap<>();
+        hashes.put(SOURCE_NAME, ConfigurationDefCache.hash(
+                "<configuration/>".getBytes(StandardCharsets.UTF_8)));
+        mCache.put("key", new ConfigurationDefCache.Entry(def, hashes,
+                Collections.singleton("unused")));
+
+        ConfigurationDefCache.Entry entry = mCache.get("key", mReader);
+        assertNotNull(entry);
+        assertEquals("desc", entry.getConfigurationDef().getDescription());
+        assertEquals("value", entry.getConfigurationDef().getOptionList().get(0).value);
+        assertTrue(entry.getUnusedTemplates().contains("unused"));
+        assertNull(mCache.get("other", mReader));
+
+        mSources.put(SOURCE_NAME, "<configuration></configuration>");
+        assertNull(mCache.get("key", mReader));
+        mSources.remove(SOURCE_NAME);
+        assertNull(mCache.get("key", mReader));
+    }
+
+    /**
+     * Test that an entry which cannot be read is treated as a miss.
+     */
+    public void testGet_corrupted() throws Exception {
+        FileUtil.writeToFile("not an entry", new File(mCacheDir, "key.ser"));
+        assertNull(mCache.get("key", mReader));
+    }
+
+    /**
+     * Test that an entry holding classes a definition is not made of is not deserialized.
+     */
+    public void testGet_disallowedClass() throws Exception {
+        Map<String, Object> data = new HashMap<>();
+        data.put("date", new Date());
+        try (ObjectOutputStream out = new ObjectOutputStream(
+                new FileOutputStream(new File(mCacheDir, "key.ser")))) {
+            out.writeObject(data);
+        }
+        assertNull(mCache.get("key", mReader));
+    }
+
+    /**
+     * Test that the cache directory is created for the current user only, and that a directory
+     * writable by others is not used.
+     */
+    public void testPut_permissions() throws Exception {
+        mSources.put(SOURCE_NAME, "<configuration/>");
+        Map<String, String> hashes = new LinkedHashMap<>();
+        hashes.put(SOURCE_NAME, ConfigurationDefCache.hash(
+                "<configuration/>".getBytes(StandardCharsets.UTF_8)));
+        ConfigurationDefCache.Entry entry = new ConfigurationDefCache.Entry(
+                new ConfigurationDef("name"), hashes, Collections.<String>emptySet());
+        File cacheDir = new File(mCacheDir, "cache");
+        ConfigurationDefCache cache = new ConfigurationDefCache(cacheDir);
+        cache.put("key", entry);
+        assertEquals(PosixFilePermissions.fromString("rwx------"),
+                Files.getPosixFilePermissions(cacheDir.toPath()));
+        assertNotNull(cache.get("key", mReader));
+
+        Files.setPosixFilePermissions(cacheDir.toPath(),
+                PosixFilePermissions.fromString("rwxrwxrwx"));
+        assertNull(cache.get("key", mReader));
+        cache.put("other", entry);
+        assertFalse(new File(cacheDir, "other.ser").exists());
+    }
+
+    /**
+     * Test that the key does not depend on the ordering of the template map.
+     */
+    public void testComputeKey() {
+        Map<String, String> templates = new LinkedHashMap<>();
+        templates.put("a", "1");
+        templates.put("b", "2");
+        Map<String, String> reversed = new LinkedHashMap<>();
+        reversed.put("b", "2");
+        reversed.put("a", "1");
+        String key = ConfigurationDefCache.computeKey(false, "name", templates, "ctx");
+        assertEquals(key, ConfigurationDefCache.computeKey(false, "name", reversed, "ctx"));
+        assertFalse(key.equals(ConfigurationDefCache.computeKey(true, "name", templates, "ctx")));
+        assertFalse(key.equals(ConfigurationDefCache.computeKey(false, "name", null, "ctx")));
+        assertFalse(key.equals(ConfigurationDefCache.computeKey(false, "name", templates, "o")));
+    }
+}
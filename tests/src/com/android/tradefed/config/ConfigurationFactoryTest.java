@@ -801,6 +801,78 @@ public class ConfigurationFactoryTest extends TestCase {
         }
     }
 
+    /**
+     * Test that a definition stored in the {@link ConfigurationDefCache} by a factory is used by
+     * another one, and that it is not used anymore once the config content changes.
+     */
+    public void testCreateConfigurationFromArgs_definitionCache() throws Exception {
+        File cacheDir = FileUtil.createTempDir("config-def-cache");
+        File localConfigFile = FileUtil.createTempFile("local-config", ".xml");
+        try {
+            ConfigurationDefCache defCache = new ConfigurationDefCache(cacheDir);
+            InputStream source = getClass().getResourceAsStream("/testconfigs/local-config.xml");
+            FileUtil.writeToFile(source, localConfigFile);
+            String[] args = new String[] {localConfigFile.getAbsolutePath()};
+
+            mFactory.setConfigurationDefCache(defCache);
+            mFactory.createConfigurationFromArgs(args);
+            File[] entries = cacheDir.listFiles();
+            assertEquals(1, entries.length);
+            entries[0].setLastModified(System.currentTimeMillis() - 5000);
+            long entryTime = entries[0].lastModified();
+
+            // another factory uses the cached definition, without storing it again
+            ConfigurationFactory factory = new ConfigurationFactory();
+            factory.setConfigurationDefCache(defCache);
+            IConfiguration config = factory.createConfigurationFromArgs(args);
+            assertEquals("valueFromOriginalConfig",
+                    ((StubOptionTest) config.getTests().get(0)).mOption);
+            assertEquals(entryTime, entries[0].lastModified());
+
+            // the cached definition is not used once the config changed
+            source = getClass().getResourceAsStream("/testconfigs/local-config-update.xml");
+            FileUtil.writeToFile(source, localConfigFile);
+            factory = new ConfigurationFactory();
+            factory.setConfigurationDefCache(defCache);
+            config = factory.createConfigurationFromArgs(args);
+            assertEquals("valueFromUpdatedConfig",
+                    ((StubOptionTest) config.getTests().get(0)).mOption);
+        } finally {
+            FileUtil.deleteFile(localConfigFile);
+            FileUtil.recursiveDelete(cacheDir);
+        }
+    }
+
+    /**
+     * Test that the template:map arguments unused by a cached definition are still reported.
+     */
+    public void testCreateConfigurationFromArgs_definitionCacheUnusedTemplate() throws Exception {
+        File cacheDir = FileUtil.createTempDir("config-def-cache");
+        try {
+            ConfigurationDefCache defCache = new ConfigurationDefCache(cacheDir);
+            String[] args = new String[] {"include-template-config-with-default",
+                    "--template:map", "NOTEXISTINGNAME", "test-config"};
+            for (int i = 0; i < 2; i++) {
+                ConfigurationFactory factory = new ConfigurationFactory() {
+                    @Override
+                    String getConfigPrefix() {
+                        return "testconfigs/";
+                    }
+                };
+                factory.setConfigurationDefCache(defCache);
+                try {
+                    factory.createConfigurationFromArgs(args);
+                    fail("Should have thrown an exception.");
+                } catch (ConfigurationException expected) {
+                    assertTrue(expected.getMessage().contains("Unused template:map parameters"));
+                }
+            }
+            assertEquals(1, cacheDir.listFiles().length);
+        } finally {
+            FileUtil.recursiveDelete(cacheDir);
+        }
+    }
+
     /**
      * Test loading a config that has a circular include
      */
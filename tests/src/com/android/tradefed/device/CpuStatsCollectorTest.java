@@ -18,8 +18,11 @@ package com.android.tradefed.device;
 
 import com.android.tradefed.device.CpuStatsCollector.CpuStats;
 import com.android.tradefed.device.CpuStatsCollector.TimeCategory;
+import com.android.tradefed.device.CpuStatsSampler.Metric;
+import com.android.tradefed.device.CpuStatsSampler.Snapshot;
 import com.android.tradefed.testtype.DeviceTestCase;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -331,4 +334,89 @@ public class CpuStatsCollectorTest extends DeviceTestCase {
         assertNull(CpuStatsCollector.getEstimatedMhzMean(stats.get("Total")));
         assertNull(CpuStatsCollector.getUsedMhzPercentageMean(stats.get("Total")));
     }
+
+    /**
+     * Tests that {@link CpuStatsSampler} computes the same means as the {@link CpuStatsCollector}
+     * helpers, when the output is received in arbitrary chunks.
+     */
+    public void testCpuStatsSampler_multi() {
+        mCollector.getReceiver().processNewLines(MULTI_OUTPUT);
+        Map<String, List<CpuStats>> stats = mCollector.getCpuStats();
+        CpuStatsSampler sampler = new CpuStatsSampler(100);
+        addOutput(sampler, MULTI_OUTPUT, 7);
+
+        assertEquals(Arrays.asList("Total", "cpu0", "cpu1"), sampler.getLabels());
+        assertEquals(0, sampler.getInvalidLineCount());
+        for (String label : sampler.getLabels()) {
+            Snapshot snapshot = sampler.getSnapshot(label);
+            List<CpuStats> list = stats.get(label);
+            assertEquals(10, snapshot.getWindowCount());
+            assertEquals(10, snapshot.getRunCount());
+            assertEquals(CpuStatsCollector.getTotalPercentageMean(list),
+                    snapshot.getWindowMean(Metric.TOTAL_PERCENTAGE), 0.0001);
+            assertEquals(CpuStatsCollector.getUserPercentageMean(list),
+                    snapshot.getWindowMean(Metric.USER_PERCENTAGE), 0.0001);
+            assertEquals(CpuStatsCollector.getSystemPercentageMean(list),
+                    snapshot.getWindowMean(Metric.SYSTEM_PERCENTAGE), 0.0001);
+            assertEquals(CpuStatsCollector.getIowPercentageMean(list),
+                    snapshot.getWindowMean(Metric.IOW_PERCENTAGE), 0.0001);
+            assertEquals(CpuStatsCollector.getIrqPercentageMean(list),
+                    snapshot.getWindowMean(Metric.IRQ_PERCENTAGE), 0.0001);
+            assertEquals(CpuStatsCollector.getEstimatedMhzMean(list),
+                    snapshot.getWindowMean(Metric.ESTIMATED_MHZ), 0.0001);
+            assertEquals(CpuStatsCollector.getUsedMhzPercentageMean(list),
+                    snapshot.getWindowMean(Metric.USED_MHZ_PERCENTAGE), 0.0001);
+            assertEquals(snapshot.getWindowMean(Metric.TOTAL_PERCENTAGE),
+                    snapshot.getRunMean(Metric.TOTAL_PERCENTAGE), 0.0001);
+        }
+        assertNull(sampler.getSnapshot("cpu2"));
+    }
+
+    /**
+     * Tests that {@link CpuStatsSampler} only keeps the last samples in its window, and skips
+     * samples without frequencies for the frequency metrics.
+     */
+    public void testCpuStatsSampler_window() {
+        CpuStatsSampler sampler = new CpuStatsSampler(3);
+        addOutput(sampler, MULTI_NON_AGGREGATE_OUTPUT, 64);
+        addOutput(sampler, new String[] {"cpu0,1,2", "garbage,a,b,c,d,e,f,g", ""}, 64);
+        assertEquals(2, sampler.getInvalidLineCount());
+
+        Snapshot total = sampler.getSnapshot("Total");
+        assertEquals(3, total.getWindowCount());
+        assertEquals(10, total.getRunCount());
+        assertNull(total.getWindowMean(Metric.ESTIMATED_MHZ));
+        assertNull(total.getRunMean(Metric.USED_MHZ_PERCENTAGE));
+        assertEquals(0, total.getWindowValues(Metric.ESTIMATED_MHZ).length);
+
+        // Last 3 samples of Total, oldest first
+        double[] values = total.getWindowValues(Metric.SYSTEM_PERCENTAGE);
+        assertEquals(3, values.length);
+        assertEquals(100.0 * 97 / 599, values[0], 0.0001);
+        assertEquals(100.0 * 100 / 595, values[1], 0.0001);
+        assertEquals(100.0 * 65 / 600, values[2], 0.0001);
+        assertEquals((values[0] + values[1] + values[2]) / 3,
+                total.getWindowMean(Metric.SYSTEM_PERCENTAGE), 0.0001);
+
+        mCollector.getReceiver().processNewLines(MULTI_NON_AGGREGATE_OUTPUT);
+        List<CpuStats> cpu0 = mCollector.getCpuStats().get("cpu0");
+        assertEquals(CpuStatsCollector.getEstimatedMhzMean(cpu0),
+                sampler.getSnapshot("cpu0").getRunMean(Metric.ESTIMATED_MHZ), 0.0001);
+        assertEquals(3, sampler.getSnapshot("cpu0").getWindowValues(Metric.ESTIMATED_MHZ).length);
+    }
+
+    /**
+     * Helper to feed lines of output to a {@link CpuStatsSampler} in chunks of a given size.
+     */
+    private void addOutput(CpuStatsSampler sampler, String[] lines, int chunkSize) {
+        StringBuilder output = new StringBuilder();
+        for (String line : lines) {
+            output.append(line).append("\r\n");
+        }
+        byte[] data = output.toString().getBytes();
+        for (int i = 0; i < data.length; i += chunkSize) {
+            sampler.addOutput(data, i, Math.min(chunkSize, data.length - i));
+        }
+        sampler.flush();
+    }
 }
@@ -26,6 +26,7 @@ import com.android.tradefed.log.ILogRegistry.EventType;
 import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 
 import com.google.common.util.concurrent.SettableFuture;
@@ -37,6 +38,7 @@ import org.easymock.EasyMock;
 import org.easymock.IAnswer;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
@@ -60,6 +62,7 @@ public class DeviceManagerTest extends TestCase {
     private IManagedTestDevice mMockTestDevice;
     private IManagedTestDeviceFactory mMockDeviceFactory;
     private IGlobalConfiguration mMockGlobalConfig;
+    private EmulatorPool mEmulatorPool;
 
     /**
      * a reference to the DeviceManager's IDeviceChangeListener. Used for triggering device
@@ -174,6 +177,7 @@ public class DeviceManagerTest extends TestCase {
             }
         };
         mMockGlobalConfig = EasyMock.createNiceMock(IGlobalConfiguration.class);
+        mEmulatorPool = new EmulatorPool();
 
         EasyMock.expect(mMockIDevice.getSerialNumber()).andStubReturn(DEVICE_SERIAL);
         EasyMock.expect(mMockStateMonitor.getSerialNumber()).andStubReturn(DEVICE_SERIAL);
@@ -250,6 +254,11 @@ public class DeviceManagerTest extends TestCase {
                     IRunUtil getRunUtil() {
                         return mMockRunUtil;
                     }
+
+                    @Override
+                    EmulatorPool getEmulatorPool() {
+                        return mEmulatorPool;
+                    }
                 };
         mgr.setSynchronousMode(true);
         mgr.setMaxEmulators(0);
@@ -343,6 +352,112 @@ public class DeviceManagerTest extends TestCase {
         verifyMocks();
     }
 
+    /**
+     * Test that a pooled emulator freed as available is kept running.
+     */
+    public void testFreeDevice_pooledEmulator() throws Exception {
+        setAllocateEmulatorExpectations();
+        EasyMock.expect(mMockTestDevice.handleAllocationEvent(DeviceEvent.FREE_AVAILABLE))
+                .andReturn(new DeviceEventResponse(DeviceAllocationState.Available, true));
+        replayMocks();
+        DeviceManager manager = createDeviceManagerNoInit();
+        manager.setMaxEmulators(1);
+        manager.init(null, null, mMockDeviceFactory);
+        IManagedTestDevice emulator = (IManagedTestDevice) manager.allocateDevice(
+                getStubEmulatorOptions());
+        File sdkHome = FileUtil.createTempDir("sdk-home");
+        try {
+            mEmulatorPool.add(emulator.getSerialNumber(), "config", "snapshot", sdkHome, 1);
+            manager.freeDevice(emulator, FreeDeviceState.AVAILABLE);
+            verifyMocks();
+            assertTrue(mEmulatorPool.contains(emulator.getSerialNumber()));
+            assertTrue(sdkHome.exists());
+        } finally {
+            FileUtil.recursiveDelete(sdkHome);
+        }
+    }
+
+    /**
+     * Test that a pooled emulator freed in a bad state is killed, then removed from the pool.
+     */
+    public void testFreeDevice_pooledEmulatorUnavailable() throws Exception {
+        setAllocateEmulatorExpectations();
+        setKillEmulatorExpectations();
+        EasyMock.expect(mMockTestDevice.handleAllocationEvent(DeviceEvent.FREE_AVAILABLE))
+                .andReturn(new DeviceEventResponse(DeviceAllocationState.Available, true));
+        replayMocks();
+        DeviceManager manager = createDeviceManagerNoInit();
+        manager.setMaxEmulators(1);
+        manager.init(null, null, mMockDeviceFactory);
+        IManagedTestDevice emulator = (IManagedTestDevice) manager.allocateDevice(
+                getStubEmulatorOptions());
+        File sdkHome = FileUtil.createTempDir("sdk-home");
+        try {
+            mEmulatorPool.add(emulator.getSerialNumber(), "config", "snapshot", sdkHome, 1);
+            manager.freeDevice(emulator, FreeDeviceState.UNAVAILABLE);
+            verifyMocks();
+            assertFalse(mEmulatorPool.contains(emulator.getSerialNumber()));
+            assertFalse(sdkHome.exists());
+        } finally {
+            FileUtil.recursiveDelete(sdkHome);
+        }
+    }
+
+    /**
+     * Test that {@link DeviceManager#terminate()} kills the emulators kept by the pool.
+     */
+    public void testTerminate_pooledEmulator() throws Exception {
+        setAllocateEmulatorExpectations();
+        EasyMock.expect(mMockTestDevice.handleAllocationEvent(DeviceEvent.FREE_AVAILABLE))
+                .andReturn(new DeviceEventResponse(DeviceAllocationState.Available, true));
+        setKillEmulatorExpectations();
+        replayMocks();
+        DeviceManager manager = createDeviceManagerNoInit();
+        manager.setMaxEmulators(1);
+        manager.init(null, null, mMockDeviceFactory);
+        IManagedTestDevice emulator = (IManagedTestDevice) manager.allocateDevice(
+                getStubEmulatorOptions());
+        File sdkHome = FileUtil.createTempDir("sdk-home");
+        try {
+            mEmulatorPool.add(emulator.getSerialNumber(), "config", "snapshot", sdkHome, 1);
+            manager.freeDevice(emulator, FreeDeviceState.AVAILABLE);
+            manager.terminate();
+            verifyMocks();
+            assertTrue(mEmulatorPool.getSerials().isEmpty());
+            assertFalse(sdkHome.exists());
+        } finally {
+            FileUtil.recursiveDelete(sdkHome);
+        }
+    }
+
+    private DeviceSelectionOptions getStubEmulatorOptions() {
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.setStubEmulatorRequested(true);
+        return options;
+    }
+
+    /**
+     * Set the expectations to allocate an emulator launched by the manager, and to free it.
+     */
+    private void setAllocateEmulatorExpectations() {
+        EasyMock.expect(mMockTestDevice.handleAllocationEvent(DeviceEvent.FORCE_AVAILABLE))
+                .andReturn(new DeviceEventResponse(DeviceAllocationState.Available, true));
+        EasyMock.expect(mMockIDevice.isEmulator()).andStubReturn(Boolean.TRUE);
+        EasyMock.expect(mMockTestDevice.handleAllocationEvent(DeviceEvent.ALLOCATE_REQUEST))
+                .andReturn(new DeviceEventResponse(DeviceAllocationState.Allocated, true));
+        mMockTestDevice.stopLogcat();
+        EasyMock.expect(mMockTestDevice.getEmulatorProcess()).andStubReturn(new MockProcess());
+    }
+
+    /**
+     * Set the expectations to kill the emulator.
+     */
+    private void setKillEmulatorExpectations() {
+        EasyMock.expect(mMockTestDevice.waitForDeviceNotAvailable(EasyMock.anyLong())).andReturn(
+                Boolean.TRUE);
+        mMockTestDevice.stopEmulatorOutput();
+    }
+
     /**
      * Test {@link DeviceManager#allocateDevice(IDeviceSelection)} when a null device
      * is requested.
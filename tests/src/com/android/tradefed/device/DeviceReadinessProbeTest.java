@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.tradefed.device.DeviceReadinessProbe.Result;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link DeviceReadinessProbe}.
+ */
+public class DeviceReadinessProbeTest extends TestCase {
+
+    private static final long WAIT_TIME_MS = 5 * 1000;
+
+    private IDevice mMockDevice;
+    private DeviceReadinessProbe mProbe;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockDevice = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
+        mProbe = new DeviceReadinessProbe();
+        mProbe.addCondition("boot complete", DeviceReadinessProbe.getBootCompleteCheck());
+        mProbe.addCondition("external store",
+                DeviceReadinessProbe.getStoreMountCheck("external store", "/sdcard"));
+    }
+
+    /**
+     * Test that the script checks each condition in order, and bounds the number of checks.
+     */
+    public void testBuildScript() {
+        String script = mProbe.buildScript(WAIT_TIME_MS);
+        assertTrue(script.startsWith("n=0; s=0; while [ $n -lt 11 ]; do case $s in 0) if "));
+        assertTrue(script.contains("echo 'TF_PROBE_STATE boot complete'; s=1; continue;"));
+        assertTrue(script.contains("f=\"/sdcard/tf_probe_$$\""));
+        assertTrue(script.contains("echo 'TF_PROBE_STATE external store'; s=2; continue;"));
+        assertTrue(script.contains("2) echo 'TF_PROBE_READY'; exit 0;; esac;"));
+        assertTrue(script.contains("sleep 0.5 2>/dev/null || sleep 1"));
+    }
+
+    /**
+     * Test that the device is ready once the script reports all the conditions.
+     */
+    public void testRun_ready() throws Exception {
+        expectOutput("TF_PROBE_STATE boot complete\nTF_PROBE_STATE external store\n"
+                + "TF_PROBE_READY\n");
+        EasyMock.replay(mMockDevice);
+        assertEquals(Result.READY, mProbe.run(mMockDevice, WAIT_TIME_MS));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that the device is not ready when a condition fails or when the script gives up.
+     */
+    public void testRun_notReady() throws Exception {
+        expectOutput("TF_PROBE_STATE boot complete\nTF_PROBE_FAILED external store\n");
+        expectOutput("TF_PROBE_TIMEOUT\n");
+        EasyMock.replay(mMockDevice);
+        assertEquals(Result.NOT_READY, mProbe.run(mMockDevice, WAIT_TIME_MS));
+        assertEquals(Result.NOT_READY, mProbe.run(mMockDevice, WAIT_TIME_MS));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that the device is not ready when the script reports nothing within the wait time.
+     */
+    public void testRun_unresponsive() throws Exception {
+        mMockDevice.executeShellCommand(EasyMock.<String>anyObject(),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.eq(WAIT_TIME_MS),
+                EasyMock.eq(TimeUnit.MILLISECONDS));
+        EasyMock.expectLastCall().andThrow(new ShellCommandUnresponsiveException());
+        EasyMock.replay(mMockDevice);
+        assertEquals(Result.NOT_READY, mProbe.run(mMockDevice, WAIT_TIME_MS));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that the probe is not supported when the shell cannot run the script.
+     */
+    public void testRun_notSupported() throws Exception {
+        expectOutput("/system/bin/sh: syntax error: 'case' unexpected\n");
+        mMockDevice.executeShellCommand(EasyMock.<String>anyObject(),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.eq(WAIT_TIME_MS),
+                EasyMock.eq(TimeUnit.MILLISECONDS));
+        EasyMock.expectLastCall().andThrow(new IOException("device offline"));
+        EasyMock.replay(mMockDevice);
+        assertEquals(Result.NOT_SUPPORTED, mProbe.run(mMockDevice, WAIT_TIME_MS));
+        assertEquals(Result.NOT_SUPPORTED, mProbe.run(mMockDevice, WAIT_TIME_MS));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that the probe is stopped once its deadline is passed.
+     */
+    public void testReceiver_deadline() {
+        DeviceReadinessProbe.ProbeReceiver receiver = mProbe.new ProbeReceiver("serial",
+                System.currentTimeMillis() - 1);
+        assertTrue(receiver.isCancelled());
+        assertEquals(Result.NOT_READY, receiver.getResult());
+    }
+
+    private void expectOutput(final String output) throws Exception {
+        mMockDevice.executeShellCommand(EasyMock.<String>anyObject(),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.eq(WAIT_TIME_MS),
+                EasyMock.eq(TimeUnit.MILLISECONDS));
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                IShellOutputReceiver receiver =
+                        (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+                byte[] data = output.getBytes(StandardCharsets.UTF_8);
+                receiver.addOutput(data, 0, data.length);
+                receiver.flush();
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link DeviceRecoveryScheduler}.
+ */
+public class DeviceRecoverySchedulerTest extends TestCase {
+
+    private static final long INTERVAL_MS = 60 * 1000;
+
+    private List<IManagedTestDevice> mDevices;
+    private long mCurrentTime = 0;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDevices = new ArrayList<>();
+        for (String serial : Arrays.asList("hub1-a", "hub1-b", "hub2-a", "hub3-a")) {
+            IManagedTestDevice device = EasyMock.createMock(IManagedTestDevice.class);
+            EasyMock.expect(device.getSerialNumber()).andStubReturn(serial);
+            EasyMock.replay(device);
+            mDevices.add(device);
+        }
+    }
+
+    /**
+     * Test that the devices are recovered by a single call when the recoverer does not group
+     * them, and that a failing recoverer does not stop the other ones.
+     */
+    public void testRunRecoveryPass_noGroup() {
+        final List<List<IManagedTestDevice>> calls = new ArrayList<>();
+        IMultiDeviceRecovery failing = new IMultiDeviceRecovery() {
+            @Override
+            public void recoverDevices(List<IManagedTestDevice> managedDevices) {
+                throw new IllegalStateException("failed");
+            }
+        };
+        IMultiDeviceRecovery recoverer = new IMultiDeviceRecovery() {
+            @Override
+            public void recoverDevices(List<IManagedTestDevice> managedDevices) {
+                calls.add(managedDevices);
+            }
+        };
+        DeviceRecoveryScheduler scheduler = createScheduler(Arrays.asList(failing, recoverer),
+                0, 4);
+        scheduler.runRecoveryPass();
+        assertEquals(1, calls.size());
+        assertEquals(mDevices, calls.get(0));
+        assertEquals(1, scheduler.getPassDurations().size());
+    }
+
+    /**
+     * Test that the groups of devices are recovered in parallel.
+     */
+    public void testRunRecoveryPass_groups() {
+        // each call only returns once all the groups are being recovered
+        final CountDownLatch groupsStarted = new CountDownLatch(3);
+        final List<List<IManagedTestDevice>> calls =
+                Collections.synchronizedList(new ArrayList<List<IManagedTestDevice>>());
+        IMultiDeviceRecovery recoverer = new IMultiDeviceRecovery() {
+            @Override
+            public void recoverDevices(List<IManagedTestDevice> managedDevices) {
+                groupsStarted.countDown();
+                try {
+                    if (groupsStarted.await(10, TimeUnit.SECONDS)) {
+                        calls.add(managedDevices);
+                    }
+                } catch (InterruptedException e) {
+                    // not recovered
+                }
+            }
+
+            @Override
+            public String getRecoveryGroup(IManagedTestDevice device) {
+                return device.getSerialNumber().split("-")[0];
+            }
+        };
+        DeviceRecoveryScheduler scheduler = createScheduler(Arrays.asList(recoverer), 0, 4);
+        scheduler.runRecoveryPass();
+        assertEquals(3, calls.size());
+        assertTrue(calls.contains(mDevices.subList(0, 2)));
+        assertTrue(calls.contains(mDevices.subList(2, 3)));
+        assertTrue(calls.contains(mDevices.subList(3, 4)));
+    }
+
+    /**
+     * Test that the pass waits for all the groups, even when the recovery of a group fails with
+     * an error.
+     */
+    public void testRunRecoveryPass_groupError() {
+        final List<List<IManagedTestDevice>> calls =
+                Collections.synchronizedList(new ArrayList<List<IManagedTestDevice>>());
+        IMultiDeviceRecovery recoverer = new IMultiDeviceRecovery() {
+            @Override
+            public void recoverDevices(List<IManagedTestDevice> managedDevices) {
+                if (managedDevices.contains(mDevices.get(0))) {
+                    throw new AssertionError("failed");
+                }
+                try {
+                    // finish after the failing group
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                calls.add(managedDevices);
+            }
+
+            @Override
+            public String getRecoveryGroup(IManagedTestDevice device) {
+                return device.getSerialNumber().split("-")[0];
+            }
+        };
+        DeviceRecoveryScheduler scheduler = createScheduler(Arrays.asList(recoverer), 0, 4);
+        scheduler.runRecoveryPass();
+        assertEquals(2, calls.size());
+        assertEquals(1, scheduler.getPassDurations().size());
+    }
+
+    /**
+     * Test that a lost device triggers a recovery pass once the events settled, and that the
+     * scheduler stops waiting once terminated.
+     */
+    public void testWaitForNextPass() throws Exception {
+        final DeviceRecoveryScheduler scheduler = new DeviceRecoveryScheduler(
+                new ArrayList<IMultiDeviceRecovery>(), INTERVAL_MS, 10, 1) {
+            @Override
+            protected List<IManagedTestDevice> getDeviceList() {
+                return mDevices;
+            }
+        };
+        scheduler.notifyDeviceLost("hub1-a");
+        long start = System.currentTimeMillis();
+        assertTrue(scheduler.waitForNextPass());
+        assertTrue(System.currentTimeMillis() - start < INTERVAL_MS / 2);
+
+        Thread terminator = new Thread() {
+            @Override
+            public void run() {
+                scheduler.terminate();
+            }
+        };
+        terminator.start();
+        assertFalse(scheduler.waitForNextPass());
+        terminator.join();
+    }
+
+    /**
+     * Test that the time between a device being lost and recovered is recorded.
+     */
+    public void testRecoveryLatencies() {
+        DeviceRecoveryScheduler scheduler = createScheduler(
+                new ArrayList<IMultiDeviceRecovery>(), 0, 1);
+        scheduler.notifyDeviceRecovered("hub1-a");
+        assertTrue(scheduler.getRecoveryLatencies().isEmpty());
+
+        scheduler.notifyDeviceLost("hub1-a");
+        mCurrentTime += 1000;
+        // the latency is measured from the first time the device was lost
+        scheduler.notifyDeviceLost("hub1-a");
+        mCurrentTime += 1000;
+        scheduler.notifyDeviceRecovered("hub1-a");
+        scheduler.notifyDeviceRecovered("hub1-a");
+        assertEquals(1, scheduler.getRecoveryLatencies().size());
+        assertEquals(2000.0, scheduler.getRecoveryLatencies().max(), 0.0);
+    }
+
+    private DeviceRecoveryScheduler createScheduler(List<IMultiDeviceRecovery> recoverers,
+            long settleTime, int maxWorkers) {
+        return new DeviceRecoveryScheduler(recoverers, INTERVAL_MS, settleTime, maxWorkers) {
+            @Override
+            protected List<IManagedTestDevice> getDeviceList() {
+                return mDevices;
+            }
+
+            @Override
+            long getCurrentTime() {
+                return mCurrentTime;
+            }
+        };
+    }
+}
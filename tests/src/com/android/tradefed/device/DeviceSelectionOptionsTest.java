@@ -221,6 +221,26 @@ public class DeviceSelectionOptionsTest extends TestCase {
         assertFalse(options.matches(emulatorDevice));
     }
 
+    /**
+     * Test that a pooled emulator is only matched when a new emulator is requested.
+     */
+    public void testMatches_pooledEmulator() {
+        final EmulatorPool pool = new EmulatorPool();
+        pool.add("emulator", "config", "snapshot", null, 1);
+        DeviceSelectionOptions options = new DeviceSelectionOptions() {
+            @Override
+            EmulatorPool getEmulatorPool() {
+                return pool;
+            }
+        };
+        EasyMock.replay(mMockEmulatorDevice);
+        assertFalse(options.matches(mMockEmulatorDevice));
+        options.setEmulatorRequested(true);
+        assertFalse(options.matches(mMockEmulatorDevice));
+        options.setStubEmulatorRequested(true);
+        assertTrue(options.matches(mMockEmulatorDevice));
+    }
+
     /**
      * Test for matching with null device requested flag
      */
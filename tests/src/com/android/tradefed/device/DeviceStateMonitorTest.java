@@ -26,6 +26,7 @@ import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
+import java.util.Arrays;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
@@ -790,4 +791,77 @@ public class DeviceStateMonitorTest extends TestCase {
         };
         assertNull(mMonitor.waitForDeviceAvailable(WAIT_TIMEOUT_REACHED_MS));
     }
+
+    /**
+     * Test {@link DeviceStateMonitor#waitForDeviceAvailable(long)} with the readiness probe: the
+     * device is available as soon as the probe reports it, without polling.
+     */
+    public void testWaitForDeviceAvailable_probe() throws Exception {
+        mMockDevice = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(mMockDevice.getState()).andReturn(DeviceState.ONLINE).anyTimes();
+        EasyMock.expect(mMockDevice.getSerialNumber()).andReturn(SERIAL_NUMBER).anyTimes();
+        EasyMock.expect(mMockDevice.getMountPoint(IDevice.MNT_EXTERNAL_STORAGE))
+                .andReturn("/sdcard");
+        EasyMock.replay(mMockDevice);
+        final DeviceReadinessProbe probe = new DeviceReadinessProbe() {
+            @Override
+            public Result run(IDevice device, long waitTime) {
+                assertEquals(Arrays.asList("boot complete", "package manager", "external store"),
+                        getConditionNames());
+                return Result.READY;
+            }
+        };
+        mMonitor = new DeviceStateMonitor(mMockMgr, mMockDevice, true) {
+            @Override
+            protected DeviceReadinessProbe createReadinessProbe() {
+                return probe;
+            }
+            @Override
+            public boolean waitForBootComplete(long waitTime) {
+                fail("should not poll");
+                return false;
+            }
+        };
+        mMonitor.setReadinessProbeEnabled(true);
+        assertEquals(mMockDevice, mMonitor.waitForDeviceAvailable(WAIT_TIMEOUT_NOT_REACHED_MS));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test {@link DeviceStateMonitor#waitForDeviceAvailable(long)} falls back to polling when the
+     * readiness probe is not supported.
+     */
+    public void testWaitForDeviceAvailable_probeNotSupported() throws Exception {
+        mMockDevice = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(mMockDevice.getState()).andReturn(DeviceState.ONLINE).anyTimes();
+        EasyMock.expect(mMockDevice.getSerialNumber()).andReturn(SERIAL_NUMBER).anyTimes();
+        EasyMock.expect(mMockDevice.getMountPoint(IDevice.MNT_EXTERNAL_STORAGE)).andReturn(null);
+        EasyMock.replay(mMockDevice);
+        mMonitor = new DeviceStateMonitor(mMockMgr, mMockDevice, true) {
+            @Override
+            protected DeviceReadinessProbe createReadinessProbe() {
+                return new DeviceReadinessProbe() {
+                    @Override
+                    public Result run(IDevice device, long waitTime) {
+                        return Result.NOT_SUPPORTED;
+                    }
+                };
+            }
+            @Override
+            public boolean waitForBootComplete(long waitTime) {
+                return true;
+            }
+            @Override
+            protected boolean waitForPmResponsive(long waitTime) {
+                return true;
+            }
+            @Override
+            protected boolean waitForStoreMount(long waitTime) {
+                return false;
+            }
+        };
+        mMonitor.setReadinessProbeEnabled(true);
+        assertNull(mMonitor.waitForDeviceAvailable(WAIT_TIMEOUT_NOT_REACHED_MS));
+        EasyMock.verify(mMockDevice);
+    }
 }
@@ -18,6 +18,7 @@ package com.android.tradefed.device;
 import com.android.tradefed.command.remote.DeviceDescriptor;
 import com.android.tradefed.device.DeviceUtilStatsMonitor.UtilizationDesc;
 import com.android.tradefed.device.IDeviceMonitor.DeviceLister;
+import com.android.tradefed.device.timeseries.DeviceTimeSeriesCollector;
 
 import junit.framework.TestCase;
 
@@ -25,6 +26,7 @@ import org.easymock.EasyMock;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * Simple unit tests for {@link DeviceUtilStatsMonitor}
@@ -52,6 +54,38 @@ public class DeviceUtilStatsMonitorTest extends TestCase {
         mDeviceUtilMonitor.calculateMaxSamples();
     }
 
+    /**
+     * Test that the sampling task is scheduled on the time series collector until stopped.
+     */
+    public void testRunStop() {
+        final List<ScheduledFuture<?>> futures = new ArrayList<>();
+        final DeviceTimeSeriesCollector collector = new DeviceTimeSeriesCollector(1) {
+            @Override
+            public ScheduledFuture<?> schedule(Runnable task, long initialDelayMs,
+                    long intervalMs) {
+                assertEquals(60 * 1000, intervalMs);
+                ScheduledFuture<?> future = super.schedule(task, initialDelayMs, intervalMs);
+                futures.add(future);
+                return future;
+            }
+        };
+        DeviceUtilStatsMonitor monitor = new DeviceUtilStatsMonitor() {
+            @Override
+            DeviceTimeSeriesCollector getTimeSeriesCollector() {
+                return collector;
+            }
+        };
+        try {
+            monitor.run();
+            assertEquals(1, futures.size());
+            assertFalse(futures.get(0).isCancelled());
+            monitor.stop();
+            assertTrue(futures.get(0).isCancelled());
+        } finally {
+            collector.shutdown();
+        }
+    }
+
     public void testEmpty() {
         EasyMock.replay(mMockDeviceManager);
         assertEquals(0, mDeviceUtilMonitor.getUtilizationStats().mTotalUtil);
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device.timeseries;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.timeseries.DeviceConditionMonitor.ConditionSampler;
+import com.android.tradefed.device.timeseries.DeviceConditionMonitor.ICondition;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/** Unit tests for {@link DeviceConditionMonitor} and {@link TrendCondition}. */
+@RunWith(JUnit4.class)
+public class DeviceConditionMonitorTest {
+
+    private static final ICondition IS_ZERO = new ICondition() {
+        @Override
+        public boolean isMet(long timestamp, double[] values) {
+            return values[0] == 0;
+        }
+    };
+
+    private DeviceTimeSeriesCollector mCollector;
+    private DeviceConditionMonitor mMonitor;
+    private ITestDevice mDevice;
+
+    @Before
+    public void setUp() {
+        mCollector = new DeviceTimeSeriesCollector(1);
+        mMonitor = new DeviceConditionMonitor(mCollector);
+        mDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mDevice.getSerialNumber()).andStubReturn("SERIAL");
+    }
+
+    @After
+    public void tearDown() {
+        mCollector.shutdown();
+    }
+
+    /** Test that the future completes once the condition holds, and that sampling then stops. */
+    @Test
+    public void testConditionSampler() throws Exception {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        ConditionSampler sampler = mMonitor.createConditionSampler(new ValueSampler(2, 0),
+                IS_ZERO, future);
+        double[] values = new double[1];
+        assertTrue(sampler.sample(mDevice, values));
+        assertFalse(future.isDone());
+        assertTrue(sampler.sample(mDevice, values));
+        assertTrue(future.isDone());
+        assertFalse(sampler.sample(mDevice, values));
+    }
+
+    /** Test that the future completes exceptionally when the device is not available. */
+    @Test
+    public void testConditionSampler_notAvailable() throws Exception {
+        DeviceNotAvailableException error = new DeviceNotAvailableException("gone", "SERIAL");
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        ConditionSampler sampler = mMonitor.createConditionSampler(new ValueSampler(error),
+                IS_ZERO, future);
+        try {
+            sampler.sample(mDevice, new double[1]);
+            fail("DeviceNotAvailableException not thrown");
+        } catch (DeviceNotAvailableException e) {
+            // expected
+        }
+        try {
+            DeviceConditionMonitor.await(future, 1000);
+            fail("DeviceNotAvailableException not thrown");
+        } catch (DeviceNotAvailableException e) {
+            assertSame(error, e);
+        }
+    }
+
+    /** Test that the future completes exceptionally when the sampler fails. */
+    @Test
+    public void testConditionSampler_runtimeException() throws Exception {
+        final IllegalStateException error = new IllegalStateException("failed");
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        ConditionSampler sampler = mMonitor.createConditionSampler(new ValueSampler(0) {
+            @Override
+            public boolean sample(ITestDevice device, double[] values) {
+                throw error;
+            }
+        }, IS_ZERO, future);
+        try {
+            sampler.sample(mDevice, new double[1]);
+            fail("IllegalStateException not thrown");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            DeviceConditionMonitor.await(future, 1000);
+            fail("IllegalStateException not thrown");
+        } catch (IllegalStateException e) {
+            assertSame(error, e);
+        }
+    }
+
+    /** Test waiting for a condition sampled from the shared threads. */
+    @Test
+    public void testSubscribe() throws Exception {
+        Future<Void> future = mMonitor.subscribe(mDevice, new ValueSampler(3, 2, 1, 0), 10,
+                IS_ZERO);
+        assertTrue(DeviceConditionMonitor.await(future, 10 * 1000));
+        assertTrue(future.isDone());
+    }
+
+    /** Test that a subscription is cancelled when its condition does not hold in time. */
+    @Test
+    public void testSubscribe_timeout() throws Exception {
+        Future<Void> future = mMonitor.subscribe(mDevice, new ValueSampler(1), 10, IS_ZERO);
+        assertFalse(DeviceConditionMonitor.await(future, 50));
+        assertTrue(future.isCancelled());
+    }
+
+    /** Test that the trend only holds once the window is covered and the metric is stable. */
+    @Test
+    public void testTrendCondition() {
+        TrendCondition trend = new TrendCondition(0, 60 * 1000, 0.5);
+        // cooling down 2 degrees per minute
+        assertFalse(trend.isMet(0, new double[] {40}));
+        assertFalse(trend.isMet(30 * 1000, new double[] {39}));
+        assertEquals(-2.0, trend.getRatePerMinute(), 0.001);
+        assertEquals(4 * 60 * 1000, trend.estimateTimeTo(39, 31));
+        assertEquals(-1, trend.estimateTimeTo(39, 45));
+        assertFalse(trend.isMet(60 * 1000, new double[] {38}));
+        // stable temperature, once the cooling samples left the window
+        assertFalse(trend.isMet(90 * 1000, new double[] {38}));
+        assertTrue(trend.isMet(120 * 1000, new double[] {38}));
+        assertEquals(0.0, trend.getRatePerMinute(), 0.001);
+        // missing values are ignored
+        assertFalse(trend.isMet(160 * 1000, new double[] {Double.NaN}));
+    }
+
+    /** A sampler returning the given values, then the last one. */
+    private static class ValueSampler implements ITimeSeriesSampler {
+        private final double[] mValues;
+        private final DeviceNotAvailableException mError;
+        private int mIndex = 0;
+
+        ValueSampler(double... values) {
+            mValues = values;
+            mError = null;
+        }
+
+        ValueSampler(DeviceNotAvailableException error) {
+            mValues = null;
+            mError = error;
+        }
+
+        @Override
+        public String getName() {
+            return "value";
+        }
+
+        @Override
+        public String[] getColumns() {
+            return new String[] {"value"};
+        }
+
+        @Override
+        public boolean sample(ITestDevice device, double[] values)
+                throws DeviceNotAvailableException {
+            if (mError != null) {
+                throw mError;
+            }
+            values[0] = mValues[Math.min(mIndex++, mValues.length - 1)];
+            return true;
+        }
+    }
+}
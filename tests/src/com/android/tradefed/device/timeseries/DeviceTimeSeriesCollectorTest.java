@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device.timeseries;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.device.CpuStatsCollector;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.timeseries.DeviceTimeSeriesCollector.Recording;
+import com.android.tradefed.result.ITestInvocationListener;
+
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link DeviceTimeSeriesCollector} and its samplers. */
+@RunWith(JUnit4.class)
+public class DeviceTimeSeriesCollectorTest {
+
+    private static final String PROC_STAT_1 =
+            "cpu  100 10 50 800 20 5 15 0 0 0\n"
+            + "cpu0 50 5 25 400 10 2 8 0 0 0\n"
+            + "intr 12345\n";
+    private static final String PROC_STAT_2 =
+            "cpu  160 20 80 900 30 10 20 0 0 0\n"
+            + "cpu0 80 10 40 450 15 5 10 0 0 0\n";
+
+    private DeviceTimeSeriesCollector mCollector;
+    private ITestDevice mDevice;
+
+    @Before
+    public void setUp() {
+        mCollector = new DeviceTimeSeriesCollector(1);
+        mDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mDevice.getSerialNumber()).andStubReturn("SERIAL");
+    }
+
+    @After
+    public void tearDown() {
+        mCollector.shutdown();
+    }
+
+    /** Test that cpu usage is computed from the deltas of the /proc/stat counters. */
+    @Test
+    public void testProcStatSampler() throws Exception {
+        expectShellCommand("cat /proc/stat", PROC_STAT_1, PROC_STAT_2);
+        EasyMock.replay(mDevice);
+        Recording recording = mCollector.new Recording(mDevice, new ProcStatSampler(), 8);
+        recording.run();
+        // The first sample only initializes the counters
+        assertEquals(0, recording.getTimeSeries().size());
+        recording.run();
+        EasyMock.verify(mDevice);
+
+        // Deltas: user 60, nice 10, system 30, idle 100, iow 10, irq 5, sirq 5, total 220
+        TimeSeries series = recording.getTimeSeries();
+        assertEquals(1, series.size());
+        assertEquals(100.0 * 70 / 220, series.getValue(series.getColumnIndex("user"), 0), 0.001);
+        assertEquals(100.0 * 30 / 220, series.getValue(series.getColumnIndex("system"), 0),
+                0.001);
+        assertEquals(100.0 * 10 / 220, series.getValue(series.getColumnIndex("iow"), 0), 0.001);
+        assertEquals(100.0 * 10 / 220, series.getValue(series.getColumnIndex("irq"), 0), 0.001);
+        assertEquals(100.0 * 120 / 220, series.getValue(series.getColumnIndex("total"), 0),
+                0.001);
+    }
+
+    /** Test that sampling failures are not recorded and do not stop the recording. */
+    @Test
+    public void testRecording_failure() throws Exception {
+        mDevice.executeShellCommand(EasyMock.<String>anyObject(),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.anyLong(),
+                EasyMock.eq(TimeUnit.MILLISECONDS), EasyMock.eq(0));
+        EasyMock.expectLastCall().andThrow(new DeviceNotAvailableException("gone", "SERIAL"));
+        expectShellCommand(null, "1200000\n300000\ncat: cpu2: No such file\n");
+        EasyMock.replay(mDevice);
+        Recording recording = mCollector.new Recording(mDevice, new CpuFreqSampler(), 8);
+        recording.run();
+        recording.run();
+        EasyMock.verify(mDevice);
+        TimeSeries series = recording.getTimeSeries();
+        assertEquals(1, series.size());
+        assertEquals(750.0, series.getValue(0, 0), 0.0);
+        assertEquals(1200.0, series.getValue(1, 0), 0.0);
+        assertEquals(2.0, series.getValue(2, 0), 0.0);
+    }
+
+    /** Test that a recording is sampled by the pool, and exported as run metrics. */
+    @Test
+    public void testStartRecording() throws Exception {
+        mDevice.executeShellCommand(EasyMock.<String>anyObject(),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.anyLong(),
+                EasyMock.eq(TimeUnit.MILLISECONDS), EasyMock.eq(0));
+        EasyMock.expectLastCall().andStubAnswer(new ShellOutputAnswer("1000000\n"));
+        ITestInvocationListener listener = EasyMock.createMock(ITestInvocationListener.class);
+        listener.testRunStarted("cpufreq-SERIAL", 0);
+        Capture<Map<String, String>> metrics = new Capture<>();
+        listener.testRunEnded(EasyMock.anyLong(), EasyMock.capture(metrics));
+        EasyMock.replay(mDevice, listener);
+        Recording recording = mCollector.startRecording(mDevice, new CpuFreqSampler(), 10);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (recording.getTimeSeries().getSampleCount() < 3
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        recording.stop();
+        assertTrue(recording.getTimeSeries().getSampleCount() >= 3);
+        recording.reportMetrics(listener);
+        EasyMock.verify(listener);
+        assertEquals("1000.0", metrics.getValue().get("mean-mhz-mean"));
+        assertEquals("1.0", metrics.getValue().get("online-cpus-max"));
+    }
+
+    /** Test that a scheduled task keeps running after it throws. */
+    @Test
+    public void testSchedule() throws Exception {
+        final CountDownLatch runs = new CountDownLatch(3);
+        ScheduledFuture<?> future = mCollector.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runs.countDown();
+                throw new RuntimeException("failed");
+            }
+        }, 0, 10);
+        assertTrue(runs.await(5, TimeUnit.SECONDS));
+        future.cancel(false);
+        assertTrue(future.isCancelled());
+    }
+
+    /** Test that a {@link CpuStatsCollector} records on the collector instead of cpustats. */
+    @Test
+    public void testCpuStatsCollector_useTimeSeries() throws Exception {
+        mDevice.executeShellCommand(EasyMock.<String>anyObject(),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.anyLong(),
+                EasyMock.eq(TimeUnit.MILLISECONDS), EasyMock.eq(0));
+        EasyMock.expectLastCall().andStubAnswer(new ShellOutputAnswer("1000000\n"));
+        EasyMock.replay(mDevice);
+        CpuStatsCollector cpuStats = new CpuStatsCollector(mDevice, 1);
+        cpuStats.useTimeSeries(mCollector);
+        cpuStats.start();
+        cpuStats.join(5000);
+        // The thread only starts the recordings
+        assertFalse(cpuStats.isAlive());
+        List<Recording> recordings = cpuStats.getRecordings();
+        assertEquals(2, recordings.size());
+        assertEquals("cpu", recordings.get(0).getSampler().getName());
+        assertEquals("cpufreq", recordings.get(1).getSampler().getName());
+        assertFalse(cpuStats.isCancelled());
+        cpuStats.cancel();
+        assertTrue(cpuStats.isCancelled());
+        assertTrue(cpuStats.getCpuStats().isEmpty());
+    }
+
+    /**
+     * Expect shell commands run with a timeout, each one printing the next output.
+     *
+     * @param command the expected command, or {@code null} for any command.
+     */
+    private void expectShellCommand(String command, String... outputs) throws Exception {
+        for (String output : outputs) {
+            mDevice.executeShellCommand(
+                    command == null ? EasyMock.<String>anyObject() : EasyMock.eq(command),
+                    EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.anyLong(),
+                    EasyMock.eq(TimeUnit.MILLISECONDS), EasyMock.eq(0));
+            EasyMock.expectLastCall().andAnswer(new ShellOutputAnswer(output));
+        }
+    }
+
+    /** Prints an output to the receiver of a shell command. */
+    private static class ShellOutputAnswer implements IAnswer<Object> {
+        private final byte[] mOutput;
+
+        ShellOutputAnswer(String output) {
+            mOutput = output.getBytes();
+        }
+
+        @Override
+        public Object answer() {
+            IShellOutputReceiver receiver =
+                    (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+            receiver.addOutput(mOutput, 0, mOutput.length);
+            receiver.flush();
+            return null;
+        }
+    }
+}
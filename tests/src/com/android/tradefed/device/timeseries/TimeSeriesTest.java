@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device.timeseries;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.StringWriter;
+import java.util.Map;
+
+/** Unit tests for {@link TimeSeries}. */
+@RunWith(JUnit4.class)
+public class TimeSeriesTest {
+
+    /** Test that a full series is downsampled by averaging pairs of points. */
+    @Test
+    public void testAdd_downsample() {
+        TimeSeries series = new TimeSeries(new String[] {"a"}, 4);
+        for (int i = 0; i < 4; i++) {
+            series.add(i * 10, new double[] {i});
+        }
+        assertEquals(4, series.size());
+        assertEquals(1, series.getStride());
+        // The fifth sample triggers the downsampling, and is averaged with the next one
+        series.add(40, new double[] {4});
+        assertEquals(2, series.size());
+        assertEquals(2, series.getStride());
+        assertEquals(0, series.getTimestamp(0));
+        assertEquals(0.5, series.getValue(0, 0), 0.0);
+        assertEquals(20, series.getTimestamp(1));
+        assertEquals(2.5, series.getValue(0, 1), 0.0);
+        series.add(50, new double[] {5});
+        assertEquals(3, series.size());
+        assertEquals(40, series.getTimestamp(2));
+        assertEquals(4.5, series.getValue(0, 2), 0.0);
+        series.add(60, new double[] {6});
+        series.add(70, new double[] {7});
+        assertEquals(4, series.size());
+        assertEquals(60, series.getTimestamp(3));
+        assertEquals(6.5, series.getValue(0, 3), 0.0);
+        assertEquals(8, series.getSampleCount());
+    }
+
+    /** Test that the statistics cover all the samples and ignore missing values. */
+    @Test
+    public void testStatistics() {
+        TimeSeries series = new TimeSeries(new String[] {"a", "b"}, 2);
+        series.add(0, new double[] {1, Double.NaN});
+        series.add(1, new double[] {5, Double.NaN});
+        series.add(2, new double[] {3, Double.NaN});
+        assertEquals(3.0, series.getMean(0), 0.0);
+        assertEquals(1.0, series.getMin(0), 0.0);
+        assertEquals(5.0, series.getMax(0), 0.0);
+        assertNull(series.getMean(1));
+        assertEquals(1, series.getColumnIndex("b"));
+        assertEquals(-1, series.getColumnIndex("c"));
+
+        Map<String, String> metrics = series.getMetrics("cpu-");
+        assertEquals(3, metrics.size());
+        assertEquals("3.0", metrics.get("cpu-a-mean"));
+        assertEquals("1.0", metrics.get("cpu-a-min"));
+        assertEquals("5.0", metrics.get("cpu-a-max"));
+        assertFalse(metrics.containsKey("cpu-b-mean"));
+    }
+
+    /** Test writing the points as csv. */
+    @Test
+    public void testWriteCsv() throws Exception {
+        TimeSeries series = new TimeSeries(new String[] {"a", "b"}, 2);
+        series.add(100, new double[] {1, Double.NaN});
+        series.add(200, new double[] {2, 3});
+        StringWriter writer = new StringWriter();
+        series.writeCsv(writer);
+        assertEquals("timestamp,a,b\n100,1.0,\n200,2.0,3.0\n", writer.toString());
+    }
+}
@@ -120,4 +120,22 @@ public class TraceMetricsRecorderTest {
         EasyMock.verify(mDevice);
         Assert.assertEquals(metrics.get("mmc:mmc_cmd_rw_end:int_status:COUNT"), 3.0, 0.001);
     }
+
+    /** Test that a truncated line is skipped, and the following lines are still parsed. */
+    @Test
+    public void testTruncatedLine() throws Exception {
+        String line =
+                " msm-core:sampli-287   [000] d.h2 87062.264209: mmc_cmd_rw_end: cmd=0,int_status=0x\n"
+                        + "          <idle>-0     [000] d.h3 87062.279952: mmc_cmd_rw_end: cmd=1,int_status=0x00000001,response=0x00ff8080\n";
+        EasyMock.expect(mDevice.executeShellCommand((String) EasyMock.anyObject()))
+                .andReturn("")
+                .anyTimes();
+        EasyMock.expect(mDevice.pullFile((String) EasyMock.anyObject()))
+                .andStubReturn(new File(line));
+        EasyMock.replay(mDevice);
+        mRecorder.setUp(mDevice, Arrays.asList("mmc:mmc_cmd_rw_end:int_status:COUNT"));
+        Map<String, Double> metrics = mRecorder.stopMetrics(mDevice);
+        EasyMock.verify(mDevice);
+        Assert.assertEquals(metrics.get("mmc:mmc_cmd_rw_end:int_status:COUNT"), 1.0, 0.001);
+    }
 }
@@ -111,4 +111,32 @@ public class TraceParserTest {
         m = TraceParser.TRACE_LINE.matcher(line);
         Assert.assertTrue(m.find());
     }
+
+    @Test
+    public void testIndexOfFunctionName() {
+        String line =
+                " msm-core:sampli-287   [000] d.h2 87062.264209: mmc_cmd_rw_end: cmd=0,int_status=0x00000001";
+        int start = TraceParser.indexOfFunctionName(line);
+        Assert.assertEquals(line.indexOf("mmc_cmd_rw_end"), start);
+        Assert.assertTrue(TraceParser.isFunction(line, start, "mmc_cmd_rw_end"));
+        Assert.assertFalse(TraceParser.isFunction(line, start, "mmc_cmd_rw"));
+        Assert.assertFalse(TraceParser.isFunction(line, start, "mmc_cmd_rw_start"));
+        Assert.assertEquals(-1, TraceParser.indexOfFunctionName("# tracer: nop"));
+        Assert.assertEquals(-1, TraceParser.indexOfFunctionName(""));
+    }
+
+    @Test
+    public void testFastParse() {
+        String line =
+                "          mmcqd/0-260   [000] ...1    58.216426: mmc_blk_rw_start: cmd=18,addr=0x0039f640,size=-32";
+        int start = TraceParser.indexOfFunctionName(line);
+        Assert.assertEquals(58.216426, TraceParser.parseTimestamp(line, start), 0.0000001);
+        Assert.assertEquals(Long.valueOf(18), TraceParser.parseFunctionParam(line, start, "cmd"));
+        Assert.assertEquals(Long.valueOf(0x0039f640),
+                TraceParser.parseFunctionParam(line, start, "addr"));
+        Assert.assertEquals(Long.valueOf(-32),
+                TraceParser.parseFunctionParam(line, start, "size"));
+        Assert.assertNull(TraceParser.parseFunctionParam(line, start, "ad"));
+        Assert.assertNull(TraceParser.parseFunctionParam(line, start, "response"));
+    }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.profiler.recorder;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.device.ITestDevice;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link TracePipeMetricsRecorder}. */
+@RunWith(JUnit4.class)
+public class TracePipeMetricsRecorderTest {
+
+    private static final String TRACE =
+            " msm-core:sampli-287   [000] d.h2 87062.264209: mmc_cmd_rw_end: cmd=0,int_status=0x00000001,response=0x00000000\n"
+                    + "         mmcqd:0-260   [000] d..2 87062.293003: mmc_cmd_rw_start: cmd=1,arg=0x40000080,flags=0x000000e1\n"
+                    + "         <idle>-1     [000] d.h3 87062.293286: mmc_cmd_rw_end: cmd=1,int_status=0x00000001,response=0xc0ff8080\n";
+
+    private TracePipeMetricsRecorder mRecorder;
+    private ITestDevice mDevice;
+
+    @Before
+    public void setUp() throws Exception {
+        mRecorder = new TracePipeMetricsRecorder();
+        mDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mDevice.getSerialNumber()).andStubReturn("SERIAL");
+    }
+
+    /** Test that the events read from trace_pipe while the test runs are aggregated. */
+    @Test
+    public void testStreamTracePipe() throws Exception {
+        EasyMock.expect(mDevice.executeShellCommand(EasyMock.contains("> /d/tracing/")))
+                .andReturn("")
+                .anyTimes();
+        mDevice.executeShellCommand(EasyMock.eq("cat /d/tracing/trace_pipe"),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.eq(0L),
+                EasyMock.eq(TimeUnit.MILLISECONDS), EasyMock.eq(0));
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                IShellOutputReceiver receiver =
+                        (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+                byte[] output = TRACE.getBytes();
+                receiver.addOutput(output, 0, output.length);
+                while (!receiver.isCancelled()) {
+                    Thread.sleep(10);
+                }
+                receiver.flush();
+                return null;
+            }
+        });
+        EasyMock.replay(mDevice);
+        mRecorder.setUp(mDevice, Arrays.asList("mmc:mmc_cmd_rw_end:int_status:COUNT"));
+        mRecorder.startMetrics(mDevice);
+        Map<String, Double> metrics = mRecorder.stopMetrics(mDevice);
+        EasyMock.verify(mDevice);
+        Assert.assertEquals(2.0, metrics.get("mmc:mmc_cmd_rw_end:int_status:COUNT"), 0.001);
+    }
+}
@@ -23,16 +23,22 @@ import com.android.tradefed.result.BugreportCollector.Noun;
 import com.android.tradefed.result.BugreportCollector.Predicate;
 import com.android.tradefed.result.BugreportCollector.Relation;
 import com.android.tradefed.result.BugreportCollector.SubPredicate;
+import com.android.tradefed.util.Bugreport;
+import com.android.tradefed.util.FileUtil;
 
 import junit.framework.TestCase;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.easymock.Capture;
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 
 /** Unit tests for {@link BugreportCollector} */
 public class BugreportCollectorTest extends TestCase {
@@ -287,6 +293,77 @@ public class BugreportCollectorTest extends TestCase {
         verifyMocks();
     }
 
+    /**
+     * Make sure that asynchronous requests made while a capture is in flight are coalesced into
+     * the next capture, which records the requests it covers.
+     */
+    public void testAsynchronous_coalesced() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        ITestInvocationListener listener = EasyMock.createStrictMock(ITestInvocationListener.class);
+        final CountDownLatch captureStarted = new CountDownLatch(1);
+        final CountDownLatch releaseCapture = new CountDownLatch(1);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn("SERIAL");
+        device.waitForDeviceOnline(EasyMock.anyLong());
+        EasyMock.expectLastCall().times(2);
+        EasyMock.expect(device.takeBugreport()).andAnswer(new IAnswer<Bugreport>() {
+            @Override
+            public Bugreport answer() throws Throwable {
+                captureStarted.countDown();
+                releaseCapture.await();
+                return new Bugreport(FileUtil.createTempFile("bugreportz", ".zip"), true);
+            }
+        }).times(2);
+        listener.testLog(EasyMock.contains("bug-first."), EasyMock.eq(LogDataType.BUGREPORTZ),
+                EasyMock.<InputStreamSource>anyObject());
+        listener.testLog(EasyMock.contains("bug-second_and_1_more."),
+                EasyMock.eq(LogDataType.TEXT), EasyMock.<InputStreamSource>anyObject());
+        listener.testLog(EasyMock.contains("bug-second_and_1_more."),
+                EasyMock.eq(LogDataType.BUGREPORTZ), EasyMock.<InputStreamSource>anyObject());
+        EasyMock.replay(device, listener);
+        BugreportCollector collector = new BugreportCollector(listener, device);
+        collector.setAsynchronous(true);
+        collector.setRateLimit(10, 0);
+        collector.grabBugreport("first");
+        assertTrue(captureStarted.await(5, TimeUnit.SECONDS));
+        collector.grabBugreport("second");
+        collector.grabBugreport("third");
+        releaseCapture.countDown();
+        collector.blockUntilIdle();
+        EasyMock.verify(device, listener);
+    }
+
+    /**
+     * Make sure that an asynchronous capture is saved as a file when a log saver is set, and that
+     * a listener which is not an {@link ILogSaverListener} still receives the bugreport.
+     */
+    public void testAsynchronous_logSaver() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        ITestInvocationListener listener = EasyMock.createStrictMock(ITestInvocationListener.class);
+        ILogSaver logSaver = EasyMock.createMock(ILogSaver.class);
+        final File bugreportFile = FileUtil.createTempFile("bugreportz", ".zip");
+        try {
+            EasyMock.expect(device.getSerialNumber()).andStubReturn("SERIAL");
+            device.waitForDeviceOnline(EasyMock.anyLong());
+            EasyMock.expect(device.takeBugreport()).andReturn(new Bugreport(bugreportFile, true));
+            EasyMock.expect(logSaver.saveLogFile(EasyMock.contains("bug-first."),
+                    EasyMock.eq(LogDataType.BUGREPORTZ), EasyMock.eq(bugreportFile)))
+                    .andReturn(new LogFile("path", "url", false, false));
+            listener.testLog(EasyMock.contains("bug-first."), EasyMock.eq(LogDataType.BUGREPORTZ),
+                    EasyMock.<InputStreamSource>anyObject());
+            EasyMock.replay(device, listener, logSaver);
+            BugreportCollector collector = new BugreportCollector(listener, device);
+            collector.setAsynchronous(true);
+            collector.setLogSaver(logSaver);
+            collector.grabBugreport("first");
+            collector.blockUntilIdle();
+            EasyMock.verify(device, listener, logSaver);
+            // the pulled file is deleted once delivered
+            assertFalse(bugreportFile.exists());
+        } finally {
+            FileUtil.deleteFile(bugreportFile);
+        }
+    }
+
     /**
      * Injects a single test run with 1 passed test into the {@link CollectingTestListener} under
      * test
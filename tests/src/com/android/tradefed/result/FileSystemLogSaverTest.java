@@ -279,4 +279,61 @@ public class FileSystemLogSaverTest extends TestCase {
                 mReportDir.listFiles()[0].listFiles()[0].listFiles()[0].list()[0].startsWith(
                         "inv_"));
     }
+
+    /**
+     * Test {@link FileSystemLogSaver#saveLogFile(String, LogDataType, File)} links or copies the
+     * file when it is not compressed.
+     */
+    public void testSaveLogFile_noCompression() throws Exception {
+        File data = FileUtil.createTempFile("data", ".txt");
+        try {
+            FileUtil.writeToFile("Here's some test data, blah", data);
+            FileSystemLogSaver saver = new FileSystemLogSaver();
+            OptionSetter setter = new OptionSetter(saver);
+            setter.setOptionValue("log-file-path", mReportDir.getAbsolutePath());
+            setter.setOptionValue("compress-files", "false");
+            saver.invocationStarted(mContext);
+
+            LogFile logFile = saver.saveLogFile("testSaveLogFile", LogDataType.TEXT, data);
+            File log = new File(logFile.getPath());
+            assertTrue(log.getName().startsWith("testSaveLogFile_"));
+            assertTrue(log.getName().endsWith(LogDataType.TEXT.getFileExt()));
+            assertTrue(log.getParentFile().getName().startsWith("inv_"));
+            assertFalse(logFile.isCompressed());
+            // the saved log is independent of the original file
+            FileUtil.deleteFile(data);
+            assertEquals("Here's some test data, blah", FileUtil.readStringFromFile(log));
+        } finally {
+            FileUtil.deleteFile(data);
+        }
+    }
+
+    /**
+     * Test {@link FileSystemLogSaver#saveLogFile(String, LogDataType, File)} zips the file when
+     * compressing.
+     */
+    public void testSaveLogFile_compression() throws IOException {
+        File data = FileUtil.createTempFile("data", ".txt");
+        ZipFile zipFile = null;
+        try {
+            FileUtil.writeToFile("Here's some test data, blah", data);
+            FileSystemLogSaver saver = new FileSystemLogSaver();
+            saver.setReportDir(mReportDir);
+            saver.invocationStarted(mContext);
+
+            LogFile logFile = saver.saveLogFile("testSaveLogFile", LogDataType.TEXT, data);
+            assertTrue(logFile.getPath().endsWith(LogDataType.ZIP.getFileExt()));
+            zipFile = new ZipFile(new File(logFile.getPath()));
+            String actualLogString = StreamUtil.getStringFromStream(zipFile.getInputStream(
+                    new ZipEntry("testSaveLogFile.txt")));
+            assertEquals("Here's some test data, blah", actualLogString);
+            // the original file is left to the caller
+            assertTrue(data.exists());
+        } finally {
+            if (zipFile != null) {
+                zipFile.close();
+            }
+            FileUtil.deleteFile(data);
+        }
+    }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.InputStream;
+
+/**
+ * Unit tests for the {@link SharedFileInputStreamSource} class
+ */
+public class SharedFileInputStreamSourceTest extends TestCase {
+    private static final String FILE_CONTENTS = "These are file contents!";
+    private File mFile = null;
+
+    @Override
+    public void setUp() throws Exception {
+        mFile = FileUtil.createTempFile("shared_source", ".txt");
+        FileUtil.writeToFile(FILE_CONTENTS, mFile);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        FileUtil.deleteFile(mFile);
+    }
+
+    /**
+     * Ensure that the file is only deleted once all the references are released.
+     */
+    public void testRetain() throws Exception {
+        SharedFileInputStreamSource source = new SharedFileInputStreamSource(mFile);
+        assertSame(source, source.retain());
+        assertEquals(2, source.getRefCount());
+        source.cancel();
+        assertTrue(mFile.exists());
+        InputStream stream = source.createInputStream();
+        try {
+            assertEquals(FILE_CONTENTS, StreamUtil.getStringFromStream(stream));
+        } finally {
+            StreamUtil.close(stream);
+        }
+        assertEquals(FILE_CONTENTS.length(), source.size());
+
+        source.cancel();
+        assertFalse(mFile.exists());
+        assertNull(source.getFile());
+        assertNull(source.createInputStream());
+        assertEquals(0, source.size());
+        // no reference can be taken anymore
+        assertNull(source.retain());
+        source.cancel();
+        assertEquals(0, source.getRefCount());
+    }
+
+    /**
+     * Ensure that a file which is not owned is not deleted.
+     */
+    public void testCancel_notOwned() {
+        SharedFileInputStreamSource source = new SharedFileInputStreamSource(mFile, false);
+        source.cancel();
+        assertTrue(mFile.exists());
+        assertNull(source.createInputStream());
+    }
+}
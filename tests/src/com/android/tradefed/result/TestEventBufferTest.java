@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+/** Unit tests for {@link TestEventBuffer}. */
+@RunWith(JUnit4.class)
+public class TestEventBufferTest {
+
+    private ITestInvocationListener mMockListener;
+    private TestEventBuffer mBuffer;
+
+    @Before
+    public void setUp() {
+        mMockListener = EasyMock.createStrictMock(ITestInvocationListener.class);
+        mBuffer = new TestEventBuffer(mMockListener);
+    }
+
+    /** Test that the events only reach the listener on flush, and in order. */
+    @Test
+    public void testFlush() {
+        TestIdentifier test1 = new TestIdentifier("class", "test1");
+        TestIdentifier test2 = new TestIdentifier("class", "test2");
+        Map<String, String> empty = Collections.emptyMap();
+        mMockListener.testRunStarted("run", 2);
+        mMockListener.testStarted(test1, 5L);
+        mMockListener.testFailed(test1, "trace");
+        mMockListener.testEnded(test1, 10L, empty);
+        mMockListener.testStarted(test2);
+        mMockListener.testIgnored(test2);
+        mMockListener.testEnded(test2, empty);
+        mMockListener.testRunFailed("error");
+        mMockListener.testRunEnded(20L, empty);
+        EasyMock.replay(mMockListener);
+        mBuffer.testRunStarted("run", 2);
+        mBuffer.testStarted(test1, 5L);
+        mBuffer.testFailed(test1, "trace");
+        mBuffer.testEnded(test1, 10L, empty);
+        mBuffer.testStarted(test2);
+        mBuffer.testIgnored(test2);
+        mBuffer.testEnded(test2, empty);
+        mBuffer.testRunFailed("error");
+        mBuffer.testRunEnded(20L, empty);
+        assertEquals(9, mBuffer.size());
+        mBuffer.flush();
+        assertEquals(0, mBuffer.size());
+        // Nothing left to replay
+        mBuffer.flush();
+        EasyMock.verify(mMockListener);
+    }
+
+    /**
+     * Test that logs are buffered in order with the other events, and stay readable after the
+     * caller cancels its source.
+     */
+    @Test
+    public void testTestLog() throws Exception {
+        InputStreamSource source = new ByteArrayInputStreamSource("data".getBytes());
+        final String[] logged = new String[1];
+        mMockListener.testRunStarted("run", 0);
+        mMockListener.testLog(EasyMock.eq("log"), EasyMock.eq(LogDataType.TEXT),
+                (InputStreamSource) EasyMock.anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Void>() {
+            @Override
+            public Void answer() throws Throwable {
+                InputStreamSource replayed = (InputStreamSource) EasyMock.getCurrentArguments()[2];
+                logged[0] = StreamUtil.getStringFromSource(replayed);
+                return null;
+            }
+        });
+        mMockListener.testRunEnded(0L, Collections.<String, String>emptyMap());
+        EasyMock.replay(mMockListener);
+        mBuffer.testRunStarted("run", 0);
+        mBuffer.testLog("log", LogDataType.TEXT, source);
+        mBuffer.testRunEnded(0L, Collections.<String, String>emptyMap());
+        source.cancel();
+        assertEquals(3, mBuffer.size());
+        mBuffer.flush();
+        EasyMock.verify(mMockListener);
+        assertEquals("data", logged[0]);
+    }
+
+    /** Test that a shared source is retained until the log is replayed. */
+    @Test
+    public void testTestLog_shared() throws Exception {
+        File file = FileUtil.createTempFile("test-event-buffer", ".txt");
+        FileUtil.writeToFile("data", file);
+        SharedFileInputStreamSource source = new SharedFileInputStreamSource(file);
+        mMockListener.testLog("log", LogDataType.TEXT, source);
+        EasyMock.replay(mMockListener);
+        mBuffer.testLog("log", LogDataType.TEXT, source);
+        source.cancel();
+        assertTrue(file.exists());
+        mBuffer.flush();
+        EasyMock.verify(mMockListener);
+        assertFalse(file.exists());
+    }
+}
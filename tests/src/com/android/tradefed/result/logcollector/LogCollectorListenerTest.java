@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result.logcollector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.build.BuildInfo;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.result.ILogSaver;
+import com.android.tradefed.result.ILogSaverListener;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.result.LogFile;
+import com.android.tradefed.result.logcollector.LogCollectorSpec.FormatParam;
+import com.android.tradefed.result.logcollector.LogCollectorSpec.Trigger;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link LogCollectorListener}. */
+@RunWith(JUnit4.class)
+public class LogCollectorListenerTest {
+
+    private static final TestIdentifier TEST = new TestIdentifier("FooTest", "testFoo");
+
+    private LogCollectorListener mListener;
+    private ITestDevice mDevice;
+    private ILogSaver mLogSaver;
+    private IInvocationContext mContext;
+
+    @Before
+    public void setUp() {
+        mListener = new LogCollectorListener();
+        mDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mDevice.getSerialNumber()).andStubReturn("SERIAL");
+        mLogSaver = EasyMock.createMock(ILogSaver.class);
+        mListener.setLogSaver(mLogSaver);
+        mContext = new InvocationContext();
+        mContext.addAllocatedDevice("device", mDevice);
+        BuildInfo build = new BuildInfo("1", "target");
+        build.setBuildFlavor("flavor-userdebug");
+        mContext.addDeviceBuildInfo("device", build);
+        mContext.setTestTag("suite/foo");
+    }
+
+    private void expectCommand(String command, final String output) throws Exception {
+        mDevice.executeShellCommand(EasyMock.eq(command),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.anyLong(),
+                EasyMock.eq(TimeUnit.MILLISECONDS), EasyMock.eq(0));
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                IShellOutputReceiver receiver =
+                        (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+                byte[] data = output.getBytes();
+                receiver.addOutput(data, 0, data.length);
+                receiver.flush();
+                return null;
+            }
+        });
+    }
+
+    private void expectSave(String name, LogDataType type, final String content) throws Exception {
+        EasyMock.expect(mLogSaver.saveLogData(EasyMock.eq(name), EasyMock.eq(type),
+                EasyMock.<InputStream>anyObject())).andAnswer(new IAnswer<LogFile>() {
+                    @Override
+                    public LogFile answer() throws Throwable {
+                        InputStream stream = (InputStream) EasyMock.getCurrentArguments()[2];
+                        assertEquals(content, StreamUtil.getStringFromStream(stream));
+                        return new LogFile("/path", "url", false, false);
+                    }
+                });
+    }
+
+    /** Test that the end-of-test triggers of a failed test only collect once. */
+    @Test
+    public void testTriggers_deduplicated() throws Exception {
+        List<FormatParam> params = Arrays.asList(FormatParam.TEST_CLASS, FormatParam.TEST_NAME);
+        mListener.addCollector(new LogCollectorSpec("gfxinfo")
+                .setType(LogDataType.GFX_INFO)
+                .addTrigger(Trigger.FAILURE)
+                .addTrigger(Trigger.TEST_FINISH)
+                .setCommand("dumpsys gfxinfo")
+                .setResultFormat("gfxinfo-%s#%s", params));
+        expectCommand("dumpsys gfxinfo", "gfx output");
+        expectSave("gfxinfo-FooTest#testFoo", LogDataType.GFX_INFO, "gfx output");
+        EasyMock.replay(mDevice, mLogSaver);
+        mListener.invocationStarted(mContext);
+        mListener.testRunStarted("run", 1);
+        mListener.testStarted(TEST);
+        mListener.testFailed(TEST, "trace");
+        mListener.testEnded(TEST, Collections.<String, String>emptyMap());
+        mListener.testRunEnded(0, new HashMap<String, String>());
+        mListener.invocationEnded(0);
+        EasyMock.verify(mDevice, mLogSaver);
+    }
+
+    /** Test collecting an existing device file at test start. */
+    @Test
+    public void testCollect_file() throws Exception {
+        mListener.addCollector(new LogCollectorSpec("trace")
+                .addTrigger(Trigger.TEST_START)
+                .setDevicePath("/sdcard/trace.txt"));
+        File pulled = FileUtil.createTempFile("log-collector-test", ".txt");
+        FileUtil.writeToFile("trace content", pulled);
+        EasyMock.expect(mDevice.pullFile("/sdcard/trace.txt")).andReturn(pulled);
+        expectSave("trace", LogDataType.TEXT, "trace content");
+        EasyMock.replay(mDevice, mLogSaver);
+        mListener.invocationStarted(mContext);
+        mListener.testRunStarted("run", 1);
+        mListener.testStarted(TEST);
+        mListener.testEnded(TEST, Collections.<String, String>emptyMap());
+        mListener.testRunEnded(0, new HashMap<String, String>());
+        mListener.invocationEnded(0);
+        EasyMock.verify(mDevice, mLogSaver);
+        assertFalse(pulled.exists());
+    }
+
+    /** Test that collectors not matching the invocation never run. */
+    @Test
+    public void testAppliesTo() throws Exception {
+        LogCollectorSpec spec = new LogCollectorSpec("spec").addBuildTarget("flavor-userdebug");
+        assertTrue(spec.appliesTo("flavor-userdebug", null));
+        assertFalse(spec.appliesTo("other-user", null));
+        spec.addTestPrefix("suite/");
+        assertTrue(spec.appliesTo("flavor-userdebug", "suite/foo"));
+        assertFalse(spec.appliesTo("flavor-userdebug", "other"));
+
+        mListener.addCollector(new LogCollectorSpec("crash")
+                .addTrigger(Trigger.CRASH)
+                .addBuildTarget("other-user")
+                .setCommand("logcat -d"));
+        EasyMock.replay(mDevice, mLogSaver);
+        mListener.invocationStarted(mContext);
+        mListener.testRunStarted("run", 1);
+        mListener.testRunFailed("crashed");
+        mListener.testRunEnded(0, new HashMap<String, String>());
+        mListener.invocationEnded(0);
+        EasyMock.verify(mDevice, mLogSaver);
+    }
+
+    /**
+     * Test that each saved collection is reported to the other log saver listeners of the
+     * invocation, on the invocation thread.
+     */
+    @Test
+    public void testCollect_testLogSaved() throws Exception {
+        final List<String> saved = new ArrayList<>();
+        ILogSaverListener downstream = EasyMock.createMock(ILogSaverListener.class);
+        downstream.testLogSaved(EasyMock.eq("logcat"), EasyMock.eq(LogDataType.TEXT),
+                EasyMock.<InputStreamSource>anyObject(), EasyMock.<LogFile>anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                InputStreamSource source = (InputStreamSource) EasyMock.getCurrentArguments()[2];
+                LogFile logFile = (LogFile) EasyMock.getCurrentArguments()[3];
+                saved.add(String.format("%s:%s:%s", Thread.currentThread().getName(),
+                        logFile.getUrl(), StreamUtil.getStringFromSource(source)));
+                return null;
+            }
+        });
+        mListener.setLogSaverListeners(
+                Arrays.<ITestInvocationListener>asList(mListener, downstream));
+        mListener.addCollector(new LogCollectorSpec("logcat")
+                .addTrigger(Trigger.TEST_START)
+                .setCommand("logcat -d"));
+        expectCommand("logcat -d", "logcat output");
+        expectSave("logcat", LogDataType.TEXT, "logcat output");
+        EasyMock.replay(mDevice, mLogSaver, downstream);
+        mListener.invocationStarted(mContext);
+        mListener.testRunStarted("run", 1);
+        mListener.testStarted(TEST);
+        mListener.testEnded(TEST, Collections.<String, String>emptyMap());
+        mListener.testRunEnded(0, new HashMap<String, String>());
+        mListener.invocationEnded(0);
+        EasyMock.verify(mDevice, mLogSaver, downstream);
+        assertEquals(Arrays.asList(String.format("%s:url:logcat output",
+                Thread.currentThread().getName())), saved);
+    }
+}
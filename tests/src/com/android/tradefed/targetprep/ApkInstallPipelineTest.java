@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.targetprep;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.FileUtil;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Unit tests for {@link ApkInstallPipeline}. */
+@RunWith(JUnit4.class)
+public class ApkInstallPipelineTest {
+
+    private static final String PACKAGE_NAME = "com.fake.package";
+    private ITestDevice mMockDevice;
+    private ApkInstallPipeline mPipeline;
+    private File mTmpDir;
+    private File mApk;
+
+    @Before
+    public void setUp() throws Exception {
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("SERIAL");
+        EasyMock.expect(mMockDevice.getDeviceDescriptor()).andStubReturn(null);
+        EasyMock.expect(mMockDevice.getApiLevel()).andStubReturn(23);
+        mPipeline = new ApkInstallPipeline(mMockDevice, new ArrayList<String>(), 2);
+        mTmpDir = FileUtil.createTempDir("apk-install-pipeline");
+        mApk = new File(mTmpDir, "fake.apk");
+        FileUtil.writeToFile("fake apk content", mApk);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mTmpDir);
+    }
+
+    /** Test that a single apk is pushed then installed with pm install. */
+    @Test
+    public void testInstall_single() throws Exception {
+        EasyMock.expect(mMockDevice.pushFile(EasyMock.eq(mApk),
+                EasyMock.startsWith("/data/local/tmp/"))).andReturn(true);
+        EasyMock.expect(mMockDevice.executeShellCommand(
+                EasyMock.startsWith("pm install -r -g /data/local/tmp/")))
+                .andReturn("Success\n");
+        EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.startsWith("rm -f ")))
+                .andReturn("");
+        EasyMock.replay(mMockDevice);
+        Map<File, String> apks = new LinkedHashMap<>();
+        apks.put(mApk, PACKAGE_NAME);
+        Set<String> installed = mPipeline.install(apks);
+        assertEquals(1, installed.size());
+        assertTrue(installed.contains(PACKAGE_NAME));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test that an install failure is reported as a {@link TargetSetupError}. */
+    @Test
+    public void testInstall_failure() throws Exception {
+        EasyMock.expect(mMockDevice.pushFile(EasyMock.eq(mApk),
+                EasyMock.startsWith("/data/local/tmp/"))).andReturn(true);
+        EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.startsWith("pm install -r")))
+                .andReturn("Failure [INSTALL_PARSE_FAILED_MANIFEST_MALFORMED]\n");
+        EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.startsWith("rm -f ")))
+                .andReturn("");
+        EasyMock.replay(mMockDevice);
+        Map<File, String> apks = new LinkedHashMap<>();
+        apks.put(mApk, PACKAGE_NAME);
+        try {
+            mPipeline.install(apks);
+            fail("Should have thrown an exception.");
+        } catch (TargetSetupError expected) {
+            assertTrue(expected.getMessage().contains("INSTALL_PARSE_FAILED_MANIFEST_MALFORMED"));
+        }
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test that a package with the same md5 on device is not reinstalled. */
+    @Test
+    public void testInstall_skipUpToDate() throws Exception {
+        String md5 = FileUtil.calculateMd5(mApk);
+        EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.contains("pm path")))
+                .andReturn(String.format("%s  /data/app/base.apk\n==tf-pkg:%s\n",
+                        md5, PACKAGE_NAME));
+        EasyMock.replay(mMockDevice);
+        mPipeline.setSkipIfInstalled(true);
+        Map<File, String> apks = new LinkedHashMap<>();
+        apks.put(mApk, PACKAGE_NAME);
+        Set<String> installed = mPipeline.install(apks);
+        // skipped packages are still reported, so that they get cleaned up
+        assertEquals(1, installed.size());
+        assertTrue(installed.contains(PACKAGE_NAME));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test parsing the batched md5 output. */
+    @Test
+    public void testParseDeviceHashes() {
+        String output = "d41d8cd98f00b204e9800998ecf8427e  /data/app/a/base.apk\n"
+                + "==tf-pkg:com.a\n"
+                + "==tf-pkg:com.b\n";
+        Map<String, Set<String>> hashes = ApkInstallPipeline.parseDeviceHashes(output);
+        assertEquals(2, hashes.size());
+        assertTrue(hashes.get("com.a").contains("d41d8cd98f00b204e9800998ecf8427e"));
+        assertTrue(hashes.get("com.b").isEmpty());
+    }
+
+    /** Test that splits of the same package are installed in a single session. */
+    @Test
+    public void testInstall_session() throws Exception {
+        File split = new File(mTmpDir, "split.apk");
+        FileUtil.writeToFile("fake split content", split);
+        EasyMock.expect(mMockDevice.pushFile((File) EasyMock.anyObject(),
+                EasyMock.startsWith("/data/local/tmp/"))).andReturn(true).times(2);
+        EasyMock.expect(mMockDevice.executeShellCommand("pm install-create -r -g"))
+                .andReturn("Success: created install session [1234]\n");
+        EasyMock.expect(mMockDevice.executeShellCommand(
+                EasyMock.startsWith("pm install-write 1234 0_split.apk")))
+                .andReturn("Success: streamed 10 bytes\nSuccess: streamed 10 bytes\nSuccess\n");
+        EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.startsWith("rm -f ")))
+                .andReturn("");
+        EasyMock.replay(mMockDevice);
+        Map<File, String> apks = new LinkedHashMap<>();
+        apks.put(mApk, PACKAGE_NAME);
+        apks.put(split, PACKAGE_NAME);
+        List<String> installed =
+                new ArrayList<>(mPipeline.install(apks, Collections.singleton(split)));
+        assertEquals(1, installed.size());
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test that two full apks of the same package are not installed in a single session. */
+    @Test
+    public void testInstall_sameFullApks() throws Exception {
+        File other = new File(mTmpDir, "other.apk");
+        FileUtil.writeToFile("other apk content", other);
+        EasyMock.expect(mMockDevice.pushFile((File) EasyMock.anyObject(),
+                EasyMock.startsWith("/data/local/tmp/"))).andReturn(true).times(2);
+        EasyMock.expect(mMockDevice.executeShellCommand(
+                EasyMock.startsWith("pm install -r -g /data/local/tmp/")))
+                .andReturn("Success\n").times(2);
+        EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.startsWith("rm -f ")))
+                .andReturn("");
+        EasyMock.replay(mMockDevice);
+        Map<File, String> apks = new LinkedHashMap<>();
+        apks.put(mApk, PACKAGE_NAME);
+        apks.put(other, PACKAGE_NAME);
+        Set<String> installed = mPipeline.install(apks);
+        assertEquals(1, installed.size());
+        assertTrue(installed.contains(PACKAGE_NAME));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test that a missing output from the install command is reported as a failure. */
+    @Test
+    public void testInstall_nullOutput() throws Exception {
+        EasyMock.expect(mMockDevice.pushFile(EasyMock.eq(mApk),
+                EasyMock.startsWith("/data/local/tmp/"))).andReturn(true);
+        EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.startsWith("pm install -r")))
+                .andReturn(null);
+        EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.startsWith("rm -f ")))
+                .andReturn("");
+        EasyMock.replay(mMockDevice);
+        Map<File, String> apks = new LinkedHashMap<>();
+        apks.put(mApk, PACKAGE_NAME);
+        try {
+            mPipeline.install(apks);
+            fail("Should have thrown an exception.");
+        } catch (TargetSetupError expected) {
+            // expected
+        }
+        EasyMock.verify(mMockDevice);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.targetprep;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.MultiMap;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Unit tests for {@link BatchedDeviceSetupHelper}. */
+@RunWith(JUnit4.class)
+public class BatchedDeviceSetupHelperTest {
+
+    private ITestDevice mMockDevice;
+    private BatchedDeviceSetupHelper mHelper;
+
+    @Before
+    public void setUp() {
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("SERIAL");
+        mHelper = new BatchedDeviceSetupHelper(mMockDevice);
+    }
+
+    /** Test parsing the output of the batched settings list. */
+    @Test
+    public void testParseSettings() {
+        String output = "==tf-settings:system\n"
+                + "screen_brightness=10\n"
+                + "==tf-settings:secure\n"
+                + "==tf-settings:global\n"
+                + "wifi_on=1\n"
+                + "some_url=http://foo?a=b\n";
+        Map<String, Map<String, String>> settings =
+                BatchedDeviceSetupHelper.parseSettings(output);
+        assertEquals(3, settings.size());
+        assertEquals("10", settings.get("system").get("screen_brightness"));
+        assertTrue(settings.get("secure").isEmpty());
+        assertEquals("1", settings.get("global").get("wifi_on"));
+        assertEquals("http://foo?a=b", settings.get("global").get("some_url"));
+    }
+
+    /** Test parsing the output of getprop. */
+    @Test
+    public void testParseProperties() {
+        String output = "[ro.monkey]: [1]\n[ro.build.fingerprint]: [foo/bar:user]\n";
+        Map<String, String> props = BatchedDeviceSetupHelper.parseProperties(output);
+        assertEquals(2, props.size());
+        assertEquals("1", props.get("ro.monkey"));
+        assertEquals("foo/bar:user", props.get("ro.build.fingerprint"));
+    }
+
+    /** Test that only the settings that differ from the device are applied. */
+    @Test
+    public void testGetSettingCommands() throws Exception {
+        EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.contains("settings list")))
+                .andReturn("==tf-settings:global\nwifi_on=1\nlow_power=1\n");
+        EasyMock.replay(mMockDevice);
+        MultiMap<String, String> desired = new MultiMap<>();
+        desired.put("wifi_on", "1");
+        desired.put("low_power", "1");
+        desired.put("low_power", "0");
+        desired.put("stay_on_while_plugged_in", "7");
+        List<String> commands = mHelper.getSettingCommands("global", desired);
+        assertEquals(2, commands.size());
+        assertTrue(commands.contains("settings put global low_power 0"));
+        assertTrue(commands.contains("settings put global stay_on_while_plugged_in 7"));
+        // Settings are only read once
+        assertTrue(mHelper.getSettingCommands("global", desired).size() == 2);
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test that only the properties that differ from the device are returned. */
+    @Test
+    public void testGetChangedProperties() throws Exception {
+        EasyMock.expect(mMockDevice.executeShellCommand("getprop"))
+                .andReturn("[ro.monkey]: [1]\n[ro.test_harness]: [0]\n");
+        EasyMock.replay(mMockDevice);
+        Map<String, String> desired = new HashMap<>();
+        desired.put("ro.monkey", "1");
+        desired.put("ro.test_harness", "1");
+        Map<String, String> changed = mHelper.getChangedProperties(desired);
+        assertEquals(1, changed.size());
+        assertEquals("1", changed.get("ro.test_harness"));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test that commands are joined, and split when exceeding the max length. */
+    @Test
+    public void testCreateBatches() {
+        List<String> commands = new ArrayList<>();
+        commands.add("cmd1");
+        commands.add("cmd2");
+        assertEquals(1, BatchedDeviceSetupHelper.createBatches(commands).size());
+        assertEquals("sh -c 'cmd1'; echo ==tf-exit:0:$?; sh -c 'cmd2'; echo ==tf-exit:1:$?",
+                BatchedDeviceSetupHelper.createBatches(commands).get(0));
+        StringBuilder longCommand = new StringBuilder();
+        for (int i = 0; i < BatchedDeviceSetupHelper.MAX_BATCH_LENGTH - 30; i++) {
+            longCommand.append('a');
+        }
+        commands.add(longCommand.toString());
+        List<String> batches = BatchedDeviceSetupHelper.createBatches(commands);
+        assertEquals(2, batches.size());
+        assertEquals(BatchedDeviceSetupHelper.wrapCommand(longCommand.toString(), 2),
+                batches.get(1));
+    }
+
+    /** Test that the quotes of a command are escaped, so that it runs unchanged. */
+    @Test
+    public void testWrapCommand() {
+        assertEquals("sh -c 'echo '\\''a; b'\\'' > /x'; echo ==tf-exit:3:$?",
+                BatchedDeviceSetupHelper.wrapCommand("echo 'a; b' > /x", 3));
+    }
+
+    /** Test that the commands of all the batches are checked against their exit marker. */
+    @Test
+    public void testRunBatched() throws Exception {
+        List<String> commands = new ArrayList<>();
+        commands.add("cmd1");
+        commands.add("cmd2");
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("SERIAL");
+        EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.contains("sh -c 'cmd1'")))
+                .andReturn("some output\n==tf-exit:0:0\nerror\n==tf-exit:1:127\n");
+        EasyMock.replay(mMockDevice);
+        mHelper.runBatched(commands);
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test that phase times are recorded in order. */
+    @Test
+    public void testMarkPhase() {
+        mHelper.markPhase("first");
+        mHelper.markPhase("second");
+        List<String> phases = new ArrayList<>(mHelper.getPhaseTimes().keySet());
+        assertEquals("first", phases.get(0));
+        assertEquals("second", phases.get(1));
+    }
+}
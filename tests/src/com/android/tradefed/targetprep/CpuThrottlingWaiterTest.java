@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.targetprep;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.config.OptionSetter;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.timeseries.DeviceConditionMonitor;
+import com.android.tradefed.device.timeseries.DeviceTimeSeriesCollector;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link CpuThrottlingWaiter}. */
+@RunWith(JUnit4.class)
+public class CpuThrottlingWaiterTest {
+
+    private static final String CPU0 = "/sys/devices/system/cpu/cpu0/cpufreq";
+    private static final String CPU1 = "/sys/devices/system/cpu/cpu1/cpufreq";
+
+    private DeviceTimeSeriesCollector mCollector;
+    private CpuThrottlingWaiter mWaiter;
+    private ITestDevice mMockDevice;
+
+    @Before
+    public void setUp() throws Exception {
+        mCollector = new DeviceTimeSeriesCollector(1);
+        final DeviceConditionMonitor monitor = new DeviceConditionMonitor(mCollector);
+        mWaiter = new CpuThrottlingWaiter() {
+            @Override
+            protected DeviceConditionMonitor getConditionMonitor() {
+                return monitor;
+            }
+        };
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("SERIAL");
+        EasyMock.expect(mMockDevice.executeShellCommand(
+                "ls -1 -d /sys/devices/system/cpu/cpu*/cpufreq")).andReturn(CPU0 + "\n" + CPU1);
+        for (String cpu : new String[] {CPU0, CPU1}) {
+            EasyMock.expect(mMockDevice.executeShellCommand(
+                    String.format("cat %s/scaling_available_frequencies", cpu)))
+                    .andReturn("300000 1000000\n");
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mCollector.shutdown();
+    }
+
+    /** Test that the wait ends as soon as no core is throttled. */
+    @Test
+    public void testSetUp_notThrottled() throws Exception {
+        OptionSetter setter = new OptionSetter(mWaiter);
+        setter.setOptionValue("post-idle-wait", "0");
+        expectMaxFreqs(String.format("%s 1000000\n%s 1000000\n", CPU0, CPU1));
+        EasyMock.replay(mMockDevice);
+        mWaiter.setUp(mMockDevice, null);
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test that the preparer aborts when cores are still throttled after the max wait. */
+    @Test
+    public void testSetUp_abortOnTimeout() throws Exception {
+        OptionSetter setter = new OptionSetter(mWaiter);
+        setter.setOptionValue("max-wait", "1");
+        setter.setOptionValue("abort-on-timeout", "true");
+        expectMaxFreqs(String.format("%s 300000\n%s 1000000\n", CPU0, CPU1));
+        EasyMock.expect(mMockDevice.executeShellCommand(
+                "cat /sys/devices/system/cpu/*/cpufreq/cpuinfo_max_freq")).andReturn("300000");
+        EasyMock.expect(mMockDevice.getDeviceDescriptor()).andReturn(null);
+        EasyMock.replay(mMockDevice);
+        try {
+            mWaiter.setUp(mMockDevice, null);
+            fail("TargetSetupError not thrown");
+        } catch (TargetSetupError e) {
+            // expected
+        }
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test that cores are stable only once none was throttled during the whole window. */
+    @Test
+    public void testStableCondition() {
+        CpuThrottlingWaiter.StableCondition condition =
+                new CpuThrottlingWaiter.StableCondition(2000);
+        assertFalse(condition.isMet(0, new double[] {0}));
+        assertFalse(condition.isMet(1000, new double[] {1}));
+        assertFalse(condition.isMet(2000, new double[] {0}));
+        assertFalse(condition.isMet(2500, new double[] {0}));
+        assertTrue(condition.isMet(3000, new double[] {0}));
+    }
+
+    /** Test that the sampler counts the cores not running at their max frequency. */
+    @Test
+    public void testThrottlingSampler() throws Exception {
+        Map<String, String> maxFreqs = new LinkedHashMap<>();
+        maxFreqs.put(CPU0, "1000000");
+        maxFreqs.put(CPU1, "1000000");
+        CpuThrottlingWaiter.ThrottlingSampler sampler =
+                new CpuThrottlingWaiter.ThrottlingSampler(maxFreqs);
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        // a single command reads all the cores
+        mMockDevice.executeShellCommand(EasyMock.and(EasyMock.contains(CPU0),
+                EasyMock.contains(CPU1)), EasyMock.<IShellOutputReceiver>anyObject(),
+                EasyMock.anyLong(), EasyMock.eq(TimeUnit.MILLISECONDS), EasyMock.eq(0));
+        EasyMock.expectLastCall().andAnswer(new ShellOutputAnswer(
+                String.format("%s 300000\n%s 1000000\n", CPU0, CPU1)));
+        EasyMock.replay(mMockDevice);
+        double[] values = new double[1];
+        sampler.sample(mMockDevice, values);
+        assertEquals(1.0, values[0], 0.0);
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Expect the max frequencies of the cores to be sampled, printing the given output. */
+    private void expectMaxFreqs(String output) throws Exception {
+        mMockDevice.executeShellCommand(EasyMock.contains("/cpuinfo_max_freq)"),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.anyLong(),
+                EasyMock.eq(TimeUnit.MILLISECONDS), EasyMock.eq(0));
+        EasyMock.expectLastCall().andStubAnswer(new ShellOutputAnswer(output));
+    }
+
+    /** Prints an output to the receiver of a shell command. */
+    private static class ShellOutputAnswer implements IAnswer<Object> {
+        private final byte[] mOutput;
+
+        ShellOutputAnswer(String output) {
+            mOutput = output.getBytes();
+        }
+
+        @Override
+        public Object answer() {
+            IShellOutputReceiver receiver =
+                    (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+            receiver.addOutput(mOutput, 0, mOutput.length);
+            receiver.flush();
+            return null;
+        }
+    }
+}
@@ -110,6 +110,61 @@ public class DeviceSetupTest extends TestCase {
         EasyMock.verify(mMockDevice);
     }
 
+    /**
+     * Test that in batch mode, only the properties and settings that differ from the device are
+     * applied, in a single shell command.
+     */
+    public void testSetup_batch() throws DeviceNotAvailableException, TargetSetupError {
+        TestDeviceOptions options = new TestDeviceOptions();
+        options.setEnableAdbRoot(true);
+        EasyMock.expect(mMockDevice.getOptions()).andReturn(options).once();
+        EasyMock.expect(mMockDevice.enableAdbRoot()).andReturn(Boolean.TRUE);
+        EasyMock.expect(mMockDevice.clearErrorDialogs()).andReturn(Boolean.TRUE);
+        EasyMock.expect(mMockDevice.getApiLevel()).andReturn(DEFAULT_API_LEVEL).times(2);
+        // all the properties are already set, so no local.prop push and no reboot
+        EasyMock.expect(mMockDevice.executeShellCommand("getprop")).andReturn(
+                "[ro.audio.silent]: [1]\n[ro.monkey]: [1]\n[ro.test_harness]: [1]\n"
+                + "[ro.telephony.disable-call]: [true]\n");
+        EasyMock.expect(mMockDevice.executeShellCommand("svc power stayon true")).andReturn("");
+        EasyMock.expect(mMockDevice.executeShellCommand("input keyevent 82")).andReturn("");
+        EasyMock.expect(mMockDevice.executeShellCommand("input keyevent 3")).andReturn("");
+        EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.contains("settings list")))
+                .andReturn("==tf-settings:system\n==tf-settings:secure\n"
+                        + "==tf-settings:global\nairplane_mode_on=0\n");
+        doCommandsExpectations("sh -c 'settings put global airplane_mode_on 1'; "
+                + "echo ==tf-exit:0:$?; "
+                + "sh -c 'am broadcast -a android.intent.action.AIRPLANE_MODE --ez state true'; "
+                + "echo ==tf-exit:1:$?");
+        doCheckExternalStoreSpaceExpectations();
+        EasyMock.replay(mMockDevice);
+
+        mDeviceSetup.setBatchSetup(true);
+        mDeviceSetup.setAirplaneMode(BinaryState.ON);
+        mDeviceSetup.setUp(mMockDevice, mMockBuildInfo);
+
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that in batch mode, settings already set on the device are not applied again.
+     */
+    public void testSetup_batch_noChange() throws DeviceNotAvailableException, TargetSetupError {
+        doSetupExpectations();
+        doCheckExternalStoreSpaceExpectations();
+        EasyMock.expect(mMockDevice.getApiLevel()).andReturn(DEFAULT_API_LEVEL);
+        EasyMock.expect(mMockDevice.executeShellCommand("getprop")).andReturn("");
+        EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.contains("settings list")))
+                .andReturn("==tf-settings:system\n==tf-settings:secure\n"
+                        + "==tf-settings:global\nairplane_mode_on=1\n");
+        EasyMock.replay(mMockDevice);
+
+        mDeviceSetup.setBatchSetup(true);
+        mDeviceSetup.setAirplaneMode(BinaryState.ON);
+        mDeviceSetup.setUp(mMockDevice, mMockBuildInfo);
+
+        EasyMock.verify(mMockDevice);
+    }
+
     public void testSetup_airplane_mode_off() throws DeviceNotAvailableException, TargetSetupError {
         doSetupExpectations();
         doCheckExternalStoreSpaceExpectations();
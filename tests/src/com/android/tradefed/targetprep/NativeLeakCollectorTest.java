@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.targetprep;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.config.OptionSetter;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.ITestLogger;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.targetprep.NativeLeakCollector.UnreachableMemoryReceiver;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link NativeLeakCollector}. */
+@RunWith(JUnit4.class)
+public class NativeLeakCollectorTest {
+
+    private static final String DUMP =
+            "** MEMINFO in pid 123 [system] **\n"
+            + " Unreachable memory\n"
+            + "  2048 bytes in 4 unreachable allocations\n"
+            + "  ABI: 'arm64'\n"
+            + "\n"
+            + "** MEMINFO in pid 456 [com.android.phone] **\n"
+            + " Unreachable memory\n"
+            + "  0 bytes in 0 unreachable allocations\n"
+            + "** MEMINFO in pid 789 [com.android.systemui] **\n"
+            + " Unreachable memory\n"
+            + "  8192 bytes in 2 unreachable allocations\n";
+
+    /** Test that the receiver spools the dump and parses it across chunk boundaries. */
+    @Test
+    public void testReceiver() throws Exception {
+        File file = FileUtil.createTempFile("unreachable", ".txt");
+        try {
+            UnreachableMemoryReceiver receiver = new UnreachableMemoryReceiver(file);
+            byte[] data = DUMP.getBytes();
+            for (int i = 0; i < data.length; i += 5) {
+                receiver.addOutput(data, i, Math.min(5, data.length - i));
+            }
+            receiver.close();
+            assertEquals(DUMP, FileUtil.readStringFromFile(file));
+            assertEquals(3, receiver.getUnreachableBytes().size());
+            assertEquals(2048L, receiver.getUnreachableBytes().get("system (123)").longValue());
+            assertEquals("com.android.systemui (789): 8192 bytes unreachable\n"
+                    + "system (123): 2048 bytes unreachable\n", receiver.getSummary(5));
+            assertEquals("com.android.systemui (789): 8192 bytes unreachable\n",
+                    receiver.getSummary(1));
+        } finally {
+            FileUtil.deleteFile(file);
+        }
+    }
+
+    /** Test that the dump and its summary are logged. */
+    @Test
+    public void testTearDown() throws Exception {
+        NativeLeakCollector collector = new NativeLeakCollector();
+        new OptionSetter(collector).setOptionValue("additional-proc", "netd");
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        ITestLogger logger = EasyMock.createMock(ITestLogger.class);
+        collector.setTestLogger(logger);
+        device.executeShellCommand(EasyMock.eq("dumpsys -t 300 meminfo --unreachable -a"),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.anyLong(),
+                EasyMock.eq(TimeUnit.MILLISECONDS), EasyMock.eq(1));
+        EasyMock.expectLastCall().andAnswer(new OutputAnswer(DUMP));
+        device.executeShellCommand(EasyMock.eq("dumpsys -t 60 netd --unreachable"),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.anyLong(),
+                EasyMock.eq(TimeUnit.MILLISECONDS), EasyMock.eq(1));
+        EasyMock.expectLastCall().andAnswer(
+                new OutputAnswer(" 4096 bytes in 1 unreachable allocations\n"));
+        logger.testLog(EasyMock.eq("unreachable-meminfo"), EasyMock.eq(LogDataType.TEXT),
+                EasyMock.<InputStreamSource>anyObject());
+        logger.testLog(EasyMock.eq("unreachable-meminfo-summary"), EasyMock.eq(LogDataType.TEXT),
+                EasyMock.<InputStreamSource>anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                InputStreamSource source = (InputStreamSource) EasyMock.getCurrentArguments()[2];
+                String summary = StreamUtil.getStringFromSource(source);
+                assertTrue(summary.startsWith("com.android.systemui (789): 8192"));
+                assertTrue(summary.contains("netd: 4096 bytes unreachable"));
+                return null;
+            }
+        });
+        EasyMock.replay(device, logger);
+        collector.tearDown(device, null, null);
+        EasyMock.verify(device, logger);
+    }
+
+    /** Answer writing some output to the receiver of a shell command. */
+    private static class OutputAnswer implements IAnswer<Object> {
+        private final String mOutput;
+
+        OutputAnswer(String output) {
+            mOutput = output;
+        }
+
+        @Override
+        public Object answer() throws Throwable {
+            IShellOutputReceiver receiver =
+                    (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+            byte[] data = mOutput.getBytes();
+            receiver.addOutput(data, 0, data.length);
+            receiver.flush();
+            return null;
+        }
+    }
+}
@@ -19,8 +19,10 @@ import com.android.ddmlib.IDevice;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.build.ISdkBuildInfo;
 import com.android.tradefed.command.remote.DeviceDescriptor;
+import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.device.DeviceAllocationState;
 import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.EmulatorPool;
 import com.android.tradefed.device.IDeviceManager;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.TestDeviceState;
@@ -32,6 +34,7 @@ import com.android.tradefed.util.IRunUtil;
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 
 import java.io.File;
 import java.util.List;
@@ -50,6 +53,7 @@ public class SdkAvdPreparerTest extends TestCase {
     private ITestDevice mMockDevice;
     private IDevice mMockIDevice;
     private File mParentFolder;
+    private EmulatorPool mPool;
 
     /**
      * {@inheritDoc}
@@ -59,11 +63,17 @@ public class SdkAvdPreparerTest extends TestCase {
         mMockRunUtil = EasyMock.createMock(IRunUtil.class);
         mMockDeviceManager = EasyMock.createMock(IDeviceManager.class);
         mParentFolder = FileUtil.createTempDir("sdk-avd-preparer");
+        mPool = new EmulatorPool();
         mPreparer = new SdkAvdPreparer(mMockRunUtil, mMockDeviceManager) {
             @Override
             File createParentSdkHome() throws java.io.IOException {
                 return mParentFolder;
             }
+
+            @Override
+            EmulatorPool getEmulatorPool() {
+                return mPool;
+            }
         };
         mMockBuildInfo = EasyMock.createMock(ISdkBuildInfo.class);
         mMockDevice = EasyMock.createMock(ITestDevice.class);
@@ -123,10 +133,118 @@ public class SdkAvdPreparerTest extends TestCase {
         EasyMock.expectLastCall().times(3);
         // expect an avd name == target name
         EasyMock.expect(mMockIDevice.getAvdName()).andReturn("target");
+        mMockBuildInfo.addBuildAttribute(EasyMock.eq(SdkAvdPreparer.BOOT_TIME_ATTRIBUTE),
+                (String) EasyMock.anyObject());
+
+        replayMocks();
+        mPreparer.setUp(mMockDevice, mMockBuildInfo);
+        verifyMocks();
+        assertEquals(1, mPool.getBootLatencies().size());
+        assertTrue(mPool.getSerials().isEmpty());
+    }
+
+    /**
+     * Test that a booted emulator is snapshotted and kept in the pool when pooling is enabled,
+     * along with its sdk home.
+     */
+    @SuppressWarnings("unchecked")
+    public void testSetUp_pooled() throws Exception {
+        new OptionSetter(mPreparer).setOptionValue("emulator-pool-size", "1");
+        EasyMock.expect(mMockBuildInfo.getBuildId()).andStubReturn("1");
+        mMockRunUtil.setEnvVariable(EasyMock.eq("ANDROID_SDK_HOME"), (String)EasyMock.anyObject());
+        mMockRunUtil.setEnvVariable(EasyMock.eq("ANDROID_SDK_ROOT"), (String)EasyMock.anyObject());
+        setGetTargetsResponse("target");
+        setCreateAvdResponse("target");
+        EasyMock.expect(mMockDevice.getDeviceState()).andReturn(TestDeviceState.NOT_AVAILABLE);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andReturn("emulator-5554").anyTimes();
+        EasyMock.expect(mMockIDevice.isEmulator()).andReturn(true);
+        mMockDeviceManager.launchEmulator(EasyMock.eq(mMockDevice), EasyMock.anyLong(),
+                EasyMock.eq(mMockRunUtil), (List<String>)EasyMock.anyObject());
+        EasyMock.expect(mMockDevice.executeShellCommand((String) EasyMock.anyObject()))
+                .andReturn("").times(3);
+        mMockRunUtil.sleep(EasyMock.anyLong());
+        EasyMock.expectLastCall().times(3);
+        EasyMock.expect(mMockIDevice.getAvdName()).andReturn("target");
+        mMockBuildInfo.addBuildAttribute(EasyMock.eq(SdkAvdPreparer.BOOT_TIME_ATTRIBUTE),
+                (String) EasyMock.anyObject());
+        EasyMock.expect(mMockDevice.executeAdbCommand("emu", "avd", "snapshot", "save",
+                SdkAvdPreparer.POOL_SNAPSHOT)).andReturn("OK");
+
+        replayMocks();
+        mPreparer.setUp(mMockDevice, mMockBuildInfo);
+        mPreparer.cleanUp(mMockBuildInfo, null);
+        verifyMocks();
+        assertEquals(mPreparer.getPoolConfig(mMockBuildInfo), mPool.getConfig("emulator-5554"));
+        // the avd is kept for the pooled emulator
+        assertEquals(1, mParentFolder.listFiles().length);
+        mPool.remove("emulator-5554");
+        assertEquals(0, mParentFolder.listFiles().length);
+    }
+
+    /**
+     * Test that a pooled emulator with the same avd configuration is reset from its snapshot
+     * instead of launching a new emulator.
+     */
+    public void testSetUp_resetPooled() throws Exception {
+        new OptionSetter(mPreparer).setOptionValue("emulator-pool-size", "1");
+        EasyMock.expect(mMockBuildInfo.getBuildId()).andStubReturn("1");
+        EasyMock.expect(mMockDevice.getSerialNumber()).andReturn("emulator-5554").anyTimes();
+        EasyMock.expect(mMockDevice.getDeviceState()).andReturn(TestDeviceState.ONLINE);
+        EasyMock.expect(mMockDevice.executeAdbCommand("emu", "avd", "snapshot", "load",
+                SdkAvdPreparer.POOL_SNAPSHOT)).andReturn("OK");
+        mMockDevice.waitForDeviceAvailable(EasyMock.anyLong());
+        mMockBuildInfo.addBuildAttribute(EasyMock.eq(SdkAvdPreparer.RESET_TIME_ATTRIBUTE),
+                (String) EasyMock.anyObject());
+
+        replayMocks();
+        mPool.add("emulator-5554", mPreparer.getPoolConfig(mMockBuildInfo),
+                SdkAvdPreparer.POOL_SNAPSHOT, null, 1);
+        mPreparer.setUp(mMockDevice, mMockBuildInfo);
+        // no avd is created nor emulator launched
+        EasyMock.verify(mMockDeviceManager, mMockBuildInfo, mMockDevice, mMockIDevice);
+        assertEquals(1, mPool.getResetLatencies().size());
+        assertTrue(mPool.contains("emulator-5554"));
+    }
+
+    /**
+     * Test that a pooled emulator is killed and removed from the pool, along with its sdk home,
+     * when pooling is disabled.
+     */
+    @SuppressWarnings("unchecked")
+    public void testSetUp_poolDisabled() throws Exception {
+        File sdkHome = FileUtil.createTempDir("pooled", mParentFolder);
+        mMockRunUtil.setEnvVariable(EasyMock.eq("ANDROID_SDK_HOME"), (String)EasyMock.anyObject());
+        mMockRunUtil.setEnvVariable(EasyMock.eq("ANDROID_SDK_ROOT"), (String)EasyMock.anyObject());
+        setGetTargetsResponse("target");
+        setCreateAvdResponse("target");
+        mMockDeviceManager.killEmulator(EasyMock.eq(mMockDevice));
+        // the device manager forgets the emulator once killed
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                mPool.remove("emulator-5554");
+                return null;
+            }
+        });
+        EasyMock.expect(mMockDevice.getDeviceState()).andReturn(TestDeviceState.NOT_AVAILABLE);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andReturn("emulator-5554").anyTimes();
+        EasyMock.expect(mMockIDevice.isEmulator()).andReturn(true);
+        mMockDeviceManager.launchEmulator(EasyMock.eq(mMockDevice), EasyMock.anyLong(),
+                EasyMock.eq(mMockRunUtil), (List<String>)EasyMock.anyObject());
+        EasyMock.expect(mMockDevice.executeShellCommand((String) EasyMock.anyObject()))
+                .andReturn("").times(3);
+        mMockRunUtil.sleep(EasyMock.anyLong());
+        EasyMock.expectLastCall().times(3);
+        EasyMock.expect(mMockIDevice.getAvdName()).andReturn("target");
+        mMockBuildInfo.addBuildAttribute(EasyMock.eq(SdkAvdPreparer.BOOT_TIME_ATTRIBUTE),
+                (String) EasyMock.anyObject());
 
         replayMocks();
+        mPool.add("emulator-5554", "config", SdkAvdPreparer.POOL_SNAPSHOT, sdkHome, 1);
         mPreparer.setUp(mMockDevice, mMockBuildInfo);
         verifyMocks();
+        assertFalse(mPool.contains("emulator-5554"));
+        assertFalse(sdkHome.exists());
     }
 
     /**
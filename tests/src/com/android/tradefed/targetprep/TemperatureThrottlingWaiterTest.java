@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.targetprep;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.config.OptionSetter;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.timeseries.DeviceConditionMonitor;
+import com.android.tradefed.device.timeseries.DeviceTimeSeriesCollector;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.easymock.IExpectationSetters;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link TemperatureThrottlingWaiter}. */
+@RunWith(JUnit4.class)
+public class TemperatureThrottlingWaiterTest {
+
+    private static final String TEMPERATURE_FILE = "/sys/class/hwmon/hwmon1/device/msm_therm";
+
+    private DeviceTimeSeriesCollector mCollector;
+    private TemperatureThrottlingWaiter mWaiter;
+    private ITestDevice mMockDevice;
+
+    @Before
+    public void setUp() throws Exception {
+        mCollector = new DeviceTimeSeriesCollector(1);
+        final DeviceConditionMonitor monitor = new DeviceConditionMonitor(mCollector);
+        mWaiter = new TemperatureThrottlingWaiter() {
+            @Override
+            protected DeviceConditionMonitor getConditionMonitor() {
+                return monitor;
+            }
+        };
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("SERIAL");
+    }
+
+    @After
+    public void tearDown() {
+        mCollector.shutdown();
+    }
+
+    /** Test that nothing is done when no temperature file is set. */
+    @Test
+    public void testSetUp_noTemperatureFile() throws Exception {
+        EasyMock.replay(mMockDevice);
+        mWaiter.setUp(mMockDevice, null);
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test that the wait ends once the device cooled down to the target temperature. */
+    @Test
+    public void testSetUp_cooledDown() throws Exception {
+        OptionSetter setter = new OptionSetter(mWaiter);
+        setter.setOptionValue("device-temperature-file-path", TEMPERATURE_FILE);
+        setter.setOptionValue("poll-interval", "1");
+        setter.setOptionValue("post-idle-wait", "0");
+        expectTemperature("Result:35 Raw:7f6f").times(2);
+        expectTemperature("Result:30 Raw:7f6f").anyTimes();
+        EasyMock.replay(mMockDevice);
+        mWaiter.setUp(mMockDevice, null);
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test that the preparer aborts when the device is still too hot after the max wait. */
+    @Test
+    public void testSetUp_abortOnTimeout() throws Exception {
+        OptionSetter setter = new OptionSetter(mWaiter);
+        setter.setOptionValue("device-temperature-file-path", TEMPERATURE_FILE);
+        setter.setOptionValue("max-wait", "1");
+        setter.setOptionValue("abort-on-timeout", "true");
+        expectTemperature("Result:35 Raw:7f6f").atLeastOnce();
+        EasyMock.expect(mMockDevice.getDeviceDescriptor()).andReturn(null);
+        EasyMock.replay(mMockDevice);
+        try {
+            mWaiter.setUp(mMockDevice, null);
+            fail("TargetSetupError not thrown");
+        } catch (TargetSetupError e) {
+            // expected
+        }
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test reading the temperature file. */
+    @Test
+    public void testGetDeviceTemperature() throws Exception {
+        expectTemperature("Result:28 Raw:7f6f");
+        expectTemperature(String.format("cat: %s: No such file or directory", TEMPERATURE_FILE));
+        EasyMock.expect(mMockDevice.getDeviceDescriptor()).andReturn(null);
+        EasyMock.replay(mMockDevice);
+        assertEquals(28, mWaiter.getDeviceTemperature(mMockDevice, TEMPERATURE_FILE));
+        try {
+            mWaiter.getDeviceTemperature(mMockDevice, TEMPERATURE_FILE);
+            fail("TargetSetupError not thrown");
+        } catch (TargetSetupError e) {
+            // expected
+        }
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Expect the temperature file to be read, printing the given output. */
+    private IExpectationSetters<Object> expectTemperature(String output) throws Exception {
+        mMockDevice.executeShellCommand(EasyMock.eq("cat " + TEMPERATURE_FILE),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.anyLong(),
+                EasyMock.eq(TimeUnit.MILLISECONDS), EasyMock.eq(0));
+        return EasyMock.expectLastCall().andAnswer(new ShellOutputAnswer(output));
+    }
+
+    /** Prints an output to the receiver of a shell command. */
+    private static class ShellOutputAnswer implements IAnswer<Object> {
+        private final byte[] mOutput;
+
+        ShellOutputAnswer(String output) {
+            mOutput = output.getBytes();
+        }
+
+        @Override
+        public Object answer() {
+            IShellOutputReceiver receiver =
+                    (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+            receiver.addOutput(mOutput, 0, mOutput.length);
+            receiver.flush();
+            return null;
+        }
+    }
+}
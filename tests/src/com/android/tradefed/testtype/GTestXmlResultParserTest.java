@@ -25,6 +25,7 @@ import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -272,4 +273,35 @@ public class GTestXmlResultParserTest extends TestCase {
             FileUtil.deleteFile(contents);
         }
     }
+
+    /**
+     * Tests that a stream cut short in the middle of a test reports the tests read so far and
+     * ends the test in progress.
+     */
+    @SuppressWarnings("unchecked")
+    public void testParseStream_truncated() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<testsuites tests=\"3\" time=\"0.003\" name=\"AllTests\">\n"
+                + "  <testsuite name=\"FooTest\" tests=\"3\">\n"
+                + "    <testcase name=\"test1\" status=\"run\" time=\"0.001\" "
+                + "classname=\"FooTest\" />\n"
+                + "    <testcase name=\"test2\" status=\"run\" time=\"0.001\" "
+                + "classname=\"FooTest\">\n";
+        TestIdentifier test1 = new TestIdentifier("test1", "FooTest");
+        TestIdentifier test2 = new TestIdentifier("test2", "FooTest");
+        ITestRunListener mockRunListener = EasyMock.createStrictMock(ITestRunListener.class);
+        mockRunListener.testRunStarted(TEST_MODULE_NAME, 3);
+        mockRunListener.testStarted(test1);
+        mockRunListener.testEnded(EasyMock.eq(test1), (Map<String, String>)EasyMock.anyObject());
+        mockRunListener.testStarted(test2);
+        mockRunListener.testFailed(EasyMock.eq(test2), EasyMock.contains("incomplete"));
+        mockRunListener.testEnded(EasyMock.eq(test2), (Map<String, String>)EasyMock.anyObject());
+        mockRunListener.testRunFailed("Test run incomplete. Expected 3 tests, received 2");
+        mockRunListener.testRunEnded(EasyMock.eq(3L), (Map<String, String>) EasyMock.anyObject());
+        EasyMock.replay(mockRunListener);
+        GTestXmlResultParser resultParser =
+                new GTestXmlResultParser(TEST_MODULE_NAME, mockRunListener);
+        resultParser.parseResult(new ByteArrayInputStream(xml.getBytes()), null);
+        EasyMock.verify(mockRunListener);
+    }
 }
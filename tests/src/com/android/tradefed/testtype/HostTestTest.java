@@ -652,6 +652,67 @@ public class HostTestTest extends TestCase {
         EasyMock.verify(mListener);
     }
 
+    /**
+     * Test for {@link HostTest#run(ITestInvocationListener)}, for multiple test classes run in
+     * parallel: the test runs are still reported one after the other, in the class order.
+     */
+    public void testRun_parallelClasses() throws Exception {
+        ITestInvocationListener listener = EasyMock.createStrictMock(ITestInvocationListener.class);
+        OptionSetter setter = new OptionSetter(mHostTest);
+        setter.setOptionValue("class", SuccessTestCase.class.getName());
+        setter.setOptionValue("class", SuccessDeviceTest.class.getName());
+        setter.setOptionValue("class", AnotherTestCase.class.getName());
+        setter.setOptionValue("parallel-policy", "HOST_ONLY");
+        setter.setOptionValue("parallel-threads", "2");
+        TestIdentifier test1 = new TestIdentifier(SuccessTestCase.class.getName(), "testPass");
+        TestIdentifier test2 = new TestIdentifier(SuccessTestCase.class.getName(), "testPass2");
+        TestIdentifier test3 = new TestIdentifier(SuccessDeviceTest.class.getName(), "testPass");
+        TestIdentifier test4 = new TestIdentifier(AnotherTestCase.class.getName(), "testPass3");
+        TestIdentifier test5 = new TestIdentifier(AnotherTestCase.class.getName(), "testPass4");
+        // The order of the runs is checked, not the order of the tests within a run.
+        listener.testRunStarted(SuccessTestCase.class.getName(), 2);
+        EasyMock.checkOrder(listener, false);
+        listener.testStarted(EasyMock.eq(test1));
+        listener.testEnded(EasyMock.eq(test1), (Map<String, String>)EasyMock.anyObject());
+        listener.testStarted(EasyMock.eq(test2));
+        listener.testEnded(EasyMock.eq(test2), (Map<String, String>)EasyMock.anyObject());
+        EasyMock.checkOrder(listener, true);
+        listener.testRunEnded(EasyMock.anyLong(), (Map<String, String>)EasyMock.anyObject());
+        listener.testRunStarted(SuccessDeviceTest.class.getName(), 1);
+        listener.testStarted(EasyMock.eq(test3));
+        listener.testEnded(EasyMock.eq(test3), (Map<String, String>)EasyMock.anyObject());
+        listener.testRunEnded(EasyMock.anyLong(), (Map<String, String>)EasyMock.anyObject());
+        listener.testRunStarted(AnotherTestCase.class.getName(), 2);
+        EasyMock.checkOrder(listener, false);
+        listener.testStarted(EasyMock.eq(test4));
+        listener.testEnded(EasyMock.eq(test4), (Map<String, String>)EasyMock.anyObject());
+        listener.testStarted(EasyMock.eq(test5));
+        listener.testEnded(EasyMock.eq(test5), (Map<String, String>)EasyMock.anyObject());
+        EasyMock.checkOrder(listener, true);
+        listener.testRunEnded(EasyMock.anyLong(), (Map<String, String>)EasyMock.anyObject());
+        EasyMock.replay(listener);
+        mHostTest.run(listener);
+        EasyMock.verify(listener);
+    }
+
+    /**
+     * Test for {@link HostTest#canRunInParallel(Class)} for the different parallel policies.
+     */
+    public void testCanRunInParallel() throws Exception {
+        assertFalse(mHostTest.canRunInParallel(SuccessTestCase.class));
+        OptionSetter setter = new OptionSetter(mHostTest);
+        setter.setOptionValue("parallel-policy", "HOST_ONLY");
+        assertTrue(mHostTest.canRunInParallel(SuccessTestCase.class));
+        assertTrue(mHostTest.canRunInParallel(Junit4RegularClass.class));
+        assertFalse(mHostTest.canRunInParallel(Junit4TestClass.class));
+        assertFalse(mHostTest.canRunInParallel(SuccessDeviceTest.class));
+        assertFalse(mHostTest.canRunInParallel(Junit4TestClassWithIgnore.class));
+        assertFalse(mHostTest.canRunInParallel(SuccessTestSuite.class));
+        setter.setOptionValue("parallel-policy", "ALL");
+        assertTrue(mHostTest.canRunInParallel(SuccessDeviceTest.class));
+        assertTrue(mHostTest.canRunInParallel(SuccessTestSuite.class));
+    }
+
     /**
      * Test for {@link HostTest#run(ITestInvocationListener)},
      * for multiple test classes with a method name.
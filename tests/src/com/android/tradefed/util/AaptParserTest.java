@@ -139,4 +139,20 @@ public class AaptParserTest extends TestCase {
         assertEquals("arm64-v8a", p.getNativeCode().get(0));
         assertEquals("armeabi-v7a", p.getNativeCode().get(1));
     }
+
+    public void testParseSplitName() {
+        AaptParser p = new AaptParser();
+        p.parse("package: name='com.android.foo' versionCode='13' versionName='' "
+                + "split='config.xxhdpi' platformBuildVersionName=''\n"
+                + "sdkVersion:'21'\n");
+        assertEquals("com.android.foo", p.getPackageName());
+        assertEquals("config.xxhdpi", p.getSplitName());
+    }
+
+    public void testParseSplitName_fullApk() {
+        AaptParser p = new AaptParser();
+        p.parse("package: name='com.android.foo' versionCode='13' versionName='2.3'\n"
+                + "sdkVersion:'5'\n");
+        assertNull(p.getSplitName());
+    }
 }
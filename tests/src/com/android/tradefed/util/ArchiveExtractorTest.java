@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/** Unit tests for {@link ArchiveExtractor}. */
+@RunWith(JUnit4.class)
+public class ArchiveExtractorTest {
+
+    private static final String TAR_GZ_RESOURCE_PATH = "/testdata/LOG.tar.gz";
+
+    private File mWorkDir;
+    private File mZip;
+
+    @Before
+    public void setUp() throws IOException {
+        mWorkDir = FileUtil.createTempDir("archive-extractor-test");
+        File content = new File(mWorkDir, "content");
+        File subDir = new File(content, "sub");
+        subDir.mkdirs();
+        for (int i = 0; i < 10; i++) {
+            FileUtil.writeToFile("file" + i, new File(subDir, "file" + i + ".txt"));
+        }
+        FileUtil.writeToFile("apk", new File(content, "Foo.apk"));
+        mZip = new File(mWorkDir, "content.zip");
+        ZipUtil.createZip(content, mZip);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mWorkDir);
+    }
+
+    /** Test extracting a zip on several threads. */
+    @Test
+    public void testExtractZip_parallel() throws Exception {
+        File dest = new File(mWorkDir, "dest");
+        List<File> extracted = new ArchiveExtractor(4).extractZip(mZip, dest);
+        for (int i = 0; i < 10; i++) {
+            File file = new File(dest, "content/sub/file" + i + ".txt");
+            assertTrue(extracted.contains(file));
+            assertEquals("file" + i, FileUtil.readStringFromFile(file));
+        }
+        assertEquals("apk", FileUtil.readStringFromFile(new File(dest, "content/Foo.apk")));
+    }
+
+    /** Test that only the entries accepted by the filter are extracted. */
+    @Test
+    public void testExtractZip_filter() throws Exception {
+        File dest = new File(mWorkDir, "dest");
+        List<File> extracted = new ArchiveExtractor(2).setFilter(
+                new ArchiveExtractor.IEntryFilter() {
+                    @Override
+                    public boolean accept(String entryName) {
+                        return entryName.endsWith(".apk");
+                    }
+                }).extractZip(mZip, dest);
+        assertEquals(1, extracted.size());
+        assertTrue(new File(dest, "content/Foo.apk").isFile());
+        assertFalse(new File(dest, "content/sub").exists());
+    }
+
+    /** Test that a pre-sized file is truncated to the data written. */
+    @Test
+    public void testWriteEntry() throws Exception {
+        File dest = new File(mWorkDir, "entry");
+        FileUtil.writeToFile("a much longer previous content", dest);
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        InputStream in = new ByteArrayInputStream("new content".getBytes());
+        assertEquals(11, ArchiveExtractor.writeEntry(in, dest, -1, buffer));
+        assertEquals("new content", FileUtil.readStringFromFile(dest));
+        in = new ByteArrayInputStream("short".getBytes());
+        assertEquals(5, ArchiveExtractor.writeEntry(in, dest, 100, buffer));
+        assertEquals(5, dest.length());
+    }
+
+    /** Test extracting a tar with a filter. */
+    @Test
+    public void testExtractTar_filter() throws Exception {
+        File tarGz = new File(mWorkDir, "log.tar.gz");
+        FileUtil.writeToFile(getClass().getResourceAsStream(TAR_GZ_RESOURCE_PATH), tarGz);
+        File tar = TarUtil.unGzip(tarGz, mWorkDir);
+        File dest = new File(mWorkDir, "dest");
+        List<File> extracted = new ArchiveExtractor().setFilter(
+                new ArchiveExtractor.IEntryFilter() {
+                    @Override
+                    public boolean accept(String entryName) {
+                        return entryName.endsWith("TEST2.log");
+                    }
+                }).extractTar(tar, dest);
+        assertEquals(1, extracted.size());
+        assertTrue(extracted.get(0).isFile());
+        assertEquals(2, new ArchiveExtractor().extractTar(tar, dest).size());
+    }
+}
@@ -20,7 +20,11 @@ import com.android.tradefed.util.ClassPathScanner.IClassPathFilter;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.util.Set;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
 
 /**
  * Unit tests for {@link ClassPathScanner}
@@ -36,4 +40,73 @@ public class ClassPathScannerTest extends TestCase {
         Set<String> classEntries = cpScanner.getClassPathEntries(new ClassNameFilter());
         assertTrue(classEntries.contains(this.getClass().getName()));
     }
+
+    /**
+     * Test {@link ClassPathScanner#getEntriesFromDir(File, String, IClassPathFilter)} only returns
+     * the entries under the prefix.
+     */
+    public void testGetEntriesFromDir_prefix() throws Exception {
+        File root = FileUtil.createTempDir("cp_scanner");
+        try {
+            File configDir = new File(root, "config/suite");
+            FileUtil.mkdirsRWX(configDir);
+            FileUtil.writeToFile("", new File(configDir, "a.xml"));
+            FileUtil.writeToFile("", new File(root, "config/b.xml"));
+            ClassPathScanner cpScanner = new ClassPathScanner();
+            Set<String> entries = cpScanner.getEntriesFromDir(root, "config/su", new AllFilter());
+            assertEquals(1, entries.size());
+            assertTrue(entries.contains("config/suite/a.xml"));
+            assertEquals(2, cpScanner.getEntriesFromDir(root, new AllFilter()).size());
+            assertTrue(cpScanner.getEntriesFromDir(root, "missing/", new AllFilter()).isEmpty());
+        } finally {
+            FileUtil.recursiveDelete(root);
+        }
+    }
+
+    /**
+     * Test {@link ClassPathScanner#getEntriesFromJar(File, String, IClassPathFilter)} only
+     * returns the entries under the prefix, and that a modified jar is indexed again.
+     */
+    public void testGetEntriesFromJar_prefix() throws Exception {
+        File jar = FileUtil.createTempFile("cp_scanner", ".jar");
+        try {
+            writeJar(jar, "config/suite/a.xml", "config/b.xml", "com/Foo.class");
+            ClassPathScanner cpScanner = new ClassPathScanner();
+            Set<String> entries = cpScanner.getEntriesFromJar(jar, "config/", new AllFilter());
+            assertEquals(2, entries.size());
+            assertTrue(entries.contains("config/suite/a.xml"));
+            assertTrue(entries.contains("config/b.xml"));
+
+            writeJar(jar, "config/c.xml");
+            jar.setLastModified(jar.lastModified() + 2000);
+            entries = cpScanner.getEntriesFromJar(jar, "config/", new AllFilter());
+            assertEquals(1, entries.size());
+            assertTrue(entries.contains("config/c.xml"));
+        } finally {
+            FileUtil.deleteFile(jar);
+            ClassPathScanner.clearJarIndexes();
+        }
+    }
+
+    private void writeJar(File jar, String... entryNames) throws Exception {
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+            for (String name : entryNames) {
+                out.putNextEntry(new ZipEntry(name));
+                out.closeEntry();
+            }
+        }
+    }
+
+    /** A {@link IClassPathFilter} accepting all the entries. */
+    private static class AllFilter implements IClassPathFilter {
+        @Override
+        public boolean accept(String pathName) {
+            return true;
+        }
+
+        @Override
+        public String transform(String pathName) {
+            return pathName;
+        }
+    }
 }
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Predicate;
+
+/** Unit tests for {@link CompiledTestFilter}. */
+@RunWith(JUnit4.class)
+public class CompiledTestFilterTest {
+
+    @Retention(RetentionPolicy.RUNTIME)
+    public @interface MyAnnotation1 {}
+
+    @Retention(RetentionPolicy.RUNTIME)
+    public @interface MyAnnotation2 {}
+
+    @MyAnnotation1
+    public static class AnnotatedClass {
+        @MyAnnotation2
+        public void testBoth() {}
+
+        public void testOne() {}
+    }
+
+    private static final List<String> EMPTY = Collections.emptyList();
+
+    /** Test matching exclude filters on package, class and method names. */
+    @Test
+    public void testIsExcludedByName() {
+        CompiledTestFilter filter = new CompiledTestFilter(EMPTY,
+                Arrays.asList("com.pkg", "com.other.Class", "com.third.Class#testMethod"),
+                EMPTY, EMPTY);
+        assertTrue(filter.isExcludedByName("com.pkg", "com.pkg.Foo", "testA"));
+        assertTrue(filter.isExcludedByName("com.other", "com.other.Class", "testA"));
+        assertTrue(filter.isExcludedByName("com.third", "com.third.Class", "testMethod"));
+        assertFalse(filter.isExcludedByName("com.third", "com.third.Class", "testOther"));
+        // Packages only match exactly, not their sub-packages
+        assertFalse(filter.isExcludedByName("com.pkg.sub", "com.pkg.sub.Foo", "testA"));
+    }
+
+    /** Test matching include filters, and that no include filter includes everything. */
+    @Test
+    public void testIsIncludedByName() {
+        CompiledTestFilter filter = new CompiledTestFilter(
+                Arrays.asList("com.pkg.Class#testMethod"), EMPTY, EMPTY, EMPTY);
+        assertTrue(filter.isIncludedByName("com.pkg", "com.pkg.Class", "testMethod"));
+        assertFalse(filter.isIncludedByName("com.pkg", "com.pkg.Class", "testOther"));
+        assertFalse(filter.isIncludedByName("com.pkg", "com.pkg.Other", "testMethod"));
+        filter = new CompiledTestFilter(EMPTY, EMPTY, EMPTY, EMPTY);
+        assertTrue(filter.isIncludedByName("com.pkg", "com.pkg.Class", "testMethod"));
+    }
+
+    /** Test that include annotations must all be present. */
+    @Test
+    public void testIncludeAnnotations() throws Exception {
+        CompiledTestFilter filter = new CompiledTestFilter(EMPTY, EMPTY,
+                Arrays.asList(MyAnnotation1.class.getName(), MyAnnotation2.class.getName()),
+                EMPTY);
+        assertTrue(filter.hasIncludeAnnotations());
+        assertFalse(filter.isIncluded(filter.getAnnotationInfo(AnnotatedClass.class)));
+        assertFalse(filter.isIncluded(
+                filter.getAnnotationInfo(AnnotatedClass.class.getMethod("testBoth"))));
+        assertFalse(filter.getAnnotationInfo(AnnotatedClass.class).mExcluded);
+    }
+
+    /** Test that more than 64 include annotations are supported. */
+    @Test
+    public void testManyIncludeAnnotations() throws Exception {
+        List<String> annotations = new ArrayList<>();
+        for (int i = 0; i < 70; i++) {
+            annotations.add("com.fake.Annotation" + i);
+        }
+        annotations.add(MyAnnotation1.class.getName());
+        CompiledTestFilter filter = new CompiledTestFilter(EMPTY, EMPTY, annotations, EMPTY);
+        assertFalse(filter.isIncluded(filter.getAnnotationInfo(AnnotatedClass.class)));
+        filter = new CompiledTestFilter(EMPTY, EMPTY,
+                Arrays.asList(MyAnnotation1.class.getName()), EMPTY);
+        assertTrue(filter.isIncluded(filter.getAnnotationInfo(AnnotatedClass.class)));
+    }
+
+    /** Test that exclude annotations are resolved, and the result memoized. */
+    @Test
+    public void testExcludeAnnotations() throws Exception {
+        CompiledTestFilter filter = new CompiledTestFilter(EMPTY, EMPTY, EMPTY,
+                Arrays.asList(MyAnnotation2.class.getName()));
+        assertTrue(filter.getAnnotationInfo(AnnotatedClass.class.getMethod("testBoth"))
+                .mExcluded);
+        assertFalse(filter.getAnnotationInfo(AnnotatedClass.class.getMethod("testOne"))
+                .mExcluded);
+        assertSame(filter.getAnnotationInfo(AnnotatedClass.class),
+                filter.getAnnotationInfo(AnnotatedClass.class));
+    }
+
+    /** Test the memoized class and package lookups. */
+    @Test
+    public void testLoadClass() throws Exception {
+        CompiledTestFilter filter = new CompiledTestFilter(EMPTY, EMPTY, EMPTY, EMPTY);
+        Class<?> classObj = filter.loadClass(AnnotatedClass.class.getName());
+        assertSame(AnnotatedClass.class, classObj);
+        assertEquals("com.android.tradefed.util", filter.getPackageName(classObj));
+    }
+
+    /** Test matching the annotations of a {@link Description}. */
+    @Test
+    public void testMatchesAnnotations() throws Exception {
+        Description desc = Description.createTestDescription(AnnotatedClass.class, "testBoth",
+                AnnotatedClass.class.getMethod("testBoth").getAnnotations());
+        CompiledTestFilter filter = new CompiledTestFilter(EMPTY, EMPTY,
+                Arrays.asList(MyAnnotation2.class.getName()), EMPTY);
+        assertTrue(filter.matchesAnnotations(desc.getAnnotations()));
+        filter = new CompiledTestFilter(EMPTY, EMPTY,
+                Arrays.asList(MyAnnotation1.class.getName(), MyAnnotation2.class.getName()),
+                EMPTY);
+        assertFalse(filter.matchesAnnotations(desc.getAnnotations()));
+        filter = new CompiledTestFilter(EMPTY, EMPTY, EMPTY,
+                Arrays.asList(MyAnnotation2.class.getName()));
+        assertFalse(filter.matchesAnnotations(desc.getAnnotations()));
+        assertTrue(filter.matchesAnnotations(new HashSet<Annotation>()));
+    }
+
+    /** Test that removing filters through an iterator recompiles the filters. */
+    @Test
+    public void testFilterHelper_iteratorRemove() {
+        TestFilterHelper helper = new TestFilterHelper();
+        helper.addExcludeFilter("com.pkg");
+        assertTrue(helper.getCompiledFilter().isExcludedByName("com.pkg", "com.pkg.Foo", "a"));
+        Iterator<String> it = helper.getExcludeFilters().iterator();
+        it.next();
+        it.remove();
+        assertFalse(helper.getCompiledFilter().isExcludedByName("com.pkg", "com.pkg.Foo", "a"));
+        helper.addExcludeFilter("com.other");
+        assertTrue(helper.getCompiledFilter().isExcludedByName("com.other", "Foo", "a"));
+        helper.getExcludeFilters().removeIf(new Predicate<String>() {
+            @Override
+            public boolean test(String filter) {
+                return filter.startsWith("com.");
+            }
+        });
+        assertFalse(helper.getCompiledFilter().isExcludedByName("com.other", "Foo", "a"));
+    }
+}
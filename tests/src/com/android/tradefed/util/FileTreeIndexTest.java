@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link FileTreeIndex}
+ */
+public class FileTreeIndexTest extends TestCase {
+
+    private File mRootDir;
+    private File mSubDir;
+    private long mCurrentTime;
+    private FileTreeIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRootDir = FileUtil.createTempDir("file_tree_index");
+        mSubDir = new File(mRootDir, "sub");
+        FileUtil.mkdirsRWX(mSubDir);
+        mCurrentTime = System.currentTimeMillis();
+        mIndex = new FileTreeIndex() {
+            @Override
+            long getCurrentTime() {
+                return mCurrentTime;
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mRootDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that files are found recursively and filtered by suffix.
+     */
+    public void testFindFiles() throws Exception {
+        File config = new File(mRootDir, "a.config");
+        File xml = new File(mSubDir, "b.xml");
+        File other = new File(mSubDir, "c.txt");
+        FileUtil.writeToFile("", config);
+        FileUtil.writeToFile("", xml);
+        FileUtil.writeToFile("", other);
+
+        Set<String> files = mIndex.findFiles(mRootDir, ".config", ".xml");
+        assertEquals(2, files.size());
+        assertTrue(files.contains(config.getAbsolutePath()));
+        assertTrue(files.contains(xml.getAbsolutePath()));
+
+        files = mIndex.findFiles(mSubDir);
+        assertEquals(2, files.size());
+        assertTrue(files.contains(other.getAbsolutePath()));
+        assertEquals(2, mIndex.getListingCount());
+    }
+
+    /**
+     * Test that a listing whose directory was not modified is reused, and that a modified
+     * directory is listed again.
+     */
+    public void testFindFiles_revalidate() throws Exception {
+        File config = new File(mSubDir, "a.config");
+        FileUtil.writeToFile("", config);
+        mSubDir.setLastModified(mCurrentTime - 10 * 1000);
+        mCurrentTime += 10 * 1000;
+        assertEquals(1, mIndex.findFiles(mRootDir, ".config").size());
+
+        // a file added without changing the directory time is not seen
+        File added = new File(mSubDir, "b.config");
+        FileUtil.writeToFile("", added);
+        mSubDir.setLastModified(mCurrentTime - 20 * 1000);
+        mCurrentTime += 10 * 1000;
+        assertEquals(1, mIndex.findFiles(mRootDir, ".config").size());
+        // ... but it is once the directory time changes
+        mSubDir.setLastModified(mCurrentTime - 5 * 1000);
+        Set<String> files = mIndex.findFiles(mRootDir, ".config");
+        assertEquals(2, files.size());
+        assertTrue(files.contains(added.getAbsolutePath()));
+    }
+
+    /**
+     * Test that a directory modified right before it was listed is listed again.
+     */
+    public void testFindFiles_racy() throws Exception {
+        mSubDir.setLastModified(mCurrentTime);
+        assertTrue(mIndex.findFiles(mRootDir, ".config").isEmpty());
+        File added = new File(mSubDir, "a.config");
+        FileUtil.writeToFile("", added);
+        mSubDir.setLastModified(mCurrentTime);
+        assertEquals(1, mIndex.findFiles(mRootDir, ".config").size());
+    }
+
+    /**
+     * Test that the listings of removed directories are dropped.
+     */
+    public void testFindFiles_removedDir() throws Exception {
+        FileUtil.writeToFile("", new File(mSubDir, "a.config"));
+        assertEquals(1, mIndex.findFiles(mRootDir, ".config").size());
+        assertEquals(2, mIndex.getListingCount());
+        FileUtil.recursiveDelete(mSubDir);
+        assertTrue(mIndex.findFiles(mRootDir, ".config").isEmpty());
+        assertEquals(1, mIndex.getListingCount());
+        assertTrue(mIndex.findFiles(new File(mRootDir, "missing")).isEmpty());
+    }
+}
@@ -25,8 +25,10 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.Set;
 
@@ -415,4 +417,47 @@ public class FileUtilTest {
             FileUtil.recursiveDelete(illegalRoot);
         }
     }
+
+    /**
+     * Test {@link FileUtil#linkOrCopyFile(File, File)} replaces the destination with the contents
+     * of the original file.
+     */
+    @Test
+    public void testLinkOrCopyFile() throws IOException {
+        File tmpDir = FileUtil.createTempDir("link_file_test");
+        try {
+            File orig = FileUtil.createTempFile("orig", ".txt", tmpDir);
+            FileUtil.writeToFile("contents", orig);
+            File dest = FileUtil.createTempFile("dest", ".txt", tmpDir);
+            FileUtil.writeToFile("previous contents", dest);
+            FileUtil.linkOrCopyFile(orig, dest);
+            assertEquals("contents", FileUtil.readStringFromFile(dest));
+            // the destination remains once the original is deleted
+            FileUtil.deleteFile(orig);
+            assertEquals("contents", FileUtil.readStringFromFile(dest));
+        } finally {
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
+    /**
+     * Test {@link FileUtil#transferFile(File, long, FileChannel)} transfers the file from the
+     * position.
+     */
+    @Test
+    public void testTransferFile() throws IOException {
+        File orig = FileUtil.createTempFile("orig", ".txt");
+        File dest = FileUtil.createTempFile("dest", ".txt");
+        try {
+            FileUtil.writeToFile("0123456789", orig);
+            try (FileOutputStream output = new FileOutputStream(dest)) {
+                assertEquals(6, FileUtil.transferFile(orig, 4, output.getChannel()));
+                assertEquals(0, FileUtil.transferFile(orig, 20, output.getChannel()));
+            }
+            assertEquals("456789", FileUtil.readStringFromFile(dest));
+        } finally {
+            FileUtil.deleteFile(orig);
+            FileUtil.deleteFile(dest);
+        }
+    }
 }
@@ -23,6 +23,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.File;
+import java.util.List;
 import java.util.Map;
 
 /** Unit tests for {@link HprofAllocSiteParser}. */
@@ -104,4 +105,50 @@ public class HprofAllocSiteParserTest {
         assertNotNull(results);
         assertTrue(results.isEmpty());
     }
+
+    /** Test that only the sites with the most allocated bytes are kept. */
+    @Test
+    public void testParse_topSites() throws Exception {
+        mParser = new HprofAllocSiteParser(3);
+        File f = FileUtil.createTempFile("hprof", ".test");
+        Map<String, String> results;
+        try {
+            FileUtil.writeToFile(TEST_STRING, f);
+            results = mParser.parse(f);
+        } finally {
+            FileUtil.deleteFile(f);
+        }
+        assertEquals(3, results.size());
+        assertEquals("12441616", results.get("Rank1"));
+        assertEquals("10509264", results.get("Rank2"));
+        assertEquals("6912816", results.get("Rank4"));
+        List<HprofAllocSiteParser.AllocSite> sites = mParser.getTopSites();
+        assertEquals(3, sites.size());
+        assertEquals(1, sites.get(0).getRank());
+        assertEquals(2, sites.get(1).getRank());
+        assertEquals("HeapChaBuffer", sites.get(1).getClassName());
+        assertEquals(6983280, sites.get(1).getLiveBytes());
+        assertEquals(218943, sites.get(1).getAllocObjects());
+        assertEquals(4, sites.get(2).getRank());
+    }
+
+    /** Test that the default parser reports all the sites. */
+    @Test
+    public void testParse_allSites() throws Exception {
+        StringBuilder report = new StringBuilder("SITES BEGIN\n");
+        for (int i = 1; i <= 150; i++) {
+            report.append(String.format("%5d  0.10%% 10.00%%  %d    1  %d     1 1 byte[]\n",
+                    i, 1000 - i, 1000 - i));
+        }
+        report.append("SITES END");
+        File f = FileUtil.createTempFile("hprof", ".test");
+        try {
+            FileUtil.writeToFile(report.toString(), f);
+            Map<String, String> results = mParser.parse(f);
+            assertEquals(150, results.size());
+            assertEquals("850", results.get("Rank150"));
+        } finally {
+            FileUtil.deleteFile(f);
+        }
+    }
 }
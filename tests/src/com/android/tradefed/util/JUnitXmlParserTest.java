@@ -69,6 +69,31 @@ public class JUnitXmlParserTest extends TestCase {
         assertTrue(result.getStackTrace().contains("java.lang.NullPointerException"));
     }
 
+    /**
+     * Test that a truncated xml reports the results parsed so far and ends the test and run in
+     * progress.
+     */
+    public void testParse_truncated() {
+        String xml = "<?xml version='1.0' encoding='UTF-8' ?>\n"
+                + "<testsuite name=\"suite\" tests=\"2\">\n"
+                + "  <testcase classname=\"PassTest\" name=\"testPass\" />\n"
+                + "  <testcase classname=\"CutTest\" name=\"testCut\">\n";
+        try {
+            mParser.parse(new ByteArrayInputStream(xml.getBytes()));
+            fail("ParseException not thrown");
+        } catch (ParseException e) {
+            // expected
+        }
+        TestRunResult runData = mListener.getCurrentRunResults();
+        assertEquals("suite", runData.getName());
+        assertTrue(runData.isRunFailure());
+        assertTrue(runData.isRunComplete());
+        assertEquals(1, runData.getNumAllFailedTests());
+        TestResult result = runData.getTestResults().get(new TestIdentifier("CutTest", "testCut"));
+        assertNotNull(result);
+        assertTrue(result.getStackTrace().contains("Incomplete xml results"));
+    }
+
     private InputStream extractTestXml(String fileName) {
         return getClass().getResourceAsStream(File.separator + "util" +
                 File.separator + fileName);
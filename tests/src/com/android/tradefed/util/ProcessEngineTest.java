@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogRegistry;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link ProcessEngine}.
+ */
+public class ProcessEngineTest extends TestCase {
+
+    private static final long WAIT_MS = 10 * 1000;
+
+    private ProcessEngine mEngine;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mEngine = new ProcessEngine(1);
+    }
+
+    /**
+     * Test that operations run on shared threads and report their status.
+     */
+    public void testExecute() throws Exception {
+        final Thread[] threads = new Thread[2];
+        final String[] names = new String[2];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            CommandStatus status = mEngine.execute(new IRunUtil.IRunnableResult() {
+                @Override
+                public boolean run() {
+                    threads[index] = Thread.currentThread();
+                    names[index] = Thread.currentThread().getName();
+                    return true;
+                }
+
+                @Override
+                public void cancel() {
+                    // ignore
+                }
+            }, true).get(WAIT_MS, TimeUnit.MILLISECONDS);
+            assertEquals(CommandStatus.SUCCESS, status);
+            assertEquals(RunUtil.RUNNABLE_NOTIFIER_NAME, names[index]);
+            // wait for the thread to be idle
+            long deadline = System.currentTimeMillis() + WAIT_MS;
+            while (threads[index].getState() != Thread.State.TIMED_WAITING
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+        // the idle thread is reused, and gets its name back
+        assertSame(threads[0], threads[1]);
+        assertFalse(RunUtil.RUNNABLE_NOTIFIER_NAME.equals(threads[0].getName()));
+
+        CommandStatus status = mEngine.execute(new IRunUtil.IRunnableResult() {
+            @Override
+            public boolean run() {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public void cancel() {
+                // ignore
+            }
+        }, false).get(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(CommandStatus.EXCEPTION, status);
+    }
+
+    /**
+     * Test that operations run on threads of the engine's own group, but log to the logger of the
+     * caller's group.
+     */
+    public void testExecute_threadGroup() throws Exception {
+        final ThreadGroup invocationGroup = new ThreadGroup("invocation");
+        final ThreadGroup[] groups = new ThreadGroup[2];
+        final CommandStatus[] status = new CommandStatus[1];
+        Thread caller = new Thread(invocationGroup, "caller") {
+            @Override
+            public void run() {
+                try {
+                    status[0] = mEngine.execute(new IRunUtil.IRunnableResult() {
+                        @Override
+                        public boolean run() {
+                            groups[0] = Thread.currentThread().getThreadGroup();
+                            groups[1] = LogRegistry.getLogThreadGroup();
+                            return true;
+                        }
+
+                        @Override
+                        public void cancel() {
+                            // ignore
+                        }
+                    }, true).get(WAIT_MS, TimeUnit.MILLISECONDS);
+                } catch (Exception e) {
+                    status[0] = CommandStatus.EXCEPTION;
+                }
+            }
+        };
+        caller.start();
+        caller.join(WAIT_MS);
+        assertEquals(CommandStatus.SUCCESS, status[0]);
+        assertFalse(invocationGroup.parentOf(groups[0]));
+        assertSame(invocationGroup, groups[1]);
+        // the pooled thread does not count as a thread of the invocation
+        assertEquals(0, invocationGroup.activeCount());
+    }
+
+    /**
+     * Test that streams are still pumped once all the pooled threads are busy.
+     */
+    public void testPump_overflow() throws Exception {
+        PipedOutputStream blocked = new PipedOutputStream();
+        Future<?> blockedPump = mEngine.pump(new PipedInputStream(blocked),
+                new ByteArrayOutputStream(), "blocked");
+        PipedOutputStream source = new PipedOutputStream();
+        ByteArrayOutputStream dest = new ByteArrayOutputStream();
+        Future<?> pump = mEngine.pump(new PipedInputStream(source), dest, "overflow");
+        source.write("output".getBytes(StandardCharsets.UTF_8));
+        source.close();
+        pump.get(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertEquals("output", dest.toString("UTF-8"));
+        assertEquals(1, mEngine.getPumpPoolSize());
+        assertFalse(blockedPump.isDone());
+        blocked.close();
+        blockedPump.get(WAIT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Test that latencies are recorded per executable file name.
+     */
+    public void testRecordLatency() {
+        mEngine.recordLatency("/usr/bin/adb", 10);
+        mEngine.recordLatency("adb", 30);
+        mEngine.recordLatency("fastboot", 5);
+        Map<String, SimpleStats> latencies = mEngine.getLatencies();
+        assertEquals(2, latencies.size());
+        assertEquals(2, latencies.get("adb").size());
+        assertEquals(30.0, latencies.get("adb").max(), 0.0);
+        assertEquals(1, latencies.get("fastboot").size());
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link QuantileSketch}. */
+@RunWith(JUnit4.class)
+public class QuantileSketchTest {
+
+    private static final double ACCURACY = 0.01;
+
+    /** Test that the quantiles are estimated within the relative accuracy. */
+    @Test
+    public void testGetQuantile() {
+        QuantileSketch sketch = new QuantileSketch(ACCURACY, 2048);
+        assertNull(sketch.getQuantile(0.5));
+        for (int i = 10000; i > 0; i--) {
+            sketch.add(i / 10.0);
+        }
+        assertEquals(10000, sketch.getCount());
+        assertEquals(500, sketch.getQuantile(0.5), 500 * ACCURACY);
+        assertEquals(900, sketch.getQuantile(0.9), 900 * ACCURACY);
+        assertEquals(990, sketch.getQuantile(0.99), 990 * ACCURACY);
+        assertEquals(1000, sketch.getQuantile(1), 1000 * ACCURACY);
+        assertEquals(0.1, sketch.getQuantile(0), 0.1 * ACCURACY);
+    }
+
+    /** Test negative and zero values. */
+    @Test
+    public void testGetQuantile_negative() {
+        QuantileSketch sketch = new QuantileSketch(ACCURACY, 2048);
+        for (int i = -50; i <= 50; i++) {
+            sketch.add(i);
+        }
+        assertEquals(-50, sketch.getQuantile(0), 50 * ACCURACY);
+        assertEquals(0, sketch.getQuantile(0.5), 0);
+        assertEquals(40, sketch.getQuantile(0.9), 40 * ACCURACY);
+    }
+
+    /** Test that merging sketches is equivalent to adding all the values to one sketch. */
+    @Test
+    public void testMerge() {
+        QuantileSketch all = new QuantileSketch(ACCURACY, 2048);
+        QuantileSketch first = new QuantileSketch(ACCURACY, 2048);
+        QuantileSketch second = new QuantileSketch(ACCURACY, 2048);
+        for (int i = 1; i <= 1000; i++) {
+            all.add(i);
+            if (i % 2 == 0) {
+                first.add(i);
+            } else {
+                second.add(i * 1000);
+            }
+        }
+        for (int i = 1; i <= 1000; i += 2) {
+            all.add(i * 1000);
+            all.add(-i);
+        }
+        QuantileSketch third = new QuantileSketch(ACCURACY, 2048);
+        for (int i = 1; i <= 1000; i += 2) {
+            third.add(-i);
+        }
+        // the odd values added to "all" are accounted in "second" and "third"
+        for (int i = 1; i <= 1000; i += 2) {
+            first.add(i);
+        }
+        first.merge(second);
+        first.merge(third);
+        assertEquals(all.getCount(), first.getCount());
+        for (double q = 0; q <= 1; q += 0.05) {
+            assertEquals(all.getQuantile(q), first.getQuantile(q), 0);
+        }
+    }
+
+    /** Test that the number of buckets is bounded by collapsing the lowest ones. */
+    @Test
+    public void testMaxBuckets() {
+        QuantileSketch sketch = new QuantileSketch(ACCURACY, 100);
+        for (int i = 1; i <= 100000; i++) {
+            sketch.add(i);
+        }
+        assertEquals(100000, sketch.getCount());
+        assertEquals(99000, sketch.getQuantile(0.99), 99000 * ACCURACY);
+        assertEquals(100000, sketch.getQuantile(1), 100000 * ACCURACY);
+    }
+
+    /** Test that sketches of different accuracies cannot be merged. */
+    @Test
+    public void testMerge_differentAccuracy() {
+        try {
+            new QuantileSketch(0.01, 100).merge(new QuantileSketch(0.02, 100));
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
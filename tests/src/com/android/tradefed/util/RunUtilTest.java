@@ -33,6 +33,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /** Unit tests for {@link RunUtil} */
 public class RunUtilTest extends TestCase {
@@ -127,6 +129,65 @@ public class RunUtilTest extends TestCase {
                 mRunUtil.runTimed(SHORT_TIMEOUT_MS, mockRunnable, true));
     }
 
+    /**
+     * Test that {@link RunUtil#interrupt} wakes up a thread waiting for a long operation, which
+     * is then cancelled.
+     */
+    public void testRunTimed_interrupted() throws Exception {
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        IRunUtil.IRunnableResult runnable = new IRunUtil.IRunnableResult() {
+            @Override
+            public boolean run() throws Exception {
+                return cancelled.await(LONG_TIMEOUT_MS * 60, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public void cancel() {
+                cancelled.countDown();
+            }
+        };
+        final Thread waiter = Thread.currentThread();
+        Thread interrupter = new Thread() {
+            @Override
+            public void run() {
+                RunUtil.getDefault().sleep(SHORT_TIMEOUT_MS);
+                mRunUtil.interrupt(waiter, "interrupted");
+            }
+        };
+        mRunUtil.allowInterrupt(true);
+        long start = System.currentTimeMillis();
+        interrupter.start();
+        try {
+            mRunUtil.runTimed(LONG_TIMEOUT_MS * 60, runnable, true);
+            fail("RunInterruptedException was expected, but not thrown.");
+        } catch (RunInterruptedException e) {
+            assertEquals("interrupted", e.getMessage());
+        } finally {
+            // clear the interrupted state of the test thread
+            Thread.interrupted();
+        }
+        assertTrue(System.currentTimeMillis() - start < LONG_TIMEOUT_MS * 30);
+        assertEquals(0, cancelled.getCount());
+        interrupter.join();
+    }
+
+    /**
+     * Test that the latency of the commands is recorded.
+     */
+    public void testRunTimedCmd_latency() {
+        final ProcessEngine engine = new ProcessEngine(2);
+        RunUtil runUtil = new RunUtil() {
+            @Override
+            ProcessEngine getProcessEngine() {
+                return engine;
+            }
+        };
+        CommandResult result = runUtil.runTimedCmd(LONG_TIMEOUT_MS * 10, "echo", "hello");
+        assertEquals(CommandStatus.SUCCESS, result.getStatus());
+        assertEquals("hello\n", result.getStdout());
+        assertEquals(1, engine.getLatencies().get("echo").size());
+    }
+
     /**
      * Test that {@link RunUtil#runTimedCmd(long, String[])} fails when given a garbage command.
      */
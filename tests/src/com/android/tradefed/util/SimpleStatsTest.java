@@ -103,5 +103,62 @@ public class SimpleStatsTest extends TestCase {
         assertEquals(4, mStats.median(), 0.1);
         assertEquals(1.247219, mStats.stdev(), 0.000001);
     }
-}
 
+    /**
+     * Make sure that quantiles are interpolated between the measurements.
+     */
+    public void testStats_quantile() {
+        for (int i = 10; i >= 0; --i) {
+            mStats.add(i);
+        }
+        assertEquals(0, mStats.quantile(0), 0.000001);
+        assertEquals(9, mStats.quantile(0.9), 0.000001);
+        assertEquals(9.9, mStats.quantile(0.99), 0.000001);
+        assertEquals(10, mStats.quantile(1), 0.000001);
+    }
+
+    /**
+     * Make sure that merging two datasets gives the same results as adding all the measurements to
+     * one of them.
+     */
+    public void testStats_merge() {
+        SimpleStats other = new SimpleStats();
+        for (int i = 1; i <= 10; ++i) {
+            if (i % 3 == 0) {
+                other.add(i);
+            } else {
+                mStats.add(i);
+            }
+        }
+        mStats.merge(other);
+        assertEquals(10, mStats.size());
+        assertEquals(1, mStats.min(), 0.1);
+        assertEquals(10, mStats.max(), 0.1);
+        assertEquals(5.5, mStats.mean(), 0.000001);
+        assertEquals(5.5, mStats.median(), 0.000001);
+        assertEquals(2.872281, mStats.stdev(), 0.000001);
+    }
+
+    /**
+     * Make sure that the measurements are not retained when using a sketch.
+     */
+    public void testStats_sketch() {
+        SimpleStats stats = new SimpleStats(new QuantileSketch());
+        for (int i = 1; i <= 1000; ++i) {
+            stats.add(i);
+        }
+        assertEquals(1000, stats.size());
+        assertEquals(1, stats.min(), 0.1);
+        assertEquals(1000, stats.max(), 0.1);
+        assertEquals(500.5, stats.mean(), 0.000001);
+        assertEquals(288.674990, stats.stdev(), 0.000001);
+        assertEquals(500, stats.median(), 500 * 0.01);
+        assertEquals(990, stats.quantile(0.99), 990 * 0.01);
+        try {
+            stats.getData();
+            fail("UnsupportedOperationException not thrown");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}
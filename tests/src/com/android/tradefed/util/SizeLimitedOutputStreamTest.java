@@ -19,8 +19,10 @@ package com.android.tradefed.util;
 
 import junit.framework.TestCase;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 
 /**
  * Unit tests for {@link SizeLimitedOutputStreamTest}
@@ -59,4 +61,34 @@ public class SizeLimitedOutputStreamTest extends TestCase {
             outStream.delete();
         }
     }
+
+    /**
+     * Test {@link SizeLimitedOutputStream#copyTo(File, long)} copies the last bytes.
+     */
+    public void testCopyTo() throws IOException {
+        final byte[] data = new byte[29];
+        for (byte i = 0; i < data.length; i++) {
+            data[i] = i;
+        }
+        SizeLimitedOutputStream outStream = new SizeLimitedOutputStream(20, 4, "foo", "bar");
+        File dest = FileUtil.createTempFile("copy", ".bar");
+        try {
+            outStream.write(data);
+            // all the data kept, like getData
+            assertEquals(19, outStream.copyTo(dest, -1));
+            byte[] readData = Files.readAllBytes(dest.toPath());
+            assertEquals(19, readData.length);
+            assertEquals(10, readData[0]);
+            assertEquals(28, readData[18]);
+            // only the tail, across backing files
+            assertEquals(7, outStream.copyTo(dest, 7));
+            readData = Files.readAllBytes(dest.toPath());
+            assertEquals(7, readData.length);
+            assertEquals(22, readData[0]);
+            assertEquals(28, readData[6]);
+        } finally {
+            outStream.delete();
+            FileUtil.deleteFile(dest);
+        }
+    }
 }
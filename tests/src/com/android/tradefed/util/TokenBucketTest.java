@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link TokenBucket}. */
+@RunWith(JUnit4.class)
+public class TokenBucketTest {
+
+    private long mTime = 0;
+
+    private TokenBucket createBucket(int capacity, long refillIntervalMs) {
+        return new TokenBucket(capacity, refillIntervalMs) {
+            @Override
+            protected long getCurrentTimeMs() {
+                return mTime;
+            }
+        };
+    }
+
+    /** Test that a burst is allowed, then one token per refill interval. */
+    @Test
+    public void testTryAcquire() {
+        TokenBucket bucket = createBucket(2, 1000);
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        assertEquals(1000, bucket.getWaitTimeMs());
+        mTime = 400;
+        assertFalse(bucket.tryAcquire());
+        assertEquals(600, bucket.getWaitTimeMs());
+        mTime = 1000;
+        assertEquals(0, bucket.getWaitTimeMs());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    /** Test that the bucket does not fill above its capacity. */
+    @Test
+    public void testCapacity() {
+        TokenBucket bucket = createBucket(2, 1000);
+        mTime = 10 * 1000;
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+}
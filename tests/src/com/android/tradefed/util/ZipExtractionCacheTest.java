@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+
+/** Unit tests for {@link ZipExtractionCache}. */
+@RunWith(JUnit4.class)
+public class ZipExtractionCacheTest {
+
+    private File mTmpDir;
+    private File mCacheDir;
+    private ZipExtractionCache mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mTmpDir = FileUtil.createTempDir("zip-cache-test");
+        mCacheDir = new File(mTmpDir, "cache");
+        mCache = new ZipExtractionCache(mCacheDir, 2);
+        mCache.setExtractionThreads(2);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mTmpDir);
+    }
+
+    private File createZip(String name, String content) throws IOException {
+        File dir = new File(mTmpDir, name);
+        File subDir = new File(dir, "sub");
+        subDir.mkdirs();
+        FileUtil.writeToFile(content, new File(dir, "file1.txt"));
+        FileUtil.writeToFile(content + "2", new File(subDir, "file2.txt"));
+        File zip = new File(mTmpDir, name + ".zip");
+        ZipUtil.createZip(dir, zip);
+        return zip;
+    }
+
+    /** Returns the cached tree of a zip. */
+    private File getCachedDir(File zip) throws IOException {
+        return new File(mCacheDir, mCache.getKey(zip));
+    }
+
+    /** Test that a zip is only extracted once, to a read-only tree. */
+    @Test
+    public void testExtractTo_cached() throws Exception {
+        File zip = createZip("zip1", "content");
+        mCache.extractTo(zip, new File(mTmpDir, "dest1"));
+        File extracted = getCachedDir(zip);
+        File file1 = new File(extracted, "zip1/file1.txt");
+        assertEquals("content", FileUtil.readStringFromFile(file1));
+        assertEquals("content2",
+                FileUtil.readStringFromFile(new File(extracted, "zip1/sub/file2.txt")));
+        assertFalse(Files.getPosixFilePermissions(file1.toPath())
+                .contains(PosixFilePermission.OWNER_WRITE));
+        long lastModified = file1.lastModified();
+        mCache.extractTo(zip, new File(mTmpDir, "dest2"));
+        assertEquals(lastModified, file1.lastModified());
+        // the cached tree and its lock file
+        assertEquals(2, mCacheDir.listFiles().length);
+    }
+
+    /** Test that the same content at another path shares the extraction. */
+    @Test
+    public void testComputeKey() throws Exception {
+        File zip = createZip("zip1", "content");
+        File copy = new File(mTmpDir, "copy.zip");
+        FileUtil.copyFile(zip, copy);
+        assertEquals(ZipExtractionCache.computeKey(zip), ZipExtractionCache.computeKey(copy));
+        File other = createZip("zip2", "content");
+        assertNotEquals(ZipExtractionCache.computeKey(zip), ZipExtractionCache.computeKey(other));
+    }
+
+    /**
+     * Test linking the cached content into a workspace, replacing existing files, and that the
+     * workspace can delete or replace its files without altering the cache.
+     */
+    @Test
+    public void testExtractTo() throws Exception {
+        File zip = createZip("zip1", "content");
+        File dest = new File(mTmpDir, "dest");
+        File existing = new File(dest, "zip1/file1.txt");
+        existing.getParentFile().mkdirs();
+        FileUtil.writeToFile("old", existing);
+        mCache.extractTo(zip, dest);
+        assertEquals("content", FileUtil.readStringFromFile(existing));
+        assertTrue(new File(dest, "zip1/sub/file2.txt").isFile());
+        // The workspace shares the read-only cached files
+        File cached = new File(getCachedDir(zip), "zip1/file1.txt");
+        assertTrue(Files.isSameFile(existing.toPath(), cached.toPath()));
+        assertFalse(Files.getPosixFilePermissions(existing.toPath())
+                .contains(PosixFilePermission.OWNER_WRITE));
+        // Replacing a workspace file does not affect the cache
+        existing.delete();
+        FileUtil.writeToFile("modified", existing);
+        assertEquals("content", FileUtil.readStringFromFile(cached));
+        // Deleting the workspace does not affect the cache
+        FileUtil.recursiveDelete(dest);
+        assertTrue(cached.isFile());
+    }
+
+    /** Test that only the files accepted by the filter are linked. */
+    @Test
+    public void testExtractTo_filter() throws Exception {
+        File zip = createZip("zip1", "content");
+        File dest = new File(mTmpDir, "dest");
+        mCache.extractTo(zip, dest, new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().equals("file2.txt");
+            }
+        });
+        assertFalse(new File(dest, "zip1/file1.txt").exists());
+        assertTrue(new File(dest, "zip1/sub/file2.txt").isFile());
+    }
+
+    /** Test that the lock file of an entry is deleted when its extraction fails. */
+    @Test
+    public void testExtractTo_failed() throws Exception {
+        File zip = createZip("zip1", "content");
+        String key = mCache.getKey(zip);
+        // a file in place of the cached tree makes the extraction fail
+        mCacheDir.mkdirs();
+        FileUtil.writeToFile("", new File(mCacheDir, key));
+        try {
+            mCache.extractTo(zip, new File(mTmpDir, "dest"));
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(new File(mCacheDir, key + ".lock").exists());
+    }
+
+    /** Test that the least recently used extractions are evicted. */
+    @Test
+    public void testEviction() throws Exception {
+        File dest = new File(mTmpDir, "dest");
+        File zip1 = createZip("zip1", "a");
+        mCache.extractTo(zip1, dest);
+        File first = getCachedDir(zip1);
+        first.setLastModified(System.currentTimeMillis() - 60 * 1000);
+        File zip2 = createZip("zip2", "b");
+        mCache.extractTo(zip2, dest);
+        assertTrue(first.isDirectory());
+        File zip3 = createZip("zip3", "c");
+        mCache.extractTo(zip3, dest);
+        assertFalse(first.exists());
+        assertFalse(new File(mCacheDir, first.getName() + ".lock").exists());
+        assertTrue(getCachedDir(zip2).isDirectory());
+        assertTrue(getCachedDir(zip3).isDirectory());
+    }
+}
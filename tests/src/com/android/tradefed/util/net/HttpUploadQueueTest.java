@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.net;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.net.HttpUploadQueue.IUploadCallback;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Unit tests for {@link HttpUploadQueue}, against a local stub server.
+ */
+public class HttpUploadQueueTest extends TestCase {
+
+    private static final long WAIT_MS = 10 * 1000;
+
+    private HttpServer mServer;
+    private String mUrl;
+    private File mSpoolDir;
+    private HttpHelper mHttpHelper;
+    /** the response codes of the stub server, the last one is repeated */
+    private final LinkedList<Integer> mResponseCodes = new LinkedList<>();
+    private final List<String> mReceivedBodies =
+            Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> mResults = Collections.synchronizedList(new ArrayList<String>());
+    private final IUploadCallback mCallback = new IUploadCallback() {
+        @Override
+        public void uploadSucceeded(int responseCode, String response) {
+            mResults.add(responseCode + " " + response);
+        }
+
+        @Override
+        public void uploadFailed(String reason) {
+            mResults.add("failed");
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream body = exchange.getRequestBody();
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    body = new GZIPInputStream(body);
+                }
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                StreamUtil.copyStreams(body, content);
+                mReceivedBodies.add(new String(content.toByteArray(), StandardCharsets.UTF_8));
+                int code;
+                synchronized (mResponseCodes) {
+                    code = mResponseCodes.size() > 1 ? mResponseCodes.removeFirst()
+                            : mResponseCodes.getFirst();
+                }
+                byte[] response = "ok".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(code, response.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(response);
+                }
+            }
+        });
+        mServer.start();
+        mUrl = String.format("http://%s:%d/upload",
+                InetAddress.getLoopbackAddress().getHostAddress(),
+                mServer.getAddress().getPort());
+        mSpoolDir = FileUtil.createTempDir("upload-spool");
+        mHttpHelper = new HttpHelper();
+        mHttpHelper.setInitialPollInterval(10);
+        mHttpHelper.setMaxPollInterval(10);
+        mHttpHelper.setMaxTime((int) WAIT_MS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop(0);
+        FileUtil.recursiveDelete(mSpoolDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that requests are sent in the background, compressed or not, and that their spooled
+     * bodies are deleted once sent.
+     */
+    public void testEnqueue() throws Exception {
+        mResponseCodes.add(200);
+        HttpUploadQueue queue = new HttpUploadQueue(mSpoolDir, 2, 1024, mHttpHelper);
+        try {
+            assertTrue(queue.enqueue(mUrl, "application/json", bytes("{\"a\":1}"), false,
+                    mCallback));
+            assertTrue(queue.enqueue(mUrl, "application/json", bytes("{\"b\":2}"), true,
+                    mCallback));
+            assertTrue(queue.await(WAIT_MS));
+            assertEquals(2, mReceivedBodies.size());
+            assertTrue(mReceivedBodies.contains("{\"a\":1}"));
+            assertTrue(mReceivedBodies.contains("{\"b\":2}"));
+            assertEquals(Collections.nCopies(2, "200 ok"), mResults);
+            assertEquals(0, queue.getSpoolBytes());
+            assertEquals(0, mSpoolDir.listFiles().length);
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    /**
+     * Test that server errors are retried, and client errors are not.
+     */
+    public void testEnqueue_retry() throws Exception {
+        mResponseCodes.addAll(Arrays.asList(503, 503, 200, 400));
+        HttpUploadQueue queue = new HttpUploadQueue(mSpoolDir, 1, 1024, mHttpHelper);
+        try {
+            assertTrue(queue.enqueue(mUrl, null, bytes("data"), false, mCallback));
+            assertTrue(queue.await(WAIT_MS));
+            assertEquals(3, mReceivedBodies.size());
+            assertEquals(Collections.singletonList("200 ok"), mResults);
+
+            assertTrue(queue.enqueue(mUrl, null, bytes("data"), false, mCallback));
+            assertTrue(queue.await(WAIT_MS));
+            assertEquals(4, mReceivedBodies.size());
+            assertEquals("failed", mResults.get(1));
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    /**
+     * Test that requests are rejected once the spool is full.
+     */
+    public void testEnqueue_spoolFull() throws Exception {
+        HttpUploadQueue queue = new HttpUploadQueue(mSpoolDir, 1, 4, mHttpHelper);
+        try {
+            assertFalse(queue.enqueue(mUrl, null, bytes("too large"), false, mCallback));
+            assertEquals(Collections.singletonList("failed"), mResults);
+            assertEquals(0, queue.getPendingCount());
+            assertEquals(0, mSpoolDir.listFiles().length);
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    /**
+     * Test that the spool directory is created only accessible to the current user.
+     */
+    public void testEnqueue_spoolDirPermissions() throws Exception {
+        mResponseCodes.add(200);
+        File spoolDir = new File(mSpoolDir, "spool");
+        HttpUploadQueue queue = new HttpUploadQueue(spoolDir, 1, 1024, mHttpHelper);
+        try {
+            assertTrue(queue.enqueue(mUrl, null, bytes("data"), false, mCallback));
+            assertTrue(queue.await(WAIT_MS));
+            assertEquals("rwx------", PosixFilePermissions.toString(
+                    Files.getPosixFilePermissions(spoolDir.toPath())));
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    /**
+     * Test that requests are rejected when the spool directory is writable by others.
+     */
+    public void testEnqueue_spoolDirShared() throws Exception {
+        Files.setPosixFilePermissions(mSpoolDir.toPath(),
+                PosixFilePermissions.fromString("rwxrwxrwx"));
+        HttpUploadQueue queue = new HttpUploadQueue(mSpoolDir, 1, 1024, mHttpHelper);
+        try {
+            assertFalse(queue.enqueue(mUrl, null, bytes("data"), false, mCallback));
+            assertEquals(Collections.singletonList("failed"), mResults);
+            assertEquals(0, mSpoolDir.listFiles().length);
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    /**
+     * Test that the bodies left in the spool by a previous queue are deleted once stale.
+     */
+    public void testDeleteStaleBodies() throws Exception {
+        File stale = FileUtil.createTempFile("upload", ".body", mSpoolDir);
+        assertTrue(stale.setLastModified(System.currentTimeMillis() - 3 * WAIT_MS));
+        File recent = FileUtil.createTempFile("upload", ".body", mSpoolDir);
+        HttpUploadQueue queue = new HttpUploadQueue(mSpoolDir, 1, 1024, mHttpHelper);
+        try {
+            assertFalse(stale.exists());
+            assertTrue(recent.exists());
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    private static byte[] bytes(String data) {
+        return data.getBytes(StandardCharsets.UTF_8);
+    }
+}